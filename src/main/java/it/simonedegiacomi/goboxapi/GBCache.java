@@ -1,9 +1,9 @@
 package it.simonedegiacomi.goboxapi;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Class used to provide a simple cache function for the gobox client api
+ * Class used to provide a simple cache function for the gobox client api. The cache can be used by many threads
  * Created on 18/02/16.
  * @author Degiacomi Simone
  */
@@ -12,12 +12,12 @@ public class GBCache {
     /**
      * Map by id
      */
-    private final HashMap<Long, GBFile> cacheById = new HashMap<>();
+    private final ConcurrentHashMap<Long, GBFile> cacheById = new ConcurrentHashMap<>();
 
     /**
      * Map by path
      */
-    private final HashMap<String, GBFile> cacheByPath = new HashMap<>();
+    private final ConcurrentHashMap<String, GBFile> cacheByPath = new ConcurrentHashMap<>();
 
     /**
      * Add the file to the cache
@@ -30,7 +30,8 @@ public class GBCache {
             cacheById.put(file.getID(), file);
 
         // add the file in the cache path
-        cacheByPath.put(file.getPathAsString(), file);
+        if (file.getPathAsList() != null)
+            cacheByPath.put(file.getPathAsString(), file);
     }
 
     /**
@@ -48,7 +49,7 @@ public class GBCache {
      * @return cached file or null
      */
     public GBFile get (String path) {
-        return cacheByPath.get(path);
+        return path == null ? null : cacheByPath.get(path);
     }
 
     /**
@@ -59,14 +60,15 @@ public class GBCache {
     public GBFile get (GBFile poorFile) {
 
         // Check the id
-        if(poorFile.getID() != GBFile.UNKNOWN_ID && cacheById.containsKey(poorFile.getID()))
-            return cacheById.get(poorFile.getID());
+        GBFile cached = null;
+        if(poorFile.getID() != GBFile.UNKNOWN_ID)
+            cached = cacheById.get(poorFile.getID());
 
         // check the path
-        if (poorFile.getPathAsList() != null && cacheByPath.containsKey(poorFile.getPathAsString()))
-            return cacheByPath.get(poorFile.getPathAsString());
+        if (cached == null && poorFile.getPathAsList() != null)
+            cached = cacheByPath.get(poorFile.getPathAsString());
 
-        return null;
+        return cached;
     }
 
     /**
@@ -82,4 +84,12 @@ public class GBCache {
             cacheByPath.remove(file.getPathAsString());
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Remove all the files from the cache
+     */
+    public void clear () {
+        cacheById.clear();
+        cacheByPath.clear();
+    }
+}
@@ -0,0 +1,148 @@
+package it.simonedegiacomi.goboxapi.client;
+
+import org.apache.log4j.Logger;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Base of the transports, that counts the requests and the new connections. The new connections are counted by
+ * the socket factory given to the connections: the https connections of the JVM are reused only with the same
+ * factory, so the counted factory of a transport also keeps its connections apart from the ones of the others.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public abstract class AbstractTransferTransport implements TransferTransport {
+
+    private static final Logger log = Logger.getLogger(AbstractTransferTransport.class);
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong connectionsOpened = new AtomicLong();
+
+    /**
+     * Last factory used and its counted version. A profile always uses the same factory, so one is enough
+     */
+    private volatile CountingSocketFactory factory;
+
+    @Override
+    public HttpsURLConnection open(URL url, SSLSocketFactory sslSocketFactory) throws IOException {
+        HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
+        conn.setSSLSocketFactory(counted(sslSocketFactory != null ? sslSocketFactory
+                : HttpsURLConnection.getDefaultSSLSocketFactory()));
+        requests.incrementAndGet();
+        return conn;
+    }
+
+    private SSLSocketFactory counted(SSLSocketFactory delegate) {
+        CountingSocketFactory current = factory;
+        if (current == null || current.delegate != delegate) {
+            synchronized (this) {
+                current = factory;
+                if (current == null || current.delegate != delegate)
+                    factory = current = new CountingSocketFactory(delegate);
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Close the response stream of a connection. If the response was read to the end the connection goes back to
+     * the keep alive cache of the JVM
+     * @param conn Connection of the response
+     * @return False if the stream couldn't be closed, so the connection should be discarded
+     */
+    protected static boolean closeResponse(HttpsURLConnection conn) {
+        try {
+            InputStream in = conn.getResponseCode() >= 400 ? conn.getErrorStream() : conn.getInputStream();
+            if (in != null)
+                in.close();
+            return true;
+        } catch (IOException ex) {
+            log.debug("Cannot close the response: " + ex.toString());
+            return false;
+        }
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.get();
+    }
+
+    @Override
+    public long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    @Override
+    public double getReuseRate() {
+        long total = requests.get();
+        return total == 0 ? 0 : Math.max(0, 1 - connectionsOpened.get() / (double) total);
+    }
+
+    /**
+     * Socket factory that counts the sockets created. A connection creates its socket with one of the methods, so
+     * every successful call is a new connection
+     */
+    private class CountingSocketFactory extends SSLSocketFactory {
+
+        private final SSLSocketFactory delegate;
+
+        CountingSocketFactory(SSLSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        private Socket count(Socket socket) {
+            connectionsOpened.incrementAndGet();
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return count(delegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            return count(delegate.createSocket(socket, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return count(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return count(delegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return count(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                throws IOException {
+            return count(delegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package it.simonedegiacomi.goboxapi.client;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.goboxapi.utils.MyGsonBuilder;
+import it.simonedegiacomi.goboxapi.utils.Transfers;
+import org.apache.log4j.Logger;
+
+import javax.net.ssl.HttpsURLConnection;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * Upload of a local file in chunks of fixed size, every one acknowledged by the storage, so an upload interrupted at
+ * any point restarts from the last acknowledged chunk instead of from zero. The acknowledged chunks are saved in an
+ * {@link UploadCheckpoint}, and the chunks can be sent over many connections at the same time.
+ *
+ * The chunks are sent with a POST to the 'uploadChunk' url, with the parameters {"upload": id, "chunk": index,
+ * "offset": position} and the content as body. The storage answers 200 when the chunk is saved. When all the chunks
+ * are sent a POST with {"upload": id, "complete": true, "chunks": count, "size": size, "file": file} asks the storage to
+ * join them: it answers 200, or 409 with {"missing": [indexes]} if some chunks are lost, which are sent again.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+class ChunkedUpload {
+
+    /**
+     * Number of times a chunk is sent before the upload fails
+     */
+    private static final int MAX_ATTEMPTS = 3;
+
+    private static final Logger log = Logger.getLogger(ChunkedUpload.class);
+
+    private static final Gson gson = MyGsonBuilder.create();
+
+    private final TransferProfile profile;
+    private final GBFile file;
+    private final File source;
+    private final UploadCheckpoint checkpoint;
+    private final Executor executor;
+    private final int connections;
+    private final int chunkSize;
+
+    /**
+     * First error of the chunks sent at the same time
+     */
+    private volatile IOException failure;
+
+    /**
+     * Create a new upload
+     * @param profile Profile used to open the connections
+     * @param file Destination of the file in the storage
+     * @param source Local file to upload
+     * @param checkpoint Checkpoint of the upload
+     * @param chunkSize Size of a chunk
+     * @param executor Executor of the connections after the first one
+     * @param connections Number of chunks sent at the same time
+     */
+    ChunkedUpload(TransferProfile profile, GBFile file, File source, UploadCheckpoint checkpoint, int chunkSize,
+                  Executor executor, int connections) {
+        this.profile = profile;
+        this.file = file;
+        this.source = source;
+        this.checkpoint = checkpoint;
+        this.chunkSize = chunkSize;
+        this.executor = executor;
+        this.connections = Math.max(1, connections);
+    }
+
+    /**
+     * Send the chunks not yet acknowledged and complete the upload. The checkpoint is deleted when the upload is
+     * completed, and kept if the upload fails
+     * @throws ClientException Error during the upload
+     * @throws IOException The local file can't be read
+     */
+    void run() throws ClientException, IOException {
+        long size = source.length();
+        int chunks = (int) ((size + chunkSize - 1) / chunkSize);
+        try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            for (int round = 0; ; round++) {
+                send(channel, chunks);
+                List<Integer> missing = complete(chunks, size);
+                if (missing.isEmpty())
+                    break;
+                if (round > 0)
+                    throw new ClientException("The storage lost the chunks " + missing + " again");
+                log.warn("The storage lost the chunks " + missing + ", send them again");
+                checkpoint.rollback(missing);
+            }
+        }
+        checkpoint.delete();
+    }
+
+    /**
+     * Send all the chunks not yet acknowledged, the calling thread included in the connections
+     */
+    private void send(final FileChannel channel, int chunks) throws ClientException, IOException {
+        final Queue<Integer> queue = new ConcurrentLinkedQueue<>();
+        for (int chunk = 0; chunk < chunks; chunk++)
+            if (!checkpoint.isCommitted(chunk))
+                queue.add(chunk);
+        log.info("Upload of " + source + ": " + queue.size() + " chunks of " + chunks + " to send");
+
+        int helpers = Math.min(connections, queue.size()) - 1;
+        final CountDownLatch done = new CountDownLatch(Math.max(0, helpers));
+        for (int i = 0; i < helpers; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sendAll(channel, queue);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        sendAll(channel, queue);
+        try {
+            done.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            failure = new IOException("Upload interrupted");
+            throw new ClientException("Upload interrupted");
+        }
+        if (failure != null)
+            throw new ClientException(failure.toString());
+    }
+
+    private void sendAll(FileChannel channel, Queue<Integer> queue) {
+        Integer chunk;
+        while (failure == null && (chunk = queue.poll()) != null) {
+            try {
+                sendChunk(channel, chunk);
+            } catch (IOException ex) {
+                log.warn("Chunk " + chunk + " failed: " + ex.toString());
+                failure = ex;
+            }
+        }
+    }
+
+    /**
+     * Send a chunk, read from the file at every attempt so the chunk is never held in memory
+     */
+    private void sendChunk(FileChannel channel, int chunk) throws IOException {
+        long offset = (long) chunk * chunkSize;
+        int length = (int) Math.min(chunkSize, channel.size() - offset);
+        if (length <= 0)
+            throw new EOFException("The file " + source + " is shorter than expected");
+
+        JsonObject params = new JsonObject();
+        params.addProperty("upload", checkpoint.getUploadId());
+        params.addProperty("chunk", chunk);
+        params.addProperty("offset", offset);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                HttpsURLConnection conn = post(params, length);
+                int code;
+                try {
+                    try (OutputStream out = conn.getOutputStream()) {
+                        Transfers.copy(channel, offset, length, out);
+                    }
+                    code = conn.getResponseCode();
+                } catch (IOException ex) {
+                    profile.discard(conn);
+                    throw ex;
+                }
+                profile.release(conn);
+                if (code != HttpsURLConnection.HTTP_OK)
+                    throw new IOException("Response code of the chunk: " + code);
+                checkpoint.commit(chunk);
+                return;
+            } catch (IOException ex) {
+                if (attempt >= MAX_ATTEMPTS)
+                    throw ex;
+                log.warn("Chunk " + chunk + " failed, retry: " + ex.toString());
+            }
+        }
+    }
+
+    /**
+     * Ask the storage to join the chunks
+     * @return Chunks that the storage doesn't have, empty if the upload is completed
+     */
+    private List<Integer> complete(int chunks, long size) throws ClientException {
+        JsonObject params = new JsonObject();
+        params.addProperty("upload", checkpoint.getUploadId());
+        params.addProperty("complete", true);
+        params.addProperty("chunks", chunks);
+        params.addProperty("size", size);
+        params.add("file", gson.toJsonTree(file, GBFile.class));
+        HttpsURLConnection conn = null;
+        int code;
+        List<Integer> missing = new ArrayList<>();
+        try {
+            conn = post(params, 0);
+            conn.getOutputStream().close();
+            code = conn.getResponseCode();
+            if (code == HttpsURLConnection.HTTP_CONFLICT) {
+                InputStream in = conn.getErrorStream();
+                JsonElement response = new JsonParser().parse(new InputStreamReader(in, StandardCharsets.UTF_8));
+                for (JsonElement chunk : response.getAsJsonObject().getAsJsonArray("missing"))
+                    missing.add(chunk.getAsInt());
+            }
+        } catch (IOException | RuntimeException ex) {
+            if (conn != null)
+                profile.discard(conn);
+            log.warn(ex.toString(), ex);
+            throw new ClientException(ex.toString());
+        }
+        profile.release(conn);
+        if (code != HttpsURLConnection.HTTP_OK && code != HttpsURLConnection.HTTP_CONFLICT)
+            throw new ClientException("Response code of the upload: " + code);
+        return missing;
+    }
+
+    private HttpsURLConnection post(JsonObject params, int length) throws IOException {
+        HttpsURLConnection conn = profile.openConnection(TransferProfile.Action.UPLOAD_CHUNK, params, true);
+        conn.setDoInput(true);
+        conn.setDoOutput(true);
+        conn.setRequestMethod("POST");
+        conn.setFixedLengthStreamingMode(length);
+        return conn;
+    }
+}
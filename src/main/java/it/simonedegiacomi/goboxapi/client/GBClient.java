@@ -1,5 +1,7 @@
 package it.simonedegiacomi.goboxapi.client;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import it.simonedegiacomi.goboxapi.GBFile;
 
 import java.io.*;
@@ -9,6 +11,11 @@ import java.util.List;
 /**
  * This is the interface of the goboxclient api and define the basic operation that a client can do.
  *
+ * Every metadata operation has also an asynchronous version (like {@link #getInfoAsync(GBFile)}) that returns
+ * immediately a future. The default implementation of these methods just call the blocking version, so a subclass
+ * should override them if it can do better. When an asynchronous operation fails, the future fails with a
+ * {@link ClientException}.
+ *
  * @author Degiacomi Simone
  * Created on 02/01/2016.
  */
@@ -32,7 +39,12 @@ public abstract class GBClient {
         /**
          * The client needs to be initialized
          */
-        NOT_READY
+        NOT_READY,
+
+        /**
+         * The connection was lost and the client is trying to reconnect
+         */
+        RECONNECTING
     }
 
     /**
@@ -77,6 +89,20 @@ public abstract class GBClient {
      */
     public abstract GBFile getInfo(GBFile file) throws ClientException;
 
+    /**
+     * Asynchronous version of {@link #getInfo(GBFile)}. The future is completed with a null pointer if the file is
+     * not found.
+     * @param file File to look at
+     * @return Future completed with the GBFile with the storage information
+     */
+    public ListenableFuture<GBFile> getInfoAsync (GBFile file) {
+        try {
+            return Futures.immediateFuture(getInfo(file));
+        } catch (ClientException ex) {
+            return Futures.immediateFailedFuture(ex);
+        }
+    }
+
     /**
      * Return the url for the specified action with the specified parameters
      * @param action Action
@@ -123,6 +149,22 @@ public abstract class GBClient {
      */
     public abstract void getFile (GBFile file, OutputStream dst) throws ClientException, IOException;
 
+    /**
+     * Asynchronous version of {@link #getFile(GBFile, OutputStream)}. The future fails with a ClientException or
+     * with an IOException
+     * @param file File to download
+     * @param dst Destination of the input stream of the file
+     * @return Future completed when the file is downloaded
+     */
+    public ListenableFuture<Void> getFileAsync (GBFile file, OutputStream dst) {
+        try {
+            getFile(file, dst);
+            return Futures.immediateFuture(null);
+        } catch (ClientException | IOException ex) {
+            return Futures.immediateFailedFuture(ex);
+        }
+    }
+
     /**
      * Create a new directory in the Storage.
      * NOTE that this method doesn't do anything to the local file system
@@ -131,6 +173,20 @@ public abstract class GBClient {
      */
     public abstract void createDirectory (GBFile newDir) throws ClientException;
 
+    /**
+     * Asynchronous version of {@link #createDirectory(GBFile)}
+     * @param newDir Directory to create
+     * @return Future completed when the directory is created
+     */
+    public ListenableFuture<Void> createDirectoryAsync (GBFile newDir) {
+        try {
+            createDirectory(newDir);
+            return Futures.immediateFuture(null);
+        } catch (ClientException ex) {
+            return Futures.immediateFailedFuture(ex);
+        }
+    }
+
     /**
      * Send a file to the storage.
      * NOTE that this method doesn't close the stream
@@ -141,6 +197,22 @@ public abstract class GBClient {
      */
     public abstract void uploadFile (GBFile file, InputStream stream) throws ClientException, IOException;
 
+    /**
+     * Asynchronous version of {@link #uploadFile(GBFile, InputStream)}. The future fails with a ClientException or
+     * with an IOException
+     * @param file File to send
+     * @param stream Stream of the file
+     * @return Future completed when the file is sent
+     */
+    public ListenableFuture<Void> uploadFileAsync (GBFile file, InputStream stream) {
+        try {
+            uploadFile(file, stream);
+            return Futures.immediateFuture(null);
+        } catch (ClientException | IOException ex) {
+            return Futures.immediateFailedFuture(ex);
+        }
+    }
+
     /**
      * Same ad uploadFile(GBFile, InputStream) but this read the file from the path of the GBFile
      * @param file File to send
@@ -148,6 +220,9 @@ public abstract class GBClient {
      * @throws IOException i/o stream error
      */
     public void uploadFile (GBFile file) throws ClientException, IOException {
+
+        // With the size the content can be sent with a fixed length
+        file.setSize(file.toFile().length());
         InputStream in =new FileInputStream(file.toFile());
         uploadFile(file, in);
         in.close();
@@ -161,6 +236,21 @@ public abstract class GBClient {
      */
     public abstract void trashFile (GBFile file, boolean toTrash) throws ClientException;
 
+    /**
+     * Asynchronous version of {@link #trashFile(GBFile, boolean)}
+     * @param file File to move
+     * @param toTrash True to move the file in the trash, false otherwise
+     * @return Future completed when the file is moved
+     */
+    public ListenableFuture<Void> trashFileAsync (GBFile file, boolean toTrash) {
+        try {
+            trashFile(file, toTrash);
+            return Futures.immediateFuture(null);
+        } catch (ClientException ex) {
+            return Futures.immediateFailedFuture(ex);
+        }
+    }
+
     /**
      * Move a file to/from the trash using isTrash GBFile method. This method is an alias for
      * {@link #trashFile(GBFile, boolean)}.
@@ -172,6 +262,15 @@ public abstract class GBClient {
         trashFile(file, file.isTrashed());
     }
 
+    /**
+     * Asynchronous version of {@link #trashFile(GBFile)}
+     * @param file File to trash
+     * @return Future completed when the file is moved
+     */
+    public ListenableFuture<Void> trashFileAsync (GBFile file) {
+        return trashFileAsync(file, file.isTrashed());
+    }
+
     /**
      * Remove a file from the storage, even if it's not in the trash.
      * This file doesn't change the local file system
@@ -180,6 +279,20 @@ public abstract class GBClient {
      */
     public abstract void removeFile (GBFile file) throws ClientException;
 
+    /**
+     * Asynchronous version of {@link #removeFile(GBFile)}
+     * @param file File to remove
+     * @return Future completed when the file is removed
+     */
+    public ListenableFuture<Void> removeFileAsync (GBFile file) {
+        try {
+            removeFile(file);
+            return Futures.immediateFuture(null);
+        } catch (ClientException ex) {
+            return Futures.immediateFailedFuture(ex);
+        }
+    }
+
     /**
      * Add the listener for the SyncEvent received from the storage
      * @param listener Listener that will called with the relative event
@@ -199,6 +312,18 @@ public abstract class GBClient {
      */
     public abstract List<GBFile> getSharedFiles () throws ClientException;
 
+    /**
+     * Asynchronous version of {@link #getSharedFiles()}
+     * @return Future completed with the list of the shared files
+     */
+    public ListenableFuture<List<GBFile>> getSharedFilesAsync () {
+        try {
+            return Futures.immediateFuture(getSharedFiles());
+        } catch (ClientException ex) {
+            return Futures.immediateFailedFuture(ex);
+        }
+    }
+
     /**
      * Share o stop sharing a file
      * @param file File to share
@@ -207,6 +332,21 @@ public abstract class GBClient {
      */
     public abstract void share (GBFile file, boolean share) throws ClientException;
 
+    /**
+     * Asynchronous version of {@link #share(GBFile, boolean)}
+     * @param file File to share
+     * @param share True to share, false to stop sharing
+     * @return Future completed when the file is shared
+     */
+    public ListenableFuture<Void> shareAsync (GBFile file, boolean share) {
+        try {
+            share(file, share);
+            return Futures.immediateFuture(null);
+        } catch (ClientException ex) {
+            return Futures.immediateFailedFuture(ex);
+        }
+    }
+
     /**
      * Make a search in the storage
      * @param filter Filter of the query
@@ -215,6 +355,19 @@ public abstract class GBClient {
      */
     public abstract List<GBFile> getFilesByFilter (GBFilter filter) throws ClientException;
 
+    /**
+     * Asynchronous version of {@link #getFilesByFilter(GBFilter)}
+     * @param filter Filter of the query
+     * @return Future completed with the list of matching files
+     */
+    public ListenableFuture<List<GBFile>> getFilesByFilterAsync (GBFilter filter) {
+        try {
+            return Futures.immediateFuture(getFilesByFilter(filter));
+        } catch (ClientException ex) {
+            return Futures.immediateFailedFuture(ex);
+        }
+    }
+
     /**
      * Return a list of recent files
      * @param from Offset of the result list
@@ -224,6 +377,20 @@ public abstract class GBClient {
      */
     public abstract List<SyncEvent> getRecentFiles (long from, long size) throws ClientException;
 
+    /**
+     * Asynchronous version of {@link #getRecentFiles(long, long)}
+     * @param from Offset of the result list
+     * @param size Limit of the result list
+     * @return Future completed with the list of the recent files
+     */
+    public ListenableFuture<List<SyncEvent>> getRecentFilesAsync (long from, long size) {
+        try {
+            return Futures.immediateFuture(getRecentFiles(from, size));
+        } catch (ClientException ex) {
+            return Futures.immediateFailedFuture(ex);
+        }
+    }
+
     /**
      * Return a list of the trashed files
      * @return List with the trashed files
@@ -231,12 +398,37 @@ public abstract class GBClient {
      */
     public abstract List<GBFile> getTrashedFiles () throws ClientException;
 
+    /**
+     * Asynchronous version of {@link #getTrashedFiles()}
+     * @return Future completed with the list of the trashed files
+     */
+    public ListenableFuture<List<GBFile>> getTrashedFilesAsync () {
+        try {
+            return Futures.immediateFuture(getTrashedFiles());
+        } catch (ClientException ex) {
+            return Futures.immediateFailedFuture(ex);
+        }
+    }
+
     /**
      * Empty the trash
      * @throws ClientException Error emptying the trash
      */
     public abstract void emptyTrash () throws ClientException;
 
+    /**
+     * Asynchronous version of {@link #emptyTrash()}
+     * @return Future completed when the trash is empty
+     */
+    public ListenableFuture<Void> emptyTrashAsync () {
+        try {
+            emptyTrash();
+            return Futures.immediateFuture(null);
+        } catch (ClientException ex) {
+            return Futures.immediateFailedFuture(ex);
+        }
+    }
+
     /**
      * Move, Rename o Copy a file.
      * @param src Source file
@@ -245,4 +437,20 @@ public abstract class GBClient {
      * @throws ClientException Error moving/copying the file
      */
     public abstract void move (GBFile src, GBFile dst, boolean copy) throws ClientException;
-}
\ No newline at end of file
+
+    /**
+     * Asynchronous version of {@link #move(GBFile, GBFile, boolean)}
+     * @param src Source file
+     * @param dst Destination file
+     * @param copy Copy or move
+     * @return Future completed when the file is moved or copied
+     */
+    public ListenableFuture<Void> moveAsync (GBFile src, GBFile dst, boolean copy) {
+        try {
+            move(src, dst, copy);
+            return Futures.immediateFuture(null);
+        } catch (ClientException ex) {
+            return Futures.immediateFailedFuture(ex);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package it.simonedegiacomi.goboxapi.client;
 
+import com.google.gson.annotations.Expose;
+
 /**
  * Filter used to search files
  * Created on 26/03/16.
@@ -15,21 +17,25 @@ public class GBFilter {
     /**
      * Offset of the result list
      */
+    @Expose
     private long from;
 
     /**
      * Length of result list
      */
+    @Expose
     private long size = DEFAULT_RESULT_SIZE;
 
     /**
      * Keyword of the query
      */
+    @Expose
     private String keyword;
 
     /**
      * Kind of file
      */
+    @Expose
     private String kind;
 
     public long getStart() {
@@ -0,0 +1,97 @@
+package it.simonedegiacomi.goboxapi.client;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Transport that keeps the connections alive between the requests, so a sequence of small transfers pays the TCP
+ * and TLS handshakes only once. The released connections go to the keep alive cache of the JVM, which keeps up to
+ * 'http.maxConnections' (5 by default) idle connections for every server, and the transport limits the connections
+ * in use at the same time: when the limit is reached, a new request waits for a connection to be released.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class PooledTransport extends AbstractTransferTransport {
+
+    /**
+     * Default maximum number of connections in use at the same time
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 8;
+
+    private final int maxConnections;
+
+    private final Semaphore permits;
+
+    private final Set<HttpsURLConnection> inUse =
+            Collections.newSetFromMap(new ConcurrentHashMap<HttpsURLConnection, Boolean>());
+
+    public PooledTransport() {
+        this(DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * Create a new transport
+     * @param maxConnections Maximum number of connections in use at the same time
+     */
+    public PooledTransport(int maxConnections) {
+        if (maxConnections < 1)
+            throw new IllegalArgumentException("At least one connection is required");
+        this.maxConnections = maxConnections;
+        this.permits = new Semaphore(maxConnections, true);
+    }
+
+    @Override
+    public HttpsURLConnection open(URL url, SSLSocketFactory sslSocketFactory) throws IOException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection");
+        }
+        try {
+            HttpsURLConnection conn = super.open(url, sslSocketFactory);
+            inUse.add(conn);
+            return conn;
+        } catch (IOException | RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    @Override
+    public void release(HttpsURLConnection conn) {
+        if (!inUse.remove(conn))
+            return;
+        if (!closeResponse(conn))
+            conn.disconnect();
+        permits.release();
+    }
+
+    @Override
+    public void discard(HttpsURLConnection conn) {
+        if (!inUse.remove(conn))
+            return;
+        conn.disconnect();
+        permits.release();
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Return the number of connections in use
+     * @return Number of connections not yet released
+     */
+    public int getConnectionsInUse() {
+        return inUse.size();
+    }
+}
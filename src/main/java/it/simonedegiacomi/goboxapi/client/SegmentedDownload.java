@@ -0,0 +1,449 @@
+package it.simonedegiacomi.goboxapi.client;
+
+import com.google.gson.JsonObject;
+import org.apache.log4j.Logger;
+
+import javax.net.ssl.HttpsURLConnection;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Download of a file split in segments, requested with the HTTP Range header over many connections at the same
+ * time. On a link with a high latency a single TCP stream can't fill the bandwidth, while many streams together can.
+ * Every segment is written directly at its offset of the destination channel, so no segment is held in memory.
+ *
+ * The download adapts to the measured throughput: a segment lasts about {@link #SEGMENT_TIME} milliseconds, and a new
+ * connection is added while the total throughput keeps growing, up to the maximum number of connections. If the
+ * server doesn't support the ranges the file is downloaded with a single stream.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+class SegmentedDownload {
+
+    /**
+     * Minimum and maximum size (in bytes) of a segment
+     */
+    static final long MIN_SEGMENT = 256 * 1024;
+    static final long MAX_SEGMENT = 64 * 1024 * 1024;
+
+    /**
+     * Time (in milliseconds) that a segment should take at the measured throughput
+     */
+    static final long SEGMENT_TIME = 1000;
+
+    /**
+     * Time (in milliseconds) between two measures of the total throughput
+     */
+    private static final long SAMPLE_INTERVAL = 500;
+
+    /**
+     * Number of times a segment is requested before the download fails
+     */
+    private static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * Content-Range of a response, the size of the file is '*' if the server doesn't know it
+     */
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+
+    private static final Logger log = Logger.getLogger(SegmentedDownload.class);
+
+    private final TransferProfile profile;
+    private final long id;
+    private final FileChannel channel;
+    private final Executor executor;
+    private final int maxConnections;
+    private final long minSegment;
+
+    /**
+     * Size of the file, first byte not yet assigned to a segment and segments to request again
+     */
+    private long length;
+    private final AtomicLong cursor = new AtomicLong();
+    private final Queue<Range> retries = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Bytes written and size of the next segment, adapted to the throughput of a connection
+     */
+    private final AtomicLong transferred = new AtomicLong();
+    private volatile long segmentSize;
+    private double firstRate;
+
+    /**
+     * Connections in use and first error, guarded by the lock of the object
+     */
+    private int connections;
+    private volatile int activeConnections;
+    private IOException failure;
+
+    /**
+     * True when the download failed, so the connections stop writing in the middle of their segments
+     */
+    private volatile boolean cancelled;
+
+    /**
+     * Create a new download
+     * @param profile Profile used to open the connections
+     * @param id ID of the file
+     * @param channel Destination channel
+     * @param executor Executor of the connections after the first one
+     * @param maxConnections Maximum number of connections at the same time
+     * @param minSegment Minimum size of a segment
+     */
+    SegmentedDownload(TransferProfile profile, long id, FileChannel channel, Executor executor, int maxConnections,
+                      long minSegment) {
+        this.profile = profile;
+        this.id = id;
+        this.channel = channel;
+        this.executor = executor;
+        this.maxConnections = Math.max(1, maxConnections);
+        this.minSegment = Math.max(1, minSegment);
+        this.segmentSize = this.minSegment;
+    }
+
+    /**
+     * Download the file, blocking until all the segments are written
+     * @return Size of the file
+     * @throws ClientException Error during the download
+     */
+    long run() throws ClientException {
+        try {
+
+            // The first segment tells the size of the file and if the server supports the ranges
+            if (!probe())
+                return length;
+            log.info("Segmented download of " + length + " bytes");
+
+            synchronized (this) {
+                startConnection();
+                if (maxConnections > 1 && cursor.get() < length)
+                    startConnection();
+                climb();
+                if (failure != null) {
+                    cancel(failure);
+                    throw failure;
+                }
+            }
+            channel.truncate(length);
+            log.info("Download completed with " + connections + " connections");
+            return length;
+        } catch (IOException ex) {
+            log.warn(ex.toString(), ex);
+            throw new ClientException(ex.toString());
+        } catch (InterruptedException ex) {
+            synchronized (this) {
+                cancel(new IOException("Download interrupted"));
+            }
+            Thread.currentThread().interrupt();
+            throw new ClientException("Download interrupted");
+        }
+    }
+
+    /**
+     * Stop the connections and wait for them, so after the download failed no connection still writes to the
+     * channel or holds a connection of the transport. Called with the lock
+     * @param cause Error of the download
+     */
+    private void cancel(IOException cause) {
+        if (failure == null)
+            failure = cause;
+        cancelled = true;
+        boolean interrupted = false;
+        while (activeConnections > 0) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Wait for the connections, adding a new one while the total throughput grows by more than 10%. The climb stops
+     * after two measures without growth
+     */
+    private void climb() throws InterruptedException {
+        double best = firstRate;
+        long last = transferred.get();
+        long lastTime = System.nanoTime();
+        int flat = 0;
+        while (activeConnections > 0 && failure == null) {
+            wait(SAMPLE_INTERVAL);
+            long now = System.nanoTime();
+            if (now - lastTime < TimeUnit.MILLISECONDS.toNanos(SAMPLE_INTERVAL))
+                continue;
+            double rate = (transferred.get() - last) * 1e9 / (now - lastTime);
+            last = transferred.get();
+            lastTime = now;
+            if (flat >= 2 || connections >= maxConnections || cursor.get() >= length)
+                continue;
+            if (rate > best * 1.1) {
+                best = rate;
+                flat = 0;
+                startConnection();
+            } else {
+                flat++;
+            }
+        }
+    }
+
+    /**
+     * Request the first segment from the calling thread
+     * @return True if the rest of the file must be downloaded with the ranges
+     */
+    private boolean probe() throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                long start = System.nanoTime();
+                HttpsURLConnection conn = open(0, minSegment - 1);
+                boolean ranges;
+                try {
+                    ranges = readFirst(conn, start);
+                } catch (IOException ex) {
+                    profile.discard(conn);
+                    throw ex;
+                }
+                profile.release(conn);
+                return ranges;
+            } catch (IOException ex) {
+                if (attempt >= MAX_ATTEMPTS)
+                    throw ex;
+                log.warn("First segment failed, retry: " + ex.toString());
+            }
+        }
+    }
+
+    /**
+     * Read the response of the first segment
+     * @return True if the rest of the file must be downloaded with the ranges
+     */
+    private boolean readFirst(HttpsURLConnection conn, long start) throws IOException {
+        int code = conn.getResponseCode();
+        if (code == HttpsURLConnection.HTTP_OK) {
+
+            // No ranges, so the whole file is on this connection
+            log.info("The server doesn't support the ranges, download with a single stream");
+            length = write(conn, new Range(0, Long.MAX_VALUE));
+            channel.truncate(length);
+            return false;
+        }
+        if (code == 416) {
+
+            // The first byte doesn't exist, so the file is empty
+            length = 0;
+            channel.truncate(0);
+            return false;
+        }
+        if (code != HttpsURLConnection.HTTP_PARTIAL)
+            throw new IOException("Response code of the download: " + code);
+        Matcher range = CONTENT_RANGE.matcher(String.valueOf(conn.getHeaderField("Content-Range")));
+        if (!range.matches() || Long.parseLong(range.group(1)) != 0)
+            throw new IOException("Invalid Content-Range: " + conn.getHeaderField("Content-Range"));
+        long end = Long.parseLong(range.group(2));
+        write(conn, new Range(0, end));
+        if ("*".equals(range.group(3))) {
+
+            // Without the size the file can't be split, so the rest is read with a single stream
+            log.info("The server doesn't tell the size of the file, download with a single stream");
+            length = end + 1 < minSegment ? end + 1 : readRest(end + 1);
+            channel.truncate(length);
+            return false;
+        }
+        length = Long.parseLong(range.group(3));
+        cursor.set(end + 1);
+        long elapsed = System.nanoTime() - start;
+        firstRate = (end + 1) * 1e9 / Math.max(1, elapsed);
+        adapt(end + 1, elapsed);
+        return true;
+    }
+
+    /**
+     * Read the rest of a file whose size is not known with a single open ended range
+     * @param from First byte not written yet
+     * @return Size of the file
+     */
+    private long readRest(long from) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            HttpsURLConnection conn = open(from, Long.MAX_VALUE);
+            try {
+                int code = conn.getResponseCode();
+                if (code == 416) {
+
+                    // The first segment ended exactly at the end of the file
+                    profile.release(conn);
+                    return from;
+                }
+                if (code != HttpsURLConnection.HTTP_PARTIAL && code != HttpsURLConnection.HTTP_OK)
+                    throw new IOException("Response code of the download: " + code);
+
+                // Without the range the server sends the whole file again
+                Range rest = new Range(code == HttpsURLConnection.HTTP_OK ? 0 : from, Long.MAX_VALUE);
+                write(conn, rest);
+                profile.release(conn);
+                return rest.from;
+            } catch (IOException ex) {
+                profile.discard(conn);
+                if (attempt >= MAX_ATTEMPTS)
+                    throw ex;
+                log.warn("Rest of the file failed, retry: " + ex.toString());
+            }
+        }
+    }
+
+    /**
+     * Start a new connection on the executor. Called with the lock
+     */
+    private void startConnection() {
+        connections++;
+        activeConnections++;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Range range;
+                    while ((range = next()) != null)
+                        fetch(range);
+                } catch (IOException ex) {
+                    synchronized (SegmentedDownload.this) {
+                        if (failure == null)
+                            failure = ex;
+                    }
+                } finally {
+                    synchronized (SegmentedDownload.this) {
+                        activeConnections--;
+                        SegmentedDownload.this.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Take the next segment to download, null if there are no more segments or the download failed
+     */
+    private Range next() {
+        synchronized (this) {
+            if (failure != null)
+                return null;
+        }
+        Range retry = retries.poll();
+        if (retry != null)
+            return retry;
+
+        // Near the end the segments get smaller, so all the connections finish at the same time
+        long remaining = length - cursor.get();
+        long size = Math.min(segmentSize, Math.max(minSegment, remaining / Math.max(1, activeConnections)));
+        long from = cursor.getAndAdd(size);
+        if (from >= length)
+            return null;
+        return new Range(from, Math.min(length, from + size) - 1);
+    }
+
+    /**
+     * Download a segment. If the connection fails the rest of the segment is requested again later
+     */
+    private void fetch(Range range) throws IOException {
+        long start = System.nanoTime();
+        long from = range.from;
+        try {
+            HttpsURLConnection conn = open(range.from, range.to);
+            try {
+                int code = conn.getResponseCode();
+                if (code != HttpsURLConnection.HTTP_PARTIAL)
+                    throw new IOException("Response code of the segment: " + code);
+                write(conn, range);
+            } catch (IOException ex) {
+                profile.discard(conn);
+                throw ex;
+            }
+            profile.release(conn);
+            adapt(range.from - from, System.nanoTime() - start);
+        } catch (IOException ex) {
+            if (cancelled || ++range.attempts >= MAX_ATTEMPTS)
+                throw ex;
+            log.warn("Segment " + range.from + "-" + range.to + " failed, retry: " + ex.toString());
+            retries.add(range);
+        }
+    }
+
+    /**
+     * Adapt the size of the segments to the throughput of a connection
+     * @param bytes Bytes of the last segment
+     * @param nanos Time of the last segment
+     */
+    private void adapt(long bytes, long nanos) {
+        if (bytes <= 0 || nanos <= 0)
+            return;
+        long target = (long) (bytes * 1e6 * SEGMENT_TIME / nanos);
+        long smoothed = (segmentSize + target) / 2;
+        segmentSize = Math.max(minSegment, Math.min(Math.max(minSegment, MAX_SEGMENT), smoothed));
+    }
+
+    private HttpsURLConnection open(long from, long to) throws IOException {
+        JsonObject params = new JsonObject();
+        params.addProperty("ID", id);
+        HttpsURLConnection conn = profile.openConnection(TransferProfile.Action.DOWNLOAD, params, false);
+        conn.setRequestProperty("Range", "bytes=" + from + "-" + (to == Long.MAX_VALUE ? "" : String.valueOf(to)));
+        return conn;
+    }
+
+    /**
+     * Copy the body of the response at the offsets of the range, moving the start of the range as the bytes are
+     * written. The stream is read to the end and closed, so the connection can be reused
+     * @return Number of bytes written
+     */
+    private long write(HttpsURLConnection conn, Range range) throws IOException {
+        long from = range.from;
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        try (InputStream in = conn.getInputStream()) {
+            ReadableByteChannel source = Channels.newChannel(in);
+            while (range.from <= range.to) {
+                if (cancelled)
+                    throw new IOException("Download cancelled");
+                buffer.clear();
+                if (range.to != Long.MAX_VALUE)
+                    buffer.limit((int) Math.min(buffer.capacity(), range.to - range.from + 1));
+                int read = source.read(buffer);
+                if (read < 0) {
+                    if (range.to == Long.MAX_VALUE)
+                        break;
+                    throw new EOFException("Segment ended at " + range.from + " instead of " + range.to);
+                }
+                buffer.flip();
+                while (buffer.hasRemaining())
+                    range.from += channel.write(buffer, range.from);
+                transferred.addAndGet(read);
+            }
+        }
+        return range.from - from;
+    }
+
+    /**
+     * Remaining bytes of a segment, from and to are inclusive
+     */
+    private static class Range {
+        long from;
+        final long to;
+        int attempts;
+
+        Range(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package it.simonedegiacomi.goboxapi.client;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Transport that closes every connection after its request, so every transfer opens a new connection. Useful with
+ * the servers that don't handle the persistent connections well
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class SingleUseTransport extends AbstractTransferTransport {
+
+    @Override
+    public HttpsURLConnection open(URL url, SSLSocketFactory sslSocketFactory) throws IOException {
+        HttpsURLConnection conn = super.open(url, sslSocketFactory);
+
+        // Without this the JVM would keep the connection alive after the response anyway
+        conn.setRequestProperty("Connection", "close");
+        return conn;
+    }
+
+    @Override
+    public void release(HttpsURLConnection conn) {
+        closeResponse(conn);
+        conn.disconnect();
+    }
+
+    @Override
+    public void discard(HttpsURLConnection conn) {
+        conn.disconnect();
+    }
+}
@@ -1,37 +1,69 @@
 package it.simonedegiacomi.goboxapi.client;
 
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.annotations.Expose;
+import com.google.gson.annotations.SerializedName;
 import com.google.gson.reflect.TypeToken;
 import com.google.gson.stream.JsonReader;
 import it.simonedegiacomi.goboxapi.GBCache;
 import it.simonedegiacomi.goboxapi.GBFile;
 import it.simonedegiacomi.goboxapi.authentication.GBAuth;
 import it.simonedegiacomi.goboxapi.myws.MyWSClient;
+import it.simonedegiacomi.goboxapi.myws.WSCompression;
+import it.simonedegiacomi.goboxapi.myws.WSDecoder;
 import it.simonedegiacomi.goboxapi.myws.WSEventListener;
 import it.simonedegiacomi.goboxapi.myws.WSException;
+import it.simonedegiacomi.goboxapi.myws.WSMetrics;
+import it.simonedegiacomi.goboxapi.myws.WSOrderingKey;
+import it.simonedegiacomi.goboxapi.myws.WSPriority;
+import it.simonedegiacomi.goboxapi.myws.WSSessionManager;
 import it.simonedegiacomi.goboxapi.utils.MyGsonBuilder;
+import it.simonedegiacomi.goboxapi.utils.SingleFlight;
+import it.simonedegiacomi.goboxapi.utils.Transfers;
 import it.simonedegiacomi.goboxapi.utils.URLBuilder;
+import it.simonedegiacomi.goboxapi.utils.VirtualThreads;
 import org.apache.log4j.Logger;
 
 import javax.net.ssl.*;
 import java.io.*;
 import java.net.ProtocolException;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.*;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This is an implementation of the gobox api client interface. This client uses WebSocket to transfer the file list,
@@ -59,9 +91,67 @@ public class StandardGBClient extends GBClient {
     private static URLBuilder urls = URLBuilder.DEFAULT;
 
     /**
-     * WebSocket connection to the server
+     * Default delays (in milliseconds) of the reconnection attempts
      */
-    private MyWSClient server;
+    public static final long DEFAULT_RECONNECT_BASE_DELAY = 1000;
+    public static final long DEFAULT_RECONNECT_MAX_DELAY = 60 * 1000;
+
+    /**
+     * Size of the pages of events asked to the storage after a reconnection
+     */
+    private static final int REPLAY_PAGE_SIZE = 50;
+
+    /**
+     * Maximum number of missed events to replay. If more events were missed the cache is cleared
+     */
+    private static final int MAX_REPLAYED_EVENTS = 1000;
+
+    /**
+     * Size (in bytes) of the chunks of the uploads whose size is not known
+     */
+    private static final int STREAMING_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Tags of the read only queries in flight, so a sync event forgets only the queries that read the files it
+     * changed. The queries that read many files at once are tagged with {@link #ANY_FILE_TAG}
+     */
+    private static final String ID_TAG = "ID:";
+    private static final String PATH_TAG = "path:";
+    private static final String ANY_FILE_TAG = "*";
+    private static final List<String> ANY_FILE_TAGS = Collections.singletonList(ANY_FILE_TAG);
+
+    /**
+     * Thread that waits the delays of the reconnection attempts of all the clients. The attempts run on the
+     * transfer threads, so a slow attempt doesn't delay the ones of the other clients
+     */
+    private static final ScheduledExecutorService reconnectScheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("gbclient-reconnect-%d").setDaemon(true).build());
+
+    /**
+     * Threads of the asynchronous transfers of all the clients that don't use the virtual threads. A transfer
+     * blocks its thread for all its duration, so the pool grows with the transfers in flight
+     */
+    private static final ExecutorService transferExecutor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("gbclient-transfer-%d").setDaemon(true).build());
+
+    /**
+     * Threads that deliver the sync events to the subscribers of the clients that don't use the virtual threads
+     */
+    private static final ExecutorService eventExecutor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("gbclient-events-%d").setDaemon(true).build());
+
+    /**
+     * Executor of virtual threads shared by the clients that use them. In a holder, so it's created only on the
+     * JVMs that support the virtual threads
+     */
+    private static class VirtualExecutor {
+        static final AbstractExecutorService INSTANCE = VirtualThreads.newExecutor("gbclient-virtual-");
+    }
+
+    /**
+     * WebSocket connection to the server. Replaced at every reconnection
+     */
+    private volatile MyWSClient server;
 
     /**
      * Authorization object used to make the call
@@ -73,25 +163,49 @@ public class StandardGBClient extends GBClient {
      */
     private final Gson gson = MyGsonBuilder.create();
 
+    /**
+     * Decoders of the responses of the storage, used to decode the responses directly from the websocket frames
+     */
+    private final WSDecoder<Response> responseDecoder = WSDecoder.of(gson.getAdapter(Response.class));
+    private final WSDecoder<CreateFolderResponse> createFolderDecoder = WSDecoder.of(gson.getAdapter(CreateFolderResponse.class));
+    private final WSDecoder<InfoResponse> infoDecoder = WSDecoder.of(gson.getAdapter(InfoResponse.class));
+    private final WSDecoder<FilesResponse> filesDecoder = WSDecoder.of(gson.getAdapter(FilesResponse.class));
+    private final WSDecoder<EventsResponse> eventsDecoder = WSDecoder.of(gson.getAdapter(EventsResponse.class));
+
     /**
      * State of the client
      */
-    private ClientState state = ClientState.NOT_READY;
+    private volatile ClientState state = ClientState.NOT_READY;
 
     /**
-     * Set of events to ignore
+     * Set of events to ignore. The sync events are handled by many threads, so this set needs to be concurrent
      */
-    private final Set<String> eventsToIgnore = new HashSet<>();
+    private final Set<String> eventsToIgnore = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     /**
      * Cache of the files information
      */
     private final GBCache cache = new GBCache();
 
+    /**
+     * Coalescing of the identical read only queries in flight
+     */
+    private final SingleFlight singleFlight = new SingleFlight();
+
     /**
      * Set of sync event listeners
      */
-    private final Set<SyncEventListener> listeners = new HashSet<>();
+    private final Set<SyncEventListener> listeners = new CopyOnWriteArraySet<>();
+
+    /**
+     * Stream of the sync events, for the subscribers that need to control the rate of the events
+     */
+    private final SyncEventPublisher syncEvents = new SyncEventPublisher(new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            (virtualThreads ? VirtualExecutor.INSTANCE : eventExecutor).execute(command);
+        }
+    });
 
     /**
      * Filter echo sync event
@@ -103,11 +217,110 @@ public class StandardGBClient extends GBClient {
      */
     private DisconnectedListener disconnectedListener;
 
+    /**
+     * Listener for the reconnection
+     */
+    private volatile ReconnectedListener reconnectedListener;
+
+    /**
+     * Reconnection settings. A negative number of attempts means no limit
+     */
+    private boolean autoReconnect = true;
+    private long reconnectBaseDelay = DEFAULT_RECONNECT_BASE_DELAY;
+    private long reconnectMaxDelay = DEFAULT_RECONNECT_MAX_DELAY;
+    private int maxReconnectAttempts = -1;
+
+    /**
+     * Attempts made since the connection was lost, and the next attempt scheduled
+     */
+    private int reconnectAttempts;
+    private ScheduledFuture<?> reconnectTask;
+
+    /**
+     * True when the client is shutting down, so the closed connection must not be reconnected
+     */
+    private volatile boolean closing = false;
+
+    /**
+     * Id and date of the last sync event received, used to replay the missed ones after a reconnection
+     */
+    private final AtomicLong lastEventId = new AtomicLong();
+    private volatile long lastEventDate = System.currentTimeMillis();
+
+    /**
+     * Events received by the new connection while the missed ones are replayed, null otherwise. They are held back
+     * and delivered with the replayed ones, in order. Guarded by the replay lock
+     */
+    private final Object replayLock = new Object();
+    private List<SyncEvent> eventsSeenLive;
+
+    /**
+     * Ids of the events handled by the last replay. The live copy of one of them can reach its handler after the
+     * replay ended, and it's dropped
+     */
+    private volatile Set<Long> eventsReplayed = Collections.emptySet();
+
+    /**
+     * Order of the sync events: by id, and by date for the events with the same id
+     */
+    private static final Comparator<SyncEvent> EVENT_ORDER = new Comparator<SyncEvent>() {
+        @Override
+        public int compare(SyncEvent a, SyncEvent b) {
+            return a.getID() != b.getID() ? Long.compare(a.getID(), b.getID()) : Long.compare(a.getDate(), b.getDate());
+        }
+    };
+
     /**
      * Object that contains the transfer information
      */
     private TransferProfile currentTransferProfile;
 
+    /**
+     * Timeout (in milliseconds) of the queries made to the storage
+     */
+    private long queryTimeout = MyWSClient.DEFAULT_QUERY_TIMEOUT;
+
+    /**
+     * Window (in milliseconds) and size of the batches of queries. A zero window means no batching
+     */
+    private long batchWindow = 0;
+    private int batchSize = 1;
+
+    /**
+     * True to ask the storage to use the binary frames
+     */
+    private boolean binaryFrames = false;
+
+    /**
+     * Size (in bytes) over which the messages are compressed, a negative value disables the compression
+     */
+    private int compressionThreshold = -1;
+
+    /**
+     * Manager of the shared connections, null if the client uses its own connection
+     */
+    private WSSessionManager sessionManager;
+
+    /**
+     * True to run the handlers of the incoming messages and the asynchronous transfers on virtual threads
+     */
+    private boolean virtualThreads = VirtualThreads.isEnabled();
+
+    /**
+     * Maximum number of connections of a segmented download and minimum size of the files downloaded in segments
+     * by {@link #getFile(GBFile)}. One connection means no segmented downloads
+     */
+    private int segmentConnections = 1;
+    private long segmentThreshold = Long.MAX_VALUE;
+
+    /**
+     * Size of the chunks of the uploads made by {@link #uploadFile(GBFile)}, zero for a single request. Number of
+     * chunks sent at the same time and directory of the checkpoints of the interrupted uploads
+     */
+    private int chunkSize = 0;
+    private int chunkConnections = 1;
+    private File checkpointDirectory = new File(System.getProperty("java.io.tmpdir"), "gobox-uploads");
+
     /**
      * Construct a sync object, but first try to login to gobox.
      *
@@ -126,7 +339,15 @@ public class StandardGBClient extends GBClient {
     }
 
     /**
-     * Set the listener for the disconnection cause by the websocket
+     * Interface for the onReconnect event
+     */
+    public interface ReconnectedListener {
+        public void onReconnect();
+    }
+
+    /**
+     * Set the listener for the disconnection cause by the websocket. If the automatic reconnection is
+     * enabled, the listener is called only when the client stops trying to reconnect
      *
      * @param listener Listener to call
      */
@@ -134,6 +355,42 @@ public class StandardGBClient extends GBClient {
         this.disconnectedListener = listener;
     }
 
+    /**
+     * Set the listener called when the client reconnects to the storage, after the missed events
+     * have been replayed
+     *
+     * @param listener Listener to call
+     */
+    public void onReconnect(ReconnectedListener listener) {
+        this.reconnectedListener = listener;
+    }
+
+    /**
+     * Enable or disable the automatic reconnection. When the connection drops the client reconnects with a
+     * randomized exponential backoff, keeping the cache and the listeners, and replays the sync events
+     * missed while disconnected. Enabled by default
+     *
+     * @param autoReconnect True to reconnect automatically
+     */
+    public void setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
+    }
+
+    /**
+     * Set the delays of the reconnection attempts. The attempt n waits a random time between zero and
+     * baseDelay * 2^n, up to maxDelay
+     *
+     * @param baseDelay   Delay (in milliseconds) of the first attempt
+     * @param maxDelay    Maximum delay (in milliseconds) between two attempts
+     * @param maxAttempts Attempts after which the client gives up and calls the disconnected listener. A
+     *                    negative value means no limit (default)
+     */
+    public void setReconnectBackoff(long baseDelay, long maxDelay, int maxAttempts) {
+        this.reconnectBaseDelay = baseDelay;
+        this.reconnectMaxDelay = maxDelay;
+        this.maxReconnectAttempts = maxAttempts;
+    }
+
     /**
      * Check if the client is connected to the storage
      *
@@ -161,20 +418,51 @@ public class StandardGBClient extends GBClient {
 
         // Change the current state
         state = ClientState.INITIALIZING;
+        closing = false;
+        return connect();
+    }
 
+    /**
+     * Create a new websocket connection and wait for the storage info event. When the connection drops
+     * while the client is ready, a reconnection is scheduled
+     *
+     * @return True if the storage is connected
+     * @throws ClientException Error while connecting
+     */
+    private boolean connect() throws ClientException {
+        final MyWSClient ws;
         try {
 
-            // Create the websocket client
-            server = new MyWSClient(urls.getURI("socketClient"));
+            // Create the websocket client, or a logical session on a shared connection
+            if (sessionManager != null) {
+                ws = sessionManager.openSession();
+            } else if (virtualThreads) {
+                ws = new MyWSClient(urls.getURI("socketClient"), VirtualExecutor.INSTANCE);
+            } else {
+                ws = new MyWSClient(urls.getURI("socketClient"));
+            }
+            ws.setDefaultQueryTimeout(queryTimeout);
+            ws.setQueryBatching(batchWindow, batchSize);
+
+            // Long listings and synchronization events must not delay the queries the user is waiting for
+            ws.setPriority("directLogin", WSPriority.CONTROL);
+            ws.setPriority("storageInfo", WSPriority.CONTROL);
+            for (String bulk : new String[] { "search", "recent", "trashed", "getSharedFiles", "syncEvent" })
+                ws.setPriority(bulk, WSPriority.BULK);
+            if (binaryFrames)
+                ws.requestBinaryFrames();
+            if (compressionThreshold >= 0)
+                ws.requestCompression(compressionThreshold);
         } catch (IOException ex) {
+            state = ClientState.NOT_READY;
             throw new ClientException(ex.toString());
         }
 
         // Authorize the connection
-        auth.authorize(server);
+        auth.authorize(ws);
 
         // When the webSocket in opened, send the authentication object
-        server.onEvent("open", new WSEventListener() {
+        ws.onEvent("open", new WSEventListener() {
             @Override
             public void onEvent(JsonElement data) {
 
@@ -182,44 +470,23 @@ public class StandardGBClient extends GBClient {
             }
         });
 
-        server.onEvent("error", new WSEventListener() {
-            @Override
-            public void onEvent(JsonElement data) {
-                log.info("websocket error");
-
-                // If the client was ready
-                if (state == ClientState.READY && disconnectedListener != null) {
-
-                    // Call disconnect listener
-                    disconnectedListener.onDisconnect();
-                }
-
-                // Change state
-                state = ClientState.NOT_READY;
-            }
-        });
-
-        server.onEvent("close", new WSEventListener() {
+        final CountDownLatch readyCountDown = new CountDownLatch(1);
+        WSEventListener connectionLost = new WSEventListener() {
             @Override
             public void onEvent(JsonElement data) {
                 log.info("websocket closed");
 
-                // If the client was ready
-                if (state == ClientState.READY && disconnectedListener != null) {
-
-                    // Call disconnect listener
-                    disconnectedListener.onDisconnect();
-                }
-
-                // Change state
-                state = ClientState.NOT_READY;
+                // Don't wait the storage info anymore
+                readyCountDown.countDown();
+                onConnectionLost(ws);
             }
-        });
+        };
+        ws.onEvent("error", connectionLost);
+        ws.onEvent("close", connectionLost);
 
-        final CountDownLatch readyCountDown = new CountDownLatch(1);
         try {
             // Register the storageInfo event
-            server.onEvent("storageInfo", new WSEventListener() {
+            ws.onEvent("storageInfo", new WSEventListener() {
                 @Override
                 public void onEvent(JsonElement data) {
 
@@ -228,7 +495,6 @@ public class StandardGBClient extends GBClient {
 
                         // Change current state
                         state = ClientState.READY;
-                        registerSyncEventListener();
                         readyCountDown.countDown();
                         return;
                     }
@@ -244,46 +510,316 @@ public class StandardGBClient extends GBClient {
                         disconnectedListener.onDisconnect();
                 }
             });
+            registerSyncEventListener(ws);
+            server = ws;
 
             // Connect
-            server.connect();
+            ws.connect();
 
-            readyCountDown.await();
+            // A connection that never receives the storage info is a failed connection
+            long timeout = queryTimeout > 0 ? queryTimeout : MyWSClient.DEFAULT_QUERY_TIMEOUT;
+            if (!readyCountDown.await(timeout, TimeUnit.MILLISECONDS)) {
+                ws.disconnect();
+                if (state != ClientState.RECONNECTING)
+                    state = ClientState.NOT_READY;
+                throw new ClientException("Storage info not received");
+            }
 
             return isReady();
         } catch (WSException ex) {
-            ex.printStackTrace();
+            log.warn(ex.toString());
+            state = ClientState.NOT_READY;
             throw new ClientException(ex.toString());
         } catch (InterruptedException ex) {
+            ws.disconnect();
             throw new ClientException("Storage event info not received");
         }
     }
 
-    private void registerSyncEventListener() {
+    /**
+     * Called when a websocket connection is closed or fails. If the connection was the current one and the
+     * client was ready, it tries to reconnect, otherwise it notifies the disconnection
+     *
+     * @param ws Websocket connection that was lost
+     */
+    private void onConnectionLost(MyWSClient ws) {
+
+        // Ignore the events of the old connections
+        if (ws != server)
+            return;
+        if (state == ClientState.READY && !closing && autoReconnect) {
+            log.info("Connection lost, reconnecting");
+            state = ClientState.RECONNECTING;
+            reconnectAttempts = 0;
+            scheduleReconnect();
+            return;
+        }
+
+        // If the client was ready
+        if (state == ClientState.READY && disconnectedListener != null) {
+
+            // Call disconnect listener
+            disconnectedListener.onDisconnect();
+        }
+
+        // Change state
+        if (state != ClientState.RECONNECTING)
+            state = ClientState.NOT_READY;
+    }
+
+    /**
+     * Schedule the next reconnection attempt. The delay grows exponentially with the attempts, and is
+     * randomized so the clients disconnected by the same storage restart don't reconnect all together
+     */
+    private synchronized void scheduleReconnect() {
+        if (closing)
+            return;
+        if (maxReconnectAttempts >= 0 && reconnectAttempts >= maxReconnectAttempts) {
+            log.warn("Reconnection failed after " + reconnectAttempts + " attempts");
+            giveUpReconnecting();
+            return;
+        }
+        long ceiling = Math.min(reconnectMaxDelay, reconnectBaseDelay << Math.min(reconnectAttempts, 30));
+        long delay = ThreadLocalRandom.current().nextLong(ceiling + 1);
+        reconnectAttempts++;
+        log.info("Reconnection attempt " + reconnectAttempts + " in " + delay + "ms");
+        reconnectTask = reconnectScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                (virtualThreads ? VirtualExecutor.INSTANCE : transferExecutor).execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        reconnect();
+                    }
+                });
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Try to reconnect to the storage: authorize again, open a new connection and replay the events missed
+     */
+    private void reconnect() {
+        if (closing || state != ClientState.RECONNECTING)
+            return;
+        try {
+
+            // The token may have expired while disconnected
+            if (!auth.check()) {
+                log.warn("Token not valid anymore, reconnection aborted");
+                giveUpReconnecting();
+                return;
+            }
+        } catch (IOException ex) {
+            log.info("Server unreachable: " + ex.toString());
+            scheduleReconnect();
+            return;
+        }
+
+        // The events received by the new connection move the last event forward, so the missed events must be
+        // looked for from the last event received before it
+        long lastId = lastEventId.get();
+        long lastDate = lastEventDate;
+        synchronized (replayLock) {
+            eventsSeenLive = new ArrayList<>();
+        }
+        try {
+            state = ClientState.RECONNECTING;
+            if (!connect()) {
+                state = ClientState.RECONNECTING;
+                server.disconnect();
+                replayEvents(Collections.<SyncEvent>emptyList());
+                scheduleReconnect();
+                return;
+            }
+        } catch (ClientException ex) {
+            log.info("Reconnection failed: " + ex.toString());
+            state = ClientState.RECONNECTING;
+            replayEvents(Collections.<SyncEvent>emptyList());
+            scheduleReconnect();
+            return;
+        }
+        log.info("Reconnected to the storage");
+
+        List<SyncEvent> missed = Collections.emptyList();
+        try {
+            missed = getMissedEvents(lastId, lastDate);
+        } catch (ClientException ex) {
+
+            // The missed events are lost, so nothing in the cache can be trusted
+            log.warn("Replay of the missed events failed: " + ex.toString());
+            cache.clear();
+        }
+        replayEvents(missed);
+
+        ReconnectedListener listener = reconnectedListener;
+        if (listener != null)
+            listener.onReconnect();
+    }
+
+    /**
+     * Stop trying to reconnect and notify the disconnection
+     */
+    private void giveUpReconnecting() {
+        state = ClientState.NOT_READY;
+        if (disconnectedListener != null)
+            disconnectedListener.onDisconnect();
+    }
+
+    /**
+     * Ask the storage the events that happened while the client was disconnected. The storage lists the recent
+     * events from the newest
+     *
+     * @param lastId   Id of the last event received before the connection was lost, zero if not known
+     * @param lastDate Date of the last event received before the connection was lost
+     * @return Missed events
+     * @throws ClientException Error while asking the events
+     */
+    private List<SyncEvent> getMissedEvents(long lastId, long lastDate) throws ClientException {
+        List<SyncEvent> missed = new ArrayList<>();
+        boolean complete = false;
+        long from = 0;
+        while (!complete && missed.size() < MAX_REPLAYED_EVENTS) {
+            List<SyncEvent> page = getRecentFiles(from, REPLAY_PAGE_SIZE);
+            if (page == null)
+                break;
+            for (SyncEvent event : page) {
+                boolean seen = lastId > 0 ? event.getID() <= lastId : event.getDate() < lastDate;
+                if (seen) {
+                    complete = true;
+                    break;
+                }
+                missed.add(event);
+            }
+            if (page.size() < REPLAY_PAGE_SIZE)
+                complete = true;
+            from += page.size();
+        }
+
+        // Too many events were missed to know what changed
+        if (!complete)
+            cache.clear();
+        log.info("Replaying " + missed.size() + " missed events");
+        return missed;
+    }
+
+    /**
+     * Handle the missed events together with the events received by the new connection in the meantime, in
+     * order and once each, then stop holding back the live events. The live events that arrive while these are
+     * handled are held back and handled next, so no live event overtakes an older one
+     *
+     * @param missed Events missed while disconnected
+     */
+    private void replayEvents(List<SyncEvent> missed) {
+        List<SyncEvent> pending = new ArrayList<>(missed);
+        Set<Long> handled = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        eventsReplayed = handled;
+        while (true) {
+            synchronized (replayLock) {
+                pending.addAll(eventsSeenLive);
+                if (pending.isEmpty()) {
+                    eventsSeenLive = null;
+                    return;
+                }
+                eventsSeenLive = new ArrayList<>();
+            }
+            Collections.sort(pending, EVENT_ORDER);
+            for (SyncEvent event : pending)
+                if (handled.add(event.getID()))
+                    onSyncEvent(event);
+            pending.clear();
+        }
+    }
+
+    private void registerSyncEventListener(MyWSClient ws) {
+        // The events of the same file must be handled in order, the other ones can be handled in parallel
+        ws.setOrderingKey("syncEvent", new WSOrderingKey() {
+            @Override
+            public Object keyOf(JsonElement data) {
+                JsonElement file = data.getAsJsonObject().get("file");
+                if (file == null || !file.isJsonObject() || !file.getAsJsonObject().has("ID"))
+                    return null;
+                return file.getAsJsonObject().get("ID").getAsLong();
+            }
+        });
+
         // Add a new listener onEvent the handlers socket
-        server.onEvent("syncEvent", new WSEventListener() {
+        ws.onEvent("syncEvent", new WSEventListener() {
             @Override
             public void onEvent(JsonElement data) {
 
                 // Wrap the data in a new SyncEvent
                 SyncEvent event = gson.fromJson(data, SyncEvent.class);
 
-                log.info("New event from storage " + event.getKind() + " file " + event.getRelativeFile());
-
-                // Check if this is the notification for a event that i've generated.
-                if (eventsToIgnore.remove(event.getRelativeFile().getPathAsString()) && filterEcho) {
-                    // Because i've generated this event, i ignore it
-                    log.info("Sync event ignored, i generated it");
-                    return;
+                // While the missed events are replayed, the live ones wait for them
+                synchronized (replayLock) {
+                    if (eventsSeenLive != null) {
+                        eventsSeenLive.add(event);
+                        return;
+                    }
                 }
-
-                // And call all the listeners
-                for (SyncEventListener listener : listeners)
-                    listener.on(event);
+                if (eventsReplayed.remove(event.getID()))
+                    return;
+                onSyncEvent(event);
             }
         });
     }
 
+    /**
+     * Handle a sync event received from the storage or replayed after a reconnection
+     *
+     * @param event Event to handle
+     */
+    private void onSyncEvent(SyncEvent event) {
+        log.info("New event from storage " + event.getKind() + " file " + event.getRelativeFile());
+
+        // Remember the last event, to know from where to replay after a reconnection
+        long id;
+        while ((id = lastEventId.get()) < event.getID() && !lastEventId.compareAndSet(id, event.getID()));
+        lastEventDate = Math.max(lastEventDate, event.getDate());
+
+        // The cached information of the file and of its father are not valid anymore
+        invalidate(event.getRelativeFile());
+        invalidate(event.getBefore());
+
+        // Check if this is the notification for a event that i've generated.
+        if (event.getRelativeFile() != null && eventsToIgnore.remove(event.getRelativeFile().getPathAsString()) && filterEcho) {
+            // Because i've generated this event, i ignore it
+            log.info("Sync event ignored, i generated it");
+            return;
+        }
+
+        // And call all the listeners
+        for (SyncEventListener listener : listeners)
+            listener.on(event);
+        syncEvents.publish(event);
+    }
+
+    /**
+     * Remove a file and its father from the cache
+     *
+     * @param file File to remove, can be null
+     */
+    private void invalidate(GBFile file) {
+        if (file == null)
+            return;
+
+        // The queries in flight that read the file or its father may return the old version
+        for (String tag : tagsOf(file))
+            singleFlight.forget(tag);
+        if (file.getFatherID() != GBFile.UNKNOWN_ID)
+            singleFlight.forget(ID_TAG + file.getFatherID());
+        String path = file.getPathAsString();
+        if (path != null) {
+            int slash = path.lastIndexOf('/');
+            singleFlight.forget(PATH_TAG + (slash < 0 ? "" : path.substring(0, slash)));
+        }
+        singleFlight.forget(ANY_FILE_TAG);
+        cache.invalidate(file);
+        if (file.getFatherID() != GBFile.UNKNOWN_ID)
+            cache.invalidate(new GBFile(file.getFatherID()));
+    }
+
     @Override
     public URL getUrl(TransferProfile.Action action, GBFile file, boolean preview) {
         JsonObject params = new JsonObject();
@@ -305,36 +841,107 @@ public class StandardGBClient extends GBClient {
     public void getFile(GBFile file, OutputStream dst) throws ClientException, IOException {
         if (state != ClientState.READY)
             throw new IllegalStateException("client not initialized");
+        TransferProfile profile = currentTransferProfile;
+        HttpsURLConnection conn = null;
         try {
-            // Create and fill the request object
-            JsonObject request = new JsonObject();
-            request.addProperty("ID", file.getID());
-
-            // Open the connection
-            HttpsURLConnection conn = currentTransferProfile.openConnection(TransferProfile.Action.DOWNLOAD, request, false);
-
+            conn = openDownload(profile, file);
 
             // Copy the file
             log.info("Start file download");
-            InputStream fromServer = conn.getInputStream();
             ByteStreams.copy(conn.getInputStream(), dst);
             log.info("Download completed");
 
-            // Close the connection
-            fromServer.close();
-            conn.disconnect();
+            // Give back the connection, so the next transfer can reuse it
+            profile.release(conn);
             dst.close();
+        } catch (IOException ex) {
+            if (conn != null)
+                profile.discard(conn);
+            log.warn(ex.toString(), ex);
+            throw new ClientException(ex.toString());
+        }
+
+    }
+
+    /**
+     * Download the file to the position in the GBFile, written with a {@link FileChannel} and large direct buffers.
+     * When the segmented downloads are enabled and the file is big enough, the file is downloaded in segments over
+     * many connections
+     *
+     * @param file File to download
+     * @throws ClientException Error during the download
+     * @throws IOException Error writing the file
+     */
+    @Override
+    public void getFile(GBFile file) throws ClientException, IOException {
+        if (state != ClientState.READY)
+            throw new IllegalStateException("client not initialized");
+        file.getFather().toFile().mkdirs();
+        try (RandomAccessFile out = new RandomAccessFile(file.toFile(), "rw")) {
+            FileChannel channel = out.getChannel();
+            if (segmentConnections > 1 && file.getSize() >= segmentThreshold) {
+                getFile(file, channel);
+                return;
+            }
+
+            // Give the file its final size at once, instead of extending it at every write
+            if (file.getSize() > 0)
+                out.setLength(file.getSize());
+            TransferProfile profile = currentTransferProfile;
+            HttpsURLConnection conn = openDownload(profile, file);
+            log.info("Start file download");
+            try {
+                channel.truncate(Transfers.copy(conn.getInputStream(), channel, 0, -1));
+            } catch (IOException ex) {
+                profile.discard(conn);
+                throw ex;
+            }
+            profile.release(conn);
+            log.info("Download completed");
         } catch (IOException ex) {
             log.warn(ex.toString(), ex);
             throw new ClientException(ex.toString());
         }
+    }
+
+    /**
+     * Open the connection to download a file
+     *
+     * @param profile Profile of the transfer
+     * @param file    File to download
+     * @return Connection of the download
+     * @throws IOException Error opening the connection
+     */
+    private static HttpsURLConnection openDownload(TransferProfile profile, GBFile file) throws IOException {
+        JsonObject request = new JsonObject();
+        request.addProperty("ID", file.getID());
+        return profile.openConnection(TransferProfile.Action.DOWNLOAD, request, false);
+    }
 
+    /**
+     * Download a file in segments requested with the HTTP Range header, over at most the number of connections set
+     * with {@link #setSegmentedDownloads(int, long)}. Every segment is written at its offset of the channel, and
+     * the channel is truncated to the size of the file. If the server doesn't support the ranges the file is
+     * downloaded with a single connection. This method doesn't close the channel.
+     *
+     * @param file File to download
+     * @param dst  Channel where to write the file
+     * @return Size of the file
+     * @throws ClientException Error during the download
+     */
+    public long getFile(GBFile file, FileChannel dst) throws ClientException {
+        if (state != ClientState.READY)
+            throw new IllegalStateException("client not initialized");
+        return new SegmentedDownload(currentTransferProfile, file.getID(), dst,
+                virtualThreads ? VirtualExecutor.INSTANCE : transferExecutor, segmentConnections,
+                SegmentedDownload.MIN_SEGMENT).run();
     }
 
     /**
      * Upload the file to the server reading his content from the input stream passed as
      * argument. This method also ignore the generated event sent by the storage to the other
-     * clients.
+     * clients. The content is streamed to the server: if the size of the file is set, the stream
+     * must contain exactly that number of bytes, otherwise it's sent with the chunked transfer encoding.
      *
      * @param file   File to send File to send. The object must have or the field father id or the path.
      * @param stream Stream of the file Stream that will be sent to the storage
@@ -343,11 +950,27 @@ public class StandardGBClient extends GBClient {
      */
     @Override
     public void uploadFile(GBFile file, InputStream stream) throws ClientException, IOException {
+        upload(file, stream, null);
+        stream.close();
+    }
+
+    /**
+     * Upload a file reading it from a stream or from a channel
+     *
+     * @param file    File to send
+     * @param stream  Stream of the file, null to read the channel
+     * @param channel Channel of the file, read from the start for the size of the file
+     * @throws ClientException Error uploading the file
+     * @throws IOException Error reading the file
+     */
+    private void upload(GBFile file, InputStream stream, FileChannel channel) throws ClientException, IOException {
         if (state != ClientState.READY)
             throw new IllegalStateException("client not initialized");
         if (file.isDirectory())
             throw new InvalidParameterException("this file is a folder");
 
+        TransferProfile profile = currentTransferProfile;
+        HttpsURLConnection conn = null;
         try {
             eventsToIgnore.add(file.getPathAsString());
             log.info("Add " + file + " to echo filter");
@@ -356,36 +979,117 @@ public class StandardGBClient extends GBClient {
             JsonObject req = gson.toJsonTree(file, GBFile.class).getAsJsonObject();
 
             // Create a new https connection
-            HttpsURLConnection conn = currentTransferProfile.openConnection(TransferProfile.Action.UPLOAD, req, true);
+            conn = profile.openConnection(TransferProfile.Action.UPLOAD, req, true);
             conn.setDoInput(true);
             conn.setDoOutput(true);
 
-            // Prepare the connection
+            // Prepare the connection. Without a streaming mode the connection keeps all the body in memory
             conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Length", String.valueOf(file.getSize()));
+            if (file.getSize() > 0) {
+                conn.setFixedLengthStreamingMode(file.getSize());
+            } else {
+                conn.setChunkedStreamingMode(STREAMING_CHUNK_SIZE);
+            }
 
             log.info("Uploading file...");
             OutputStream toStorage = conn.getOutputStream();
             // Send the file
-            ByteStreams.copy(stream, toStorage);
+            if (stream != null) {
+                ByteStreams.copy(stream, toStorage);
+            } else {
+                Transfers.copy(channel, 0, file.getSize(), toStorage);
+            }
+            toStorage.close();
             log.info("Upload finish");
 
             // Get the response code
             int responseCode = conn.getResponseCode();
 
+            // Give back the http connection, so the next transfer can reuse it
+            profile.release(conn);
             if (responseCode != 200) {
                 log.warn(conn.getResponseMessage());
                 throw new ClientException("Response code of the upload: " + responseCode);
             }
-
-            // Close the http connection
-            toStorage.close();
-            conn.disconnect();
-            stream.close();
         } catch (ProtocolException ex) {
+            profile.discard(conn);
             log.warn(ex.toString(), ex);
             throw new ClientException(ex.toString());
+        } catch (IOException ex) {
+            if (conn != null)
+                profile.discard(conn);
+            throw ex;
+        }
+    }
+
+    /**
+     * Upload the file at the position in the GBFile, read with a {@link FileChannel} and large direct buffers.
+     * When the chunked uploads are enabled, the file is sent in
+     * chunks and the acknowledged ones are saved in a checkpoint: if the upload fails, the next call with the same
+     * file and destination (even from another process) sends only the missing chunks. The storage must support the
+     * chunked uploads
+     *
+     * @param file File to send. The object must have or the field father id or the path
+     * @throws ClientException Error uploading the file
+     * @throws IOException Error reading the file or writing the checkpoint
+     */
+    @Override
+    public void uploadFile(GBFile file) throws ClientException, IOException {
+        if (state != ClientState.READY)
+            throw new IllegalStateException("client not initialized");
+        if (file.isDirectory())
+            throw new InvalidParameterException("this file is a folder");
+
+        File source = file.toFile();
+        file.setSize(source.length());
+        if (chunkSize <= 0) {
+            try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+                upload(file, null, channel);
+            }
+            return;
         }
+        UploadCheckpoint checkpoint = UploadCheckpoint.open(checkpointDirectory, source, file, chunkSize);
+        eventsToIgnore.add(file.getPathAsString());
+        log.info("Add " + file + " to echo filter");
+        new ChunkedUpload(currentTransferProfile, file, source, checkpoint, chunkSize,
+                virtualThreads ? VirtualExecutor.INSTANCE : transferExecutor, chunkConnections).run();
+        log.info("Upload finish");
+    }
+
+    @Override
+    public ListenableFuture<Void> getFileAsync(final GBFile file, final OutputStream dst) {
+        return transfer(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                getFile(file, dst);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Void> uploadFileAsync(final GBFile file, final InputStream stream) {
+        return transfer(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                uploadFile(file, stream);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Run a blocking transfer on a virtual thread, or on a thread of the transfer pool
+     *
+     * @param transfer Transfer to run
+     * @return Future completed when the transfer ends
+     */
+    private ListenableFuture<Void> transfer(Callable<Void> transfer) {
+        if (state != ClientState.READY)
+            throw new IllegalStateException("client not initialized");
+        ListenableFutureTask<Void> task = ListenableFutureTask.create(transfer);
+        (virtualThreads ? VirtualExecutor.INSTANCE : transferExecutor).execute(task);
+        return task;
     }
 
     /**
@@ -397,23 +1101,25 @@ public class StandardGBClient extends GBClient {
      */
     @Override
     public void createDirectory(GBFile newDir) throws ClientException {
+        waitFor(createDirectoryAsync(newDir));
+    }
+
+    @Override
+    public ListenableFuture<Void> createDirectoryAsync(final GBFile newDir) {
         if (state != ClientState.READY)
             throw new IllegalStateException("client not initialized");
 
-        try {
-            // TODO: handler errors
-            // Ignore the events from the server related to this file
-            eventsToIgnore.add(newDir.getPathAsString());
-            FutureTask<JsonElement> future = server.makeQuery("createFolder", gson.toJsonTree(newDir, GBFile.class));
-            JsonObject response = future.get().getAsJsonObject();
-            newDir.setID(response.get("newFolderId").getAsLong());
-        } catch (InterruptedException ex) {
-            log.warn(ex.toString(), ex);
-            throw new ClientException(ex.toString());
-        } catch (ExecutionException ex) {
-            log.warn(ex.toString(), ex);
-            throw new ClientException(ex.toString());
-        }
+        // TODO: handler errors
+        // Ignore the events from the server related to this file
+        eventsToIgnore.add(newDir.getPathAsString());
+        return query("createFolder", gson.toJsonTree(newDir, GBFile.class), createFolderDecoder,
+                new ResponseParser<CreateFolderResponse, Void>() {
+            @Override
+            protected Void parse(CreateFolderResponse response) {
+                newDir.setID(response.newFolderId);
+                return null;
+            }
+        });
     }
 
     /**
@@ -427,35 +1133,44 @@ public class StandardGBClient extends GBClient {
      */
     @Override
     public GBFile getInfo(GBFile father) throws ClientException {
+        return waitFor(getInfoAsync(father));
+    }
+
+    @Override
+    public ListenableFuture<GBFile> getInfoAsync(GBFile father) {
         if (state != ClientState.READY)
             throw new IllegalStateException("client not initialized");
 
         // Check if the file is already cached
         GBFile fromCache = cache.get(father);
         if (fromCache != null)
-            return fromCache;
-        try {
-            JsonObject request = new JsonObject();
-            request.add("file", gson.toJsonTree(father, GBFile.class));
-            request.addProperty("findPath", true);
-            request.addProperty("findChildren", true);
-
-            JsonObject response = server.makeQuery("info", request).get().getAsJsonObject();
-            boolean found = response.get("found").getAsBoolean();
-            if (!found)
-                return null;
-            GBFile detailedFile = gson.fromJson(response.get("file"), GBFile.class);
-            // cache the file
-            cache.add(detailedFile);
-            return detailedFile;
-        } catch (InterruptedException | ExecutionException ex) {
-            log.warn(ex.toString(), ex);
-            throw new ClientException(ex.toString());
-        }
+            return Futures.immediateFuture(fromCache);
+
+        JsonObject request = new JsonObject();
+        request.add("file", gson.toJsonTree(father, GBFile.class));
+        request.addProperty("findPath", true);
+        request.addProperty("findChildren", true);
+
+        return sharedQuery("info", request, tagsOf(father), infoDecoder, new ResponseParser<InfoResponse, GBFile>() {
+            @Override
+            protected GBFile parse(InfoResponse response) {
+                if (!response.found)
+                    return null;
+                GBFile detailedFile = response.file;
+                // cache the file
+                cache.add(detailedFile);
+                return detailedFile;
+            }
+        });
     }
 
     @Override
     public void trashFile(GBFile file, boolean toTrash) throws ClientException {
+        waitFor(trashFileAsync(file, toTrash));
+    }
+
+    @Override
+    public ListenableFuture<Void> trashFileAsync(GBFile file, boolean toTrash) {
         if (state != ClientState.READY)
             throw new IllegalStateException("client not initialized");
 
@@ -464,18 +1179,7 @@ public class StandardGBClient extends GBClient {
         request.addProperty("toTrash", toTrash);
         request.add("file", gson.toJsonTree(file, GBFile.class));
 
-        try {
-            JsonObject response = server.makeQuery("trashFile", request).get().getAsJsonObject();
-            if (!response.get("success").getAsBoolean()) {
-                throw new ClientException(response.get("error").getAsString());
-            }
-        } catch (ExecutionException ex) {
-            log.warn(ex.toString(), ex);
-            throw new ClientException(ex.toString());
-        } catch (InterruptedException ex) {
-            log.warn(ex.toString(), ex);
-            throw new ClientException(ex.toString());
-        }
+        return query("trashFile", request, responseDecoder, SUCCESS_PARSER);
     }
 
     /**
@@ -486,23 +1190,17 @@ public class StandardGBClient extends GBClient {
      */
     @Override
     public void removeFile (GBFile file) throws ClientException {
+        waitFor(removeFileAsync(file));
+    }
+
+    @Override
+    public ListenableFuture<Void> removeFileAsync (GBFile file) {
         if (state != ClientState.READY)
             throw new IllegalStateException("client not initialized");
 
         eventsToIgnore.add(file.getPathAsString());
         // Make the request trough handlers socket
-        try {
-            JsonObject res = server.makeQuery("removeFile", gson.toJsonTree(file, GBFile.class)).get().getAsJsonObject();
-            if (!res.get("success").getAsBoolean()) {
-                throw new ClientException(res.get("error").getAsString());
-            }
-        } catch (InterruptedException ex) {
-            log.warn(ex.toString(), ex);
-            throw new ClientException(ex.toString());
-        } catch (ExecutionException ex) {
-            log.warn(ex.toString(), ex);
-            throw new ClientException(ex.toString());
-        }
+        return query("removeFile", gson.toJsonTree(file, GBFile.class), responseDecoder, SUCCESS_PARSER);
     }
 
     /**
@@ -519,73 +1217,71 @@ public class StandardGBClient extends GBClient {
         listeners.remove(listener);
     }
 
+    /**
+     * Return the stream of the sync events. Unlike the listeners, its subscribers receive the events only when they
+     * ask them, buffered up to a limit. The subscriptions are completed when the client is shut down
+     *
+     * @return Publisher of the sync events
+     */
+    public SyncEventPublisher getSyncEvents() {
+        return syncEvents;
+    }
+
     @Override
     public void shutdown() throws ClientException {
-        if (state != ClientState.READY)
+        if (state != ClientState.READY && state != ClientState.RECONNECTING)
             throw new ClientException("GBClient not connected");
+        closing = true;
+        synchronized (this) {
+            if (reconnectTask != null)
+                reconnectTask.cancel(false);
+        }
         server.disconnect();
         this.state = ClientState.NOT_READY;
+        syncEvents.complete();
     }
 
     @Override
     public List<GBFile> getSharedFiles() throws ClientException {
+        return waitFor(getSharedFilesAsync());
+    }
+
+    @Override
+    public ListenableFuture<List<GBFile>> getSharedFilesAsync() {
         if (state != ClientState.READY)
             throw new IllegalStateException("client not initialized");
 
-        try {
-            JsonObject response = server.makeQuery("getSharedFiles", null).get().getAsJsonObject();
-            return gson.fromJson(response.get("files"), new TypeToken<List<GBFile>>() {
-            }.getType());
-        } catch (InterruptedException ex) {
-            log.warn(ex.toString(), ex);
-            throw new ClientException(ex.toString());
-        } catch (ExecutionException ex) {
-            log.warn(ex.toString(), ex);
-            throw new ClientException(ex.toString());
-        }
+        return sharedQuery("getSharedFiles", null, ANY_FILE_TAGS, filesDecoder, FILES_PARSER);
     }
 
     @Override
     public void share (GBFile file, boolean share) throws ClientException {
+        waitFor(shareAsync(file, share));
+    }
+
+    @Override
+    public ListenableFuture<Void> shareAsync (GBFile file, boolean share) {
         if (state != ClientState.READY)
             throw new IllegalStateException("client not initialized");
 
         JsonObject request = new JsonObject();
         request.addProperty("share", share);
         request.addProperty("ID", file.getID());
-        try {
-            JsonObject res = server.makeQuery("share", request).get().getAsJsonObject();
-            if (!res.get("success").getAsBoolean()) {
-                throw new ClientException(res.get("error").getAsString());
-            }
-        } catch (InterruptedException ex) {
-            log.warn(ex.toString(), ex);
-            throw new ClientException(ex.toString());
-        } catch (ExecutionException ex) {
-            log.warn(ex.toString(), ex);
-            throw new ClientException(ex.toString());
-        }
+        return query("share", request, responseDecoder, SUCCESS_PARSER);
     }
 
     @Override
     public List<GBFile> getFilesByFilter(GBFilter filter) throws ClientException {
+        return waitFor(getFilesByFilterAsync(filter));
+    }
+
+    @Override
+    public ListenableFuture<List<GBFile>> getFilesByFilterAsync(GBFilter filter) {
         if (state != ClientState.READY)
             throw new IllegalStateException("client not initialized");
 
         JsonElement request = gson.toJsonTree(filter, GBFilter.class);
-        try {
-            JsonObject response = server.makeQuery("search", request).get().getAsJsonObject();
-            if (response.get("success").getAsBoolean())
-                throw new ClientException(response.get("error").getAsString());
-            return gson.fromJson(response.get("result"), new TypeToken<List<GBFile>>() {
-            }.getType());
-        } catch (InterruptedException ex) {
-            log.warn(ex.toString(), ex);
-            throw new ClientException(ex.toString());
-        } catch (ExecutionException ex) {
-            log.warn(ex.toString(), ex);
-            throw new ClientException(ex.toString());
-        }
+        return query("search", request, filesDecoder, FILES_PARSER);
     }
 
     /**
@@ -598,6 +1294,11 @@ public class StandardGBClient extends GBClient {
      */
     @Override
     public List<SyncEvent> getRecentFiles(long from, long size) throws ClientException {
+        return waitFor(getRecentFilesAsync(from, size));
+    }
+
+    @Override
+    public ListenableFuture<List<SyncEvent>> getRecentFilesAsync(long from, long size) {
         if (state != ClientState.READY)
             throw new IllegalStateException("client not initialized");
 
@@ -607,21 +1308,12 @@ public class StandardGBClient extends GBClient {
         request.addProperty("from", from);
         request.addProperty("size", size);
 
-        try {
-            JsonObject response = server.makeQuery("recent", request).get().getAsJsonObject();
-
-            // Check if there was an error
-            if (response.get("success").getAsBoolean())
-                throw new ClientException(response.get("error").getAsString());
-
-            return gson.fromJson(response.get("events"), new TypeToken<List<SyncEvent>>() {}.getType());
-        } catch (InterruptedException ex) {
-            log.warn(ex.toString(), ex);
-            throw new ClientException(ex.toString());
-        } catch (ExecutionException ex) {
-            log.warn(ex.toString(), ex);
-            throw new ClientException(ex.toString());
-        }
+        return query("recent", request, eventsDecoder, new ResponseParser<EventsResponse, List<SyncEvent>>() {
+            @Override
+            protected List<SyncEvent> parse(EventsResponse response) {
+                return response.events;
+            }
+        });
     }
 
     /**
@@ -632,62 +1324,42 @@ public class StandardGBClient extends GBClient {
      */
     @Override
     public List<GBFile> getTrashedFiles() throws ClientException {
+        return waitFor(getTrashedFilesAsync());
+    }
+
+    @Override
+    public ListenableFuture<List<GBFile>> getTrashedFilesAsync() {
         if (state != ClientState.READY)
             throw new IllegalStateException("client not initialized");
 
-        try {
-            JsonObject response = server.makeQuery("trashed", null).get().getAsJsonObject();
-
-            // Check if there was an error
-            if (response.get("success").getAsBoolean())
-                throw new ClientException(response.get("error").getAsString());
-
-            return gson.fromJson(response.get("files"), new TypeToken<List<GBFile>>() {
-            }.getType());
-        } catch (InterruptedException ex) {
-            log.warn(ex.toString(), ex);
-            throw new ClientException(ex.toString());
-        } catch (ExecutionException ex) {
-            log.warn(ex.toString(), ex);
-            throw new ClientException(ex.toString());
-        }
+        return sharedQuery("trashed", null, ANY_FILE_TAGS, filesDecoder, FILES_PARSER);
     }
 
     @Override
     public void emptyTrash() throws ClientException {
+        waitFor(emptyTrashAsync());
+    }
+
+    @Override
+    public ListenableFuture<Void> emptyTrashAsync() {
         if (state != ClientState.READY)
             throw new IllegalStateException("client not initialized");
 
-        try {
-            JsonObject res = server.makeQuery("emptyTrash", null).get().getAsJsonObject();
-            if (!res.get("success").getAsBoolean()) {
-                throw new ClientException(res.get("error").getAsString());
-            }
-        } catch (InterruptedException ex) {
-            log.warn(ex.toString(), ex);
-        } catch (ExecutionException ex) {
-            log.warn(ex.toString(), ex);
-        }
+        return query("emptyTrash", null, responseDecoder, SUCCESS_PARSER);
     }
 
     @Override
     public void move (GBFile src, GBFile dst, boolean copy) throws ClientException {
+        waitFor(moveAsync(src, dst, copy));
+    }
+
+    @Override
+    public ListenableFuture<Void> moveAsync (GBFile src, GBFile dst, boolean copy) {
         JsonObject req = new JsonObject();
         req.add("src", gson.toJsonTree(src, GBFile.class));
         req.add("dst", gson.toJsonTree(dst, GBFile.class));
         req.addProperty("copy", copy);
-        try {
-            JsonObject res = server.makeQuery("move", req).get().getAsJsonObject();
-            if (!res.get("success").getAsBoolean()) {
-                throw new ClientException(res.get("error").getAsString());
-            }
-        } catch (InterruptedException ex) {
-            log.warn(ex.toString(), ex);
-            throw new ClientException(ex.toString());
-        } catch (ExecutionException ex) {
-            log.warn(ex.toString(), ex);
-            throw new ClientException(ex.toString());
-        }
+        return query("move", req, responseDecoder, SUCCESS_PARSER);
     }
 
     /**
@@ -707,8 +1379,12 @@ public class StandardGBClient extends GBClient {
         if (nextMode == currentTransferProfile.getMode())
             return;
 
+        // The new profile keeps the transport, with its connections and its limit
+        TransferTransport transport = currentTransferProfile.getTransport();
         if (nextMode == ConnectionMode.BRIDGE_MODE) {
-            currentTransferProfile = new TransferProfile(urls, auth);
+            TransferProfile bridge = new TransferProfile(urls, auth);
+            bridge.setTransport(transport);
+            currentTransferProfile = bridge;
             log.info("Switched to bridge mode");
             return;
         }
@@ -716,7 +1392,7 @@ public class StandardGBClient extends GBClient {
         try {
 
             // Ask the storage if this modality is available
-            JsonObject response = server.makeQuery("directLogin", null).get().getAsJsonObject();
+            JsonObject response = server.makeQueryAsync("directLogin", null).get().getAsJsonObject();
 
             // Get the ip
             String ip = nextMode == ConnectionMode.LOCAL_DIRECT_MODE ? response.get("localIP").getAsString() : response.get("publicIP").getAsString();
@@ -735,6 +1411,7 @@ public class StandardGBClient extends GBClient {
 
             // Create the new profile
             TransferProfile newProfile = new TransferProfile(urls, nextMode, baseString);
+            newProfile.setTransport(transport);
 
             // Create a new ssl socket factory that accepts the storage certificate
             newProfile.setSslSocketFactory(createTrustedSocketFactory(certificate));
@@ -822,6 +1499,140 @@ public class StandardGBClient extends GBClient {
         this.filterEcho = echoFilter;
     }
 
+    /**
+     * Set the time after which an operation that doesn't receive a response from the storage fails.
+     * Default is {@link MyWSClient#DEFAULT_QUERY_TIMEOUT}
+     * @param timeout Timeout in milliseconds. Zero means no timeout
+     */
+    public void setQueryTimeout (long timeout) {
+        this.queryTimeout = timeout;
+        if (server != null)
+            server.setDefaultQueryTimeout(timeout);
+    }
+
+    /**
+     * Enable the batching of the operations made to the storage: the operations made within the window
+     * (like many {@link #getInfoAsync(GBFile)} or {@link #trashFileAsync(GBFile)} called in a loop) travel
+     * to the storage together, up to the specified number of operations. Default is disabled.
+     * @param window Time (in milliseconds) an operation can wait for other ones. Zero disables the batching
+     * @param maxSize Maximum number of operations sent together
+     */
+    public void setQueryBatching (long window, int maxSize) {
+        this.batchWindow = window;
+        this.batchSize = maxSize;
+        if (server != null)
+            server.setQueryBatching(window, maxSize);
+    }
+
+    /**
+     * Ask the storage to use the compact binary frames instead of the json text ones. If the storage doesn't
+     * support them, the client uses the text frames. Must be called before {@link #init()}
+     * @param binaryFrames True to request the binary frames
+     */
+    public void setBinaryFrames (boolean binaryFrames) {
+        this.binaryFrames = binaryFrames;
+    }
+
+    /**
+     * Choose if the handlers of the incoming messages and the asynchronous transfers (like
+     * {@link #getFileAsync(GBFile, OutputStream)}) run on virtual threads, so thousands of operations can wait
+     * without a thread of the operating system each. The handlers use the new setting from the next connection.
+     * Default is the value of the system property {@value VirtualThreads#PROPERTY}
+     * @param virtualThreads True to use the virtual threads
+     * @throws UnsupportedOperationException The JVM doesn't support the virtual threads
+     */
+    public void setVirtualThreads (boolean virtualThreads) {
+        if (virtualThreads && !VirtualThreads.isAvailable())
+            throw new UnsupportedOperationException("This JVM doesn't support the virtual threads");
+        this.virtualThreads = virtualThreads;
+    }
+
+    public boolean isUsingVirtualThreads () {
+        return virtualThreads;
+    }
+
+    /**
+     * Download the big files in segments over many connections at the same time, which fill the bandwidth of a
+     * link with a high latency better than a single connection. The number of connections grows with the measured
+     * throughput, up to the maximum. Used by {@link #getFile(GBFile)} and {@link #getFile(GBFile, FileChannel)}
+     * @param maxConnections Maximum number of connections of a download, one to disable the segmented downloads
+     * @param minFileSize Minimum size (in bytes) of the files that {@link #getFile(GBFile)} downloads in segments
+     */
+    public void setSegmentedDownloads (int maxConnections, long minFileSize) {
+        if (maxConnections < 1)
+            throw new IllegalArgumentException("At least one connection is required");
+        this.segmentConnections = maxConnections;
+        this.segmentThreshold = minFileSize;
+    }
+
+    /**
+     * Upload the files with {@link #uploadFile(GBFile)} in chunks of fixed size, so an interrupted upload can be
+     * resumed from the last chunk acknowledged by the storage
+     * @param chunkSize Size (in bytes) of a chunk, zero to send the files with a single request
+     * @param parallelChunks Number of chunks sent at the same time
+     */
+    public void setChunkedUploads (long chunkSize, int parallelChunks) {
+        if (chunkSize < 0 || chunkSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Invalid chunk size");
+        if (parallelChunks < 1)
+            throw new IllegalArgumentException("At least one chunk at a time is required");
+        this.chunkSize = (int) chunkSize;
+        this.chunkConnections = parallelChunks;
+    }
+
+    /**
+     * Set the directory where the checkpoints of the chunked uploads are saved. Default is 'gobox-uploads' in the
+     * temporary directory
+     * @param checkpointDirectory Directory of the checkpoints
+     */
+    public void setCheckpointDirectory (File checkpointDirectory) {
+        this.checkpointDirectory = checkpointDirectory;
+    }
+
+    /**
+     * Use a logical session on a connection shared with other clients, instead of opening a new connection.
+     * The binary frames and the compression are decided by the manager. Must be called before {@link #init()}
+     * @param sessionManager Manager of the shared connections, null to use a dedicated connection
+     */
+    public void setSessionManager (WSSessionManager sessionManager) {
+        this.sessionManager = sessionManager;
+    }
+
+    /**
+     * Ask the storage to compress the messages bigger than the threshold. Useful on slow connections, when the
+     * bandwidth is worth more than the cpu. Must be called before {@link #init()}
+     * @param threshold Size (in bytes) over which the messages are compressed, a negative value disables the
+     *                  compression (default)
+     */
+    public void setCompressionThreshold (int threshold) {
+        this.compressionThreshold = threshold;
+    }
+
+    /**
+     * Return the statistics of the compression of the connection with the storage
+     * @return Compression statistics, or null if the compression was not requested
+     */
+    public WSCompression getCompression () {
+        return server == null ? null : server.getCompression();
+    }
+
+    /**
+     * Return the metrics of the connection with the storage: frames, bytes and latency of the queries.
+     * They can also be exported through JMX with {@link WSMetrics#register(String)}
+     * @return Metrics of the connection, or null if the client is not connected
+     */
+    public WSMetrics getMetrics () {
+        return server == null ? null : server.getMetrics();
+    }
+
+    /**
+     * Return the smoothed round trip time of the connection with the storage, measured by the heartbeat
+     * @return Round trip time in milliseconds, or -1 if it's not known yet
+     */
+    public long getRoundTripTime () {
+        return server == null ? -1 : server.getRoundTripTime();
+    }
+
     /**
      * Return the current transfer profile. Useful to know the current connection mode
      * @return Current transfer profile
@@ -829,4 +1640,222 @@ public class StandardGBClient extends GBClient {
     public TransferProfile getCurrentTransferProfile () {
         return currentTransferProfile;
     }
-}
\ No newline at end of file
+
+    /**
+     * Make a query to the storage and convert its response with the specified parser. The response is decoded
+     * by the decoder while it's read from the websocket, without building its json tree.
+     *
+     * @param queryName Name of the query
+     * @param request   Data of the query
+     * @param decoder   Decoder of the response
+     * @param parser    Parser of the response
+     * @param <R>       Type of the response
+     * @param <T>       Type of the result
+     * @return Future completed with the parsed response
+     */
+    private <R extends Response, T> ListenableFuture<T> query(String queryName, JsonElement request,
+                                                              WSDecoder<R> decoder, ResponseParser<R, T> parser) {
+        ListenableFuture<R> response = Futures.catchingAsync(server.makeQueryAsync(queryName, request, decoder),
+                WSException.class, StandardGBClient.<R>connectionErrorConverter());
+        return Futures.transformAsync(response, parser);
+    }
+
+    /**
+     * Same as {@link #query(String, JsonElement, WSDecoder, ResponseParser)}, but for the read only queries: if an
+     * identical query is already in flight, its result is shared instead of sending a new query
+     *
+     * @param queryName Name of the query
+     * @param request   Data of the query
+     * @param tags      Tags of the files read by the query, see {@link #tagsOf(GBFile)}
+     * @param decoder   Decoder of the response
+     * @param parser    Parser of the typed response
+     * @param <R>       Type of the response
+     * @param <T>       Type of the result
+     * @return Future of the result, shared with the identical queries in flight
+     */
+    private <R extends Response, T> ListenableFuture<T> sharedQuery(final String queryName, final JsonElement request,
+                                                                    Collection<String> tags,
+                                                                    final WSDecoder<R> decoder,
+                                                                    final ResponseParser<R, T> parser) {
+        return singleFlight.execute(SingleFlight.keyOf(queryName, request), tags, new SingleFlight.Call<T>() {
+            @Override
+            public ListenableFuture<T> start() {
+                return query(queryName, request, decoder, parser);
+            }
+        });
+    }
+
+    /**
+     * Return the tags of the read only queries about a file: its id and its path, when known
+     *
+     * @param file File read by the query
+     * @return Tags of the query
+     */
+    private static List<String> tagsOf(GBFile file) {
+        List<String> tags = new ArrayList<>(2);
+        if (file.getID() != GBFile.UNKNOWN_ID)
+            tags.add(ID_TAG + file.getID());
+        String path = file.getPathAsString();
+        if (path != null)
+            tags.add(PATH_TAG + path);
+        return tags;
+    }
+
+    /**
+     * Return the number of read only queries that weren't sent because an identical query was in flight
+     *
+     * @return Number of absorbed queries
+     */
+    public long getDeduplicatedQueries () {
+        return singleFlight.getAbsorbedCalls();
+    }
+
+    /**
+     * Block the thread until the future is completed and return its result. If the future failed, the cause is
+     * rethrown as a ClientException
+     *
+     * @param future Future to wait
+     * @param <T>    Type of the result
+     * @return Result of the future
+     * @throws ClientException The future failed or the thread was interrupted
+     */
+    private static <T> T waitFor(ListenableFuture<T> future) throws ClientException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            log.warn(ex.toString(), ex);
+            throw new ClientException(ex.toString());
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof ClientException)
+                throw (ClientException) ex.getCause();
+            log.warn(ex.toString(), ex);
+            throw new ClientException(ex.getCause().toString());
+        }
+    }
+
+    /**
+     * Function used to convert the response of a query in the result of an operation. If the response
+     * reports an error or is malformed, the resulting future fails with a ClientException.
+     *
+     * @param <R> Type of the response
+     * @param <T> Type of the result
+     */
+    private static abstract class ResponseParser<R extends Response, T> implements AsyncFunction<R, T> {
+
+        @Override
+        public ListenableFuture<T> apply(R response) {
+            try {
+                if (response == null)
+                    throw new ClientException("Empty response");
+
+                // Check if there was an error
+                if (!response.success)
+                    throw new ClientException(response.error);
+                return Futures.immediateFuture(parse(response));
+            } catch (ClientException ex) {
+                return Futures.immediateFailedFuture(ex);
+            } catch (RuntimeException ex) {
+                log.warn(ex.toString(), ex);
+                return Futures.immediateFailedFuture(new ClientException(ex.toString()));
+            }
+        }
+
+        /**
+         * Convert the response of the query
+         *
+         * @param response Response of the query
+         * @return Result of the operation
+         * @throws ClientException The response reports an error
+         */
+        protected abstract T parse(R response) throws ClientException;
+    }
+
+    /**
+     * Return a function that converts the errors of the websocket connection (like a query timeout) in a
+     * ClientException
+     *
+     * @param <R> Type of the response
+     * @return Function that converts the errors
+     */
+    private static <R> AsyncFunction<WSException, R> connectionErrorConverter() {
+        return new AsyncFunction<WSException, R>() {
+            @Override
+            public ListenableFuture<R> apply(WSException ex) {
+                return Futures.immediateFailedFuture(new ClientException(ex.getMessage()));
+            }
+        };
+    }
+
+    /**
+     * Parser of the responses that only contain the 'success' and 'error' fields
+     */
+    private static final ResponseParser<Response, Void> SUCCESS_PARSER = new ResponseParser<Response, Void>() {
+        @Override
+        protected Void parse(Response response) {
+            return null;
+        }
+    };
+
+    /**
+     * Parser of the responses that contain a list of files
+     */
+    private static final ResponseParser<FilesResponse, List<GBFile>> FILES_PARSER = new ResponseParser<FilesResponse, List<GBFile>>() {
+        @Override
+        protected List<GBFile> parse(FilesResponse response) {
+            return response.files;
+        }
+    };
+
+    /**
+     * Response of the storage. All the responses can contain the 'success' and 'error' fields.
+     * A response without the 'success' field is considered successful
+     */
+    private static class Response {
+
+        @Expose
+        boolean success = true;
+
+        @Expose
+        String error;
+    }
+
+    /**
+     * Response of the 'createFolder' query
+     */
+    private static class CreateFolderResponse extends Response {
+
+        @Expose
+        long newFolderId;
+    }
+
+    /**
+     * Response of the 'info' query
+     */
+    private static class InfoResponse extends Response {
+
+        @Expose
+        boolean found;
+
+        @Expose
+        GBFile file;
+    }
+
+    /**
+     * Response that contains a list of files. The 'search' query calls the list 'result'
+     */
+    private static class FilesResponse extends Response {
+
+        @Expose
+        @SerializedName(value = "files", alternate = {"result"})
+        List<GBFile> files;
+    }
+
+    /**
+     * Response of the 'recent' query
+     */
+    private static class EventsResponse extends Response {
+
+        @Expose
+        List<SyncEvent> events;
+    }
+}
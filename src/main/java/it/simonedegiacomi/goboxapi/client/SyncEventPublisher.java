@@ -0,0 +1,358 @@
+package it.simonedegiacomi.goboxapi.client;
+
+import it.simonedegiacomi.goboxapi.GBFile;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stream of the sync events received by a client, with a demand for every subscriber. Every subscriber has its own
+ * bounded buffer, and receives the events only when it asks them with {@link SyncEventSubscription#request(long)}.
+ * When a subscriber is too slow and its buffer is full, its {@link OverflowPolicy} decides what happens to the new
+ * events. The events are delivered on the threads of an executor, so a slow subscriber never delays the client or
+ * the other subscribers.
+ *
+ * The interfaces follow Reactive Streams (and java.util.concurrent.Flow of Java 9), so a subscriber of those
+ * libraries can be wrapped in a {@link SyncEventSubscriber} with a few lines.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class SyncEventPublisher {
+
+    /**
+     * What to do with a new event when the buffer of a subscriber is full
+     */
+    public enum OverflowPolicy {
+
+        /**
+         * Fail the subscription with an error: the subscriber knows that it lost some events and can read the
+         * recent events from the storage
+         */
+        FAIL,
+
+        /**
+         * Drop the oldest event in the buffer
+         */
+        DROP_OLDEST,
+
+        /**
+         * Drop the buffered event of the same file, because the new one is more recent. If there is no event of
+         * the same file, drop the oldest one
+         */
+        COALESCE,
+
+        /**
+         * Move the events that don't fit in the buffer to a temporary file, so no event is lost. The file is read
+         * back in order as the subscriber asks the events
+         */
+        SPILL
+    }
+
+    /**
+     * Default number of events that a subscriber can have waiting in memory
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private static final Logger log = Logger.getLogger(SyncEventPublisher.class);
+
+    private final Executor executor;
+
+    private final Set<Subscription> subscriptions = new CopyOnWriteArraySet<>();
+
+    private final AtomicLong droppedEvents = new AtomicLong();
+
+    /**
+     * Create a new publisher
+     * @param executor Executor that delivers the events to the subscribers
+     */
+    SyncEventPublisher(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Subscribe with the default capacity and the {@link OverflowPolicy#FAIL} policy
+     * @param subscriber Subscriber to add
+     */
+    public void subscribe(SyncEventSubscriber subscriber) {
+        subscribe(subscriber, DEFAULT_CAPACITY, OverflowPolicy.FAIL);
+    }
+
+    /**
+     * Subscribe to the events received from now on
+     * @param subscriber Subscriber to add
+     * @param capacity Maximum number of events waiting in memory for the subscriber
+     * @param policy What to do with the events that don't fit in the buffer
+     */
+    public void subscribe(SyncEventSubscriber subscriber, int capacity, OverflowPolicy policy) {
+        if (subscriber == null || policy == null)
+            throw new NullPointerException("Subscriber and policy are required");
+        if (capacity < 1)
+            throw new IllegalArgumentException("The capacity must be at least one");
+        Subscription subscription = new Subscription(subscriber, capacity, policy);
+        subscriptions.add(subscription);
+
+        // The subscription is marked as draining while onSubscribe runs, so no event can be delivered concurrently
+        try {
+            subscriber.onSubscribe(subscription);
+        } catch (RuntimeException ex) {
+            log.warn("Subscriber exception: " + ex.toString(), ex);
+            subscription.cancel();
+        }
+        subscription.schedule();
+    }
+
+    /**
+     * Offer an event to all the subscribers
+     * @param event New event
+     */
+    void publish(SyncEvent event) {
+        for (Subscription subscription : subscriptions)
+            subscription.offer(event);
+    }
+
+    /**
+     * Complete all the subscriptions, after the buffered events are delivered
+     */
+    void complete() {
+        for (Subscription subscription : subscriptions)
+            subscription.complete();
+    }
+
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Return the number of events dropped or coalesced because a subscriber was too slow
+     * @return Number of events
+     */
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    /**
+     * Check if two events are about the same file
+     */
+    private static boolean sameFile(SyncEvent a, SyncEvent b) {
+        GBFile first = a.getRelativeFile();
+        GBFile second = b.getRelativeFile();
+        if (first == null || second == null)
+            return false;
+        if (first.getID() != GBFile.UNKNOWN_ID || second.getID() != GBFile.UNKNOWN_ID)
+            return first.getID() == second.getID();
+        String path = first.getPathAsString();
+        return path != null && path.equals(second.getPathAsString());
+    }
+
+    /**
+     * Subscription of a subscriber. The state is guarded by the lock of the object, while the subscriber is called
+     * without the lock by one thread at a time: the one that set 'draining'
+     */
+    private class Subscription implements SyncEventSubscription, Runnable {
+
+        private final SyncEventSubscriber subscriber;
+        private final int capacity;
+        private final OverflowPolicy policy;
+
+        private final ArrayDeque<SyncEvent> buffer = new ArrayDeque<>();
+        private SyncEventSpill spill;
+        private long demand;
+        private boolean draining = true;
+        private boolean cancelled;
+        private boolean completing;
+        private Throwable error;
+
+        Subscription(SyncEventSubscriber subscriber, int capacity, OverflowPolicy policy) {
+            this.subscriber = subscriber;
+            this.capacity = capacity;
+            this.policy = policy;
+        }
+
+        void offer(SyncEvent event) {
+            synchronized (this) {
+                if (cancelled || completing || error != null)
+                    return;
+
+                // While there are spilled events the new ones go after them, to keep the order
+                if (buffer.size() < capacity && (spill == null || spill.size() == 0)) {
+                    buffer.add(event);
+                } else {
+                    overflow(event);
+                }
+                if (draining)
+                    return;
+                draining = true;
+            }
+            schedule();
+        }
+
+        private void overflow(SyncEvent event) {
+            switch (policy) {
+                case FAIL:
+                    buffer.clear();
+                    error = new ClientException("More than " + capacity + " sync events waiting for the subscriber");
+                    return;
+                case COALESCE:
+                    for (Iterator<SyncEvent> it = buffer.iterator(); it.hasNext(); ) {
+                        if (sameFile(it.next(), event)) {
+                            it.remove();
+                            buffer.add(event);
+                            droppedEvents.incrementAndGet();
+                            return;
+                        }
+                    }
+
+                    // No event of the same file, so it's like drop oldest
+                    dropOldest(event);
+                    return;
+                case DROP_OLDEST:
+                    dropOldest(event);
+                    return;
+                case SPILL:
+                    try {
+                        if (spill == null)
+                            spill = new SyncEventSpill();
+                        spill.add(event);
+                    } catch (IOException ex) {
+                        buffer.clear();
+                        error = new ClientException("Cannot spill the sync events: " + ex.toString());
+                    }
+            }
+        }
+
+        /**
+         * Make room for the new event dropping the oldest one
+         */
+        private void dropOldest(SyncEvent event) {
+            buffer.poll();
+            buffer.add(event);
+            droppedEvents.incrementAndGet();
+        }
+
+        /**
+         * Take the next event from the buffer, and refill the buffer from the spill file
+         */
+        private SyncEvent take() {
+            SyncEvent next = buffer.poll();
+            try {
+                while (spill != null && spill.size() > 0 && buffer.size() < capacity)
+                    buffer.add(spill.poll());
+            } catch (IOException ex) {
+                error = new ClientException("Cannot read the spilled sync events: " + ex.toString());
+            }
+            return next;
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (this) {
+                if (cancelled)
+                    return;
+                if (n <= 0) {
+                    error = new IllegalArgumentException("The number of requested events must be positive");
+                } else {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                }
+                if (draining)
+                    return;
+                draining = true;
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                if (draining)
+                    return;
+                release();
+            }
+        }
+
+        void complete() {
+            synchronized (this) {
+                completing = true;
+                if (draining)
+                    return;
+                draining = true;
+            }
+            schedule();
+        }
+
+        void schedule() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException ex) {
+                log.warn("Cannot deliver the sync events: " + ex.toString());
+                synchronized (this) {
+                    cancelled = true;
+                    draining = false;
+                    release();
+                }
+            }
+        }
+
+        /**
+         * Deliver the events while there is demand
+         */
+        @Override
+        public void run() {
+            while (true) {
+                SyncEvent next = null;
+                Throwable failure = null;
+                synchronized (this) {
+                    if (cancelled) {
+                        draining = false;
+                        release();
+                        return;
+                    }
+                    if (error != null) {
+                        failure = error;
+                        cancelled = true;
+                    } else if (demand > 0 && !buffer.isEmpty()) {
+                        next = take();
+                        if (demand != Long.MAX_VALUE)
+                            demand--;
+                    } else if (completing && buffer.isEmpty()) {
+                        cancelled = true;
+                    } else {
+                        draining = false;
+                        return;
+                    }
+                }
+                try {
+                    if (next != null) {
+                        subscriber.onNext(next);
+                    } else if (failure != null) {
+                        subscriber.onError(failure);
+                    } else {
+                        subscriber.onComplete();
+                    }
+                } catch (RuntimeException ex) {
+                    log.warn("Subscriber exception: " + ex.toString(), ex);
+                    synchronized (this) {
+                        cancelled = true;
+                    }
+                }
+            }
+        }
+
+        private void release() {
+            buffer.clear();
+            if (spill != null) {
+                spill.close();
+                spill = null;
+            }
+            subscriptions.remove(this);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package it.simonedegiacomi.goboxapi.client;
+
+import com.google.gson.Gson;
+import it.simonedegiacomi.goboxapi.utils.MyGsonBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Queue of sync events on a temporary file, used by the subscribers that can't keep up when their buffer in memory
+ * is full. The events are read in the order in which they are written. The file is truncated every time it's
+ * emptied, and when the events already read take more than {@link #DEFAULT_COMPACT_THRESHOLD} bytes and more than
+ * half of the file, the events still waiting are moved to the start of the file, so a subscriber that never catches
+ * up completely doesn't make the file grow forever. Not thread safe.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+class SyncEventSpill {
+
+    /**
+     * Default size (in bytes) of the events read after which the file is compacted
+     */
+    static final long DEFAULT_COMPACT_THRESHOLD = 1024 * 1024;
+
+    private static final Gson gson = MyGsonBuilder.create();
+
+    /**
+     * Size of the events read after which the file is compacted
+     */
+    private final long compactThreshold;
+
+    private final File file;
+
+    private final RandomAccessFile data;
+
+    private long readPosition;
+
+    private long writePosition;
+
+    private int size;
+
+    /**
+     * Create a new empty spill file in the temporary folder
+     * @throws IOException The file can't be created
+     */
+    SyncEventSpill() throws IOException {
+        this(DEFAULT_COMPACT_THRESHOLD);
+    }
+
+    /**
+     * Create a new empty spill file in the temporary folder
+     * @param compactThreshold Size (in bytes) of the events read after which the file is compacted
+     * @throws IOException The file can't be created
+     */
+    SyncEventSpill(long compactThreshold) throws IOException {
+        this.compactThreshold = compactThreshold;
+        file = File.createTempFile("gobox-events", ".spill");
+        file.deleteOnExit();
+        data = new RandomAccessFile(file, "rw");
+    }
+
+    /**
+     * Append an event
+     * @param event Event to append
+     * @throws IOException The file can't be written
+     */
+    void add(SyncEvent event) throws IOException {
+        byte[] json = gson.toJson(event, SyncEvent.class).getBytes(StandardCharsets.UTF_8);
+        data.seek(writePosition);
+        data.writeInt(json.length);
+        data.write(json);
+        writePosition = data.getFilePointer();
+        size++;
+    }
+
+    /**
+     * Remove the oldest event
+     * @return Oldest event, null if the file is empty
+     * @throws IOException The file can't be read
+     */
+    SyncEvent poll() throws IOException {
+        if (size == 0)
+            return null;
+        data.seek(readPosition);
+        byte[] json = new byte[data.readInt()];
+        data.readFully(json);
+        readPosition = data.getFilePointer();
+        if (--size == 0) {
+            readPosition = writePosition = 0;
+            data.setLength(0);
+        } else if (readPosition >= compactThreshold && readPosition >= writePosition - readPosition) {
+            compact();
+        }
+        return gson.fromJson(new String(json, StandardCharsets.UTF_8), SyncEvent.class);
+    }
+
+    /**
+     * Move the events not read yet to the start of the file and cut the rest. The events moved are never more than
+     * the ones already read, so the copy costs at most as much as the reads
+     * @throws IOException The file can't be read or written
+     */
+    private void compact() throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long from = readPosition;
+        long to = 0;
+        while (from < writePosition) {
+            int read = (int) Math.min(buffer.length, writePosition - from);
+            data.seek(from);
+            data.readFully(buffer, 0, read);
+            data.seek(to);
+            data.write(buffer, 0, read);
+            from += read;
+            to += read;
+        }
+        writePosition = to;
+        readPosition = 0;
+        data.setLength(writePosition);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Return the size of the file
+     * @return Size in bytes
+     * @throws IOException The size can't be read
+     */
+    long length() throws IOException {
+        return data.length();
+    }
+
+    /**
+     * Close and delete the file
+     */
+    void close() {
+        try {
+            data.close();
+        } catch (IOException ignored) { }
+        file.delete();
+    }
+}
@@ -0,0 +1,37 @@
+package it.simonedegiacomi.goboxapi.client;
+
+/**
+ * Subscriber of the stream of the sync events. Unlike a {@link SyncEventListener}, it receives only the events it
+ * asked for with {@link SyncEventSubscription#request(long)}, so a slow subscriber is not flooded.
+ *
+ * The methods follow the rules of the Reactive Streams subscribers (and of java.util.concurrent.Flow.Subscriber):
+ * they are called one at a time, onSubscribe first, and onError or onComplete at most once and last.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public interface SyncEventSubscriber {
+
+    /**
+     * Called when the subscriber is subscribed, before any other method
+     * @param subscription Subscription to use to request the events
+     */
+    void onSubscribe (SyncEventSubscription subscription);
+
+    /**
+     * Called for every requested event
+     * @param event Event
+     */
+    void onNext (SyncEvent event);
+
+    /**
+     * Called when the subscription fails, for example because the buffer overflowed
+     * @param error Cause of the failure
+     */
+    void onError (Throwable error);
+
+    /**
+     * Called when there are no more events, because the client was shut down
+     */
+    void onComplete ();
+}
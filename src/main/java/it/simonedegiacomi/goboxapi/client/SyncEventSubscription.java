@@ -0,0 +1,21 @@
+package it.simonedegiacomi.goboxapi.client;
+
+/**
+ * Subscription of a {@link SyncEventSubscriber} to the stream of the sync events
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public interface SyncEventSubscription {
+
+    /**
+     * Ask more events. The requests add up, and Long.MAX_VALUE means no limit
+     * @param n Number of events, greater than zero
+     */
+    void request (long n);
+
+    /**
+     * Stop receiving the events and release the buffered ones
+     */
+    void cancel ();
+}
@@ -30,7 +30,8 @@ public class TransferProfile {
      */
     public enum Action {
         DOWNLOAD,
-        UPLOAD
+        UPLOAD,
+        UPLOAD_CHUNK
     }
 
     /**
@@ -58,6 +59,11 @@ public class TransferProfile {
      */
     private final URLBuilder urls;
 
+    /**
+     * Transport of the requests, with its own connections
+     */
+    private TransferTransport transport = new PooledTransport();
+
     /**
      * Create a new profile in bridge mode
      * @param url Url builder to use
@@ -84,6 +90,7 @@ public class TransferProfile {
         this.mode = mode;
         url.addUrl("getFile" + mode, new URL(base + "fromStorage"));
         url.addUrl("uploadFile" + mode, new URL(base + "toStorage"));
+        url.addUrl("uploadChunk" + mode, new URL(base + "toStorage/chunk"));
     }
 
     /**
@@ -108,21 +115,44 @@ public class TransferProfile {
         return mode;
     }
 
+    /**
+     * Set the transport of the requests of this profile. Must be set before the transfers start. When the client
+     * switches mode, the new profile keeps this transport
+     * @param transport Transport to use
+     */
+    public void setTransport (TransferTransport transport) {
+        if (transport == null)
+            throw new NullPointerException("The transport is required");
+        this.transport = transport;
+    }
+
+    public TransferTransport getTransport() {
+        return transport;
+    }
+
     /**
      * Prepare the specified connection with the current profile
      * @param conn Connection to prepare
      */
     public void prepare (HttpsURLConnection conn) {
 
-        // Add authorization header
-        if (authHeader != null) {
-            conn.addRequestProperty("Authorization", authHeader);
-        }
-
         // Add the ssl socket factory
         if (sslSocketFactory != null) {
             conn.setSSLSocketFactory(sslSocketFactory);
         }
+        prepareRequest(conn);
+    }
+
+    /**
+     * Add the authorization header and the hostname verifier to a connection
+     * @param conn Connection to prepare
+     */
+    private void prepareRequest (HttpsURLConnection conn) {
+
+        // Add authorization header
+        if (authHeader != null) {
+            conn.addRequestProperty("Authorization", authHeader);
+        }
 
         // Add the hostname verifier
         if (hostnameVerifier != null) {
@@ -149,7 +179,7 @@ public class TransferProfile {
      * @return Right urls to use
      */
     public URL getUrl (Action action, JsonObject params, boolean single) {
-        String key = action == Action.DOWNLOAD ? "getFile" : "uploadFile";
+        String key = action == Action.DOWNLOAD ? "getFile" : action == Action.UPLOAD ? "uploadFile" : "uploadChunk";
         if (mode != StandardGBClient.ConnectionMode.BRIDGE_MODE) {
             key += mode;
         }
@@ -157,7 +187,9 @@ public class TransferProfile {
     }
 
     /**
-     * Use the {@link #getUrl(Action, JsonObject, boolean)}, open the connection and prepare it
+     * Use the {@link #getUrl(Action, JsonObject, boolean)}, open the connection with the transport and prepare it.
+     * The connection must be given back with {@link #release(HttpsURLConnection)} or
+     * {@link #discard(HttpsURLConnection)}
      * @param action Action
      * @param params Parameters
      * @param single Single parameter
@@ -170,11 +202,27 @@ public class TransferProfile {
         URL url = getUrl(action, params, single);
 
         // Open the connection
-        HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
+        HttpsURLConnection conn = transport.open(url, sslSocketFactory);
         log.info("Http request to " + url);
 
         // Prepare the connection
-        prepare(conn);
+        prepareRequest(conn);
         return conn;
     }
+
+    /**
+     * Give back a connection whose response is completed, so the transport can reuse it
+     * @param conn Connection opened by {@link #openConnection(Action, JsonObject, boolean)}
+     */
+    public void release (HttpsURLConnection conn) {
+        transport.release(conn);
+    }
+
+    /**
+     * Close a connection after an error
+     * @param conn Connection opened by {@link #openConnection(Action, JsonObject, boolean)}
+     */
+    public void discard (HttpsURLConnection conn) {
+        transport.discard(conn);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,58 @@
+package it.simonedegiacomi.goboxapi.client;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Transport of the https requests of the transfers, used by a {@link TransferProfile} to open its connections. The
+ * transport decides how the connections are created, reused and limited. Every connection opened must be given back
+ * with {@link #release(HttpsURLConnection)} when its response is read, or with {@link #discard(HttpsURLConnection)}
+ * after an error.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public interface TransferTransport {
+
+    /**
+     * Open a connection, waiting if the transport has a limit of connections and it's reached
+     * @param url Url of the request
+     * @param sslSocketFactory Factory of the sockets of the profile, null to use the default one
+     * @return New connection, not yet connected
+     * @throws IOException Error opening the connection
+     */
+    HttpsURLConnection open(URL url, SSLSocketFactory sslSocketFactory) throws IOException;
+
+    /**
+     * Give back a connection whose response is completed, so it can be reused. Releasing a connection twice has no
+     * effect
+     * @param conn Connection to release
+     */
+    void release(HttpsURLConnection conn);
+
+    /**
+     * Close a connection after an error, so it's not reused
+     * @param conn Connection to close
+     */
+    void discard(HttpsURLConnection conn);
+
+    /**
+     * Return the number of requests made with the transport
+     * @return Number of requests
+     */
+    long getRequests();
+
+    /**
+     * Return the number of new connections (with a TCP and TLS handshake each) opened by the transport
+     * @return Number of connections
+     */
+    long getConnectionsOpened();
+
+    /**
+     * Return the fraction of the requests made on a connection already open
+     * @return Reuse rate, between zero and one
+     */
+    double getReuseRate();
+}
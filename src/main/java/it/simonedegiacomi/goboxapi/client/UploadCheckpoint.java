@@ -0,0 +1,148 @@
+package it.simonedegiacomi.goboxapi.client;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import it.simonedegiacomi.goboxapi.GBFile;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * State of a chunked upload saved on the disk, so an interrupted upload can be resumed from the last acknowledged
+ * chunk, even by another JVM. There is a checkpoint for every couple of local file and destination, and it's valid
+ * only while the local file keeps the same size and modification date. The file is replaced atomically at every
+ * change, so a crash leaves the old or the new version, never a mix.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+class UploadCheckpoint {
+
+    private static final Logger log = Logger.getLogger(UploadCheckpoint.class);
+
+    private final File file;
+
+    private final String uploadId;
+    private final long size;
+    private final long modified;
+    private final long chunkSize;
+    private final BitSet committed;
+
+    private UploadCheckpoint(File file, String uploadId, long size, long modified, long chunkSize, BitSet committed) {
+        this.file = file;
+        this.uploadId = uploadId;
+        this.size = size;
+        this.modified = modified;
+        this.chunkSize = chunkSize;
+        this.committed = committed;
+    }
+
+    /**
+     * Load the checkpoint of an upload, or create a new one if there is no valid checkpoint
+     * @param directory Directory of the checkpoints
+     * @param source Local file to upload
+     * @param target Destination of the file in the storage
+     * @param chunkSize Size of the chunks
+     * @return Checkpoint of the upload
+     * @throws IOException The checkpoint can't be written
+     */
+    static UploadCheckpoint open(File directory, File source, GBFile target, long chunkSize) throws IOException {
+        String key = source.getAbsolutePath() + '\n' + target.getPathAsString() + '\n' + target.getFatherID();
+        File file = new File(directory, Hashing.sha1().hashString(key, StandardCharsets.UTF_8) + ".upload");
+        long size = source.length();
+        long modified = source.lastModified();
+
+        if (file.exists()) {
+            Properties properties = new Properties();
+            try (InputStream in = new FileInputStream(file)) {
+                properties.load(in);
+                if (Long.parseLong(properties.getProperty("size")) == size
+                        && Long.parseLong(properties.getProperty("modified")) == modified
+                        && Long.parseLong(properties.getProperty("chunkSize")) == chunkSize) {
+                    BitSet committed = BitSet.valueOf(BaseEncoding.base16().decode(properties.getProperty("committed")));
+                    log.info("Resume the upload of " + source + " with " + committed.cardinality() + " chunks sent");
+                    return new UploadCheckpoint(file, properties.getProperty("upload"), size, modified, chunkSize,
+                            committed);
+                }
+                log.info("The checkpoint of " + source + " is old, restart the upload");
+            } catch (IOException | RuntimeException ex) {
+                log.warn("Invalid checkpoint " + file + ": " + ex.toString());
+            }
+        }
+
+        UploadCheckpoint checkpoint = new UploadCheckpoint(file, UUID.randomUUID().toString(), size, modified,
+                chunkSize, new BitSet());
+        directory.mkdirs();
+        checkpoint.save();
+        return checkpoint;
+    }
+
+    String getUploadId() {
+        return uploadId;
+    }
+
+    synchronized boolean isCommitted(int chunk) {
+        return committed.get(chunk);
+    }
+
+    /**
+     * Mark a chunk as acknowledged by the storage
+     * @param chunk Index of the chunk
+     * @throws IOException The checkpoint can't be written
+     */
+    synchronized void commit(int chunk) throws IOException {
+        committed.set(chunk);
+        save();
+    }
+
+    /**
+     * Mark some chunks as not sent, because the storage doesn't have them anymore
+     * @param chunks Index of the chunks
+     * @throws IOException The checkpoint can't be written
+     */
+    synchronized void rollback(Collection<Integer> chunks) throws IOException {
+        for (int chunk : chunks)
+            committed.clear(chunk);
+        save();
+    }
+
+    /**
+     * Delete the checkpoint, after the upload is completed
+     */
+    synchronized void delete() {
+        if (!file.delete() && file.exists())
+            log.warn("Cannot delete the checkpoint " + file);
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    private void save() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("upload", uploadId);
+        properties.setProperty("size", String.valueOf(size));
+        properties.setProperty("modified", String.valueOf(modified));
+        properties.setProperty("chunkSize", String.valueOf(chunkSize));
+        properties.setProperty("committed", BaseEncoding.base16().encode(committed.toByteArray()));
+
+        // Write a new file and replace the old one, syncing first so the new file is complete
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            properties.store(out, null);
+            out.getFD().sync();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,394 @@
+package it.simonedegiacomi.goboxapi.myws;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static it.simonedegiacomi.goboxapi.myws.BinaryJsonWriter.*;
+
+/**
+ * Json reader of the binary encoding written by {@link BinaryJsonWriter}. Since this is a JsonReader, any gson type
+ * adapter (and any {@link WSDecoder}) can read from it.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class BinaryJsonReader extends JsonReader {
+
+    // Contexts of the stack
+    private static final int ARRAY = 1;
+    private static final int OBJECT_NAME = 2;
+    private static final int OBJECT_VALUE = 3;
+
+    private final byte[] buffer;
+
+    private int position;
+
+    private final int limit;
+
+    private int[] stack = new int[16];
+
+    private int stackSize = 0;
+
+    /**
+     * Names already read, in order of appearance
+     */
+    private final ArrayList<String> keys = new ArrayList<>();
+
+    public BinaryJsonReader(byte[] buffer) {
+        this(buffer, 0, buffer.length);
+    }
+
+    public BinaryJsonReader(byte[] buffer, int offset, int length) {
+        super(new StringReader(""));
+        this.buffer = buffer;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    @Override
+    public void beginArray() throws IOException {
+        expect(JsonToken.BEGIN_ARRAY);
+        position++;
+        valueRead();
+        push(ARRAY);
+    }
+
+    @Override
+    public void endArray() throws IOException {
+        expect(JsonToken.END_ARRAY);
+        position++;
+        stackSize--;
+    }
+
+    @Override
+    public void beginObject() throws IOException {
+        expect(JsonToken.BEGIN_OBJECT);
+        position++;
+        valueRead();
+        push(OBJECT_NAME);
+    }
+
+    @Override
+    public void endObject() throws IOException {
+        expect(JsonToken.END_OBJECT);
+        position++;
+        stackSize--;
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        JsonToken token = peek();
+        return token != JsonToken.END_OBJECT && token != JsonToken.END_ARRAY && token != JsonToken.END_DOCUMENT;
+    }
+
+    @Override
+    public JsonToken peek() throws IOException {
+        int context = stackSize == 0 ? 0 : stack[stackSize - 1];
+        if (context == 0 && position >= limit)
+            return JsonToken.END_DOCUMENT;
+        int tag = tag();
+        if (tag == END) {
+            if (context == ARRAY)
+                return JsonToken.END_ARRAY;
+            if (context == OBJECT_NAME)
+                return JsonToken.END_OBJECT;
+            throw syntaxError("Unexpected end");
+        }
+        if (context == OBJECT_NAME)
+            return JsonToken.NAME;
+        return tokenOf(tag);
+    }
+
+    @Override
+    public String nextName() throws IOException {
+        expect(JsonToken.NAME);
+        int tag = tag();
+        String name;
+        if ((tag & 0xe0) == FIXKEY) {
+            position++;
+            name = key(tag & 0x1f);
+        } else if (tag == KEY16) {
+            position++;
+            name = key(readUnsigned(2));
+        } else {
+            name = readString();
+            if (keys.size() < MAX_KEYS)
+                keys.add(name);
+        }
+        stack[stackSize - 1] = OBJECT_VALUE;
+        return name;
+    }
+
+    @Override
+    public String nextString() throws IOException {
+        JsonToken token = peek();
+        String value;
+        if (token == JsonToken.STRING) {
+            value = readString();
+        } else if (token == JsonToken.NUMBER) {
+            value = tag() == FLOAT64 ? String.valueOf(readDouble()) : String.valueOf(readLong());
+        } else {
+            throw syntaxError("Expected a string but was " + token);
+        }
+        valueRead();
+        return value;
+    }
+
+    @Override
+    public boolean nextBoolean() throws IOException {
+        expect(JsonToken.BOOLEAN);
+        boolean value = (buffer[position++] & 0xff) == TRUE;
+        valueRead();
+        return value;
+    }
+
+    @Override
+    public void nextNull() throws IOException {
+        expect(JsonToken.NULL);
+        position++;
+        valueRead();
+    }
+
+    @Override
+    public double nextDouble() throws IOException {
+        JsonToken token = peek();
+        double value;
+        if (token == JsonToken.NUMBER) {
+            value = tag() == FLOAT64 ? readDouble() : readLong();
+        } else if (token == JsonToken.STRING) {
+            value = Double.parseDouble(readString());
+        } else {
+            throw syntaxError("Expected a double but was " + token);
+        }
+        valueRead();
+        return value;
+    }
+
+    @Override
+    public long nextLong() throws IOException {
+        JsonToken token = peek();
+        long value;
+        if (token == JsonToken.NUMBER && tag() != FLOAT64) {
+            value = readLong();
+        } else if (token == JsonToken.NUMBER) {
+            value = toLong(readDouble());
+        } else if (token == JsonToken.STRING) {
+            String string = readString();
+            try {
+                value = Long.parseLong(string);
+            } catch (NumberFormatException ex) {
+                value = toLong(Double.parseDouble(string));
+            }
+        } else {
+            throw syntaxError("Expected a long but was " + token);
+        }
+        valueRead();
+        return value;
+    }
+
+    @Override
+    public int nextInt() throws IOException {
+        long value = nextLong();
+        if (value != (int) value)
+            throw new NumberFormatException("Expected an int but was " + value);
+        return (int) value;
+    }
+
+    @Override
+    public void skipValue() throws IOException {
+        JsonToken token = peek();
+        switch (token) {
+            case NAME:
+                nextName();
+                break;
+            case BEGIN_ARRAY:
+                beginArray();
+                while (hasNext())
+                    skipValue();
+                endArray();
+                break;
+            case BEGIN_OBJECT:
+                beginObject();
+                while (hasNext()) {
+                    nextName();
+                    skipValue();
+                }
+                endObject();
+                break;
+            case STRING:
+            case NUMBER:
+                nextString();
+                break;
+            case BOOLEAN:
+                nextBoolean();
+                break;
+            case NULL:
+                nextNull();
+                break;
+            default:
+                throw syntaxError("Unexpected " + token);
+        }
+    }
+
+    @Override
+    public void close() {
+        stackSize = 0;
+        position = limit;
+    }
+
+    @Override
+    public String getPath() {
+        return "$";
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " at byte " + position;
+    }
+
+    private void expect(JsonToken expected) throws IOException {
+        JsonToken token = peek();
+        if (token != expected)
+            throw new IllegalStateException("Expected " + expected + " but was " + token + " at byte " + position);
+    }
+
+    /**
+     * Called after reading a value: in an object the next item is a name
+     */
+    private void valueRead() {
+        if (stackSize > 0 && stack[stackSize - 1] == OBJECT_VALUE)
+            stack[stackSize - 1] = OBJECT_NAME;
+    }
+
+    private void push(int context) {
+        if (stackSize == stack.length)
+            stack = Arrays.copyOf(stack, stackSize * 2);
+        stack[stackSize++] = context;
+    }
+
+    private int tag() throws IOException {
+        if (position >= limit)
+            throw new EOFException("End of input at byte " + position);
+        return buffer[position] & 0xff;
+    }
+
+    private String key(int index) throws IOException {
+        if (index >= keys.size())
+            throw syntaxError("Unknown name reference " + index);
+        return keys.get(index);
+    }
+
+    private JsonToken tokenOf(int tag) throws IOException {
+        if (tag < 0x80 || tag >= NEGATIVE_FIXINT)
+            return JsonToken.NUMBER;
+        if ((tag & 0xe0) == FIXSTR)
+            return JsonToken.STRING;
+        switch (tag) {
+            case NULL:
+                return JsonToken.NULL;
+            case FALSE:
+            case TRUE:
+                return JsonToken.BOOLEAN;
+            case BEGIN_ARRAY:
+                return JsonToken.BEGIN_ARRAY;
+            case BEGIN_OBJECT:
+                return JsonToken.BEGIN_OBJECT;
+            case FLOAT64:
+            case INT8:
+            case INT16:
+            case INT32:
+            case INT64:
+                return JsonToken.NUMBER;
+            case STR8:
+            case STR16:
+            case STR32:
+                return JsonToken.STRING;
+            default:
+                throw syntaxError("Unknown tag " + tag);
+        }
+    }
+
+    private String readString() throws IOException {
+        int tag = buffer[position++] & 0xff;
+        int length;
+        if ((tag & 0xe0) == FIXSTR) {
+            length = tag & 0x1f;
+        } else if (tag == STR8) {
+            length = readUnsigned(1);
+        } else if (tag == STR16) {
+            length = readUnsigned(2);
+        } else if (tag == STR32) {
+            length = (int) readSigned(4);
+        } else {
+            position--;
+            throw syntaxError("Expected a string");
+        }
+        if (length < 0 || position + length > limit)
+            throw new EOFException("String out of the frame at byte " + position);
+        String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return value;
+    }
+
+    private long readLong() throws IOException {
+        int tag = buffer[position++] & 0xff;
+        if (tag < 0x80)
+            return tag;
+        if (tag >= NEGATIVE_FIXINT)
+            return (byte) tag;
+        switch (tag) {
+            case INT8:
+                return readSigned(1);
+            case INT16:
+                return readSigned(2);
+            case INT32:
+                return readSigned(4);
+            case INT64:
+                return readSigned(8);
+            default:
+                position--;
+                throw syntaxError("Expected an integer");
+        }
+    }
+
+    private double readDouble() throws IOException {
+        position++;
+        return Double.longBitsToDouble(readSigned(8));
+    }
+
+    private int readUnsigned(int bytes) throws IOException {
+        if (position + bytes > limit)
+            throw new EOFException("End of input at byte " + position);
+        int value = 0;
+        for (int i = 0; i < bytes; i++)
+            value = (value << 8) | (buffer[position++] & 0xff);
+        return value;
+    }
+
+    private long readSigned(int bytes) throws IOException {
+        if (position + bytes > limit)
+            throw new EOFException("End of input at byte " + position);
+        long value = buffer[position++];
+        for (int i = 1; i < bytes; i++)
+            value = (value << 8) | (buffer[position++] & 0xff);
+        return value;
+    }
+
+    private static long toLong(double value) {
+        if (value != (long) value)
+            throw new NumberFormatException("Expected a long but was " + value);
+        return (long) value;
+    }
+
+    private IOException syntaxError(String message) {
+        return new MalformedJsonException(message + " at byte " + position);
+    }
+}
@@ -0,0 +1,281 @@
+package it.simonedegiacomi.goboxapi.myws;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * Json writer that writes a compact binary encoding, in the style of MessagePack, instead of text. Small numbers and
+ * short strings take a single byte of overhead, and the names of the fields are written only once per frame: the
+ * next times the same name is written as a reference to the first one. So the frames that contain lists of files,
+ * which repeat the same names for every file, are much smaller than the json text.
+ *
+ * Since this is a JsonWriter, any gson type adapter can write on it.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class BinaryJsonWriter extends JsonWriter {
+
+    // Tags of the binary format
+    static final int POSITIVE_FIXINT = 0x00;    // 0x00 - 0x7f, value 0 to 127
+    static final int FIXSTR = 0x80;             // 0x80 - 0x9f, string of length 0 to 31
+    static final int FIXKEY = 0xa0;             // 0xa0 - 0xbf, reference to the name 0 to 31
+    static final int NULL = 0xc0;
+    static final int FALSE = 0xc2;
+    static final int TRUE = 0xc3;
+    static final int BEGIN_ARRAY = 0xc4;
+    static final int BEGIN_OBJECT = 0xc5;
+    static final int END = 0xc6;
+    static final int KEY16 = 0xc7;              // reference to a name, followed by 2 bytes of index
+    static final int FLOAT64 = 0xcb;
+    static final int INT8 = 0xd0;
+    static final int INT16 = 0xd1;
+    static final int INT32 = 0xd2;
+    static final int INT64 = 0xd3;
+    static final int STR8 = 0xd9;
+    static final int STR16 = 0xda;
+    static final int STR32 = 0xdb;
+    static final int NEGATIVE_FIXINT = 0xe0;    // 0xe0 - 0xff, value -32 to -1
+
+    /**
+     * Maximum number of names in the table of a frame. The other names are always written in full
+     */
+    static final int MAX_KEYS = 0xffff;
+
+    /**
+     * Adapter used to write the json trees
+     */
+    private static final TypeAdapter<JsonElement> JSON = new Gson().getAdapter(JsonElement.class);
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+
+    private final DataOutputStream out = new DataOutputStream(buffer);
+
+    /**
+     * Names already written, with their index
+     */
+    private final HashMap<String, Integer> keys = new HashMap<>();
+
+    /**
+     * Name waiting for its value. Names are written with the value, so the null values can be omitted
+     */
+    private String deferredName;
+
+    public BinaryJsonWriter() {
+        super(new StringWriter(0));
+    }
+
+    /**
+     * Encode a json tree in the binary format
+     * @param json Json to encode
+     * @return Binary encoding of the json
+     */
+    public static byte[] encode(JsonElement json) {
+        BinaryJsonWriter writer = new BinaryJsonWriter();
+        try {
+            JSON.write(writer, json);
+        } catch (IOException ex) {
+
+            // The writer doesn't do io
+            throw new IllegalStateException(ex);
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * Return the bytes written so far
+     * @return Written bytes
+     */
+    public byte[] toByteArray() {
+        return buffer.toByteArray();
+    }
+
+    @Override
+    public JsonWriter beginArray() throws IOException {
+        writeDeferredName();
+        out.write(BEGIN_ARRAY);
+        return this;
+    }
+
+    @Override
+    public JsonWriter endArray() throws IOException {
+        out.write(END);
+        return this;
+    }
+
+    @Override
+    public JsonWriter beginObject() throws IOException {
+        writeDeferredName();
+        out.write(BEGIN_OBJECT);
+        return this;
+    }
+
+    @Override
+    public JsonWriter endObject() throws IOException {
+        out.write(END);
+        return this;
+    }
+
+    @Override
+    public JsonWriter name(String name) throws IOException {
+        if (name == null)
+            throw new NullPointerException("name == null");
+        if (deferredName != null)
+            throw new IllegalStateException("Name without value: " + deferredName);
+        deferredName = name;
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(String value) throws IOException {
+        if (value == null)
+            return nullValue();
+        writeDeferredName();
+        writeString(value);
+        return this;
+    }
+
+    @Override
+    public JsonWriter jsonValue(String value) throws IOException {
+        if (value == null)
+            return nullValue();
+        JSON.write(this, new JsonParser().parse(value));
+        return this;
+    }
+
+    @Override
+    public JsonWriter nullValue() throws IOException {
+        if (deferredName != null && !getSerializeNulls()) {
+
+            // Omit the name and its value
+            deferredName = null;
+            return this;
+        }
+        writeDeferredName();
+        out.write(NULL);
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(boolean value) throws IOException {
+        writeDeferredName();
+        out.write(value ? TRUE : FALSE);
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(double value) throws IOException {
+        writeDeferredName();
+        if (value == (long) value && !(value == 0 && Double.doubleToRawLongBits(value) != 0)) {
+            writeLong((long) value);
+        } else {
+            out.write(FLOAT64);
+            out.writeDouble(value);
+        }
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(long value) throws IOException {
+        writeDeferredName();
+        writeLong(value);
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(Number value) throws IOException {
+        if (value == null)
+            return nullValue();
+        if (value instanceof Double || value instanceof Float)
+            return value(value.doubleValue());
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte)
+            return value(value.longValue());
+
+        // Numbers parsed from json text, big integers and big decimals
+        BigDecimal decimal = new BigDecimal(value.toString());
+        try {
+            BigInteger integer = decimal.toBigIntegerExact();
+            if (integer.bitLength() < 64)
+                return value(integer.longValue());
+        } catch (ArithmeticException ex) {
+            // Not an integer
+        }
+        return value(decimal.doubleValue());
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private void writeDeferredName() throws IOException {
+        if (deferredName == null)
+            return;
+        String name = deferredName;
+        deferredName = null;
+
+        Integer index = keys.get(name);
+        if (index == null) {
+            if (keys.size() < MAX_KEYS)
+                keys.put(name, keys.size());
+            writeString(name);
+        } else if (index < 32) {
+            out.write(FIXKEY | index);
+        } else {
+            out.write(KEY16);
+            out.writeShort(index);
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length < 32) {
+            out.write(FIXSTR | bytes.length);
+        } else if (bytes.length <= 0xff) {
+            out.write(STR8);
+            out.write(bytes.length);
+        } else if (bytes.length <= 0xffff) {
+            out.write(STR16);
+            out.writeShort(bytes.length);
+        } else {
+            out.write(STR32);
+            out.writeInt(bytes.length);
+        }
+        out.write(bytes);
+    }
+
+    private void writeLong(long value) throws IOException {
+        if (value >= 0 && value < 128) {
+            out.write(POSITIVE_FIXINT | (int) value);
+        } else if (value < 0 && value >= -32) {
+            out.write((int) value & 0xff);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            out.write(INT8);
+            out.writeByte((int) value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            out.write(INT16);
+            out.writeShort((int) value);
+        } else if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            out.write(INT32);
+            out.writeInt((int) value);
+        } else {
+            out.write(INT64);
+            out.writeLong(value);
+        }
+    }
+}
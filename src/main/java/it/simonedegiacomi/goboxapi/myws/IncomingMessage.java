@@ -0,0 +1,233 @@
+package it.simonedegiacomi.goboxapi.myws;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Message received from the server. The envelope of the message (event name and query id) is read with a streaming
+ * reader, and the data of the query responses is handed directly to the decoder of the query, without building the
+ * json tree.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+class IncomingMessage {
+
+    /**
+     * Object that knows the decoders of the query responses
+     */
+    interface DecoderLookup {
+
+        /**
+         * Return the decoder of the data of a message
+         * @param sessionId Logical session of the message, null if the connection is not shared
+         * @param event Name of the event
+         * @param queryId Query id, null if the message is not part of a query
+         * @return Decoder of the data, or null to read the data as json tree
+         */
+        WSDecoder<?> decoderOf(String sessionId, String event, String queryId);
+    }
+
+    /**
+     * Parser used for the data without a decoder
+     */
+    private static final JsonParser parser = new JsonParser();
+
+    /**
+     * Name of the event
+     */
+    final String event;
+
+    /**
+     * Query id, null if the message is a simple event
+     */
+    final String queryId;
+
+    /**
+     * Logical session of the message, null if the connection is not shared. The messages of a batch without
+     * a session belong to the session of the batch
+     */
+    String sessionId;
+
+    /**
+     * Data of the message: decoded by the decoder of the query or a json tree
+     */
+    final Object data;
+
+    /**
+     * True if the data was converted by a decoder, false if it's a json tree
+     */
+    final boolean decoded;
+
+    /**
+     * Error thrown by the decoder, null if the data was decoded
+     */
+    final Exception error;
+
+    private IncomingMessage(String event, String queryId, String sessionId, Object data, boolean decoded,
+                            Exception error) {
+        this.event = event;
+        this.queryId = emptyToNull(queryId);
+        this.sessionId = emptyToNull(sessionId);
+        this.data = data;
+        this.decoded = decoded;
+        this.error = error;
+    }
+
+    /**
+     * Return the data as a json tree. Valid only for the messages without a decoder
+     * @return Data as json tree
+     */
+    JsonElement json() {
+        return (JsonElement) data;
+    }
+
+    /**
+     * Read a frame, adding its messages to the list. A frame contains only one message, unless it's a batch frame
+     * @param reader Reader of the frame
+     * @param lookup Lookup of the decoders
+     * @param out List to which the messages are added
+     * @throws IOException Malformed frame
+     */
+    static void read(JsonReader reader, DecoderLookup lookup, List<IncomingMessage> out) throws IOException {
+        read(reader, null, lookup, out);
+    }
+
+    /**
+     * Read a message
+     * @param reader Reader of the frame
+     * @param parentSession Session of the batch that contains this message, or null
+     * @param lookup Lookup of the decoders
+     * @param out List to which the messages are added
+     * @throws IOException Malformed frame
+     */
+    private static void read(JsonReader reader, String parentSession, DecoderLookup lookup,
+                             List<IncomingMessage> out) throws IOException {
+        String event = null, queryId = null, sessionId = null;
+        Object data = null;
+        boolean decoded = false;
+        int batchStart = -1;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("event")) {
+                event = nextString(reader);
+            } else if (name.equals("_queryId")) {
+                queryId = nextString(reader);
+            } else if (name.equals("_sessionId")) {
+                sessionId = nextString(reader);
+            } else if (name.equals("data") && MyWSClient.BATCH_EVENT.equals(event)) {
+
+                // Read the messages of the batch one by one
+                batchStart = out.size();
+                String batchSession = sessionId != null ? sessionId : parentSession;
+                reader.beginArray();
+                while (reader.hasNext())
+                    read(reader, batchSession, lookup, out);
+                reader.endArray();
+            } else if (name.equals("data")) {
+                WSDecoder<?> decoder = event == null ? null :
+                        lookup.decoderOf(sessionId != null ? sessionId : parentSession, event, queryId);
+                if (decoder == null) {
+                    data = parser.parse(reader);
+                } else {
+                    try {
+                        data = decoder.decode(reader);
+                    } catch (IOException | RuntimeException ex) {
+
+                        // The reader is in an unknown position, so the rest of the frame is lost
+                        out.add(new IncomingMessage(event, queryId, sessionId != null ? sessionId : parentSession,
+                                null, false, ex));
+                        return;
+                    }
+                    decoded = true;
+                }
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (event == null)
+            throw new IOException("Message without event");
+        if (sessionId == null)
+            sessionId = parentSession;
+
+        if (batchStart >= 0) {
+
+            // The session of the batch may come after its messages
+            for (int i = batchStart; i < out.size(); i++)
+                if (out.get(i).sessionId == null)
+                    out.get(i).sessionId = sessionId;
+            return;
+        }
+        if (decoded) {
+            out.add(new IncomingMessage(event, queryId, sessionId, data, true, null));
+            return;
+        }
+
+        // The data has no decoder, or it came before the event or the query id, so it was read as a json tree
+        read(event, queryId, sessionId, (JsonElement) data, lookup, out);
+    }
+
+    /**
+     * Add a message whose data is already parsed as json tree
+     * @param event Name of the event
+     * @param queryId Query id or null
+     * @param sessionId Session id or null
+     * @param data Data as json tree, null if missing
+     * @param lookup Lookup of the decoders
+     * @param out List to which the messages are added
+     */
+    private static void read(String event, String queryId, String sessionId, JsonElement data, DecoderLookup lookup,
+                             List<IncomingMessage> out) {
+        if (MyWSClient.BATCH_EVENT.equals(event)) {
+            for (JsonElement element : data.getAsJsonArray()) {
+                JsonObject message = element.getAsJsonObject();
+                String messageSession = stringOf(message.get("_sessionId"));
+                read(stringOf(message.get("event")), stringOf(message.get("_queryId")),
+                        messageSession != null ? messageSession : sessionId, message.get("data"), lookup, out);
+            }
+            return;
+        }
+        WSDecoder<?> decoder = data == null ? null : lookup.decoderOf(sessionId, event, queryId);
+        if (decoder == null) {
+            out.add(new IncomingMessage(event, queryId, sessionId, data, false, null));
+            return;
+        }
+        try {
+            out.add(new IncomingMessage(event, queryId, sessionId, decoder.decode(data), true, null));
+        } catch (IOException | RuntimeException ex) {
+            out.add(new IncomingMessage(event, queryId, sessionId, null, false, ex));
+        }
+    }
+
+    private static String emptyToNull(String value) {
+        return value != null && value.length() > 0 ? value : null;
+    }
+
+    private static String stringOf(JsonElement element) {
+        return element == null || element.isJsonNull() ? null : element.getAsString();
+    }
+
+    /**
+     * Read a string value that can also be a number or null
+     * @param reader Reader
+     * @return Value as string, or null
+     * @throws IOException Malformed value
+     */
+    private static String nextString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+}
@@ -1,22 +1,35 @@
 package it.simonedegiacomi.goboxapi.myws;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
 import com.neovisionaries.ws.client.*;
 import it.simonedegiacomi.goboxapi.myws.annotations.WSEvent;
 import it.simonedegiacomi.goboxapi.myws.annotations.WSQuery;
+import it.simonedegiacomi.goboxapi.utils.VirtualThreads;
 import org.apache.log4j.Logger;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.lang.annotation.IncompleteAnnotationException;
-import java.lang.reflect.Method;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
 
 /**
  * This is an implementation of handlers socket based onEvent
@@ -29,298 +42,1462 @@ import java.util.concurrent.*;
  */
 public class MyWSClient {
 
-    // TODO: Check if used
+    /**
+     * Default maximum interval (in milliseconds) between two pings, used while the connection is healthy
+     */
     public static final int DEFAULT_PING_INTERVAL = 30 * 1000;
 
     /**
-     * Logger of the class
+     * Number of retransmission timeouts under which the default query timeout is never set, so the queries
+     * don't fail only because the link is slow
+     */
+    public static final int QUERY_TIMEOUT_RTOS = 8;
+
+    /**
+     * Default time (in milliseconds) after which a query without response fails
+     */
+    public static final long DEFAULT_QUERY_TIMEOUT = 30 * 1000;
+
+    /**
+     * Interval (in milliseconds) between two scans of the pending queries looking for the expired ones
+     */
+    public static final long REAPER_INTERVAL = 1000;
+
+    /**
+     * Name of the event of the frames that contain many messages
+     */
+    public static final String BATCH_EVENT = "batch";
+
+    /**
+     * Header of the handshake used to negotiate the optional features of the connection
+     */
+    public static final String FEATURES_HEADER = "X-GoBox-Features";
+
+    /**
+     * Feature of the binary frames
+     */
+    public static final String BINARY_FEATURE = "binary";
+
+    /**
+     * Feature of the batch frames
+     */
+    public static final String BATCH_FEATURE = "batch";
+
+    /**
+     * Feature of the compressed frames
+     */
+    public static final String DEFLATE_FEATURE = "deflate";
+
+    /**
+     * Events used to open and close the logical sessions on a shared connection
+     */
+    public static final String OPEN_SESSION_EVENT = "openSession";
+    public static final String CLOSE_SESSION_EVENT = "closeSession";
+
+    /**
+     * Default number of stripes of the dispatcher of the incoming messages
+     */
+    public static final int DEFAULT_DISPATCH_STRIPES = 4 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Default maximum number of incoming messages waiting to be handled
+     */
+    public static final int DEFAULT_DISPATCH_CAPACITY = 1024;
+
+    /**
+     * Logger of the class
+     */
+    private static final Logger log = Logger.getLogger(MyWSClient.class.getName());
+
+    /**
+     * Websocket factory
+     */
+    private static final WebSocketFactory factory = new WebSocketFactory();
+
+    /**
+     * Time (in seconds) after which an idle thread of the default executor of a client is stopped
+     */
+    private static final long DEFAULT_EXECUTOR_KEEP_ALIVE = 60;
+
+    /**
+     * Scheduler shared by all the clients, used to run the reaper of the expired queries
+     */
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("myws-scheduler-%d").build());
+
+    /**
+     * Web Socket connection
+     */
+    private final WebSocket server;
+
+    /**
+     * Status of the connection
+     */
+    private boolean connected = false;
+
+    /**
+     * True if the binary frames were requested to the server
+     */
+    private boolean binaryRequested = false;
+
+    /**
+     * True if the server accepted the binary frames
+     */
+    private volatile boolean binaryFrames = false;
+
+    /**
+     * Compression requested to the server, null if not requested
+     */
+    private WSCompression compressionRequested;
+
+    /**
+     * Compression used in the current connection, null if the server didn't accept it
+     */
+    private volatile WSCompression compression;
+
+    /**
+     * Executor that runs the handlers of the incoming messages
+     */
+    private final AbstractExecutorService executor;
+
+    /**
+     * True if the executor was created by this client, so it's shut down with the connection
+     */
+    private boolean ownsExecutor = false;
+
+    /**
+     * Registry of the events listeners and of the handlers of the queries received. Do not
+     * confuse the query handlers with the 'queryResponses': that map contains
+     * the listener for the RESPONSE of the query MADE, not RECEIVED.
+     */
+    private final WSHandlerRegistry handlers = new WSHandlerRegistry();
+
+    /**
+     * This map contains the listener for the pending request made, Do not
+     * confuse this map with the 'queryAnswer': The QueryAnswer ANSWER the
+     * incoming query.
+     * This map is written by the threads that make the queries and read by the executor
+     * threads that dispatch the responses, so it needs to be a concurrent map.
+     * Association:
+     * Query id of a made query => Pending query, with the future to complete with the response
+     */
+    private final ConcurrentHashMap<Long, PendingQuery<?>> queryResponses;
+
+    /**
+     * Generator of the query ids. Ids are unique for the lifetime of this client
+     */
+    private final AtomicLong queryIds = new AtomicLong();
+
+    /**
+     * Number of queries failed because expired
+     */
+    private final AtomicLong timedOutQueries = new AtomicLong();
+
+    /**
+     * Heartbeat of the connection, null for the logical sessions
+     */
+    private final WSHeartbeat heartbeat;
+
+    /**
+     * Metrics of the connection, shared by the logical sessions
+     */
+    private final WSMetrics metrics;
+
+    /**
+     * Timeout (in milliseconds) of the queries made without specifying one
+     */
+    private volatile long defaultQueryTimeout = DEFAULT_QUERY_TIMEOUT;
+
+    /**
+     * Scheduled execution of the reaper, null if the client is not connected
+     */
+    private ScheduledFuture<?> reaper;
+
+    /**
+     * Batcher of the queries made, null if the queries are sent one by one
+     */
+    private volatile QueryBatcher batcher;
+
+    /**
+     * Map that contains the ordering keys of the events.
+     * Association:
+     * Name of the event => Ordering key of the event
+     */
+    private final ConcurrentHashMap<String, WSOrderingKey> orderingKeys;
+
+    /**
+     * Priorities of the queries and of the events.
+     * Name of the query or event => Priority
+     */
+    private final ConcurrentHashMap<String, WSPriority> priorities = new ConcurrentHashMap<>();
+
+    /**
+     * Dispatcher of the incoming messages
+     */
+    private final WSDispatcher dispatcher;
+
+    /**
+     * Queue of the outgoing messages, null for the logical sessions, that use the queue of their connection
+     */
+    private final WSWriteQueue writeQueue;
+
+    /**
+     * Single thread that drains the write queue. It never runs the handlers, so a slow or blocked handler can't
+     * delay the outgoing messages. Null for the logical sessions
+     */
+    private final ThreadPoolExecutor writer;
+
+    /**
+     * Physical connection used by this logical session, null if this client has its own connection
+     */
+    private final MyWSClient physical;
+
+    /**
+     * Id of this logical session, null if this client has its own connection
+     */
+    private final String sessionId;
+
+    /**
+     * Logical sessions that share this connection.
+     * Association:
+     * Session id => Client of the logical session
+     */
+    private final ConcurrentHashMap<String, MyWSClient> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * Sessions created on this connection and not yet opened, counted as sessions of this connection so the
+     * sessions created together don't all pick the same connection
+     */
+    private final AtomicInteger pendingSessions = new AtomicInteger();
+
+    /**
+     * True while this logical session holds a slot among the pending sessions of its connection
+     */
+    private final AtomicBoolean reserved = new AtomicBoolean();
+
+    /**
+     * Headers of the logical session, sent to the server when the session is opened
+     */
+    private final Map<String, String> sessionHeaders = new ConcurrentHashMap<>();
+
+    /**
+     * True once the physical connection has been started, since a connection can't be reopened
+     */
+    private boolean started = false;
+
+    /**
+     * True when the physical connection is closed
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Lookup of the decoders used while reading the frames: the data of a query response is decoded by the
+     * decoder of the pending query. The query is not removed here, but only when the response is dispatched
+     */
+    private final IncomingMessage.DecoderLookup decoders = new IncomingMessage.DecoderLookup() {
+        @Override
+        public WSDecoder<?> decoderOf(String sessionId, String event, String queryId) {
+
+            // The responses of a logical session are decoded by the decoders of the session
+            if (sessionId != null) {
+                MyWSClient session = sessions.get(sessionId);
+                return session == null ? null : session.decoders.decoderOf(null, event, queryId);
+            }
+            if (queryId == null || !event.equals("queryResponse"))
+                return null;
+            try {
+                PendingQuery<?> pending = queryResponses.get(Long.parseLong(queryId));
+                return pending == null ? null : pending.decoder;
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+    };
+
+    /**
+     * Create a new client without connecting to the sever. The handlers of the incoming messages run on a pool
+     * of this client (see {@link #newDefaultExecutor()}), shut down when the connection is closed
+     *
+     * @param uri URI of the server
+     * @throws IOException Error while creating the ws socket with the websocket factory
+     */
+    public MyWSClient (URI uri) throws IOException {
+        this(uri, newDefaultExecutor());
+        ownsExecutor = true;
+    }
+
+    /**
+     * Create a new client without connecting to the sever
+     *
+     * @param uri URI of the server
+     * @param ex Executor to use.
+     * @throws IOException Error while creating the ws socket with the websocket factory
+     */
+    public MyWSClient(URI uri, AbstractExecutorService ex) throws IOException {
+        this(uri, ex, DEFAULT_DISPATCH_STRIPES, DEFAULT_DISPATCH_CAPACITY);
+    }
+
+    /**
+     * Create a new client without connecting to the sever
+     *
+     * @param uri URI of the server
+     * @param ex Executor that runs the handlers of the incoming messages
+     * @param stripes Number of stripes of the dispatcher of the incoming messages
+     * @param capacity Maximum number of incoming messages waiting to be handled
+     * @throws IOException Error while creating the ws socket with the websocket factory
+     */
+    public MyWSClient(URI uri, AbstractExecutorService ex, int stripes, int capacity) throws IOException {
+        this.executor = ex;
+        this.dispatcher = new WSDispatcher(ex, stripes, capacity);
+
+        // The reading thread is never paused while a query waits for its response
+        dispatcher.setDemand(new WSDispatcher.Demand() {
+            @Override
+            public boolean isWaiting() {
+                return hasPendingQueries();
+            }
+        });
+        this.orderingKeys = new ConcurrentHashMap<>();
+        priorities.put(OPEN_SESSION_EVENT, WSPriority.CONTROL);
+        priorities.put(CLOSE_SESSION_EVENT, WSPriority.CONTROL);
+        this.physical = null;
+        this.sessionId = null;
+        this.metrics = new WSMetrics();
+        this.heartbeat = new WSHeartbeat(scheduler, new WSHeartbeat.Pinger() {
+            @Override
+            public void ping(byte[] payload) {
+                server.sendPing(payload);
+            }
+
+            @Override
+            public void dead() {
+                log.warn("Server not responding, closing the connection");
+
+                // The closing handshake would wait for the dead peer, so close the socket directly
+                try {
+                    server.getSocket().close();
+                } catch (IOException ex) {
+                    log.warn(ex.toString(), ex);
+                }
+            }
+
+            @Override
+            public boolean isBlocked() {
+                return dispatcher.isBlocked();
+            }
+        });
+
+        // Initialize the map
+        queryResponses = new ConcurrentHashMap<>();
+
+        writer = new ThreadPoolExecutor(1, 1, DEFAULT_EXECUTOR_KEEP_ALIVE, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("myws-writer-%d").build());
+        writer.allowCoreThreadTimeOut(true);
+        writeQueue = new WSWriteQueue(new WSWriteQueue.Writer() {
+            @Override
+            public void write(JsonObject frame) {
+                writeFrame(frame);
+            }
+
+            @Override
+            public void failed(JsonObject frame, RuntimeException cause) {
+                onWriteFailed(frame, cause);
+            }
+        }, writer, scheduler);
+
+        server = factory.createSocket(uri);
+
+        // The pings are sent by the heartbeat, that measures the round trip time
+        server.setPingInterval(0);
+        server.addHeader(FEATURES_HEADER, BATCH_FEATURE);
+        server.addListener(new WebSocketAdapter() {
+            @Override
+            public void onFrame(WebSocket websocket, WebSocketFrame frame) {
+
+                // Any frame tells the heartbeat that the server is alive
+                heartbeat.onReceived();
+                if (frame.isDataFrame())
+                    metrics.frameReceived(frame.getPayloadLength());
+            }
+
+            @Override
+            public void onFrameSent(WebSocket websocket, WebSocketFrame frame) {
+                if (frame.isDataFrame())
+                    metrics.frameSent(frame.getPayloadLength());
+            }
+
+            @Override
+            public void onPongFrame(WebSocket websocket, WebSocketFrame frame) {
+                heartbeat.onPong(frame.getPayload());
+            }
+
+            @Override
+            public void onTextMessage(WebSocket websocket, String message) throws Exception {
+                readFrame(new JsonReader(new StringReader(message)));
+            }
+
+            @Override
+            public void onBinaryMessage(WebSocket websocket, byte[] binary) throws Exception {
+                if (!WSCompression.isCompressed(binary)) {
+                    readFrame(new BinaryJsonReader(binary));
+                    return;
+                }
+                WSCompression current = compressionRequested;
+                if (current == null) {
+                    log.warn("Compressed frame received, but the compression wasn't requested");
+                    return;
+                }
+                byte[] message;
+                try {
+                    message = current.decompress(binary);
+                } catch (DataFormatException ex) {
+                    log.warn("Malformed compressed frame received: " + ex.toString());
+                    return;
+                }
+
+                // The compressed message can be json text or binary json
+                if (message.length > 0 && message[0] == '{') {
+                    readFrame(new JsonReader(new InputStreamReader(new ByteArrayInputStream(message),
+                            StandardCharsets.UTF_8)));
+                } else {
+                    readFrame(new BinaryJsonReader(message));
+                }
+            }
+
+            @Override
+            public void onConnected(WebSocket ws, Map<String, List<String>> headers) {
+                log.info("Websocket connection established");
+                connected = true;
+                heartbeat.start();
+
+                // Use the binary frames only if the server accepted them
+                binaryFrames = binaryRequested && hasFeature(headers, BINARY_FEATURE);
+                if (binaryRequested)
+                    log.info(binaryFrames ? "Using binary frames" : "Server doesn't support binary frames");
+                compression = hasFeature(headers, DEFLATE_FEATURE) ? compressionRequested : null;
+
+                // Coalesce the outgoing messages if the server understands the batch frames
+                writeQueue.setCoalescing(batcher != null || hasFeature(headers, BATCH_FEATURE));
+                if (compressionRequested != null)
+                    log.info(compression != null ? "Using compressed frames" : "Server doesn't support compression");
+
+                // If there are event listeners for the open event, call them
+                handlers.fire("open", null);
+            }
+
+
+            @Override
+            public void onError(WebSocket ws, WebSocketException ex) {
+                connected = false;
+                if (connected)
+                    handlers.fire("error", null);
+            }
+
+            @Override
+            public void onDisconnected(WebSocket websocket, WebSocketFrame serverCloseFrame, WebSocketFrame clientCloseFrame, boolean closedByServer) {
+                connected = false;
+                closed = true;
+                binaryFrames = false;
+                compression = null;
+
+                // A client is never reconnected, so the native memory of the compression can be freed
+                if (compressionRequested != null)
+                    compressionRequested.release();
+                heartbeat.stop();
+                stopReaper();
+
+                // All the logical sessions on this connection are lost
+                for (MyWSClient session : sessions.values())
+                    session.onSessionClosed();
+
+                // No response will arrive for the pending queries
+                failPendingQueries(new WSException("Connection closed"));
+
+                // The handlers already dispatched still run, then the threads stop
+                if (ownsExecutor)
+                    executor.shutdown();
+                writer.shutdown();
+
+                handlers.fire("close", null);
+            }
+        });
+
+    }
+
+    /**
+     * Create a new logical session that uses the connection of another client. The session holds a slot on the
+     * connection from now, and is opened by {@link #connect()}
+     *
+     * @param physical  Client with the physical connection
+     * @param sessionId Id of the session, unique on the physical connection
+     * @param ex        Executor that runs the handlers of the incoming messages
+     * @param capacity  Maximum number of incoming messages waiting to be handled
+     */
+    MyWSClient(MyWSClient physical, String sessionId, AbstractExecutorService ex, int capacity) {
+        this.executor = ex;
+        this.dispatcher = new WSDispatcher(ex, DEFAULT_DISPATCH_STRIPES, capacity);
+        this.orderingKeys = new ConcurrentHashMap<>();
+        priorities.put(OPEN_SESSION_EVENT, WSPriority.CONTROL);
+        priorities.put(CLOSE_SESSION_EVENT, WSPriority.CONTROL);
+        this.physical = physical;
+        this.sessionId = sessionId;
+        physical.pendingSessions.incrementAndGet();
+        reserved.set(true);
+        this.metrics = physical.metrics;
+        this.heartbeat = null;
+        this.server = null;
+        this.writeQueue = null;
+        this.writer = null;
+        queryResponses = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Create the executor of the handlers used by a client created without specifying one. Every client has its
+     * own, so the slow handlers of a client don't delay the messages of the others. It has up to a thread for each
+     * core, stopped when idle, and its queue doesn't need a bound because the dispatcher bounds its own messages.
+     * With the virtual threads enabled (see {@link VirtualThreads}) every stripe runs on its own virtual thread
+     * instead, so a handler that blocks doesn't take a core away from the other stripes
+     *
+     * @return New executor
+     */
+    static AbstractExecutorService newDefaultExecutor() {
+        if (VirtualThreads.isEnabled())
+            return VirtualThreads.newExecutor("myws-dispatcher-");
+        int threads = Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, DEFAULT_EXECUTOR_KEEP_ALIVE,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("myws-dispatcher-%d").build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Read the messages of a frame and dispatch them. The frame is parsed here, on the reading thread,
+     * because the key used to dispatch a message depends on its content. If the handlers are too slow,
+     * the dispatcher pauses this thread, so no other frame is read until they catch up, unless a query
+     * waits for its response. The messages of the logical sessions never pause this thread, or a slow session
+     * would stop all the others: a session that can't keep up is closed instead
+     *
+     * @param reader Reader of the frame, text or binary
+     * @throws InterruptedException Interrupted while waiting for space in the dispatcher
+     */
+    private void readFrame(JsonReader reader) throws InterruptedException {
+        List<IncomingMessage> messages = new ArrayList<>(1);
+        try {
+            IncomingMessage.read(reader, decoders, messages);
+        } catch (IOException | RuntimeException ex) {
+            log.warn("Malformed message received: " + ex.toString());
+        }
+        for (IncomingMessage incoming : messages) {
+            if (incoming.sessionId == null) {
+                dispatch(incoming);
+                continue;
+            }
+
+            // Route the message to its logical session
+            MyWSClient session = sessions.get(incoming.sessionId);
+            if (session == null) {
+                log.warn("Message of an unknown session received: " + incoming.sessionId);
+            } else if (!session.offer(incoming)) {
+                log.warn("Session " + incoming.sessionId + " can't keep up with its messages, closing it");
+                session.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Check if the server listed a feature in the handshake response
+     *
+     * @param headers Headers of the handshake response
+     * @param feature Name of the feature
+     * @return True if the server supports the feature
+     */
+    private static boolean hasFeature(Map<String, List<String>> headers, String feature) {
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (header.getKey() == null || !header.getKey().equalsIgnoreCase(FEATURES_HEADER))
+                continue;
+            for (String value : header.getValue())
+                for (String token : value.split(","))
+                    if (token.trim().equalsIgnoreCase(feature))
+                        return true;
+        }
+        return false;
+    }
+
+    /**
+     * Send a message to the server, as binary frame if the server accepted them, as text frame otherwise.
+     * If the server accepted the compression, the messages bigger than the threshold are compressed
+     *
+     * @param json Message to send
+     */
+    private void send(JsonObject json) {
+        send(json, WSPriority.INTERACTIVE);
+    }
+
+    /**
+     * Send a message to the server, before the queued messages with a lower priority
+     *
+     * @param json     Message to send
+     * @param priority Priority of the message
+     */
+    private void send(JsonObject json, WSPriority priority) {
+        if (physical != null) {
+
+            // Tag the message with the session and send it over the shared connection
+            json.addProperty("_sessionId", sessionId);
+            physical.send(json, priority);
+            return;
+        }
+        writeQueue.add(json, priority);
+    }
+
+    /**
+     * Write a frame on the socket. Called only by the writer of the write queue
+     *
+     * @param json Message or batch of messages to write
+     */
+    private void writeFrame(JsonObject json) {
+        WSCompression currentCompression = compression;
+        if (binaryFrames) {
+            byte[] binary = BinaryJsonWriter.encode(json);
+            byte[] compressed = currentCompression != null && currentCompression.shouldCompress(binary.length) ?
+                    currentCompression.compress(binary) : null;
+            server.sendBinary(compressed != null ? compressed : binary);
+            return;
+        }
+        String text = json.toString();
+
+        // The length of the string is a good enough estimate of the size of the message
+        if (currentCompression != null && currentCompression.shouldCompress(text.length())) {
+            byte[] compressed = currentCompression.compress(text.getBytes(StandardCharsets.UTF_8));
+            if (compressed != null) {
+                server.sendBinary(compressed);
+                return;
+            }
+        }
+        server.sendText(text);
+    }
+
+    /**
+     * Fail the queries of a frame that can't be written, so they don't wait for a response that will never arrive.
+     * The queries of the logical sessions are failed in their sessions
+     *
+     * @param frame Message or batch of messages not written
+     * @param cause Error of the write
+     */
+    private void onWriteFailed(JsonObject frame, RuntimeException cause) {
+        WSException error = new WSException("Write failed: " + cause.toString());
+        JsonElement event = frame.get("event");
+        if (event == null || !event.isJsonPrimitive() || !BATCH_EVENT.equals(event.getAsString())) {
+            failQueryOf(frame, null, error);
+            return;
+        }
+
+        // The messages of a batch without a session belong to the session of the batch
+        JsonElement batchSession = frame.get("_sessionId");
+        for (JsonElement message : frame.getAsJsonArray("data"))
+            failQueryOf(message.getAsJsonObject(), batchSession, error);
+    }
+
+    /**
+     * Fail the pending query of a message not written, if the message is a query
+     *
+     * @param message      Message not written
+     * @param batchSession Session of the batch of the message, null if none
+     * @param cause        Error of the write
+     */
+    private void failQueryOf(JsonObject message, JsonElement batchSession, WSException cause) {
+        JsonElement queryId = message.get("_queryId");
+        if (queryId == null || !queryId.isJsonPrimitive())
+            return;
+        JsonElement session = message.has("_sessionId") ? message.get("_sessionId") : batchSession;
+        MyWSClient owner = session == null || !session.isJsonPrimitive() ? this : sessions.get(session.getAsString());
+        if (owner == null)
+            return;
+        PendingQuery<?> pending = owner.removePendingQuery(queryId.getAsString());
+        if (pending != null) {
+            metrics.queryFailed();
+            pending.future.setException(cause);
+        }
+    }
+
+    /**
+     * Dispatch a message received from the server to the thread that will handle it. Events with the same
+     * ordering key and responses of the same query are handled in order.
+     *
+     * @param message Message received
+     * @throws InterruptedException Interrupted while waiting for space in the dispatcher
+     */
+    private void dispatch(final IncomingMessage message) throws InterruptedException {
+
+        // The responses complete their futures on the reading thread, so they never wait behind the events
+        if (isQueryResponse(message)) {
+            onQueryResponse(message);
+            return;
+        }
+        dispatcher.dispatch(getPriority(message.event), keyOf(message), new Runnable() {
+            @Override
+            public void run() {
+                onMessage(message);
+            }
+        });
+    }
+
+    /**
+     * Dispatch a message received from the server only if the dispatcher has space for it, never blocking
+     *
+     * @param message Message received
+     * @return False if the dispatcher is full and the message was not dispatched
+     */
+    private boolean offer(final IncomingMessage message) {
+        if (isQueryResponse(message)) {
+            onQueryResponse(message);
+            return true;
+        }
+        return dispatcher.offer(getPriority(message.event), keyOf(message), new Runnable() {
+            @Override
+            public void run() {
+                onMessage(message);
+            }
+        });
+    }
+
+    private static boolean isQueryResponse(IncomingMessage message) {
+        return message.queryId != null && message.event.equals("queryResponse");
+    }
+
+    /**
+     * Return the key that orders a message with the others
+     *
+     * @param message Message received
+     * @return Key of the message
+     */
+    private Object keyOf(IncomingMessage message) {
+
+        // Queries are independent of each other
+        if (message.queryId != null)
+            return message.queryId;
+
+        // Events are ordered by their key, or by their name if they don't have a key
+        WSOrderingKey orderingKey = orderingKeys.get(message.event);
+        Object key = orderingKey == null ? null : orderingKey.keyOf(message.json());
+        return key == null ? message.event : key;
+    }
+
+    /**
+     * Handle a message received from the server
+     *
+     * @param message Message received
+     */
+    private void onMessage(IncomingMessage message) {
+        String event = message.event;
+
+        // If the message has not the queryId parameter
+        // is an simple event
+        if (message.queryId == null) {
+            if (!handlers.fire(event, message.json()))
+                log.warn("Received unknown event: " + event);
+            return;
+        }
+
+        // get the _queryId
+        String queryId = message.queryId;
+
+        // It's a query made to this program, so
+        // find the object that will answer this query.
+
+        WSQueryHandler handler = handlers.queryHandler(event);
+        if (handler == null) {
+            log.warn("Unknown query received: " + event);
+            return;
+        }
+
+        // Prepare the response with teh same query Id
+        JsonObject response = new JsonObject();
+        response.addProperty("event", "queryResponse");
+        response.addProperty("_queryId", queryId);
+
+        // Call the handler
+        try {
+            JsonElement answer = handler.onQuery(message.json());
+            response.add("data", answer);
+        } catch (Exception ex) {
+            log.warn("WS Query Handler Exception: " + ex.toString(), ex);
+            JsonObject errorAnswer = new JsonObject();
+            errorAnswer.addProperty("error", ex.toString());
+            response.add("data", errorAnswer);
+        }
+        send(response, getPriority(event));
+    }
+
+    /**
+     * Complete the pending query of a response. Called by the reading thread, so the future listeners that run in
+     * the completing thread must be short
+     *
+     * @param message Response received
+     */
+    private void onQueryResponse(IncomingMessage message) {
+
+        // Get and remove the pending query
+        PendingQuery<?> pending = removePendingQuery(message.queryId);
+        if (pending == null) {
+            log.warn("Unknown query response received");
+            return;
+        }
+
+        if (message.error != null) {
+            metrics.queryFailed();
+            pending.future.setException(new WSException("Malformed response of the query " + pending.name +
+                    ": " + message.error.toString()));
+        } else if (!message.decoded && message.data != null) {
+
+            // The response was read before knowing its query, so it's still a json tree
+            Object data;
+            try {
+                data = pending.decoder.decode(message.json());
+            } catch (IOException | RuntimeException ex) {
+                metrics.queryFailed();
+                pending.future.setException(new WSException("Malformed response of the query " + pending.name +
+                        ": " + ex.toString()));
+                return;
+            }
+            metrics.queryCompleted(pending.name, System.nanoTime() - pending.started);
+            pending.complete(data);
+        } else {
+            metrics.queryCompleted(pending.name, System.nanoTime() - pending.started);
+            pending.complete(message.data);
+        }
+    }
+
+    /**
+     * This static method allows you to set a proxy that will be used
+     * for the new instances of this class
+     *
+     * @param host IP of the proxy
+     * @param port Port of the proxy
+     */
+    public static void setProxy(String host, int port) {
+        ProxySettings proxy = factory.getProxySettings();
+        proxy.setHost(host);
+        proxy.setPort(port);
+    }
+
+    /**
+     * Start the connection to the server
+     *
+     * @throws WSException Error while connecting to the server
+     */
+    public void connect() throws WSException {
+        if (physical != null) {
+            openSession();
+            return;
+        }
+        try {
+            synchronized (this) {
+                started = true;
+            }
+            server.connect();
+            startReaper();
+        } catch (WebSocketException ex) {
+            closed = true;
+            throw new WSException(ex.toString());
+        }
+    }
+
+    /**
+     * Open this logical session on the physical connection, connecting it if it's not connected yet
+     *
+     * @throws WSException The connection or the session can't be opened
+     */
+    private void openSession() throws WSException {
+        try {
+            physical.connectShared();
+        } catch (WSException ex) {
+            releaseSlot();
+            throw ex;
+        }
+        physical.sessions.put(sessionId, this);
+        releaseSlot();
+        startReaper();
+
+        // Authorize the session with its headers
+        JsonObject headers = new JsonObject();
+        for (Map.Entry<String, String> header : sessionHeaders.entrySet())
+            headers.addProperty(header.getKey(), header.getValue());
+        JsonObject request = new JsonObject();
+        request.add("headers", headers);
+        try {
+            JsonElement response = makeQueryAsync(OPEN_SESSION_EVENT, request).get();
+            JsonObject result = response != null && response.isJsonObject() ? response.getAsJsonObject() : null;
+            if (result != null && result.has("success") && !result.get("success").getAsBoolean()) {
+                String error = result.has("error") ? result.get("error").getAsString() : "session refused";
+                throw new WSException(error);
+            }
+        } catch (InterruptedException | ExecutionException | WSException ex) {
+            physical.sessions.remove(sessionId);
+            stopReaper();
+            throw ex instanceof WSException ? (WSException) ex :
+                    new WSException("Session not opened: " + ex.toString());
+        }
+        connected = true;
+
+        handlers.fire("open", null);
+    }
+
+    /**
+     * Connect the physical connection shared by many sessions, if it's not connected yet
+     *
+     * @throws WSException Error while connecting, or connection already closed
+     */
+    private synchronized void connectShared() throws WSException {
+        if (closed)
+            throw new WSException("Connection closed");
+        if (!started)
+            connect();
+    }
+
+    /**
+     * Give back the slot held on the connection since the session was created. From now the session is counted
+     * only if it's open
+     */
+    private void releaseSlot() {
+        if (reserved.compareAndSet(true, false))
+            physical.pendingSessions.decrementAndGet();
+    }
+
+    /**
+     * Called when the logical session is closed, by the client or because the physical connection is lost
+     */
+    private void onSessionClosed() {
+        releaseSlot();
+        boolean wasConnected = connected;
+        connected = false;
+        physical.sessions.remove(sessionId, this);
+        stopReaper();
+
+        // No response will arrive for the pending queries
+        failPendingQueries(new WSException("Connection closed"));
+
+        if (wasConnected)
+            handlers.fire("close", null);
+    }
+
+    /**
+     * Check if the physical connection is closed or failed, so it can't be used anymore
+     *
+     * @return True if the connection is closed
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Return the number of logical sessions that use this connection, the ones created and not yet opened included
+     *
+     * @return Number of sessions
+     */
+    int getSessionCount() {
+        return sessions.size() + pendingSessions.get();
+    }
+
+    /**
+     * Return the id of the logical session
+     *
+     * @return Session id, or null if this client has its own connection
+     */
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * Add a new http header, useful to set the Authorization header
+     *
+     * @param header Name of the header
+     * @param value  Value of the header
+     */
+    public void addHttpHeader(String header, String value) {
+        if (physical != null) {
+
+            // The headers of a logical session are sent when the session is opened
+            sessionHeaders.put(header, value);
+            return;
+        }
+        server.addHeader(header, value);
+    }
+
+    /**
+     * Ask the server to use the binary frames (see {@link BinaryJsonWriter}) instead of the json text frames.
+     * The binary frames are used only if the server accepts them in the handshake response, otherwise the
+     * client keeps using the text frames. Must be called before {@link #connect()}.
+     * A logical session uses the format of its physical connection, so this has no effect on it
+     */
+    public void requestBinaryFrames() {
+        if (binaryRequested || physical != null)
+            return;
+        binaryRequested = true;
+        server.addHeader(FEATURES_HEADER, BINARY_FEATURE);
+    }
+
+    /**
+     * Ask the server to compress the messages bigger than the threshold. The compression is used only if the
+     * server accepts it in the handshake response. Must be called before {@link #connect()}.
+     * A logical session uses the compression of its physical connection, so this has no effect on it
+     *
+     * @param threshold Size (in bytes) under which the messages are not compressed
+     */
+    public void requestCompression(int threshold) {
+        if (compressionRequested != null || physical != null)
+            return;
+        compressionRequested = new WSCompression(threshold);
+        server.addHeader(FEATURES_HEADER, DEFLATE_FEATURE);
+    }
+
+    /**
+     * Return the statistics of the compression, like the compression ratio and the cpu time spent compressing
+     *
+     * @return Compression or null if the compression was not requested
      */
-    private static final Logger log = Logger.getLogger(MyWSClient.class.getName());
+    public WSCompression getCompression() {
+        if (physical != null)
+            return physical.getCompression();
+        return compressionRequested;
+    }
 
     /**
-     * Websocket factory
+     * Check if the binary frames are used in the current connection
+     *
+     * @return True if the messages are sent as binary frames
      */
-    private static final WebSocketFactory factory = new WebSocketFactory();
+    public boolean isUsingBinaryFrames() {
+        if (physical != null)
+            return physical.isUsingBinaryFrames();
+        return binaryFrames;
+    }
 
     /**
-     * Web Socket connection
+     * This method allows you to register a new event listener. The listener replaces the one registered
+     * before with this method; to add more listeners to the same event use {@link #addHandlers(Object)}
+     *
+     * @param event    Name of the event.
+     * @param listener Listener of this event
      */
-    private final WebSocket server;
+    public void onEvent(String event, WSEventListener listener) {
+        handlers.setListener(event, listener);
+    }
 
     /**
-     * Status of the connection
+     * Set the priority of the queries and of the events with a name. The responses of a query have the priority
+     * of the query. Without a priority, messages are {@link WSPriority#INTERACTIVE}
+     *
+     * @param name     Name of the query or of the event
+     * @param priority Priority of the messages
      */
-    private boolean connected = false;
+    public void setPriority(String name, WSPriority priority) {
+        priorities.put(name, priority);
+    }
 
     /**
-     * Parser for incoming json
+     * Return the priority of the queries and events with a name
+     *
+     * @param name Name of the query or of the event
+     * @return Priority of the messages
      */
-    private final JsonParser parser = new JsonParser();
+    public WSPriority getPriority(String name) {
+        WSPriority priority = name == null ? null : priorities.get(name);
+        return priority != null ? priority : WSPriority.INTERACTIVE;
+    }
 
     /**
-     * Map that contains the events listener. A event is formed by a event
-     * name and his data. The listener is called when a event with a speicified
-     * name is received
-     * The association:
-     * Name of the event => Listener for this event
+     * Set the ordering key of an event. The events with the same key are handled in the order in which they are
+     * received, while events with different keys can be handled in parallel. Without an ordering key, all the
+     * events with the same name are handled in order.
+     *
+     * @param event Name of the event
+     * @param key   Function that returns the key of an event
      */
-    private final HashMap<String, WSEventListener> events;
+    public void setOrderingKey(String event, WSOrderingKey key) {
+        orderingKeys.put(event, key);
+    }
 
     /**
-     * Map that contains the listeners of query received. Do not
-     * confuse this map with the 'queryResponses':  that map contains
-     * the listener for the RESPONSE of the query MADE, not RECEIVED.
-     * Association:
-     * Name of the query => Listener that answer this query
+     * Register an event handler, like 'onEvent', but you don't need to specify the
+     * event name. To make this work you need to put the WSEvent notation before the 'onEvent'
+     * method.
+     *
+     * @param handler Handler to register.
      */
-    private final HashMap<String, WSQueryHandler> queryAnswers;
+    public void addEventHandler(WSEventListener handler) {
+        if (handlers.register(handler) == 0)
+            throw new IncompleteAnnotationException(WSEvent.class, "Annotation not found");
+    }
 
     /**
-     * This map contains the listener for the pending request made, Do not
-     * confuse this map with the 'queryAnswer': The QueryAnswer ANSWER the
-     * incoming query.
-     * Association:
-     * Query id of a made query => Response listener fot this query
+     * This method allows you to register an method that answer a response
+     *
+     * @param queryName Name of the query that the method will answer
+     * @param listener  Listener that will call to answer the query
      */
-    private final HashMap<String, WSQueryResponseListener> queryResponses;
+    public void onQuery(String queryName, WSQueryHandler listener) {
+        handlers.setQueryHandler(queryName, listener);
+    }
+
+    public void addQueryHandler(WSQueryHandler handler) {
+        if (handlers.register(handler) == 0)
+            throw new IncompleteAnnotationException(WSQuery.class, "Annotation not found");
+    }
 
     /**
-     * Executor used to use the java FutureTask
+     * Register all the methods of an object annotated with {@link WSEvent} or {@link WSQuery}. The methods
+     * can take the data as json tree or as any type that gson can decode, and the query handlers can return
+     * any type that gson can encode. The object is scanned only once per class.
+     *
+     * @param handler Object with the annotated methods
+     * @return Number of methods registered
      */
-    private final AbstractExecutorService executor;
-
-    public MyWSClient (URI uri) throws IOException {
-        this(uri, new ThreadPoolExecutor(2, 8, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(8)));
+    public int addHandlers(Object handler) {
+        return handlers.register(handler);
     }
 
     /**
-     * Create a new client without connecting to the sever
+     * Remove all the listeners and query handlers registered by an object
      *
-     * @param uri URI of the server
-     * @param ex Executor to use.
-     * @throws IOException Error while creating the ws socket with the websocket factory
+     * @param handler Object registered with {@link #addHandlers(Object)}, or a listener
      */
-    public MyWSClient(URI uri, AbstractExecutorService ex) throws IOException {
-        this.executor = ex;
+    public void removeHandlers(Object handler) {
+        handlers.unregister(handler);
+    }
 
-        // Initialize the maps
-        events = new HashMap<>();
-        queryAnswers = new HashMap<>();
-        queryResponses = new HashMap<>();
+    /**
+     * Make a new Query.
+     *
+     * @param queryName        Name of the query
+     * @param query            Data of the query
+     * @param responseListener Listener that will call when the response of the query
+     *                         is retrieve.
+     */
+    public void makeQuery(final String queryName, JsonElement query, final WSQueryResponseListener responseListener) {
 
-        server = factory.createSocket(uri);
-        server.setPingInterval(DEFAULT_PING_INTERVAL);
-        server.addListener(new WebSocketAdapter() {
+        // The listener runs with the handlers, not on the thread that reads the response
+        Futures.addCallback(makeQueryAsync(queryName, query), new FutureCallback<JsonElement>() {
             @Override
-            public void onTextMessage(WebSocket websocket, final String message) throws Exception {
-
-                executor.submit(new Runnable() {
-                    @Override
-                    public void run() {
-                        // Parse the message
-                        JsonObject json = (JsonObject) parser.parse(message);
-
-                        String event = json.get("event").getAsString();
-
-                        // If the message has not the queryId parameter
-                        // is an simple event
-                        if (!json.has("_queryId") || json.get("_queryId").getAsString().length() <= 0) {
-                            if (!events.containsKey(event)) {
-                                log.warn("Received unknown event: " + event);
-                                return;
-                            }
-
-                            events.get(event).onEvent(json.get("data"));
-
-                            return;
-                        }
-
-                        // get the _queryId
-                        String queryId = json.get("_queryId").getAsString();
-
-                        // Now, check if is a query response
-                        // If is a query response i MUST have an listener onEvent the
-                        // 'queryResponse' map, so check here:
-                        if (event.equals("queryResponse")) {
-
-                            if (!queryResponses.containsKey(queryId)) {
-                                log.warn("Unknown query response received");
-                                return;
-                            }
-
-                            // Get and remove the response listener
-                            queryResponses.remove(queryId).onResponse(json.get("data"));
-                            return;
-                        }
-
-                        // If is not a query response neither, is a query made to this program, so
-                        // find the object that will answer this query.
-
-                        if (!queryAnswers.containsKey(event)) {
-                            log.warn("Unknown query received: " + event);
-                            return;
-                        }
-
-                        // Prepare the response with teh same query Id
-                        JsonObject response = new JsonObject();
-                        response.addProperty("event", "queryResponse");
-                        response.addProperty("_queryId", json.get("_queryId").getAsString());
-
-                        // Call the handler
-                        try {
-                            JsonElement answer = queryAnswers.get(event).onQuery(json.get("data"));
-                            response.add("data", answer);
-                        } catch (Exception ex) {
-                            log.warn("WS Query Handler Exception: " + ex.toString(), ex);
-                            JsonObject errorAnswer = new JsonObject();
-                            errorAnswer.addProperty("error", ex.toString());
-                            response.add("data", errorAnswer);
-                        }
-                        server.sendText(response.toString());
-                    }
-                });
-
+            public void onSuccess(JsonElement response) {
+                responseListener.onResponse(response);
             }
 
             @Override
-            public void onConnected(WebSocket ws, Map<String, List<String>> headers) {
-                log.info("Websocket connection established");
-                connected = true;
-
-                // If there is an event listener for the open event, call it
-                WSEventListener open = events.get("open");
-                if (open != null)
-                    open.onEvent(null);
+            public void onFailure(Throwable ex) {
+                log.warn("Query " + queryName + " failed: " + ex.toString());
             }
+        }, executor);
+    }
 
+    /**
+     * Same as make query, but this will return immediately a future. The future is completed directly by the thread
+     * that reads the response, so no thread is blocked while waiting for it, and the listeners added with the
+     * direct executor must be short. If the response doesn't arrive
+     * within the default query timeout, the future fails with a {@link WSTimeoutException}.
+     *
+     * @param queryName Name of the query
+     * @param query     Parameters of the query
+     * @return Future, completed when the response is retrieved
+     */
+    public ListenableFuture<JsonElement> makeQueryAsync(String queryName, JsonElement query) {
+        return makeQueryAsync(queryName, query, getEffectiveQueryTimeout(), TimeUnit.MILLISECONDS);
+    }
 
-            @Override
-            public void onError(WebSocket ws, WebSocketException ex) {
-                connected = false;
-                WSEventListener errorListener = events.get("error");
-                if (connected && errorListener != null)
-                    errorListener.onEvent(null);
-            }
+    /**
+     * Same as {@link #makeQueryAsync(String, JsonElement)}, but with a specific timeout.
+     *
+     * @param queryName Name of the query
+     * @param query     Parameters of the query
+     * @param timeout   Time after which the future fails with a {@link WSTimeoutException}. Zero means no timeout
+     * @param unit      Unit of the timeout
+     * @return Future, completed when the response is retrieved
+     */
+    public ListenableFuture<JsonElement> makeQueryAsync(String queryName, JsonElement query, long timeout, TimeUnit unit) {
+        return makeQueryAsync(queryName, query, WSDecoder.JSON, timeout, unit);
+    }
 
-            @Override
-            public void onDisconnected(WebSocket websocket, WebSocketFrame serverCloseFrame, WebSocketFrame clientCloseFrame, boolean closedByServer) {
-                connected = false;
-                WSEventListener errorListener = events.get("close");
-                if (errorListener != null)
-                    errorListener.onEvent(null);
-            }
-        });
+    /**
+     * Same as {@link #makeQueryAsync(String, JsonElement)}, but the data of the response is converted by the
+     * decoder while the frame is read, without building the json tree of the response.
+     *
+     * @param queryName Name of the query
+     * @param query     Parameters of the query
+     * @param decoder   Decoder of the data of the response
+     * @param <T>       Type of the response
+     * @return Future, completed when the response is retrieved
+     */
+    public <T> ListenableFuture<T> makeQueryAsync(String queryName, JsonElement query, WSDecoder<T> decoder) {
+        return makeQueryAsync(queryName, query, decoder, getEffectiveQueryTimeout(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Same as {@link #makeQueryAsync(String, JsonElement, WSDecoder)}, but with a specific timeout.
+     *
+     * @param queryName Name of the query
+     * @param query     Parameters of the query
+     * @param decoder   Decoder of the data of the response
+     * @param timeout   Time after which the future fails with a {@link WSTimeoutException}. Zero means no timeout
+     * @param unit      Unit of the timeout
+     * @param <T>       Type of the response
+     * @return Future, completed when the response is retrieved
+     */
+    public <T> ListenableFuture<T> makeQueryAsync(String queryName, JsonElement query, WSDecoder<T> decoder,
+                                                  long timeout, TimeUnit unit) {
+        JsonObject json = new JsonObject();
+        long queryId = queryIds.incrementAndGet();
+        try {
+            json.addProperty("event", queryName);
+            json.add("data", query);
+            json.addProperty("_queryId", String.valueOf(queryId));
+        } catch (Exception ex) {
+            log.warn(ex.toString(), ex);
+        }
+
+        // Register the query before sending it, so the response can't arrive before it
+        WSPriority priority = getPriority(queryName);
+        PendingQuery<T> pending = new PendingQuery<>(queryName, decoder, unit.toNanos(timeout), priority);
+        queryResponses.put(queryId, pending);
+        metrics.queryStarted();
+        readingDispatcher().wake();
 
+        // The control queries don't wait for the batch
+        QueryBatcher currentBatcher = batcher;
+        if (currentBatcher != null && priority != WSPriority.CONTROL) {
+            currentBatcher.add(json);
+        } else {
+            send(json, priority);
+        }
+        return pending.future;
     }
 
     /**
-     * This static method allows you to set a proxy that will be used
-     * for the new instances of this class
+     * Make many queries with the same name, sending them in a single batch frame. The responses
+     * can arrive in a single batch frame too.
      *
-     * @param host IP of the proxy
-     * @param port Port of the proxy
+     * @param queryName Name of the queries
+     * @param queries   Parameters of the queries
+     * @return List of futures, one for each query, in the same order of the parameters
      */
-    public static void setProxy(String host, int port) {
-        ProxySettings proxy = factory.getProxySettings();
-        proxy.setHost(host);
-        proxy.setPort(port);
+    public List<ListenableFuture<JsonElement>> makeBatchQueryAsync(String queryName, List<? extends JsonElement> queries) {
+        List<JsonObject> messages = new ArrayList<>(queries.size());
+        List<ListenableFuture<JsonElement>> futures = new ArrayList<>(queries.size());
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(getEffectiveQueryTimeout());
+        for (JsonElement query : queries) {
+            long queryId = queryIds.incrementAndGet();
+            JsonObject json = new JsonObject();
+            json.addProperty("event", queryName);
+            json.add("data", query);
+            json.addProperty("_queryId", String.valueOf(queryId));
+
+            PendingQuery<JsonElement> pending = new PendingQuery<>(queryName, WSDecoder.JSON, timeoutNanos,
+                    getPriority(queryName));
+            queryResponses.put(queryId, pending);
+            metrics.queryStarted();
+            messages.add(json);
+            futures.add(pending.future);
+        }
+        readingDispatcher().wake();
+        if (messages.size() == 1) {
+            send(messages.get(0), getPriority(queryName));
+        } else if (!messages.isEmpty()) {
+            send(batchOf(messages), getPriority(queryName));
+        }
+        return futures;
     }
 
     /**
-     * Start the connection to the server
+     * Send the messages in a single frame. If there is only one message it's sent as is, otherwise
+     * the messages are wrapped in a batch frame.
      *
-     * @throws WSException Error while connecting to the server
+     * @param messages Messages to send
      */
-    public void connect() throws WSException {
-        try {
-            server.connect();
-        } catch (WebSocketException ex) {
-            throw new WSException(ex.toString());
+    private void sendMessages(List<JsonObject> messages) {
+        if (messages.isEmpty())
+            return;
+        if (messages.size() == 1) {
+            send(messages.get(0));
+            return;
         }
+        send(batchOf(messages));
     }
 
     /**
-     * Add a new http header, useful to set the Authorization header
+     * Wrap many messages in a batch frame
      *
-     * @param header Name of the header
-     * @param value  Value of the header
+     * @param messages Messages to wrap
+     * @return Batch frame
      */
-    public void addHttpHeader(String header, String value) {
-        server.addHeader(header, value);
+    static JsonObject batchOf(List<JsonObject> messages) {
+        JsonArray data = new JsonArray();
+        for (JsonObject message : messages)
+            data.add(message);
+        JsonObject json = new JsonObject();
+        json.addProperty("event", BATCH_EVENT);
+        json.add("data", data);
+        return json;
     }
 
     /**
-     * This method allows you to register a new event listener
+     * Enable the automatic batching of the queries: the queries made within the specified window are
+     * sent together in a single batch frame, up to the specified number of queries. The server must
+     * support the batch frames.
      *
-     * @param event    Name of the event.
-     * @param listener Listener of this event
+     * @param window  Time (in milliseconds) a query can wait for other queries. Zero disables the batching
+     * @param maxSize Maximum number of queries in a batch frame
      */
-    public void onEvent(String event, WSEventListener listener) {
-        events.put(event, listener);
+    public void setQueryBatching(long window, int maxSize) {
+        QueryBatcher old = batcher;
+        batcher = window > 0 ? new QueryBatcher(scheduler, new QueryBatcher.Sender() {
+            @Override
+            public void send(List<JsonObject> messages) {
+                sendMessages(messages);
+            }
+        }, window, TimeUnit.MILLISECONDS, maxSize) : null;
+
+        // Don't leave behind the queries collected by the old batcher
+        if (old != null)
+            old.flush();
+
+        // Enabling the batching means that the server supports the batch frames
+        if (window > 0 && writeQueue != null)
+            writeQueue.setCoalescing(true);
     }
 
     /**
-     * Register an event handler, like 'onEvent', but you don't need to specify the
-     * event name. To make this work you need to put the WSEvent notation before the 'onEvent'
-     * method.
+     * Check if a query of this connection, or of one of its sessions, waits for its response
      *
-     * @param handler Handler to register.
+     * @return True if there are pending queries
      */
-    public void addEventHandler(WSEventListener handler) {
-        try {
-            Class[] methodArgs = {JsonElement.class};
-            Method method = handler.getClass().getMethod("onEvent", methodArgs);
-            WSEvent annotation = method.getAnnotation(WSEvent.class);
-            this.onEvent(annotation.name(), handler);
-        } catch (Exception ex) {
-            ex.printStackTrace();
-            // TODO: Find a better Exception or declare a new one
-            throw new IncompleteAnnotationException(WSEvent.class, "Annotation not found");
-        }
+    private boolean hasPendingQueries() {
+        if (!queryResponses.isEmpty())
+            return true;
+        for (MyWSClient session : sessions.values())
+            if (!session.queryResponses.isEmpty())
+                return true;
+        return false;
     }
 
     /**
-     * This method allows you to register an method that answer a response
+     * Return the dispatcher that can pause the thread that reads the frames of this client
      *
-     * @param queryName Name of the query that the method will answer
-     * @param listener  Listener that will call to answer the query
+     * @return Dispatcher of the physical connection
      */
-    public void onQuery(String queryName, WSQueryHandler listener) {
-        queryAnswers.put(queryName, listener);
+    private WSDispatcher readingDispatcher() {
+        return physical != null ? physical.dispatcher : dispatcher;
     }
 
-    public void addQueryHandler(WSQueryHandler handler) {
+    /**
+     * Remove and return the pending query with the specified id
+     *
+     * @param queryId Query id, as received from the server
+     * @return Pending query or null if there is no pending query with this id
+     */
+    private PendingQuery<?> removePendingQuery(String queryId) {
         try {
-            Class[] methodArgs = {JsonElement.class};
-            Method method = handler.getClass().getMethod("onQuery", methodArgs);
-            WSQuery annotation = method.getAnnotation(WSQuery.class);
-            this.onQuery(annotation.name(), handler);
-        } catch (Exception ex) {
-            ex.printStackTrace();
-            throw new IncompleteAnnotationException(WSEvent.class, "Annotation not found");
+            return queryResponses.remove(Long.parseLong(queryId));
+        } catch (NumberFormatException ex) {
+            return null;
         }
     }
 
     /**
-     * Make a new Query.
+     * Fail and remove all the expired queries
+     */
+    private void reapExpiredQueries() {
+        long now = System.nanoTime();
+        for (Map.Entry<Long, PendingQuery<?>> entry : queryResponses.entrySet()) {
+            PendingQuery<?> pending = entry.getValue();
+
+            // Remove the query only if the response is not arrived in the meanwhile
+            if (pending.isExpired(now) && queryResponses.remove(entry.getKey(), pending)) {
+                timedOutQueries.incrementAndGet();
+                metrics.queryTimedOut();
+                pending.future.setException(new WSTimeoutException("Query " + pending.name + " timed out"));
+            }
+        }
+    }
+
+    /**
+     * Fail and remove all the pending queries
      *
-     * @param queryName        Name of the query
-     * @param query            Data of the query
-     * @param responseListener Listener that will call when the response of the query
-     *                         is retrieve.
+     * @param cause Exception used to fail the queries
      */
-    public void makeQuery(String queryName, JsonElement query, WSQueryResponseListener responseListener) {
-        JsonObject json = new JsonObject();
-        String queryId = String.valueOf(new Random().nextInt() * System.currentTimeMillis());
-        try {
-            json.addProperty("event", queryName);
-            json.add("data", query);
-            json.addProperty("_queryId", queryId);
-        } catch (Exception ex) {
-            log.warn(ex.toString(), ex);
+    private void failPendingQueries(Exception cause) {
+        for (Long queryId : queryResponses.keySet()) {
+            PendingQuery<?> pending = queryResponses.remove(queryId);
+            if (pending != null) {
+                metrics.queryFailed();
+                pending.future.setException(cause);
+            }
         }
-        queryResponses.put(queryId, responseListener);
-        server.sendText(json.toString());
+    }
+
+    /**
+     * Schedule the periodic scan of the expired queries
+     */
+    private synchronized void startReaper() {
+        if (reaper != null)
+            return;
+        reaper = scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                reapExpiredQueries();
+            }
+        }, REAPER_INTERVAL, REAPER_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the periodic scan of the expired queries
+     */
+    private synchronized void stopReaper() {
+        if (reaper == null)
+            return;
+        reaper.cancel(false);
+        reaper = null;
+    }
+
+    /**
+     * Set the timeout of the queries made without specifying one
+     *
+     * @param timeout Timeout in milliseconds. Zero means no timeout
+     */
+    public void setDefaultQueryTimeout(long timeout) {
+        this.defaultQueryTimeout = timeout;
+    }
+
+    /**
+     * Return the timeout of the queries made without specifying one: the default query timeout, but never less
+     * than {@link #QUERY_TIMEOUT_RTOS} retransmission timeouts of the connection
+     *
+     * @return Timeout in milliseconds. Zero means no timeout
+     */
+    public long getEffectiveQueryTimeout() {
+        long timeout = defaultQueryTimeout;
+        long rto = getHeartbeat().getRetransmissionTimeout();
+        return timeout <= 0 || rto < 0 ? timeout : Math.max(timeout, rto * QUERY_TIMEOUT_RTOS);
+    }
+
+    /**
+     * Return the heartbeat of the connection, that measures the round trip time. The logical sessions return
+     * the heartbeat of their connection
+     *
+     * @return Heartbeat of the connection
+     */
+    public WSHeartbeat getHeartbeat() {
+        return physical != null ? physical.getHeartbeat() : heartbeat;
+    }
+
+    /**
+     * Return the smoothed round trip time of the connection
+     *
+     * @return Round trip time in milliseconds, or -1 if it was not measured yet
+     */
+    public long getRoundTripTime() {
+        long rtt = getHeartbeat().getSmoothedRtt();
+        return rtt < 0 ? -1 : TimeUnit.MICROSECONDS.toMillis(rtt);
     }
 
     /**
@@ -329,7 +1506,9 @@ public class MyWSClient {
      * @param queryName Name of the query
      * @param query     Parameters of the quey
      * @return FutureTask, completed when the response  retriver
+     * @deprecated Use {@link #makeQueryAsync(String, JsonElement)}
      */
+    @Deprecated
     public FutureTask<JsonElement> makeQuery(String queryName, JsonElement query) {
 
         // Create a new wscallable
@@ -339,16 +1518,21 @@ public class MyWSClient {
         // response
         final FutureTask<JsonElement> future = new FutureTask<>(callback);
 
-        makeQuery(queryName, query, new WSQueryResponseListener() {
+        Futures.addCallback(makeQueryAsync(queryName, query), new FutureCallback<JsonElement>() {
             @Override
-            public void onResponse(JsonElement response) {
+            public void onSuccess(JsonElement response) {
                 // And when the result is retrieved, set the response to the
                 // callable
                 callback.setResponse(response);
 
-                // And execute the future task
+                // And complete the future task in this thread
+                future.run();
+            }
 
-                executor.submit(future);
+            @Override
+            public void onFailure(Throwable ex) {
+                callback.setError(ex);
+                future.run();
             }
         });
 
@@ -371,7 +1555,7 @@ public class MyWSClient {
         } catch (Exception ex) {
             ex.printStackTrace();
         }
-        server.sendText(json.toString());
+        send(json, getPriority(event));
     }
 
     /**
@@ -389,16 +1573,27 @@ public class MyWSClient {
             ex.printStackTrace();
         }
         log.info("New broadcast message sent");
-        server.sendText(json.toString());
+        send(json, getPriority(event));
     }
 
     /**
-     * Remove a event listener
+     * Remove all the listeners of an event
      *
      * @param syncEvent Name of the event listener to remove
      */
     public void removeListener(String syncEvent) {
-        events.remove(syncEvent);
+        handlers.unsubscribeAll(syncEvent);
+    }
+
+    /**
+     * Remove a listener of an event
+     *
+     * @param event    Name of the event
+     * @param listener Listener to remove
+     * @return True if the listener was registered
+     */
+    public boolean removeListener(String event, WSEventListener listener) {
+        return handlers.unsubscribe(event, listener);
     }
 
     /**
@@ -410,10 +1605,80 @@ public class MyWSClient {
         return connected;
     }
 
+    /**
+     * Return the dispatcher of the incoming messages, useful to read its metrics
+     *
+     * @return Dispatcher of the incoming messages
+     */
+    public WSDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Return the executor that runs the handlers of the incoming messages
+     *
+     * @return Executor of the handlers
+     */
+    AbstractExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Return the queue of the outgoing messages, useful to read its metrics
+     *
+     * @return Write queue of the connection
+     */
+    public WSWriteQueue getWriteQueue() {
+        return physical != null ? physical.getWriteQueue() : writeQueue;
+    }
+
+    /**
+     * Return the metrics of the connection. The logical sessions return the metrics of their connection
+     *
+     * @return Metrics of the connection
+     */
+    public WSMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Return the number of queries made that are still waiting for a response
+     *
+     * @return Number of pending queries
+     */
+    public int getPendingQueries() {
+        return queryResponses.size();
+    }
+
+    /**
+     * Return the number of queries failed because no response arrived before their deadline
+     *
+     * @return Number of expired queries
+     */
+    public long getTimedOutQueries() {
+        return timedOutQueries.get();
+    }
+
     /**
      * Disconnect the websocket client
      */
     public void disconnect() {
+        QueryBatcher currentBatcher = batcher;
+        if (currentBatcher != null)
+            currentBatcher.flush();
+        stopReaper();
+        if (physical != null) {
+
+            // Close only the logical session, the connection is shared
+            if (connected)
+                sendEvent(CLOSE_SESSION_EVENT, null);
+            onSessionClosed();
+            return;
+        }
+
+        // Write what is still in the queue before closing
+        writeQueue.flush();
+        metrics.unregister();
         server.disconnect();
     }
 }
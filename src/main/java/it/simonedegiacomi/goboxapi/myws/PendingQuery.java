@@ -0,0 +1,74 @@
+package it.simonedegiacomi.goboxapi.myws;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Entry of the table of the queries made that are waiting for a response.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+class PendingQuery<T> {
+
+    /**
+     * Name of the query
+     */
+    final String name;
+
+    /**
+     * Future to complete with the response
+     */
+    final SettableFuture<T> future = SettableFuture.create();
+
+    /**
+     * Decoder of the data of the response
+     */
+    final WSDecoder<T> decoder;
+
+    /**
+     * Priority of the query and of its response
+     */
+    final WSPriority priority;
+
+    /**
+     * Time (in System.nanoTime() units) when the query was made
+     */
+    final long started = System.nanoTime();
+
+    /**
+     * Time (in System.nanoTime() units) after which the query is expired. Long.MAX_VALUE if the query never expires
+     */
+    final long deadline;
+
+    /**
+     * Create a new pending query
+     * @param name Name of the query
+     * @param decoder Decoder of the data of the response
+     * @param timeoutNanos Timeout of the query in nanoseconds, or a value less or equal than zero for no timeout
+     * @param priority Priority of the query
+     */
+    PendingQuery(String name, WSDecoder<T> decoder, long timeoutNanos, WSPriority priority) {
+        this.name = name;
+        this.decoder = decoder;
+        this.priority = priority;
+        this.deadline = timeoutNanos > 0 ? started + timeoutNanos : Long.MAX_VALUE;
+    }
+
+    /**
+     * Check if the query is expired
+     * @param now Current time in System.nanoTime() units
+     * @return True if the deadline is passed
+     */
+    boolean isExpired(long now) {
+        return deadline != Long.MAX_VALUE && now - deadline >= 0;
+    }
+
+    /**
+     * Complete the future with the data of the response
+     * @param data Data of the response, as returned by the decoder of this query
+     */
+    @SuppressWarnings("unchecked")
+    void complete(Object data) {
+        future.set((T) data);
+    }
+}
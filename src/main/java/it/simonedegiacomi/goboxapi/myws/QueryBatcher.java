@@ -0,0 +1,135 @@
+package it.simonedegiacomi.goboxapi.myws;
+
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class collects the queries made within a small time window and sends them together, so many
+ * queries travel in a single frame. The collected messages are sent when the window expires or when
+ * the maximum size of a batch is reached, whichever comes first.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+class QueryBatcher {
+
+    /**
+     * Object that sends a group of messages
+     */
+    interface Sender {
+
+        /**
+         * Send the messages
+         * @param messages Messages to send, in the order in which they were added
+         */
+        void send(List<JsonObject> messages);
+    }
+
+    /**
+     * Scheduler used to flush the batch when the window expires
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Object that sends the batches
+     */
+    private final Sender sender;
+
+    /**
+     * Time window, in nanoseconds
+     */
+    private final long window;
+
+    /**
+     * Maximum number of messages in a batch
+     */
+    private final int maxSize;
+
+    /**
+     * Messages of the current batch
+     */
+    private List<JsonObject> batch = new ArrayList<>();
+
+    /**
+     * Scheduled flush of the current batch, null if the batch is empty
+     */
+    private ScheduledFuture<?> scheduledFlush;
+
+    /**
+     * Task that flushes the current batch
+     */
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Create a new batcher
+     * @param scheduler Scheduler used to flush the batches
+     * @param sender Object that will send the batches
+     * @param window Time a message can wait for other messages
+     * @param unit Unit of the window
+     * @param maxSize Maximum number of messages in a batch
+     */
+    QueryBatcher(ScheduledExecutorService scheduler, Sender sender, long window, TimeUnit unit, int maxSize) {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("invalid batch size");
+        this.scheduler = scheduler;
+        this.sender = sender;
+        this.window = unit.toNanos(window);
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Add a message to the current batch
+     * @param message Message to send
+     */
+    void add(JsonObject message) {
+        List<JsonObject> full = null;
+        synchronized (this) {
+            batch.add(message);
+            if (batch.size() >= maxSize) {
+                full = takeBatch();
+            } else if (scheduledFlush == null) {
+                scheduledFlush = scheduler.schedule(flushTask, window, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        // Send outside the lock, so the other threads can keep adding messages
+        if (full != null)
+            sender.send(full);
+    }
+
+    /**
+     * Send immediately the messages of the current batch
+     */
+    void flush() {
+        List<JsonObject> messages;
+        synchronized (this) {
+            messages = takeBatch();
+        }
+        if (!messages.isEmpty())
+            sender.send(messages);
+    }
+
+    /**
+     * Return the current batch and start a new one. Must be called holding the lock
+     * @return Messages of the current batch
+     */
+    private List<JsonObject> takeBatch() {
+        List<JsonObject> messages = batch;
+        batch = new ArrayList<>();
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        return messages;
+    }
+}
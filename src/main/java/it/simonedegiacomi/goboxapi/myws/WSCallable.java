@@ -3,6 +3,7 @@ package it.simonedegiacomi.goboxapi.myws;
 import com.google.gson.JsonElement;
 
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Implementation of Callable used in my implementation
@@ -18,6 +19,11 @@ public class WSCallable implements Callable<JsonElement> {
      */
     private JsonElement response;
 
+    /**
+     * Error of the query, if it failed
+     */
+    private Throwable error;
+
     /**
      * Set the response. This method must be called before execute the call method
      * @param response Response
@@ -26,8 +32,20 @@ public class WSCallable implements Callable<JsonElement> {
         this.response = response;
     }
 
+    /**
+     * Set the error of the query. If set, the call method will throw it
+     * @param error Error
+     */
+    public void setError (Throwable error) {
+        this.error = error;
+    }
+
     @Override
     public JsonElement call() throws Exception {
+        if (error instanceof Exception)
+            throw (Exception) error;
+        if (error != null)
+            throw new ExecutionException(error);
 
         // This is a very hard task...
         return response;
@@ -0,0 +1,302 @@
+package it.simonedegiacomi.goboxapi.myws;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of the frames of a websocket connection. The messages bigger than the threshold are compressed with
+ * deflate and sent as binary frames that start with {@link #DEFLATE_MARKER}; the smaller messages are sent as they
+ * are, because compressing them costs more cpu than the bandwidth it saves.
+ *
+ * This object also counts the bytes and the time spent compressing and decompressing, so the threshold can be
+ * tuned looking at the compression ratio.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class WSCompression {
+
+    /**
+     * First byte of the compressed frames. This value is never used as first byte by the binary json encoding
+     * nor by the json text
+     */
+    public static final int DEFLATE_MARKER = 0xc1;
+
+    /**
+     * Default size (in bytes) under which the messages are not compressed
+     */
+    public static final int DEFAULT_THRESHOLD = 1024;
+
+    /**
+     * Default maximum size (in bytes) of a decompressed message
+     */
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
+
+    private final int threshold;
+
+    private final int level;
+
+    private final int maxMessageSize;
+
+    /**
+     * Deflaters and inflaters are expensive to create, so they are reused. They hold native memory until they are
+     * ended, so they are kept here instead of in thread locals, and ended by {@link #release()}. A connection
+     * compresses on one thread and decompresses on another, so the pools stay small
+     */
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+
+    private final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean released = false;
+
+    private final AtomicLong compressedFrames = new AtomicLong();
+    private final AtomicLong uncompressedFrames = new AtomicLong();
+    private final AtomicLong bytesBeforeCompression = new AtomicLong();
+    private final AtomicLong bytesAfterCompression = new AtomicLong();
+    private final AtomicLong compressionTime = new AtomicLong();
+    private final AtomicLong decompressedFrames = new AtomicLong();
+    private final AtomicLong bytesBeforeDecompression = new AtomicLong();
+    private final AtomicLong bytesAfterDecompression = new AtomicLong();
+    private final AtomicLong decompressionTime = new AtomicLong();
+
+    /**
+     * Create a new compression with the default deflate level
+     * @param threshold Size (in bytes) under which the messages are not compressed
+     */
+    public WSCompression(int threshold) {
+        this(threshold, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Create a new compression
+     * @param threshold Size (in bytes) under which the messages are not compressed
+     * @param level Deflate level, from 0 to 9
+     */
+    public WSCompression(int threshold, int level) {
+        this(threshold, level, DEFAULT_MAX_MESSAGE_SIZE);
+    }
+
+    /**
+     * Create a new compression
+     * @param threshold Size (in bytes) under which the messages are not compressed
+     * @param level Deflate level, from 0 to 9
+     * @param maxMessageSize Maximum size (in bytes) of a decompressed message, so a small frame can't fill the
+     *                       memory
+     */
+    public WSCompression(int threshold, int level, int maxMessageSize) {
+        this.threshold = threshold;
+        this.level = level;
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * Check if a message of the specified size should be compressed
+     * @param size Size of the message
+     * @return True if the message is not smaller than the threshold
+     */
+    boolean shouldCompress(int size) {
+        if (size >= threshold)
+            return true;
+        uncompressedFrames.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Compress a message
+     * @param message Message to compress
+     * @return Compressed frame, with the marker, or null if the compressed frame is not smaller than the message
+     */
+    byte[] compress(byte[] message) {
+        long start = System.nanoTime();
+        Deflater deflater = deflaters.poll();
+        if (deflater == null)
+            deflater = new Deflater(level, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(message.length / 2 + 16);
+        try {
+            deflater.setInput(message);
+            deflater.finish();
+            out.write(DEFLATE_MARKER);
+            byte[] chunk = new byte[Math.min(8192, message.length + 16)];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(chunk);
+                out.write(chunk, 0, length);
+            }
+        } finally {
+            deflater.reset();
+            giveBack(deflaters, deflater);
+        }
+        compressionTime.addAndGet(System.nanoTime() - start);
+
+        if (out.size() >= message.length) {
+            uncompressedFrames.incrementAndGet();
+            return null;
+        }
+        compressedFrames.incrementAndGet();
+        bytesBeforeCompression.addAndGet(message.length);
+        bytesAfterCompression.addAndGet(out.size());
+        return out.toByteArray();
+    }
+
+    /**
+     * Check if a binary frame is compressed
+     * @param frame Frame received
+     * @return True if the frame starts with the marker
+     */
+    static boolean isCompressed(byte[] frame) {
+        return frame.length > 0 && (frame[0] & 0xff) == DEFLATE_MARKER;
+    }
+
+    /**
+     * Decompress a frame
+     * @param frame Compressed frame, with the marker
+     * @return Original message
+     * @throws DataFormatException Malformed frame
+     */
+    byte[] decompress(byte[] frame) throws DataFormatException {
+        long start = System.nanoTime();
+        Inflater inflater = inflaters.poll();
+        if (inflater == null)
+            inflater = new Inflater(true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(maxMessageSize, frame.length * 4L));
+        try {
+            inflater.setInput(frame, 1, frame.length - 1);
+            byte[] chunk = new byte[8192];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(chunk);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new DataFormatException("Truncated compressed frame");
+                if (out.size() + length > maxMessageSize)
+                    throw new DataFormatException("Decompressed message bigger than " + maxMessageSize + " bytes");
+                out.write(chunk, 0, length);
+            }
+        } finally {
+            inflater.reset();
+            giveBack(inflaters, inflater);
+        }
+        decompressionTime.addAndGet(System.nanoTime() - start);
+        decompressedFrames.incrementAndGet();
+        bytesBeforeDecompression.addAndGet(frame.length);
+        bytesAfterDecompression.addAndGet(out.size());
+        return out.toByteArray();
+    }
+
+    /**
+     * Put back a codec to be reused, or end it if the compression was released
+     */
+    private <T> void giveBack(Queue<T> pool, T codec) {
+        if (released) {
+            end(codec);
+            return;
+        }
+        pool.offer(codec);
+
+        // Released in the meanwhile, so nobody else would end it
+        if (released)
+            endAll();
+    }
+
+    /**
+     * Free the native memory of the deflaters and inflaters. Called when the connection is closed: the statistics
+     * can still be read, and a message compressed after this call uses a codec that is ended right after
+     */
+    public void release() {
+        released = true;
+        endAll();
+    }
+
+    private void endAll() {
+        Deflater deflater;
+        while ((deflater = deflaters.poll()) != null)
+            deflater.end();
+        Inflater inflater;
+        while ((inflater = inflaters.poll()) != null)
+            inflater.end();
+    }
+
+    private static void end(Object codec) {
+        if (codec instanceof Deflater) {
+            ((Deflater) codec).end();
+        } else {
+            ((Inflater) codec).end();
+        }
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    /**
+     * Return the number of messages sent compressed
+     * @return Number of compressed messages
+     */
+    public long getCompressedFrames() {
+        return compressedFrames.get();
+    }
+
+    /**
+     * Return the number of messages sent as they are, because smaller than the threshold or not compressible
+     * @return Number of uncompressed messages
+     */
+    public long getUncompressedFrames() {
+        return uncompressedFrames.get();
+    }
+
+    /**
+     * Return the ratio between the size of the compressed messages sent and their original size
+     * @return Compression ratio, 1 if no message was compressed
+     */
+    public double getCompressionRatio() {
+        long before = bytesBeforeCompression.get();
+        return before == 0 ? 1 : (double) bytesAfterCompression.get() / before;
+    }
+
+    /**
+     * Return the bytes saved compressing the sent messages
+     * @return Saved bytes
+     */
+    public long getSavedBytes() {
+        return bytesBeforeCompression.get() - bytesAfterCompression.get();
+    }
+
+    /**
+     * Return the cpu time spent compressing the messages
+     * @return Time in nanoseconds
+     */
+    public long getCompressionTime() {
+        return compressionTime.get();
+    }
+
+    /**
+     * Return the number of compressed frames received
+     * @return Number of decompressed frames
+     */
+    public long getDecompressedFrames() {
+        return decompressedFrames.get();
+    }
+
+    /**
+     * Return the ratio between the size of the compressed frames received and the size of their messages
+     * @return Compression ratio, 1 if no compressed frame was received
+     */
+    public double getDecompressionRatio() {
+        long after = bytesAfterDecompression.get();
+        return after == 0 ? 1 : (double) bytesBeforeDecompression.get() / after;
+    }
+
+    /**
+     * Return the cpu time spent decompressing the frames
+     * @return Time in nanoseconds
+     */
+    public long getDecompressionTime() {
+        return decompressionTime.get();
+    }
+}
@@ -0,0 +1,88 @@
+package it.simonedegiacomi.goboxapi.myws;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Decoder of the data of a query response. The websocket client calls the decoder while it's reading the frame, so
+ * the data is converted directly in the final object, without building the intermediate json tree.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public abstract class WSDecoder<T> {
+
+    /**
+     * Decoder that returns the data as a json tree
+     */
+    public static final WSDecoder<JsonElement> JSON = new WSDecoder<JsonElement>() {
+
+        private final JsonParser parser = new JsonParser();
+
+        @Override
+        public JsonElement decode(JsonReader reader) {
+            return parser.parse(reader);
+        }
+
+        @Override
+        public JsonElement decode(JsonElement tree) {
+            return tree;
+        }
+    };
+
+    /**
+     * Create a new decoder that uses the specified gson type adapter, like the ones returned by
+     * {@link com.google.gson.Gson#getAdapter(Class)}
+     * @param adapter Type adapter to use
+     * @param <T> Type of the decoded data
+     * @return New decoder
+     */
+    public static <T> WSDecoder<T> of (final TypeAdapter<T> adapter) {
+        return new WSDecoder<T>() {
+            @Override
+            public T decode(JsonReader reader) throws IOException {
+                return adapter.read(reader);
+            }
+
+            @Override
+            public T decode(JsonElement tree) {
+                return adapter.fromJsonTree(tree);
+            }
+        };
+    }
+
+    /**
+     * Read the data from the reader. The reader is positioned at the beginning of the data value, and this method
+     * must consume exactly that value.
+     * @param reader Reader of the frame
+     * @return Decoded data
+     * @throws IOException Malformed data
+     */
+    public abstract T decode (JsonReader reader) throws IOException;
+
+    /**
+     * Convert data already parsed as a json tree. This is used only when the frame can't be decoded while it's
+     * read, for example because the query id comes after the data.
+     * @param tree Data as json tree
+     * @return Decoded data
+     * @throws IOException Malformed data
+     */
+    public T decode (JsonElement tree) throws IOException {
+        return new TypeAdapter<T>() {
+            @Override
+            public void write(JsonWriter out, T value) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public T read(JsonReader in) throws IOException {
+                return decode(in);
+            }
+        }.fromJsonTree(tree);
+    }
+}
@@ -0,0 +1,646 @@
+package it.simonedegiacomi.goboxapi.myws;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Dispatcher of the messages received by the websocket client. Every message is dispatched with a key: the messages
+ * with the same key are handled one at a time in the order in which they were dispatched, while the messages with
+ * different keys can be handled in parallel by the threads of the executor.
+ *
+ * The keys are spread over a fixed number of stripes, and every stripe is a queue that is drained by one thread at a
+ * time. The total number of messages waiting to be handled is bounded: when the dispatcher is full, the thread that
+ * dispatches a new message waits until there is space for it.
+ *
+ * To turn an overload into backpressure on the connection, the dispatcher also has two watermarks: when the queued
+ * messages reach the high watermark, the thread that dispatches (the thread that reads the frames from the socket)
+ * is paused until the queued messages drop to the low watermark. While the reading thread is paused no frame is read
+ * from the socket, so the server is slowed down by the flow control of TCP instead of filling the memory of the
+ * client.
+ *
+ * The pause must never hide a message that a handler is waiting for, or a handler that waits for the response of a
+ * query would wait until the query times out while the queue can't drain. So the dispatching thread is never paused,
+ * and never waits for a slot, while the {@link Demand} of the dispatcher says that someone is waiting for a message
+ * not read yet: the messages dispatched in the meanwhile are admitted over the capacity. The messages of the
+ * {@link WSPriority#CONTROL} lane are few and small, so they don't count against the capacity and never pause the
+ * dispatching thread.
+ *
+ * Every message has a {@link WSPriority}, and every priority has its own stripes. A stripe with messages doesn't run
+ * directly on the executor: it waits in the ready list of its priority, and the threads of the executor take the next
+ * stripe from the lanes by weight (or in strict order of priority). So the control and interactive messages overtake
+ * the bulk ones that are waiting for a thread, and a bulk stripe gives its thread back after a few messages.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class WSDispatcher {
+
+    /**
+     * Logger of the class
+     */
+    private static final Logger log = Logger.getLogger(WSDispatcher.class);
+
+    /**
+     * Maximum number of messages a stripe of the highest priority handles before giving the thread back to the
+     * executor. The stripes of the other priorities handle fewer messages, in proportion to their weight
+     */
+    private static final int MAX_DRAIN = 64;
+
+    private static final WSPriority[] PRIORITIES = WSPriority.values();
+
+    /**
+     * Tells the dispatcher if someone is waiting for a message not read yet
+     */
+    interface Demand {
+
+        /**
+         * Check if someone is waiting for a message not read yet, like the response of a query
+         * @return True if the dispatching thread must keep reading
+         */
+        boolean isWaiting();
+    }
+
+    /**
+     * Executor that runs the stripes
+     */
+    private final Executor executor;
+
+    /**
+     * Lanes of the dispatcher, one for every priority
+     */
+    private final Lane[] lanes;
+
+    /**
+     * Number of stripes of every lane
+     */
+    private final int stripeCount;
+
+    /**
+     * True to always run the stripes of the highest priority first, false to share the threads by weight
+     */
+    private volatile boolean strictPriority = false;
+
+    /**
+     * Task submitted to the executor for every ready stripe. It runs the stripe that should go next, which is not
+     * necessarily the one that caused the submission
+     */
+    private final Runnable runner = new Runnable() {
+        @Override
+        public void run() {
+            Stripe stripe = nextReady();
+            if (stripe != null)
+                stripe.run();
+        }
+    };
+
+    /**
+     * Maximum number of messages waiting to be handled
+     */
+    private final int capacity;
+
+    /**
+     * Free slots of the dispatcher
+     */
+    private final Semaphore slots;
+
+    /**
+     * Messages admitted over the capacity because of the demand
+     */
+    private final AtomicInteger borrowed = new AtomicInteger();
+
+    /**
+     * Demand of the messages not read yet, null if nobody waits for them
+     */
+    private volatile Demand demand;
+
+    /**
+     * Counters of the dispatcher
+     */
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong fullWaits = new AtomicLong();
+    private final AtomicLong pauses = new AtomicLong();
+    private final AtomicLong pausedNanos = new AtomicLong();
+
+    /**
+     * Watermarks of the queued messages: the dispatching thread is paused at the high one and resumed at the low one
+     */
+    private volatile int highWatermark;
+    private volatile int lowWatermark;
+
+    /**
+     * True while the dispatching thread is paused, or waits for a slot
+     */
+    private volatile boolean paused;
+    private volatile boolean waiting;
+
+    /**
+     * Lock and condition used to pause and resume the dispatching thread
+     */
+    private final ReentrantLock pauseLock = new ReentrantLock();
+    private final Condition resumed = pauseLock.newCondition();
+
+    /**
+     * Create a new dispatcher
+     * @param executor Executor that will run the handlers
+     * @param stripes Number of stripes
+     * @param capacity Maximum number of messages waiting to be handled
+     */
+    public WSDispatcher(Executor executor, int stripes, int capacity) {
+        if (stripes < 1 || capacity < 1)
+            throw new IllegalArgumentException("invalid dispatcher size");
+        this.executor = executor;
+        this.capacity = capacity;
+        this.slots = new Semaphore(capacity);
+        this.stripeCount = stripes;
+        this.lanes = new Lane[PRIORITIES.length];
+        for (WSPriority priority : PRIORITIES)
+            lanes[priority.ordinal()] = new Lane(priority, stripes);
+        setWatermarks(capacity - capacity / 4, capacity / 4);
+    }
+
+    /**
+     * Set the watermarks of the queued messages. When the queued messages reach the high watermark, the dispatching
+     * thread is paused until they drop to the low watermark. By default the watermarks are at 3/4 and 1/4 of the
+     * capacity.
+     * @param high High watermark, at most the capacity of the dispatcher
+     * @param low Low watermark, less than the high one
+     */
+    public void setWatermarks(int high, int low) {
+        if (high > capacity || low < 0 || low >= high)
+            throw new IllegalArgumentException("invalid watermarks");
+        this.highWatermark = high;
+        this.lowWatermark = low;
+    }
+
+    /**
+     * Set the demand of the messages not read yet. While it's waiting, the dispatching thread is never paused
+     * @param demand Demand of the messages
+     */
+    void setDemand(Demand demand) {
+        this.demand = demand;
+    }
+
+    /**
+     * Wake the dispatching thread if it's paused or waiting for a slot, so it checks the demand again. Call it when
+     * the demand starts waiting
+     */
+    void wake() {
+        if (!paused && !waiting)
+            return;
+        pauseLock.lock();
+        try {
+            resumed.signalAll();
+        } finally {
+            pauseLock.unlock();
+        }
+    }
+
+    private boolean isDemanded() {
+        Demand current = demand;
+        return current != null && current.isWaiting();
+    }
+
+    /**
+     * Dispatch a new message with the interactive priority. If the dispatcher is full, this method blocks until
+     * there is space for the message.
+     * @param key Key of the message. Messages with the same key are handled in order
+     * @param handler Handler of the message
+     * @throws InterruptedException Interrupted while waiting for space
+     */
+    public void dispatch(Object key, Runnable handler) throws InterruptedException {
+        dispatch(WSPriority.INTERACTIVE, key, handler);
+    }
+
+    /**
+     * Dispatch a new message. If the dispatcher is full, this method blocks until there is space for the message.
+     * @param priority Priority of the message
+     * @param key Key of the message. Messages with the same key and priority are handled in order
+     * @param handler Handler of the message
+     * @throws InterruptedException Interrupted while waiting for space
+     */
+    public void dispatch(WSPriority priority, Object key, Runnable handler) throws InterruptedException {
+        Lane lane = lanes[priority.ordinal()];
+        if (lane.counted)
+            acquire();
+        add(lane, key, handler);
+        if (lane.counted && getQueuedMessages() >= highWatermark && !isDemanded())
+            pause();
+    }
+
+    /**
+     * Dispatch a new message only if there is space for it. This method never blocks, so it can be used by a
+     * thread that must not be paused by the handlers of these messages
+     * @param priority Priority of the message
+     * @param key Key of the message. Messages with the same key and priority are handled in order
+     * @param handler Handler of the message
+     * @return False if the dispatcher is full and the message was not dispatched
+     */
+    public boolean offer(WSPriority priority, Object key, Runnable handler) {
+        Lane lane = lanes[priority.ordinal()];
+        if (lane.counted && !slots.tryAcquire()) {
+            fullWaits.incrementAndGet();
+            return false;
+        }
+        add(lane, key, handler);
+        return true;
+    }
+
+    private void add(Lane lane, Object key, Runnable handler) {
+        dispatched.incrementAndGet();
+        lane.dispatched.incrementAndGet();
+        lane.queued.incrementAndGet();
+        lane.stripes[indexOf(key)].add(handler);
+    }
+
+    /**
+     * Take a slot, waiting until there is one. If someone waits for a message not read yet, the message is
+     * admitted over the capacity instead
+     * @throws InterruptedException Interrupted while waiting for a slot
+     */
+    private void acquire() throws InterruptedException {
+        if (slots.tryAcquire())
+            return;
+        fullWaits.incrementAndGet();
+        pauseLock.lock();
+        try {
+            waiting = true;
+            while (!slots.tryAcquire()) {
+                if (isDemanded()) {
+                    borrowed.incrementAndGet();
+                    return;
+                }
+                resumed.await();
+            }
+        } finally {
+            waiting = false;
+            pauseLock.unlock();
+        }
+    }
+
+    /**
+     * Pause the current thread until the queued messages drop to the low watermark, or someone waits for a message
+     * not read yet
+     * @throws InterruptedException Interrupted while paused
+     */
+    private void pause() throws InterruptedException {
+        long start = System.nanoTime();
+        pauseLock.lock();
+        try {
+            paused = true;
+            pauses.incrementAndGet();
+            while (getQueuedMessages() > lowWatermark && !isDemanded())
+                resumed.await();
+        } finally {
+            paused = false;
+            pauseLock.unlock();
+            pausedNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Release the slot of an handled message, resuming the dispatching thread if it's waiting for a slot, or if
+     * it's paused and the queued messages dropped to the low watermark
+     */
+    private void release() {
+        int current;
+        do {
+            current = borrowed.get();
+        } while (current > 0 && !borrowed.compareAndSet(current, current - 1));
+        if (current == 0)
+            slots.release();
+        if (waiting || (paused && getQueuedMessages() <= lowWatermark)) {
+            pauseLock.lock();
+            try {
+                resumed.signalAll();
+            } finally {
+                pauseLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Return the stripe index of the specified key
+     * @param key Key
+     * @return Index of the stripe
+     */
+    private int indexOf(Object key) {
+        int h = key == null ? 0 : key.hashCode();
+
+        // Spread the bits of the hash, so keys that differ only in the high bits go to different stripes
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return (h & Integer.MAX_VALUE) % stripeCount;
+    }
+
+    /**
+     * Take the next stripe to run from the ready lists of the lanes
+     * @return Stripe to run, or null if no stripe is ready
+     */
+    private Stripe nextReady() {
+        synchronized (lanes) {
+            if (strictPriority) {
+                for (Lane lane : lanes)
+                    if (!lane.ready.isEmpty())
+                        return lane.ready.poll();
+                return null;
+            }
+
+            // Weighted round robin: every lane runs as many stripes as its weight, then the credits are refilled
+            for (int round = 0; round < 2; round++) {
+                boolean any = false;
+                for (Lane lane : lanes) {
+                    if (lane.ready.isEmpty())
+                        continue;
+                    any = true;
+                    if (lane.credit > 0) {
+                        lane.credit--;
+                        return lane.ready.poll();
+                    }
+                }
+                if (!any)
+                    return null;
+                for (Lane lane : lanes)
+                    lane.credit = lane.priority.getWeight();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Add a stripe to the ready list of its lane and submit a runner for it
+     * @param stripe Stripe with messages
+     */
+    private void ready(Stripe stripe) {
+        synchronized (lanes) {
+            stripe.lane.ready.add(stripe);
+        }
+        try {
+            executor.execute(runner);
+        } catch (RejectedExecutionException ex) {
+            // Never lose a message: handle it in this thread
+            log.warn("Dispatcher executor rejected the stripe, running it in the caller thread");
+            runner.run();
+        }
+    }
+
+    /**
+     * Run the stripes of the highest priority first, instead of sharing the threads by weight. The lower
+     * priorities can starve while the higher ones have messages
+     * @param strictPriority True for the strict priority
+     */
+    public void setStrictPriority(boolean strictPriority) {
+        this.strictPriority = strictPriority;
+    }
+
+    public boolean isStrictPriority() {
+        return strictPriority;
+    }
+
+    /**
+     * Return the number of messages waiting to be handled or being handled, without the control messages
+     * @return Number of queued messages
+     */
+    public int getQueuedMessages() {
+        return capacity - slots.availablePermits() + borrowed.get();
+    }
+
+    /**
+     * Return the maximum number of messages waiting to be handled
+     * @return Capacity of the dispatcher
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Return the number of stripes of every priority
+     * @return Number of stripes
+     */
+    public int getStripes() {
+        return stripeCount;
+    }
+
+    /**
+     * Return the number of messages of a priority waiting to be handled or being handled
+     * @param priority Priority of the messages
+     * @return Number of queued messages
+     */
+    public int getQueuedMessages(WSPriority priority) {
+        return lanes[priority.ordinal()].queued.get();
+    }
+
+    /**
+     * Return the number of messages of a priority dispatched
+     * @param priority Priority of the messages
+     * @return Number of dispatched messages
+     */
+    public long getDispatchedMessages(WSPriority priority) {
+        return lanes[priority.ordinal()].dispatched.get();
+    }
+
+    /**
+     * Return the number of messages dispatched
+     * @return Number of dispatched messages
+     */
+    public long getDispatchedMessages() {
+        return dispatched.get();
+    }
+
+    /**
+     * Return the number of messages handled
+     * @return Number of handled messages
+     */
+    public long getCompletedMessages() {
+        return completed.get();
+    }
+
+    /**
+     * Return the number of messages whose handler threw an exception
+     * @return Number of failed messages
+     */
+    public long getFailedMessages() {
+        return failed.get();
+    }
+
+    /**
+     * Return how many times a message had to wait because the dispatcher was full
+     * @return Number of waits
+     */
+    public long getFullWaits() {
+        return fullWaits.get();
+    }
+
+    /**
+     * Return the high watermark of the queued messages
+     * @return High watermark
+     */
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+    /**
+     * Return the low watermark of the queued messages
+     * @return Low watermark
+     */
+    public int getLowWatermark() {
+        return lowWatermark;
+    }
+
+    /**
+     * Return true if the dispatching thread is paused because of the high watermark
+     * @return True if paused
+     */
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Return true if the dispatching thread is paused, or waits for a slot
+     * @return True if the dispatching thread can't read new messages
+     */
+    public boolean isBlocked() {
+        return paused || waiting;
+    }
+
+    /**
+     * Return how many times the dispatching thread was paused
+     * @return Number of pauses
+     */
+    public long getPauses() {
+        return pauses.get();
+    }
+
+    /**
+     * Return the total time the dispatching thread spent paused
+     * @return Time paused in milliseconds
+     */
+    public long getPausedTime() {
+        return TimeUnit.NANOSECONDS.toMillis(pausedNanos.get());
+    }
+
+    /**
+     * Stripes of a priority, with the ready ones waiting for a thread
+     */
+    private class Lane {
+        final WSPriority priority;
+        final Stripe[] stripes;
+
+        /**
+         * True if the messages of the lane count against the capacity and the watermarks
+         */
+        final boolean counted;
+
+        /**
+         * Maximum number of messages a stripe of this lane handles before giving the thread back
+         */
+        final int maxDrain;
+
+        /**
+         * Stripes waiting for a thread, guarded by the lanes array
+         */
+        final Queue<Stripe> ready = new ArrayDeque<>();
+
+        /**
+         * Stripes the lane can still run in this round of the weighted round robin, guarded by the lanes array
+         */
+        int credit;
+
+        final AtomicLong dispatched = new AtomicLong();
+        final AtomicInteger queued = new AtomicInteger();
+
+        Lane(WSPriority priority, int stripeCount) {
+            this.priority = priority;
+            this.counted = priority != WSPriority.CONTROL;
+            this.credit = priority.getWeight();
+            this.maxDrain = Math.max(1, MAX_DRAIN * priority.getWeight() / PRIORITIES[0].getWeight());
+            this.stripes = new Stripe[stripeCount];
+            for (int i = 0; i < stripeCount; i++)
+                stripes[i] = new Stripe(this);
+        }
+    }
+
+    /**
+     * Queue of messages handled one at a time
+     */
+    private class Stripe implements Runnable {
+
+        /**
+         * Lane of the stripe
+         */
+        private final Lane lane;
+
+        /**
+         * Messages of the stripe
+         */
+        private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+
+        /**
+         * True if the stripe is scheduled on the executor or running
+         */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        Stripe(Lane lane) {
+            this.lane = lane;
+        }
+
+        /**
+         * Add a message to the stripe and schedule the stripe if needed
+         * @param handler Handler of the message
+         */
+        void add(Runnable handler) {
+            queue.add(handler);
+            schedule();
+        }
+
+        /**
+         * Add the stripe to the ready ones, if it's not already ready or running
+         */
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true))
+                ready(this);
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < lane.maxDrain; i++) {
+                    Runnable handler = queue.poll();
+                    if (handler == null)
+                        break;
+                    try {
+                        handler.run();
+                        completed.incrementAndGet();
+                    } catch (RuntimeException ex) {
+                        failed.incrementAndGet();
+                        log.warn("Message handler exception: " + ex.toString(), ex);
+                    } finally {
+                        lane.queued.decrementAndGet();
+                        if (lane.counted)
+                            release();
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+
+                // A message may have arrived after the last poll
+                if (!queue.isEmpty())
+                    schedule();
+            }
+        }
+    }
+}
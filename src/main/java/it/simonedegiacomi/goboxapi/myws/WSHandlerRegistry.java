@@ -0,0 +1,415 @@
+package it.simonedegiacomi.goboxapi.myws;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import it.simonedegiacomi.goboxapi.myws.annotations.WSEvent;
+import it.simonedegiacomi.goboxapi.myws.annotations.WSQuery;
+import it.simonedegiacomi.goboxapi.utils.MyGsonBuilder;
+import org.apache.log4j.Logger;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Registry of the handlers of the events and of the queries received from the server.
+ *
+ * An object can be registered with {@link #register(Object)}: its methods annotated with {@link WSEvent} or
+ * {@link WSQuery} are found once per class and bound with method handles, so calling them is a direct call and
+ * not a reflective one. The methods can take the data as a json tree, as any type that gson can decode, or nothing.
+ * The query handlers can return a json tree or any object that gson can encode.
+ *
+ * An event can have many subscribers, that are called in the order in which they subscribed. The subscribers are
+ * kept in copy on write lists, so the dispatch of an event never takes a lock. An event has also at most one
+ * listener set with {@link #setListener(String, WSEventListener)}, that replaces the previous one like a map.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class WSHandlerRegistry {
+
+    private static final Logger log = Logger.getLogger(WSHandlerRegistry.class);
+
+    /**
+     * Type of the bound handles: (target, data) -> result
+     */
+    private static final MethodType HANDLE_TYPE = MethodType.methodType(Object.class, Object.class, Object.class);
+
+    /**
+     * Annotated methods of the classes already scanned
+     */
+    private static final ConcurrentMap<Class<?>, List<Binding>> bindings = new ConcurrentHashMap<>();
+
+    /**
+     * Annotated method of a class, not bound to an object yet
+     */
+    private static class Binding {
+
+        /**
+         * Name of the event or of the query
+         */
+        final String name;
+
+        /**
+         * True if the method answers a query
+         */
+        final boolean query;
+
+        /**
+         * Handle of type {@link #HANDLE_TYPE}
+         */
+        final MethodHandle handle;
+
+        /**
+         * Type of the data parameter, null if the method has no parameter
+         */
+        final Type parameter;
+
+        Binding(String name, boolean query, MethodHandle handle, Type parameter) {
+            this.name = name;
+            this.query = query;
+            this.handle = handle;
+            this.parameter = parameter;
+        }
+    }
+
+    /**
+     * Subscriber of an event, with the object that registered it
+     */
+    private static class Subscriber {
+        final Object owner;
+        final WSEventListener listener;
+
+        /**
+         * True if the subscriber was set with {@link #setListener(String, WSEventListener)}
+         */
+        final boolean replaceable;
+
+        Subscriber(Object owner, WSEventListener listener, boolean replaceable) {
+            this.owner = owner;
+            this.listener = listener;
+            this.replaceable = replaceable;
+        }
+    }
+
+    /**
+     * Handler of a query, with the object that registered it
+     */
+    private static class QueryEntry {
+        final Object owner;
+        final WSQueryHandler handler;
+
+        QueryEntry(Object owner, WSQueryHandler handler) {
+            this.owner = owner;
+            this.handler = handler;
+        }
+    }
+
+    /**
+     * Annotated method bound to an object. It decodes the data and calls the method
+     */
+    private class BoundHandler implements WSEventListener, WSQueryHandler {
+        private final Object target;
+        private final Binding binding;
+        private final TypeAdapter<?> adapter;
+
+        BoundHandler(Object target, Binding binding) {
+            this.target = target;
+            this.binding = binding;
+            this.adapter = binding.parameter == null || isJsonTree(binding.parameter) ? null :
+                    gson.getAdapter(TypeToken.get(binding.parameter));
+        }
+
+        @Override
+        public void onEvent(JsonElement data) {
+            invoke(data);
+        }
+
+        @Override
+        public JsonElement onQuery(JsonElement data) {
+            Object result = invoke(data);
+            if (result == null)
+                return JsonNull.INSTANCE;
+            if (result instanceof JsonElement)
+                return (JsonElement) result;
+            return gson.toJsonTree(result);
+        }
+
+        private Object invoke(JsonElement data) {
+            Object argument = adapter == null || data == null ? data : adapter.fromJsonTree(data);
+            try {
+                return (Object) binding.handle.invokeExact(target, argument);
+            } catch (RuntimeException | Error ex) {
+                throw ex;
+            } catch (Throwable ex) {
+                throw new IllegalStateException("Handler of " + binding.name + " failed: " + ex.toString(), ex);
+            }
+        }
+    }
+
+    private final Gson gson;
+
+    /**
+     * Subscribers of the events.
+     * Name of the event => Subscribers, in order of subscription
+     */
+    private final ConcurrentMap<String, CopyOnWriteArrayList<Subscriber>> events = new ConcurrentHashMap<>();
+
+    /**
+     * Handlers of the queries. A query has only one answer, so it has only one handler
+     * Name of the query => Handler and the object that registered it
+     */
+    private final ConcurrentMap<String, QueryEntry> queries = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new registry
+     * @param gson Gson used to decode the data of the annotated methods and to encode their results
+     */
+    public WSHandlerRegistry(Gson gson) {
+        this.gson = gson;
+    }
+
+    public WSHandlerRegistry() {
+        this(MyGsonBuilder.create());
+    }
+
+    /**
+     * Add a subscriber to an event
+     * @param event Name of the event
+     * @param listener Subscriber
+     */
+    public void subscribe(String event, WSEventListener listener) {
+        subscribe(event, listener, listener);
+    }
+
+    private void subscribe(String event, Object owner, WSEventListener listener) {
+        subscribersOf(event).add(new Subscriber(owner, listener, false));
+    }
+
+    /**
+     * Set the listener of an event, replacing the one set before with this method. The subscribers added with
+     * {@link #subscribe(String, WSEventListener)} or {@link #register(Object)} are kept
+     * @param event Name of the event
+     * @param listener Listener of the event
+     */
+    public void setListener(String event, WSEventListener listener) {
+        CopyOnWriteArrayList<Subscriber> subscribers = subscribersOf(event);
+        synchronized (subscribers) {
+            for (Subscriber subscriber : subscribers)
+                if (subscriber.replaceable)
+                    subscribers.remove(subscriber);
+            subscribers.add(new Subscriber(listener, listener, true));
+        }
+    }
+
+    private CopyOnWriteArrayList<Subscriber> subscribersOf(String event) {
+        CopyOnWriteArrayList<Subscriber> subscribers = events.get(event);
+        if (subscribers == null) {
+            CopyOnWriteArrayList<Subscriber> created = new CopyOnWriteArrayList<>();
+            subscribers = events.putIfAbsent(event, created);
+            if (subscribers == null)
+                subscribers = created;
+        }
+        return subscribers;
+    }
+
+    /**
+     * Remove a subscriber from an event
+     * @param event Name of the event
+     * @param listener Subscriber to remove
+     * @return True if the listener was a subscriber of the event
+     */
+    public boolean unsubscribe(String event, WSEventListener listener) {
+        CopyOnWriteArrayList<Subscriber> subscribers = events.get(event);
+        if (subscribers == null)
+            return false;
+        for (Subscriber subscriber : subscribers)
+            if (subscriber.listener == listener)
+                return subscribers.remove(subscriber);
+        return false;
+    }
+
+    /**
+     * Remove all the subscribers of an event
+     * @param event Name of the event
+     */
+    public void unsubscribeAll(String event) {
+        events.remove(event);
+    }
+
+    /**
+     * Set the handler of a query, replacing the old one
+     * @param query Name of the query
+     * @param handler Handler of the query
+     */
+    public void setQueryHandler(String query, WSQueryHandler handler) {
+        queries.put(query, new QueryEntry(handler, handler));
+    }
+
+    /**
+     * Register all the methods of an object annotated with {@link WSEvent} or {@link WSQuery}
+     * @param target Object to register
+     * @return Number of methods registered
+     * @throws IllegalArgumentException An annotated method has more than one parameter
+     */
+    public int register(Object target) {
+        List<Binding> list = bindingsOf(target.getClass());
+        for (Binding binding : list) {
+            BoundHandler handler = new BoundHandler(target, binding);
+            if (binding.query) {
+                queries.put(binding.name, new QueryEntry(target, handler));
+            } else {
+                subscribe(binding.name, target, handler);
+            }
+        }
+        return list.size();
+    }
+
+    /**
+     * Remove all the handlers registered by an object, with {@link #register(Object)} or as a listener
+     * @param target Object to remove
+     */
+    public void unregister(Object target) {
+        for (CopyOnWriteArrayList<Subscriber> subscribers : events.values())
+            for (Subscriber subscriber : subscribers)
+                if (subscriber.owner == target)
+                    subscribers.remove(subscriber);
+        for (String query : queries.keySet()) {
+            QueryEntry entry = queries.get(query);
+            if (entry != null && entry.owner == target)
+                queries.remove(query, entry);
+        }
+    }
+
+    /**
+     * Call the subscribers of an event. An exception thrown by a subscriber doesn't stop the others
+     * @param event Name of the event
+     * @param data Data of the event
+     * @return False if the event has no subscribers
+     */
+    boolean fire(String event, JsonElement data) {
+        CopyOnWriteArrayList<Subscriber> subscribers = events.get(event);
+        if (subscribers == null || subscribers.isEmpty())
+            return false;
+        for (Subscriber subscriber : subscribers) {
+            try {
+                subscriber.listener.onEvent(data);
+            } catch (RuntimeException ex) {
+                log.warn("Handler of the event " + event + " failed: " + ex.toString(), ex);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the handler of a query
+     * @param query Name of the query
+     * @return Handler of the query, or null
+     */
+    WSQueryHandler queryHandler(String query) {
+        QueryEntry entry = queries.get(query);
+        return entry == null ? null : entry.handler;
+    }
+
+    /**
+     * Return the number of subscribers of an event
+     * @param event Name of the event
+     * @return Number of subscribers
+     */
+    public int getSubscriberCount(String event) {
+        CopyOnWriteArrayList<Subscriber> subscribers = events.get(event);
+        return subscribers == null ? 0 : subscribers.size();
+    }
+
+    private static boolean isJsonTree(Type type) {
+        return type instanceof Class && JsonElement.class.isAssignableFrom((Class<?>) type);
+    }
+
+    /**
+     * Return the annotated methods of a class, scanning it only the first time
+     * @param type Class to scan
+     * @return Annotated methods
+     */
+    private static List<Binding> bindingsOf(Class<?> type) {
+        List<Binding> list = bindings.get(type);
+        if (list == null) {
+            list = scan(type);
+            List<Binding> old = bindings.putIfAbsent(type, list);
+            if (old != null)
+                list = old;
+        }
+        return list;
+    }
+
+    private static List<Binding> scan(Class<?> type) {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        List<Binding> list = new ArrayList<>();
+
+        // Methods already seen in a subclass, so the overridden ones are not bound twice
+        Set<List<Object>> seen = new HashSet<>();
+        for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+            for (Method method : current.getDeclaredMethods()) {
+                if (method.isBridge() || method.isSynthetic() || Modifier.isStatic(method.getModifiers()))
+                    continue;
+                List<Object> signature = new ArrayList<>();
+                signature.add(method.getName());
+                signature.addAll(Arrays.asList(method.getParameterTypes()));
+                if (!seen.add(signature))
+                    continue;
+
+                WSEvent event = method.getAnnotation(WSEvent.class);
+                WSQuery query = method.getAnnotation(WSQuery.class);
+                if (event == null && query == null)
+                    continue;
+                String name = query != null ? query.name() : event.name();
+                if (name.isEmpty())
+                    name = method.getName();
+                list.add(new Binding(name, query != null, handleOf(lookup, method), parameterOf(method)));
+            }
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    private static Type parameterOf(Method method) {
+        Type[] parameters = method.getGenericParameterTypes();
+        if (parameters.length > 1)
+            throw new IllegalArgumentException("The handler " + method + " must have at most one parameter");
+        return parameters.length == 0 ? null : parameters[0];
+    }
+
+    /**
+     * Create the handle of a method, adapted to the type (target, data) -> result
+     * @param lookup Lookup used to find the method
+     * @param method Method
+     * @return Adapted handle
+     */
+    private static MethodHandle handleOf(MethodHandles.Lookup lookup, Method method) {
+
+        // Handlers are often anonymous or private classes
+        method.setAccessible(true);
+        MethodHandle handle;
+        try {
+            handle = lookup.unreflect(method);
+        } catch (IllegalAccessException ex) {
+            throw new IllegalArgumentException("The handler " + method + " is not accessible", ex);
+        }
+        if (method.getParameterTypes().length == 0)
+            handle = MethodHandles.dropArguments(handle, 1, Object.class);
+        return handle.asType(HANDLE_TYPE);
+    }
+}
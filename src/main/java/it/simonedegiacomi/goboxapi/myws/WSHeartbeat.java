@@ -0,0 +1,374 @@
+package it.simonedegiacomi.goboxapi.myws;
+
+import org.apache.log4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heartbeat of a websocket connection. It sends a ping frame and waits for its pong, measuring the round trip time.
+ * The round trip time is smoothed like TCP does (RFC 6298), and the smoothed value and its variance decide how long
+ * to wait for a pong: a missing pong is noticed in a few round trips, not after a fixed long timeout.
+ *
+ * The interval between the pings adapts too: it starts from the minimum interval and doubles after every pong, up to
+ * the maximum interval. After a missing pong the next ping is sent immediately and the interval restarts from the
+ * minimum.
+ *
+ * The pongs are read by the reading thread, like any other frame, so a pong can be late just because the reading
+ * thread is busy or paused by the dispatcher. Any frame received, and any late pong, tells that the peer is alive:
+ * a ping is missed only if nothing at all was received after it, and while the reading thread is blocked the pongs
+ * aren't waited at all. The peer is considered dead only after too many consecutive missing pongs and a silence
+ * long at least the dead timeout, that is never shorter than a fixed floor, however small the round trip time is.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class WSHeartbeat {
+
+    /**
+     * Object that sends the pings and closes the connection
+     */
+    interface Pinger {
+
+        /**
+         * Send a ping frame
+         * @param payload Payload of the ping, that the pong must echo
+         */
+        void ping(byte[] payload);
+
+        /**
+         * Called when the peer doesn't answer anymore
+         */
+        void dead();
+
+        /**
+         * Check if the reading thread is blocked, so it can't read the pongs
+         * @return True if the frames aren't read
+         */
+        boolean isBlocked();
+    }
+
+    /**
+     * Default minimum interval (in milliseconds) between two pings
+     */
+    public static final long DEFAULT_MIN_INTERVAL = 5 * 1000;
+
+    /**
+     * Default number of consecutive missing pongs after which the peer is dead
+     */
+    public static final int DEFAULT_MAX_MISSED_PONGS = 3;
+
+    /**
+     * Time (in milliseconds) to wait for a pong before the first round trip time is measured
+     */
+    public static final long INITIAL_PONG_TIMEOUT = 3 * 1000;
+
+    /**
+     * Bounds (in milliseconds) of the time to wait for a pong
+     */
+    public static final long MIN_PONG_TIMEOUT = 1000;
+    public static final long MAX_PONG_TIMEOUT = 20 * 1000;
+
+    /**
+     * Default minimum time (in milliseconds) without any frame received after which the peer can be dead
+     */
+    public static final long DEFAULT_MIN_DEAD_TIMEOUT = 15 * 1000;
+
+    private static final Logger log = Logger.getLogger(WSHeartbeat.class);
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Pinger pinger;
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
+    private volatile long minInterval = DEFAULT_MIN_INTERVAL;
+
+    private volatile long maxInterval = MyWSClient.DEFAULT_PING_INTERVAL;
+
+    private volatile int maxMissedPongs = DEFAULT_MAX_MISSED_PONGS;
+
+    private volatile long minDeadTimeout = DEFAULT_MIN_DEAD_TIMEOUT;
+
+    // Time of the last frame received, in nanoseconds
+    private volatile long lastReceived;
+
+    // State of the heartbeat, guarded by this
+    private boolean running;
+    private ScheduledFuture<?> next;
+    private long interval;
+    private long sequence;
+    private long outstanding = -1;
+    private long pingSent;
+    private int missedPongs;
+
+    // Estimate of the round trip time, in nanoseconds. Written under the lock, read without
+    private volatile long smoothedRtt = -1;
+    private volatile long rttVariance;
+    private volatile long lastRtt = -1;
+    private volatile long samples;
+    private volatile long totalMissedPongs;
+
+    /**
+     * Create a new heartbeat, stopped
+     * @param scheduler Scheduler of the pings
+     * @param pinger Object that sends the pings
+     */
+    WSHeartbeat(ScheduledExecutorService scheduler, Pinger pinger) {
+        this.scheduler = scheduler;
+        this.pinger = pinger;
+    }
+
+    /**
+     * Start sending the pings. The round trip time measured on previous connections is kept
+     */
+    synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        interval = minInterval;
+        outstanding = -1;
+        missedPongs = 0;
+        lastReceived = System.nanoTime();
+        schedule(interval);
+    }
+
+    /**
+     * Stop sending the pings
+     */
+    synchronized void stop() {
+        running = false;
+        outstanding = -1;
+        if (next != null) {
+            next.cancel(false);
+            next = null;
+        }
+    }
+
+    private void schedule(long delay) {
+        try {
+            next = scheduler.schedule(tick, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            running = false;
+        }
+    }
+
+    /**
+     * Send a ping, or notice that the last ping has no pong
+     */
+    private void tick() {
+        boolean dead = false;
+        long id = -1;
+        synchronized (this) {
+            if (!running)
+                return;
+            long now = System.nanoTime();
+            if (pinger.isBlocked()) {
+
+                // The pong couldn't be read, so the silence says nothing about the peer
+                outstanding = -1;
+                lastReceived = now;
+                schedule(minInterval);
+                return;
+            }
+            if (outstanding >= 0) {
+                outstanding = -1;
+                if (lastReceived - pingSent > 0) {
+
+                    // Other frames arrived after the ping, the pong is only late
+                    missedPongs = 0;
+                } else {
+
+                    // Nothing arrived after the ping
+                    missedPongs++;
+                    totalMissedPongs++;
+                    interval = minInterval;
+                    log.warn("Missing pong (" + missedPongs + " of " + maxMissedPongs + ")");
+                    if (missedPongs >= maxMissedPongs
+                            && TimeUnit.NANOSECONDS.toMillis(now - lastReceived) >= getDeadTimeout()) {
+                        stop();
+                        dead = true;
+                    }
+                }
+            }
+            if (!dead) {
+                outstanding = id = ++sequence;
+                pingSent = now;
+                schedule(getPongTimeout());
+            }
+        }
+        if (dead) {
+            pinger.dead();
+            return;
+        }
+        try {
+            pinger.ping(ByteBuffer.allocate(8).putLong(id).array());
+        } catch (RuntimeException ex) {
+            log.warn("Cannot send the ping: " + ex.toString());
+        }
+    }
+
+    /**
+     * Called when any frame is received, pongs included
+     */
+    void onReceived() {
+        lastReceived = System.nanoTime();
+    }
+
+    /**
+     * Called when a pong is received
+     * @param payload Payload of the pong
+     */
+    void onPong(byte[] payload) {
+        long now = System.nanoTime();
+        lastReceived = now;
+        if (payload == null || payload.length != 8)
+            return;
+        long id = ByteBuffer.wrap(payload).getLong();
+        synchronized (this) {
+            if (!running || id <= 0 || id > sequence)
+                return;
+            if (id != outstanding) {
+
+                // Pong of a ping already counted as missing: too late for the round trip time, but the peer is alive
+                missedPongs = 0;
+                return;
+            }
+            outstanding = -1;
+            missedPongs = 0;
+            sample(now - pingSent);
+
+            // The connection is healthy, so the pings can be less frequent
+            next.cancel(false);
+            schedule(interval);
+            interval = Math.min(interval * 2, maxInterval);
+        }
+    }
+
+    /**
+     * Update the estimate of the round trip time with a new sample
+     * @param rtt Round trip time in nanoseconds
+     */
+    synchronized void sample(long rtt) {
+        lastRtt = rtt;
+        samples++;
+        if (smoothedRtt < 0) {
+            smoothedRtt = rtt;
+            rttVariance = rtt / 2;
+        } else {
+            rttVariance = (3 * rttVariance + Math.abs(smoothedRtt - rtt)) / 4;
+            smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+        }
+    }
+
+    /**
+     * Return the time to wait for a pong, based on the round trip time
+     * @return Timeout in milliseconds
+     */
+    public long getPongTimeout() {
+        long rto = getRetransmissionTimeout();
+        return rto < 0 ? INITIAL_PONG_TIMEOUT : Math.max(MIN_PONG_TIMEOUT, Math.min(MAX_PONG_TIMEOUT, rto));
+    }
+
+    /**
+     * Return the time without any frame received after which the peer is dead, if the pongs are missing too
+     * @return Timeout in milliseconds
+     */
+    public long getDeadTimeout() {
+        return Math.max(minDeadTimeout, maxMissedPongs * getPongTimeout());
+    }
+
+    /**
+     * Return the time after which a message without answer is probably lost, computed like the retransmission
+     * timeout of TCP: the smoothed round trip time plus four times its variance
+     * @return Timeout in milliseconds, or -1 if the round trip time was never measured
+     */
+    public long getRetransmissionTimeout() {
+        long srtt = smoothedRtt;
+        if (srtt < 0)
+            return -1;
+        return TimeUnit.NANOSECONDS.toMillis(srtt + 4 * rttVariance) + 1;
+    }
+
+    /**
+     * Return the smoothed round trip time
+     * @return Round trip time in microseconds, or -1 if it was never measured
+     */
+    public long getSmoothedRtt() {
+        long srtt = smoothedRtt;
+        return srtt < 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(srtt);
+    }
+
+    /**
+     * Return the variance of the round trip time
+     * @return Mean deviation in microseconds
+     */
+    public long getRttVariance() {
+        return TimeUnit.NANOSECONDS.toMicros(rttVariance);
+    }
+
+    /**
+     * Return the last measured round trip time
+     * @return Round trip time in microseconds, or -1 if it was never measured
+     */
+    public long getLastRtt() {
+        long rtt = lastRtt;
+        return rtt < 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(rtt);
+    }
+
+    public long getSamples() {
+        return samples;
+    }
+
+    public long getMissedPongs() {
+        return totalMissedPongs;
+    }
+
+    /**
+     * Return the current interval between two pings
+     * @return Interval in milliseconds
+     */
+    public synchronized long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Set the bounds of the interval between two pings
+     * @param minInterval Interval (in milliseconds) after a missing pong and at the start
+     * @param maxInterval Interval (in milliseconds) when the connection is healthy
+     */
+    public void setInterval(long minInterval, long maxInterval) {
+        if (minInterval <= 0 || maxInterval < minInterval)
+            throw new IllegalArgumentException("Invalid ping interval");
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+    }
+
+    /**
+     * Set the number of consecutive missing pongs after which the peer is dead
+     * @param maxMissedPongs Number of pongs
+     */
+    public void setMaxMissedPongs(int maxMissedPongs) {
+        if (maxMissedPongs < 1)
+            throw new IllegalArgumentException("At least a pong must be missed");
+        this.maxMissedPongs = maxMissedPongs;
+    }
+
+    /**
+     * Set the minimum time without any frame received after which the peer can be dead
+     * @param minDeadTimeout Timeout in milliseconds
+     */
+    public void setMinDeadTimeout(long minDeadTimeout) {
+        if (minDeadTimeout < 0)
+            throw new IllegalArgumentException("Invalid dead timeout");
+        this.minDeadTimeout = minDeadTimeout;
+    }
+}
@@ -0,0 +1,216 @@
+package it.simonedegiacomi.goboxapi.myws;
+
+import org.apache.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of a websocket connection: frames and bytes sent and received, queries waiting for a response, failed
+ * queries and a latency histogram for every query name. The latency of a query goes from the moment it's made to
+ * the moment its response is received, so it includes the time spent in the batcher and in the write queue.
+ *
+ * The metrics can be read with the getters of this class or through JMX, after {@link #register(String)}.
+ * The logical sessions of a shared connection use the metrics of their connection.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class WSMetrics implements WSMetricsMXBean {
+
+    /**
+     * Maximum number of query names with their own histogram. The other queries share a single histogram,
+     * so the memory used is bounded even if the names of the queries are not
+     */
+    public static final int MAX_QUERY_NAMES = 128;
+
+    /**
+     * Name of the histogram shared by the queries over the limit
+     */
+    public static final String OTHER_QUERIES = "(other)";
+
+    /**
+     * Domain of the JMX names
+     */
+    public static final String JMX_DOMAIN = "it.simonedegiacomi.goboxapi";
+
+    private static final Logger log = Logger.getLogger(WSMetrics.class);
+
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong framesReceived = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicInteger pendingQueries = new AtomicInteger();
+    private final AtomicLong queryErrors = new AtomicLong();
+    private final AtomicLong queryTimeouts = new AtomicLong();
+
+    private final ConcurrentMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+
+    private final LatencyHistogram otherLatencies = new LatencyHistogram();
+
+    private ObjectName registeredName;
+
+    void frameSent(long bytes) {
+        framesSent.incrementAndGet();
+        bytesSent.addAndGet(bytes);
+    }
+
+    void frameReceived(long bytes) {
+        framesReceived.incrementAndGet();
+        bytesReceived.addAndGet(bytes);
+    }
+
+    void queryStarted() {
+        pendingQueries.incrementAndGet();
+    }
+
+    /**
+     * Record the response of a query
+     * @param query Name of the query
+     * @param nanos Time since the query was made
+     */
+    void queryCompleted(String query, long nanos) {
+        pendingQueries.decrementAndGet();
+        latencyOf(query).record(nanos);
+    }
+
+    void queryFailed() {
+        pendingQueries.decrementAndGet();
+        queryErrors.incrementAndGet();
+    }
+
+    void queryTimedOut() {
+        pendingQueries.decrementAndGet();
+        queryTimeouts.incrementAndGet();
+    }
+
+    private LatencyHistogram latencyOf(String query) {
+        LatencyHistogram histogram = latencies.get(query);
+        if (histogram != null)
+            return histogram;
+        if (latencies.size() >= MAX_QUERY_NAMES)
+            return otherLatencies;
+        histogram = new LatencyHistogram();
+        LatencyHistogram old = latencies.putIfAbsent(query, histogram);
+        return old != null ? old : histogram;
+    }
+
+    /**
+     * Return the latency histogram of a query
+     * @param query Name of the query, or {@link #OTHER_QUERIES}
+     * @return Histogram with the latencies in nanoseconds, or null if the query was never completed
+     */
+    public LatencyHistogram getLatency(String query) {
+        return OTHER_QUERIES.equals(query) ? otherLatencies : latencies.get(query);
+    }
+
+    @Override
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    @Override
+    public long getFramesReceived() {
+        return framesReceived.get();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    @Override
+    public int getPendingQueries() {
+        return pendingQueries.get();
+    }
+
+    @Override
+    public long getQueryErrors() {
+        return queryErrors.get();
+    }
+
+    @Override
+    public long getQueryTimeouts() {
+        return queryTimeouts.get();
+    }
+
+    @Override
+    public String[] getQueryNames() {
+        return latencies.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public long getQueryCount(String query) {
+        LatencyHistogram histogram = getLatency(query);
+        return histogram == null ? 0 : histogram.getCount();
+    }
+
+    @Override
+    public long getLatencyMean(String query) {
+        LatencyHistogram histogram = getLatency(query);
+        return histogram == null ? 0 : TimeUnit.NANOSECONDS.toMicros(histogram.getMean());
+    }
+
+    @Override
+    public long getLatencyMax(String query) {
+        LatencyHistogram histogram = getLatency(query);
+        return histogram == null ? 0 : TimeUnit.NANOSECONDS.toMicros(histogram.getMax());
+    }
+
+    @Override
+    public long getLatencyPercentile(String query, double percentile) {
+        LatencyHistogram histogram = getLatency(query);
+        return histogram == null ? 0 : TimeUnit.NANOSECONDS.toMicros(histogram.getPercentile(percentile));
+    }
+
+    @Override
+    public void reset() {
+        framesSent.set(0);
+        bytesSent.set(0);
+        framesReceived.set(0);
+        bytesReceived.set(0);
+        queryErrors.set(0);
+        queryTimeouts.set(0);
+        latencies.clear();
+        otherLatencies.reset();
+    }
+
+    /**
+     * Export the metrics through the platform MBean server
+     * @param name Name of the connection, used in the JMX name
+     * @throws JMException The name is not valid or already used
+     */
+    public synchronized void register(String name) throws JMException {
+        unregister();
+        ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=WebSocket,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        registeredName = objectName;
+    }
+
+    /**
+     * Remove the metrics from the platform MBean server, if they were registered
+     */
+    public synchronized void unregister() {
+        if (registeredName == null)
+            return;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(registeredName);
+        } catch (JMException ex) {
+            log.warn("Cannot unregister " + registeredName + ": " + ex.toString());
+        }
+        registeredName = null;
+    }
+}
@@ -0,0 +1,54 @@
+package it.simonedegiacomi.goboxapi.myws;
+
+/**
+ * Management interface of the metrics of a websocket connection, exported through JMX by
+ * {@link WSMetrics#register(String)}. The latencies are in microseconds.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public interface WSMetricsMXBean {
+
+    long getFramesSent();
+
+    long getBytesSent();
+
+    long getFramesReceived();
+
+    long getBytesReceived();
+
+    /**
+     * Return the number of queries waiting for a response
+     * @return Pending queries
+     */
+    int getPendingQueries();
+
+    long getQueryErrors();
+
+    long getQueryTimeouts();
+
+    /**
+     * Return the names of the queries with a latency histogram
+     * @return Names of the queries
+     */
+    String[] getQueryNames();
+
+    long getQueryCount(String query);
+
+    long getLatencyMean(String query);
+
+    long getLatencyMax(String query);
+
+    /**
+     * Return a percentile of the latency of a query
+     * @param query Name of the query
+     * @param percentile Percentile, from 0 to 100
+     * @return Latency in microseconds
+     */
+    long getLatencyPercentile(String query, double percentile);
+
+    /**
+     * Reset all the counters and the histograms, but not the pending queries
+     */
+    void reset();
+}
@@ -0,0 +1,21 @@
+package it.simonedegiacomi.goboxapi.myws;
+
+import com.google.gson.JsonElement;
+
+/**
+ * Interface to implement to tell the websocket client which events must be handled in order. The events with
+ * the same key are handled one at a time in the order in which they were received, while the events with
+ * different keys can be handled in parallel.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public interface WSOrderingKey {
+
+    /**
+     * Return the ordering key of an event
+     * @param data Data of the event
+     * @return Key of the event
+     */
+    public Object keyOf (JsonElement data);
+}
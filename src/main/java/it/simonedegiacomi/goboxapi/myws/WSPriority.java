@@ -0,0 +1,42 @@
+package it.simonedegiacomi.goboxapi.myws;
+
+/**
+ * Priority class of the messages exchanged on the websocket. Every class has its own lane in the dispatcher of the
+ * incoming messages and in the write queue, so a flood of bulk messages doesn't delay the control and the
+ * interactive ones. The lanes share the threads by weight: when all the lanes have work, for every message of the
+ * lowest lane are handled as many messages of the other lanes as their weight.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public enum WSPriority {
+
+    /**
+     * Messages that manage the connection, like the login and the state of the storage
+     */
+    CONTROL(16),
+
+    /**
+     * Queries made by the user, that are waited by the user interface. Default class
+     */
+    INTERACTIVE(4),
+
+    /**
+     * Background work, like long listings and synchronization events
+     */
+    BULK(1);
+
+    private final int weight;
+
+    WSPriority(int weight) {
+        this.weight = weight;
+    }
+
+    /**
+     * Return the weight of the class
+     * @return Number of messages handled for every message of the lowest class
+     */
+    public int getWeight() {
+        return weight;
+    }
+}
@@ -0,0 +1,196 @@
+package it.simonedegiacomi.goboxapi.myws;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Manager of the websocket connections shared by many logical sessions. Instead of opening a connection for every
+ * client, the sessions are multiplexed over a small number of physical connections: every frame of a session is
+ * tagged with its '_sessionId', and the responses and the events received are routed to the session they
+ * belong to. A session is a normal {@link MyWSClient}, so it can be used in place of a client with its own
+ * connection.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class WSSessionManager {
+
+    /**
+     * Default maximum number of sessions on a single connection
+     */
+    public static final int DEFAULT_SESSIONS_PER_CONNECTION = 256;
+
+    private static final Logger log = Logger.getLogger(WSSessionManager.class);
+
+    /**
+     * URI of the server
+     */
+    private final URI uri;
+
+    /**
+     * Maximum number of sessions on a single connection
+     */
+    private final int sessionsPerConnection;
+
+    /**
+     * Executor that runs the handlers of the messages of all the sessions
+     */
+    private final AbstractExecutorService executor;
+
+    /**
+     * True if the executor was created by this manager, so it's shut down by {@link #close()}
+     */
+    private boolean ownsExecutor = false;
+
+    /**
+     * Physical connections, open or not yet connected
+     */
+    private final List<MyWSClient> connections = new ArrayList<>();
+
+    /**
+     * Generator of the session ids
+     */
+    private final AtomicLong sessionIds = new AtomicLong();
+
+    /**
+     * Features requested on the new connections
+     */
+    private boolean binaryFrames = false;
+    private int compressionThreshold = -1;
+
+    /**
+     * Maximum number of incoming messages of a session waiting to be handled
+     */
+    private int sessionCapacity = MyWSClient.DEFAULT_DISPATCH_CAPACITY;
+
+    public WSSessionManager(URI uri) {
+        this(uri, DEFAULT_SESSIONS_PER_CONNECTION);
+    }
+
+    /**
+     * Create a new manager. No connection is opened until the first session is opened. The handlers of the
+     * sessions run on a pool of this manager, shut down by {@link #close()}
+     *
+     * @param uri                   URI of the server
+     * @param sessionsPerConnection Maximum number of sessions on a single connection
+     */
+    public WSSessionManager(URI uri, int sessionsPerConnection) {
+        this(uri, sessionsPerConnection, MyWSClient.newDefaultExecutor());
+        ownsExecutor = true;
+    }
+
+    /**
+     * Create a new manager. No connection is opened until the first session is opened
+     *
+     * @param uri                   URI of the server
+     * @param sessionsPerConnection Maximum number of sessions on a single connection
+     * @param executor              Executor that runs the handlers of the messages of all the sessions
+     */
+    public WSSessionManager(URI uri, int sessionsPerConnection, AbstractExecutorService executor) {
+        this.uri = uri;
+        this.sessionsPerConnection = sessionsPerConnection;
+        this.executor = executor;
+    }
+
+    /**
+     * Ask the binary frames on the connections opened from now on
+     */
+    public synchronized void requestBinaryFrames() {
+        this.binaryFrames = true;
+    }
+
+    /**
+     * Ask the compression on the connections opened from now on
+     *
+     * @param threshold Size (in bytes) under which the messages are not compressed
+     */
+    public synchronized void requestCompression(int threshold) {
+        this.compressionThreshold = threshold;
+    }
+
+    /**
+     * Set the maximum number of incoming messages of a new session waiting to be handled. The sessions share the
+     * reading thread of their connection, so a session can't pause it: a session that exceeds its capacity is
+     * closed instead
+     *
+     * @param capacity Maximum number of messages
+     */
+    public synchronized void setSessionCapacity(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Invalid capacity");
+        this.sessionCapacity = capacity;
+    }
+
+    /**
+     * Create a new logical session on the least loaded connection, creating a new connection if all are full.
+     * The session is not opened: register its listeners and headers, then call {@link MyWSClient#connect()}
+     *
+     * @return New logical session
+     * @throws IOException Error while creating a new connection
+     */
+    public synchronized MyWSClient openSession() throws IOException {
+        MyWSClient connection = null;
+        Iterator<MyWSClient> iterator = connections.iterator();
+        while (iterator.hasNext()) {
+            MyWSClient candidate = iterator.next();
+
+            // Forget the connections lost
+            if (candidate.isClosed()) {
+                iterator.remove();
+                continue;
+            }
+            int count = candidate.getSessionCount();
+            if (count < sessionsPerConnection && (connection == null || count < connection.getSessionCount()))
+                connection = candidate;
+        }
+        if (connection == null) {
+            connection = new MyWSClient(uri, executor);
+            if (binaryFrames)
+                connection.requestBinaryFrames();
+            if (compressionThreshold >= 0)
+                connection.requestCompression(compressionThreshold);
+            connections.add(connection);
+            log.info("New shared connection, " + connections.size() + " connections open");
+        }
+        return new MyWSClient(connection, "s" + sessionIds.incrementAndGet(), executor, sessionCapacity);
+    }
+
+    /**
+     * Return the number of physical connections
+     *
+     * @return Number of connections
+     */
+    public synchronized int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * Return the number of logical sessions open on all the connections
+     *
+     * @return Number of sessions
+     */
+    public synchronized int getSessionCount() {
+        int count = 0;
+        for (MyWSClient connection : connections)
+            count += connection.getSessionCount();
+        return count;
+    }
+
+    /**
+     * Close all the connections, and so all the sessions
+     */
+    public synchronized void close() {
+        for (MyWSClient connection : connections)
+            connection.disconnect();
+        connections.clear();
+        if (ownsExecutor)
+            executor.shutdown();
+    }
+}
@@ -0,0 +1,14 @@
+package it.simonedegiacomi.goboxapi.myws;
+
+/**
+ * Exception used to fail a query that didn't receive a response before its deadline
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class WSTimeoutException extends WSException {
+
+    public WSTimeoutException(String message) {
+        super(message);
+    }
+}
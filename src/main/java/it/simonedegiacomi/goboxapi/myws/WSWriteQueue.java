@@ -0,0 +1,354 @@
+package it.simonedegiacomi.goboxapi.myws;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queue of the messages to send to the server. The threads that send a message only add it to the queue, and a
+ * single writer drains the queue, so the callers never wait for the socket and never contend on it. The writer
+ * runs on its own executor, never on the one of the handlers, so the messages are written even when all the
+ * handlers are busy. When the server
+ * supports the batch frames, the messages queued together are coalesced in a single batch frame.
+ *
+ * Every {@link WSPriority} has its own queue, and the writer always takes the next message from the highest priority
+ * queue that is not empty, so a control message queued behind many bulk messages is written first.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class WSWriteQueue {
+
+    /**
+     * Object that writes the frames on the socket
+     */
+    interface Writer {
+
+        /**
+         * Write a frame
+         * @param frame Message to write, or batch of messages
+         */
+        void write(JsonObject frame);
+
+        /**
+         * Called when a frame can't be written. The messages of the frame are lost, so the queries among them
+         * will never get a response
+         * @param frame Message or batch of messages not written
+         * @param cause Error of the write
+         */
+        void failed(JsonObject frame, RuntimeException cause);
+    }
+
+    /**
+     * Default maximum number of messages coalesced in a single frame
+     */
+    public static final int DEFAULT_MAX_FRAME_MESSAGES = 64;
+
+    private static final Logger log = Logger.getLogger(WSWriteQueue.class);
+
+    /**
+     * Message waiting to be written
+     */
+    private static class Entry {
+        final JsonObject message;
+        final long enqueued = System.nanoTime();
+
+        Entry(JsonObject message) {
+            this.message = message;
+        }
+    }
+
+    /**
+     * Queues of the messages, one for every priority
+     */
+    private final List<ConcurrentLinkedQueue<Entry>> queues;
+
+    private final Writer writer;
+
+    private final Executor executor;
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Lock held by the writer, so only one thread writes at a time
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /**
+     * True if a drain is scheduled or running
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /**
+     * Task run by the scheduler when the flush delay expires. It only hands the drain to the writer, so the
+     * scheduler never writes
+     */
+    private final Runnable delayedDrainTask = new Runnable() {
+        @Override
+        public void run() {
+            execute();
+        }
+    };
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+            scheduled.set(false);
+
+            // Messages added after the drain and before the reset of the flag
+            if (depth.get() > 0)
+                schedule();
+        }
+    };
+
+    /**
+     * Time (in milliseconds) a message waits for other messages before the queue is drained
+     */
+    private volatile long flushDelay = 0;
+
+    private volatile int maxFrameMessages = DEFAULT_MAX_FRAME_MESSAGES;
+
+    /**
+     * True if the messages can be coalesced in batch frames
+     */
+    private volatile boolean coalescing = false;
+
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicLong writtenMessages = new AtomicLong();
+    private final AtomicLong writtenFrames = new AtomicLong();
+    private final AtomicLong failedWrites = new AtomicLong();
+    private final AtomicLong latencySamples = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    /**
+     * Create a new write queue
+     * @param writer Writer of the frames
+     * @param executor Executor that runs the writer, with a single thread that doesn't run anything else
+     * @param scheduler Scheduler used to wait the flush delay
+     */
+    WSWriteQueue(Writer writer, Executor executor, ScheduledExecutorService scheduler) {
+        this.queues = new ArrayList<>(WSPriority.values().length);
+        for (int i = 0; i < WSPriority.values().length; i++)
+            queues.add(new ConcurrentLinkedQueue<Entry>());
+        this.writer = writer;
+        this.executor = executor;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Add a message with the interactive priority to the queue. This method never blocks
+     * @param message Message to send
+     */
+    void add(JsonObject message) {
+        add(message, WSPriority.INTERACTIVE);
+    }
+
+    /**
+     * Add a message to the queue. This method never blocks
+     * @param message Message to send
+     * @param priority Priority of the message
+     */
+    void add(JsonObject message, WSPriority priority) {
+        depth.incrementAndGet();
+        queues.get(priority.ordinal()).add(new Entry(message));
+        schedule();
+    }
+
+    /**
+     * Write all the queued messages in the calling thread
+     */
+    void flush() {
+        drain();
+    }
+
+    private void schedule() {
+        if (!scheduled.compareAndSet(false, true))
+            return;
+        long delay = flushDelay;
+        if (delay <= 0) {
+            execute();
+            return;
+        }
+        try {
+            scheduler.schedule(delayedDrainTask, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            execute();
+        }
+    }
+
+    /**
+     * Run the drain on the writer, or in the calling thread if the writer is stopped
+     */
+    private void execute() {
+        try {
+            executor.execute(drainTask);
+        } catch (RejectedExecutionException ex) {
+            drainTask.run();
+        }
+    }
+
+    /**
+     * Write the queued messages, coalescing them if possible
+     */
+    private void drain() {
+        writeLock.lock();
+        try {
+            List<Entry> frame = new ArrayList<>();
+            Entry entry;
+            while ((entry = poll()) != null) {
+                depth.decrementAndGet();
+                frame.add(entry);
+                if (!coalescing || frame.size() >= maxFrameMessages || depth.get() == 0) {
+                    write(frame);
+                    frame.clear();
+                }
+            }
+            if (!frame.isEmpty())
+                write(frame);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Take the next message, from the highest priority queue that is not empty
+     * @return Next message or null
+     */
+    private Entry poll() {
+        for (ConcurrentLinkedQueue<Entry> queue : queues) {
+            Entry entry = queue.poll();
+            if (entry != null)
+                return entry;
+        }
+        return null;
+    }
+
+    private void write(List<Entry> frame) {
+        JsonObject json;
+        int messages;
+        if (frame.size() == 1) {
+            json = frame.get(0).message;
+            messages = 1;
+        } else {
+            List<JsonObject> coalesced = new ArrayList<>();
+            for (Entry entry : frame) {
+
+                // Don't nest the batches already built
+                if (MyWSClient.BATCH_EVENT.equals(eventOf(entry.message))) {
+                    JsonElement session = entry.message.get("_sessionId");
+                    for (JsonElement element : entry.message.getAsJsonArray("data")) {
+                        JsonObject message = element.getAsJsonObject();
+
+                        // The messages of the batch belong to the session of the batch
+                        if (session != null && !message.has("_sessionId"))
+                            message.add("_sessionId", session);
+                        coalesced.add(message);
+                    }
+                } else {
+                    coalesced.add(entry.message);
+                }
+            }
+            json = MyWSClient.batchOf(coalesced);
+            messages = coalesced.size();
+        }
+        try {
+            writer.write(json);
+            writtenFrames.incrementAndGet();
+            writtenMessages.addAndGet(messages);
+        } catch (RuntimeException ex) {
+            failedWrites.incrementAndGet();
+            log.warn("Write failed: " + ex.toString(), ex);
+            writer.failed(json, ex);
+        }
+
+        long now = System.nanoTime();
+        for (Entry entry : frame) {
+            long latency = now - entry.enqueued;
+            latencySamples.incrementAndGet();
+            totalLatency.addAndGet(latency);
+            long max;
+            while ((max = maxLatency.get()) < latency && !maxLatency.compareAndSet(max, latency));
+        }
+    }
+
+    private static String eventOf(JsonObject message) {
+        JsonElement event = message.get("event");
+        return event == null || event.isJsonNull() ? null : event.getAsString();
+    }
+
+    /**
+     * Set the time a message waits for other messages before the queue is drained. With zero the queue is drained
+     * as soon as possible, and only the messages queued in the meanwhile are coalesced
+     * @param flushDelay Delay in milliseconds
+     */
+    public void setFlushDelay(long flushDelay) {
+        this.flushDelay = flushDelay;
+    }
+
+    /**
+     * Set the maximum number of messages coalesced in a single frame
+     * @param maxFrameMessages Maximum number of messages
+     */
+    public void setMaxFrameMessages(int maxFrameMessages) {
+        this.maxFrameMessages = maxFrameMessages;
+    }
+
+    /**
+     * Enable the coalescing of the messages in batch frames. The server must support the batch frames
+     * @param coalescing True to coalesce the messages
+     */
+    void setCoalescing(boolean coalescing) {
+        this.coalescing = coalescing;
+    }
+
+    public boolean isCoalescing() {
+        return coalescing;
+    }
+
+    /**
+     * Return the number of messages waiting to be written
+     * @return Depth of the queue
+     */
+    public int getDepth() {
+        return depth.get();
+    }
+
+    public long getWrittenMessages() {
+        return writtenMessages.get();
+    }
+
+    public long getWrittenFrames() {
+        return writtenFrames.get();
+    }
+
+    public long getFailedWrites() {
+        return failedWrites.get();
+    }
+
+    /**
+     * Return the average time between the add of a message and its write
+     * @return Average latency in nanoseconds
+     */
+    public long getAverageLatency() {
+        long samples = latencySamples.get();
+        return samples == 0 ? 0 : totalLatency.get() / samples;
+    }
+
+    /**
+     * Return the maximum time between the add of a message and its write
+     * @return Maximum latency in nanoseconds
+     */
+    public long getMaxLatency() {
+        return maxLatency.get();
+    }
+}
@@ -0,0 +1,180 @@
+package it.simonedegiacomi.goboxapi.utils;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalescing of identical asynchronous calls: while a call with a key is in flight, the other calls with the same
+ * key don't start a new call but share its future. When the call completes the key is forgotten, so the next call
+ * starts again. This is meant for read only queries, to avoid that many threads that miss the cache at the same time
+ * send the same query.
+ *
+ * The futures returned don't propagate the cancellation, so a caller can't cancel the call shared with the others.
+ *
+ * A call can be tagged with the names of the data it reads, so when some data changes only the calls that read it
+ * are forgotten with {@link #forget(String)}.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class SingleFlight {
+
+    /**
+     * Call to coalesce
+     * @param <V> Type of the result
+     */
+    public interface Call<V> {
+
+        /**
+         * Start the call
+         * @return Future of the result
+         */
+        ListenableFuture<V> start();
+    }
+
+    /**
+     * Call in flight, with its tags
+     */
+    private static class Flight {
+        final ListenableFuture<?> future;
+        final Collection<String> tags;
+
+        Flight(ListenableFuture<?> future, Collection<String> tags) {
+            this.future = future;
+            this.tags = tags;
+        }
+    }
+
+    /**
+     * Calls in flight.
+     * Key => Call
+     */
+    private final ConcurrentMap<String, Flight> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong absorbed = new AtomicLong();
+
+    /**
+     * Start a call, or join the call with the same key that is in flight
+     * @param key Key of the call
+     * @param call Call to start if there is no call in flight with the same key
+     * @param <V> Type of the result
+     * @return Future of the result
+     */
+    public <V> ListenableFuture<V> execute(String key, Call<V> call) {
+        return execute(key, Collections.<String>emptySet(), call);
+    }
+
+    /**
+     * Start a call, or join the call with the same key that is in flight
+     * @param key Key of the call
+     * @param tags Names of the data read by the call, used by {@link #forget(String)}
+     * @param call Call to start if there is no call in flight with the same key
+     * @param <V> Type of the result
+     * @return Future of the result
+     */
+    @SuppressWarnings("unchecked")
+    public <V> ListenableFuture<V> execute(final String key, Collection<String> tags, Call<V> call) {
+        final SettableFuture<V> future = SettableFuture.create();
+        final Flight flight = new Flight(future, tags);
+        Flight existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            absorbed.incrementAndGet();
+            return Futures.nonCancellationPropagating((ListenableFuture<V>) existing.future);
+        }
+        started.incrementAndGet();
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                inFlight.remove(key, flight);
+            }
+        }, MoreExecutors.directExecutor());
+        try {
+            future.setFuture(call.start());
+        } catch (RuntimeException ex) {
+            future.setException(ex);
+        }
+        return Futures.nonCancellationPropagating(future);
+    }
+
+    /**
+     * Forget the calls in flight, so the next calls start again even if the old ones are not completed. Useful
+     * when the data the calls read changed after they started
+     */
+    public void forget() {
+        inFlight.clear();
+    }
+
+    /**
+     * Forget only the calls in flight tagged with a tag, so the next calls that read the changed data start again
+     * while the others still share the calls in flight
+     * @param tag Tag of the data that changed
+     */
+    public void forget(String tag) {
+        for (Map.Entry<String, Flight> entry : inFlight.entrySet())
+            if (entry.getValue().tags.contains(tag))
+                inFlight.remove(entry.getKey(), entry.getValue());
+    }
+
+    /**
+     * Return the number of calls started
+     * @return Started calls
+     */
+    public long getStartedCalls() {
+        return started.get();
+    }
+
+    /**
+     * Return the number of calls that joined a call in flight instead of starting a new one
+     * @return Absorbed calls
+     */
+    public long getAbsorbedCalls() {
+        return absorbed.get();
+    }
+
+    /**
+     * Build the key of a query: the name and the data of the query, with the fields of the objects sorted, so the
+     * same data built in a different order gives the same key
+     * @param name Name of the query
+     * @param data Data of the query, can be null
+     * @return Key of the query
+     */
+    public static String keyOf(String name, JsonElement data) {
+        StringBuilder builder = new StringBuilder(name).append(':');
+        if (data != null)
+            builder.append(canonical(data));
+        return builder.toString();
+    }
+
+    private static JsonElement canonical(JsonElement element) {
+        if (element.isJsonObject()) {
+            Map<String, JsonElement> sorted = new TreeMap<>();
+            for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet())
+                sorted.put(entry.getKey(), canonical(entry.getValue()));
+            JsonObject object = new JsonObject();
+            for (Map.Entry<String, JsonElement> entry : sorted.entrySet())
+                object.add(entry.getKey(), entry.getValue());
+            return object;
+        }
+        if (element.isJsonArray()) {
+            JsonArray array = new JsonArray();
+            for (JsonElement item : element.getAsJsonArray())
+                array.add(canonical(item));
+            return array;
+        }
+        return element;
+    }
+}
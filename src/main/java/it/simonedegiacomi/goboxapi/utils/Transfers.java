@@ -0,0 +1,165 @@
+package it.simonedegiacomi.goboxapi.utils;
+
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Copies between the local files and the streams of the transfers, through a {@link FileChannel}.
+ *
+ * When the destination is a channel (like another file) the copy is made by {@link FileChannel#transferTo}, so the
+ * kernel moves the bytes without copying them in the JVM. The https connections are streams, because every byte
+ * passes through the TLS encryption, so those copies use large direct buffers: the file is read and written with a
+ * system call every {@link #BUFFER_SIZE} bytes, instead of every 8 KiB of the stream copies. The direct buffers are
+ * pooled, because the JVM allocates them slowly and releases them only with the garbage collection; the pool also
+ * avoids the hidden temporary direct buffer that the JVM keeps for every thread that writes a heap buffer to a
+ * channel.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class Transfers {
+
+    /**
+     * Size (in bytes) of the direct buffers
+     */
+    public static final int BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * Size (in bytes) of the reads and writes of the streams
+     */
+    private static final int STREAM_CHUNK = 64 * 1024;
+
+    /**
+     * Maximum number of buffers kept in the pool
+     */
+    private static final int MAX_POOLED = 16;
+
+    private static final Queue<Buffers> pool = new ConcurrentLinkedQueue<>();
+
+    private Transfers() { }
+
+    /**
+     * Direct buffer and the array used to move the bytes between it and a stream
+     */
+    private static class Buffers {
+        final ByteBuffer direct = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        final byte[] array = new byte[STREAM_CHUNK];
+    }
+
+    private static Buffers acquire() {
+        Buffers buffers = pool.poll();
+        return buffers != null ? buffers : new Buffers();
+    }
+
+    private static void release(Buffers buffers) {
+        buffers.direct.clear();
+        if (pool.size() < MAX_POOLED)
+            pool.add(buffers);
+    }
+
+    /**
+     * Copy a stream to a file, starting from a position of the file
+     * @param in Source stream, not closed
+     * @param out Destination file
+     * @param position Position of the first byte in the file
+     * @param count Number of bytes to copy, negative to copy until the end of the stream
+     * @return Number of bytes copied
+     * @throws IOException Error reading the stream or writing the file, or the stream ended before count bytes
+     */
+    public static long copy(InputStream in, FileChannel out, long position, long count) throws IOException {
+        Buffers buffers = acquire();
+        try {
+            ByteBuffer direct = buffers.direct;
+            long copied = 0;
+            boolean end = false;
+            while (!end && (count < 0 || copied < count)) {
+
+                // Fill the direct buffer from the stream, then write it with a single call
+                direct.clear();
+                while (direct.hasRemaining() && (count < 0 || copied + direct.position() < count)) {
+                    int length = (int) Math.min(Math.min(buffers.array.length, direct.remaining()),
+                            count < 0 ? Long.MAX_VALUE : count - copied - direct.position());
+                    int read = in.read(buffers.array, 0, length);
+                    if (read < 0) {
+                        end = true;
+                        break;
+                    }
+                    direct.put(buffers.array, 0, read);
+                }
+                direct.flip();
+                while (direct.hasRemaining())
+                    copied += out.write(direct, position + copied);
+            }
+            if (count >= 0 && copied < count)
+                throw new EOFException("The stream ended after " + copied + " bytes of " + count);
+            return copied;
+        } finally {
+            release(buffers);
+        }
+    }
+
+    /**
+     * Copy a part of a file to a stream. If the stream is a file, the bytes are moved by the kernel
+     * @param in Source file
+     * @param position Position of the first byte to copy
+     * @param count Number of bytes to copy
+     * @param out Destination stream, not closed
+     * @return Number of bytes copied
+     * @throws IOException Error reading the file or writing the stream, or the file is shorter than expected
+     */
+    public static long copy(FileChannel in, long position, long count, OutputStream out) throws IOException {
+        if (out instanceof FileOutputStream)
+            return copy(in, position, count, ((FileOutputStream) out).getChannel());
+
+        Buffers buffers = acquire();
+        try {
+            ByteBuffer direct = buffers.direct;
+            long copied = 0;
+            while (copied < count) {
+                direct.clear();
+                direct.limit((int) Math.min(direct.capacity(), count - copied));
+                while (direct.hasRemaining())
+                    if (in.read(direct, position + copied + direct.position()) < 0)
+                        throw new EOFException("The file ended after " + (copied + direct.position()) + " bytes");
+                direct.flip();
+                while (direct.hasRemaining()) {
+                    int length = Math.min(buffers.array.length, direct.remaining());
+                    direct.get(buffers.array, 0, length);
+                    out.write(buffers.array, 0, length);
+                }
+                copied += direct.limit();
+            }
+            return copied;
+        } finally {
+            release(buffers);
+        }
+    }
+
+    /**
+     * Copy a part of a file to a channel with {@link FileChannel#transferTo}
+     * @param in Source file
+     * @param position Position of the first byte to copy
+     * @param count Number of bytes to copy
+     * @param out Destination channel
+     * @return Number of bytes copied
+     * @throws IOException Error during the copy, or the file is shorter than expected
+     */
+    public static long copy(FileChannel in, long position, long count, WritableByteChannel out) throws IOException {
+        long copied = 0;
+        while (copied < count) {
+            long moved = in.transferTo(position + copied, count - copied, out);
+            if (moved <= 0 && position + copied >= in.size())
+                throw new EOFException("The file ended after " + copied + " bytes");
+            copied += moved;
+        }
+        return copied;
+    }
+}
@@ -0,0 +1,126 @@
+package it.simonedegiacomi.goboxapi.utils;
+
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Access to the virtual threads of the JVMs that have them (Java 21 and later). The library is compiled for Java 7,
+ * so the virtual threads are created through reflection, and on older JVMs {@link #isAvailable()} returns false.
+ *
+ * A virtual thread blocked on a future or on a socket doesn't hold a thread of the operating system, so thousands of
+ * blocking operations can be in flight without a big pool. The virtual threads are used by default when the
+ * system property {@value #PROPERTY} is true and the JVM supports them.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class VirtualThreads {
+
+    /**
+     * System property that enables the virtual threads by default
+     */
+    public static final String PROPERTY = "goboxapi.virtualThreads";
+
+    private static final Logger log = Logger.getLogger(VirtualThreads.class);
+
+    /**
+     * Thread.ofVirtual(), Thread.Builder.name(String, long) and Thread.Builder.factory(), null if not available
+     */
+    private static final Method ofVirtual;
+    private static final Method name;
+    private static final Method factory;
+
+    static {
+        Method[] methods = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            methods = new Method[] {
+                    Thread.class.getMethod("ofVirtual"),
+                    builder.getMethod("name", String.class, long.class),
+                    builder.getMethod("factory")
+            };
+        } catch (ClassNotFoundException | NoSuchMethodException ex) {
+            log.debug("Virtual threads not available");
+        }
+        ofVirtual = methods != null ? methods[0] : null;
+        name = methods != null ? methods[1] : null;
+        factory = methods != null ? methods[2] : null;
+    }
+
+    private VirtualThreads() { }
+
+    /**
+     * Check if the JVM supports the virtual threads
+     * @return True if the virtual threads are available
+     */
+    public static boolean isAvailable() {
+        return ofVirtual != null;
+    }
+
+    /**
+     * Check if the virtual threads should be used by default: they must be requested with the system property
+     * {@value #PROPERTY} and supported by the JVM
+     * @return True if the virtual threads are enabled
+     */
+    public static boolean isEnabled() {
+        if (!Boolean.getBoolean(PROPERTY))
+            return false;
+        if (!isAvailable()) {
+            log.warn(PROPERTY + " is set, but this JVM doesn't support the virtual threads");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Create a factory of virtual threads
+     * @param prefix Prefix of the name of the threads, followed by a counter
+     * @return Factory of virtual threads
+     * @throws UnsupportedOperationException The JVM doesn't support the virtual threads
+     */
+    public static ThreadFactory newFactory(String prefix) {
+        if (!isAvailable())
+            throw new UnsupportedOperationException("This JVM doesn't support the virtual threads");
+        try {
+            Object builder = name.invoke(ofVirtual.invoke(null), prefix, 0L);
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException ex) {
+            throw new UnsupportedOperationException("Cannot create the virtual threads: " + ex.toString());
+        }
+    }
+
+    /**
+     * Create an executor that runs every task on a new virtual thread. The number of tasks that run at the same
+     * time is not bounded
+     * @param prefix Prefix of the name of the threads
+     * @return Executor of virtual threads
+     * @throws UnsupportedOperationException The JVM doesn't support the virtual threads
+     */
+    public static AbstractExecutorService newExecutor(String prefix) {
+
+        // Without core threads and keep alive, a thread ends with its task: a thread for every task
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 0L, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<Runnable>(), newFactory(prefix));
+    }
+
+    /**
+     * Check if a thread is virtual
+     * @param thread Thread to check
+     * @return True if the thread is virtual
+     */
+    public static boolean isVirtual(Thread thread) {
+        if (!isAvailable())
+            return false;
+        try {
+            return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+        } catch (ReflectiveOperationException ex) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package it.simonedegiacomi;
+
+/**
+ * Category of the benchmarks, that run only with the benchmark profile
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public interface Benchmark {}
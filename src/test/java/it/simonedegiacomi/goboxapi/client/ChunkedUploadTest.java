@@ -0,0 +1,126 @@
+package it.simonedegiacomi.goboxapi.client;
+
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.goboxapi.authentication.GBAuth;
+import it.simonedegiacomi.goboxapi.fake.FakeGoBoxServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class ChunkedUploadTest {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private FakeGoBoxServer server;
+    private StandardGBClient client;
+    private File folder;
+    private File checkpoints;
+    private byte[] content;
+
+    @Before
+    public void init () throws Exception {
+        server = new FakeGoBoxServer();
+        server.start();
+        server.install();
+        folder = Files.createTempDirectory("gobox-chunked").toFile();
+        checkpoints = new File(folder, "checkpoints");
+        content = new byte[16 * CHUNK_SIZE + 100];
+        new Random(3).nextBytes(content);
+        Files.write(new File(folder, "big.bin").toPath(), content);
+        client = connect(1);
+    }
+
+    @After
+    public void stop () throws Exception {
+        if (client.isReady())
+            client.shutdown();
+        server.close();
+        for (File file : checkpoints.listFiles() != null ? checkpoints.listFiles() : new File[0])
+            file.delete();
+        checkpoints.delete();
+        new File(folder, "big.bin").delete();
+        folder.delete();
+    }
+
+    private StandardGBClient connect (int parallelChunks) throws ClientException {
+        StandardGBClient client = new StandardGBClient(new GBAuth("test", FakeGoBoxServer.TOKEN));
+        client.setChunkedUploads(CHUNK_SIZE, parallelChunks);
+        client.setCheckpointDirectory(checkpoints);
+        assertTrue(client.init());
+        return client;
+    }
+
+    private GBFile local () {
+        GBFile file = new GBFile(new File(folder, "big.bin"), folder.getPath() + File.separator);
+        file.setFatherID(GBFile.ROOT_ID);
+        return file;
+    }
+
+    private void assertStored () throws Exception {
+        GBFile stored = client.getInfo(new GBFile(server.getStorage().put("big.bin", null).getID()));
+        assertEquals(content.length, stored.getSize());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        client.getFile(stored, out);
+        assertArrayEquals(content, out.toByteArray());
+    }
+
+    @Test
+    public void uploadInChunks () throws Exception {
+        client.shutdown();
+        client = connect(4);
+        client.uploadFile(local());
+
+        assertEquals(17, server.getChunks());
+        assertEquals(1, server.getUploads());
+        assertEquals(0, checkpoints.list().length);
+        assertStored();
+    }
+
+    @Test
+    public void resumeAfterRestart () throws Exception {
+        server.setChunkLimit(5);
+        try {
+            client.uploadFile(local());
+            fail("The upload should fail");
+        } catch (ClientException ex) {
+            assertEquals(1, checkpoints.list().length);
+        }
+
+        // A new client, like after a restart, sends only the missing chunks
+        client.shutdown();
+        server.setChunkLimit(-1);
+        client = connect(1);
+        client.uploadFile(local());
+
+        assertEquals(17, server.getChunks());
+        assertEquals(0, checkpoints.list().length);
+        assertStored();
+    }
+
+    @Test
+    public void sendAgainTheLostChunks () throws Exception {
+        server.setChunkLimit(10);
+        try {
+            client.uploadFile(local());
+            fail("The upload should fail");
+        } catch (ClientException ignored) { }
+
+        server.discardChunks();
+        server.setChunkLimit(-1);
+        client.uploadFile(local());
+
+        assertEquals(10 + 17, server.getChunks());
+        assertStored();
+    }
+}
@@ -0,0 +1,197 @@
+package it.simonedegiacomi.goboxapi.client;
+
+import com.google.common.io.ByteStreams;
+import it.simonedegiacomi.Benchmark;
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.goboxapi.authentication.GBAuth;
+import it.simonedegiacomi.goboxapi.fake.FakeGoBoxServer;
+import it.simonedegiacomi.goboxapi.utils.Transfers;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ * CPU time per GiB of the copies between the local files and the transfers: the stream copies with the 8 KiB buffer
+ * of Guava, used before, and the {@link Transfers} copies through a FileChannel. The copies alone are measured on the
+ * CPU time of the thread, after a warm up; the whole uploads and downloads with the fake server are measured on the
+ * CPU time of the process, which includes the server and the TLS encryption, equal for both the versions.
+ *
+ * JMH is not a dependency of the project, so the measures are made by hand with the same idea: warm up, then the
+ * average of some runs.
+ *
+ * Run with: mvn test -Pbenchmark
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+@Category(Benchmark.class)
+public class FileTransferBenchmark {
+
+    private static final long SIZE = 256L << 20;
+
+    private static final int WARM_UP = 2;
+
+    private static final int RUNS = 5;
+
+    private static File folder;
+
+    private static File source;
+
+    @BeforeClass
+    public static void createFile () throws IOException {
+        folder = Files.createTempDirectory("gobox-benchmark").toFile();
+        source = new File(folder, "source.bin");
+        try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            Transfers.copy(new GeneratedStream(SIZE), channel, 0, SIZE);
+        }
+    }
+
+    @AfterClass
+    public static void deleteFiles () {
+        for (File file : folder.listFiles())
+            file.delete();
+        folder.delete();
+    }
+
+    /**
+     * A copy to measure
+     */
+    private interface Copy {
+        void run() throws Exception;
+    }
+
+    @Test
+    public void fileToStream () throws Exception {
+        measureThread("file to stream, before", new Copy() {
+            @Override
+            public void run() throws Exception {
+                try (InputStream in = new FileInputStream(source)) {
+                    ByteStreams.copy(in, ByteStreams.nullOutputStream());
+                }
+            }
+        });
+        measureThread("file to stream, channel", new Copy() {
+            @Override
+            public void run() throws Exception {
+                try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+                    Transfers.copy(in, 0, SIZE, ByteStreams.nullOutputStream());
+                }
+            }
+        });
+    }
+
+    @Test
+    public void streamToFile () throws Exception {
+        final File target = new File(folder, "target.bin");
+        measureThread("stream to file, before", new Copy() {
+            @Override
+            public void run() throws Exception {
+                try (OutputStream out = new FileOutputStream(target)) {
+                    ByteStreams.copy(new GeneratedStream(SIZE), out);
+                }
+            }
+        });
+        measureThread("stream to file, channel", new Copy() {
+            @Override
+            public void run() throws Exception {
+                try (RandomAccessFile out = new RandomAccessFile(target, "rw")) {
+                    out.setLength(SIZE);
+                    Transfers.copy(new GeneratedStream(SIZE), out.getChannel(), 0, -1);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void endToEnd () throws Exception {
+        FakeGoBoxServer server = new FakeGoBoxServer();
+        server.start();
+        server.install();
+        final StandardGBClient client = new StandardGBClient(new GBAuth("benchmark", FakeGoBoxServer.TOKEN));
+        client.init();
+        try {
+            final GBFile upload = new GBFile(source, folder.getPath() + File.separator);
+            upload.setFatherID(GBFile.ROOT_ID);
+            server.setStoreUploads(false);
+            measureProcess("upload, before", new Copy() {
+                @Override
+                public void run() throws Exception {
+                    upload.setSize(SIZE);
+                    client.uploadFile(upload, new FileInputStream(source));
+                }
+            });
+            measureProcess("upload, channel", new Copy() {
+                @Override
+                public void run() throws Exception {
+                    client.uploadFile(upload);
+                }
+            });
+
+            byte[] content = new byte[(int) SIZE];
+            new Random(1).nextBytes(content);
+            final GBFile download = server.getStorage().put("download.bin", content);
+            download.setPrefix(folder.getPath() + File.separator);
+            content = null;
+            measureProcess("download, before", new Copy() {
+                @Override
+                public void run() throws Exception {
+                    client.getFile(download, new FileOutputStream(download.toFile()));
+                }
+            });
+            measureProcess("download, channel", new Copy() {
+                @Override
+                public void run() throws Exception {
+                    client.getFile(download);
+                }
+            });
+        } finally {
+            client.shutdown();
+            server.close();
+        }
+    }
+
+    private static void measureThread (String name, Copy copy) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        for (int i = 0; i < WARM_UP; i++)
+            copy.run();
+        long cpu = threads.getCurrentThreadCpuTime();
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++)
+            copy.run();
+        print(name, threads.getCurrentThreadCpuTime() - cpu, System.nanoTime() - start);
+    }
+
+    private static void measureProcess (String name, Copy copy) throws Exception {
+        for (int i = 0; i < WARM_UP; i++)
+            copy.run();
+        long cpu = processCpuTime();
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++)
+            copy.run();
+        print(name, processCpuTime() - cpu, System.nanoTime() - start);
+    }
+
+    private static long processCpuTime () {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean)
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        return -1;
+    }
+
+    private static void print (String name, long cpuNanos, long wallNanos) {
+        double gib = (double) SIZE * RUNS / (1L << 30);
+        System.out.printf("%s: %.0f ms of cpu per GiB, %.0f ms per GiB%n", name, cpuNanos / 1e6 / gib,
+                wallNanos / 1e6 / gib);
+    }
+}
@@ -0,0 +1,37 @@
+package it.simonedegiacomi.goboxapi.client;
+
+import java.io.InputStream;
+
+/**
+ * Stream of a given number of bytes, generated as they are read, for the benchmarks of big transfers
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+class GeneratedStream extends InputStream {
+
+    private long remaining;
+
+    GeneratedStream(long size) {
+        this.remaining = size;
+    }
+
+    @Override
+    public int read() {
+        if (remaining <= 0)
+            return -1;
+        remaining--;
+        return (int) (remaining & 0xff);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+        if (remaining <= 0)
+            return -1;
+        int count = (int) Math.min(length, remaining);
+        for (int i = 0; i < count; i++)
+            buffer[offset + i] = (byte) (remaining - i);
+        remaining -= count;
+        return count;
+    }
+}
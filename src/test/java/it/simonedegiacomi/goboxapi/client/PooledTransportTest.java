@@ -0,0 +1,110 @@
+package it.simonedegiacomi.goboxapi.client;
+
+import com.google.common.io.ByteStreams;
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.goboxapi.authentication.GBAuth;
+import it.simonedegiacomi.goboxapi.fake.FakeGoBoxServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.HttpsURLConnection;
+import java.net.URL;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class PooledTransportTest {
+
+    private static final int DOWNLOADS = 20;
+
+    private FakeGoBoxServer server;
+    private StandardGBClient client;
+    private GBFile file;
+
+    @Before
+    public void init () throws Exception {
+        server = new FakeGoBoxServer();
+        server.start();
+        server.install();
+        file = server.getStorage().put("small.txt", new byte[1024]);
+        client = new StandardGBClient(new GBAuth("test", FakeGoBoxServer.TOKEN));
+        assertTrue(client.init());
+    }
+
+    @After
+    public void stop () throws ClientException {
+        client.shutdown();
+        server.close();
+    }
+
+    private void download (int count) throws Exception {
+        for (int i = 0; i < count; i++)
+            client.getFile(file, ByteStreams.nullOutputStream());
+    }
+
+    @Test
+    public void reuseTheConnections () throws Exception {
+        download(DOWNLOADS);
+        TransferTransport transport = client.getCurrentTransferProfile().getTransport();
+        assertEquals(DOWNLOADS, transport.getRequests());
+        assertEquals(1, transport.getConnectionsOpened());
+        assertEquals(0.95, transport.getReuseRate(), 0.001);
+    }
+
+    @Test
+    public void singleUseConnections () throws Exception {
+        TransferTransport transport = new SingleUseTransport();
+        client.getCurrentTransferProfile().setTransport(transport);
+        download(DOWNLOADS);
+        assertEquals(DOWNLOADS, transport.getConnectionsOpened());
+        assertEquals(0, transport.getReuseRate(), 0.001);
+    }
+
+    @Test
+    public void giveBackTheFailedConnections () throws Exception {
+        PooledTransport transport = new PooledTransport(1);
+        client.getCurrentTransferProfile().setTransport(transport);
+        server.setErrorRate(1);
+        for (int i = 0; i < 3; i++) {
+            try {
+                download(1);
+                fail("The download should fail");
+            } catch (ClientException ignored) { }
+        }
+        assertEquals(0, transport.getConnectionsInUse());
+        server.setErrorRate(0);
+        download(1);
+    }
+
+    @Test
+    public void waitWhenAllTheConnectionsAreInUse () throws Exception {
+        final PooledTransport transport = new PooledTransport(1);
+        final URL url = new URL("https://127.0.0.1/");
+        HttpsURLConnection first = transport.open(url, null);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<HttpsURLConnection> second = executor.submit(new Callable<HttpsURLConnection>() {
+                @Override
+                public HttpsURLConnection call() throws Exception {
+                    return transport.open(url, null);
+                }
+            });
+            try {
+                second.get(200, TimeUnit.MILLISECONDS);
+                fail("The second connection should wait");
+            } catch (TimeoutException ignored) { }
+
+            transport.discard(first);
+            transport.discard(second.get(5, TimeUnit.SECONDS));
+            assertEquals(0, transport.getConnectionsInUse());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
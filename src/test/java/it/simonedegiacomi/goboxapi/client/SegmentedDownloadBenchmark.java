@@ -0,0 +1,100 @@
+package it.simonedegiacomi.goboxapi.client;
+
+import com.google.common.io.ByteStreams;
+import it.simonedegiacomi.Benchmark;
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.goboxapi.authentication.GBAuth;
+import it.simonedegiacomi.goboxapi.fake.FakeGoBoxServer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Download time of a big file on an emulated bridge link, where every connection has a high latency and a limited
+ * bandwidth: a single stream, as {@link StandardGBClient#getFile(GBFile, java.io.OutputStream)} does, against the
+ * segmented downloads with an increasing maximum number of connections.
+ *
+ * Run with: mvn test -Pbenchmark
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+@Category(Benchmark.class)
+public class SegmentedDownloadBenchmark {
+
+    private static final int FILE_SIZE = 16 * 1024 * 1024;
+
+    private static final long LATENCY = 100;
+
+    private static final long CONNECTION_BANDWIDTH = 2 * 1024 * 1024;
+
+    private static FakeGoBoxServer server;
+
+    private static GBFile file;
+
+    @BeforeClass
+    public static void startServer () throws Exception {
+        server = new FakeGoBoxServer();
+        server.start();
+        server.install();
+        byte[] content = new byte[FILE_SIZE];
+        new Random(1).nextBytes(content);
+        file = server.getStorage().put("bench/big.bin", content);
+        server.setLatency(LATENCY, LATENCY / 5);
+        server.setBandwidth(CONNECTION_BANDWIDTH);
+    }
+
+    @AfterClass
+    public static void stopServer () {
+        server.close();
+    }
+
+    @Test
+    public void singleStream () throws Exception {
+        StandardGBClient client = connect(1);
+        long start = System.nanoTime();
+        try {
+            client.getFile(file, ByteStreams.nullOutputStream());
+        } finally {
+            client.shutdown();
+        }
+        print("single stream", start);
+    }
+
+    @Test
+    public void segmented () throws Exception {
+        for (int connections : new int[] { 2, 4, 8 }) {
+            StandardGBClient client = connect(connections);
+            File target = File.createTempFile("gobox-benchmark", ".bin");
+            long start = System.nanoTime();
+            try (RandomAccessFile out = new RandomAccessFile(target, "rw")) {
+                assertEquals(FILE_SIZE, client.getFile(file, out.getChannel()));
+            } finally {
+                client.shutdown();
+                target.delete();
+            }
+            print("segmented, up to " + connections + " connections", start);
+        }
+    }
+
+    private static StandardGBClient connect (int connections) throws ClientException {
+        StandardGBClient client = new StandardGBClient(new GBAuth("benchmark", FakeGoBoxServer.TOKEN));
+        client.setSegmentedDownloads(connections, 0);
+        client.init();
+        return client;
+    }
+
+    private static void print (String mode, long start) {
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.printf("%s: %d MiB in %d ms (%.2f MiB/s)%n", mode, FILE_SIZE >> 20, elapsed,
+                FILE_SIZE * 1000.0 / (1 << 20) / Math.max(1, elapsed));
+    }
+}
@@ -0,0 +1,151 @@
+package it.simonedegiacomi.goboxapi.client;
+
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.goboxapi.authentication.GBAuth;
+import it.simonedegiacomi.goboxapi.fake.FakeGoBoxServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class SegmentedDownloadTest {
+
+    private FakeGoBoxServer server;
+    private StandardGBClient client;
+    private File target;
+
+    @Before
+    public void init () throws Exception {
+        server = new FakeGoBoxServer();
+        server.start();
+        server.install();
+        client = new StandardGBClient(new GBAuth("test", FakeGoBoxServer.TOKEN));
+        client.setSegmentedDownloads(4, 0);
+        assertTrue(client.init());
+        target = File.createTempFile("gobox-segmented", ".bin");
+    }
+
+    @After
+    public void stop () throws ClientException {
+        client.shutdown();
+        server.close();
+        target.delete();
+    }
+
+    private byte[] random (int size) {
+        byte[] content = new byte[size];
+        new Random(42).nextBytes(content);
+        return content;
+    }
+
+    private long download (GBFile file) throws Exception {
+
+        // Old content longer than the file, that must be truncated
+        Files.write(target.toPath(), new byte[5 * 1024 * 1024]);
+        try (RandomAccessFile out = new RandomAccessFile(target, "rw")) {
+            return client.getFile(file, out.getChannel());
+        }
+    }
+
+    @Test
+    public void downloadInSegments () throws Exception {
+        byte[] content = random(3 * 1024 * 1024 + 17);
+        GBFile file = server.getStorage().put("big.bin", content);
+
+        assertEquals(content.length, download(file));
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        assertTrue(server.getDownloads() > 1);
+    }
+
+    @Test
+    public void singleStreamWithoutRanges () throws Exception {
+        server.setRangeRequests(false);
+        byte[] content = random(1024 * 1024);
+        GBFile file = server.getStorage().put("big.bin", content);
+
+        assertEquals(content.length, download(file));
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        assertEquals(1, server.getDownloads());
+    }
+
+    @Test
+    public void singleStreamWithoutTheSize () throws Exception {
+        server.setHideLength(true);
+        byte[] content = random(3 * 1024 * 1024 + 17);
+        GBFile file = server.getStorage().put("big.bin", content);
+
+        // The first segment, then the rest with a single stream
+        assertEquals(content.length, download(file));
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        assertEquals(2, server.getDownloads());
+
+        // A file that fits in the first segment, and one that ends exactly with it
+        for (int size : new int[] { 1000, (int) SegmentedDownload.MIN_SEGMENT }) {
+            content = Arrays.copyOf(content, size);
+            file = server.getStorage().put("small-" + size + ".bin", content);
+            assertEquals(size, download(file));
+            assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        }
+    }
+
+    @Test
+    public void emptyFile () throws Exception {
+        GBFile file = server.getStorage().put("empty.bin", new byte[0]);
+        assertEquals(0, download(file));
+        assertEquals(0, target.length());
+    }
+
+    @Test
+    public void retryTheFailedSegments () throws Exception {
+        byte[] content = random(4 * 1024 * 1024);
+        GBFile file = server.getStorage().put("big.bin", content);
+        server.setSeed(7);
+        server.setErrorRate(0.1);
+
+        assertEquals(content.length, download(file));
+        assertTrue(Arrays.equals(content, Files.readAllBytes(target.toPath())));
+    }
+
+    @Test
+    public void stopTheConnectionsBeforeFailing () throws Exception {
+        byte[] content = random(4 * 1024 * 1024);
+        GBFile file = server.getStorage().put("big.bin", content);
+        server.setBandwidth(128 * 1024);
+
+        // After the first segment, a connection can't be opened while another one is downloading
+        final AtomicInteger opened = new AtomicInteger();
+        PooledTransport transport = new PooledTransport() {
+            @Override
+            public HttpsURLConnection open(URL url, SSLSocketFactory sslSocketFactory) throws IOException {
+                if (opened.incrementAndGet() > 2 && getConnectionsInUse() > 0)
+                    throw new IOException("Injected fault");
+                return super.open(url, sslSocketFactory);
+            }
+        };
+        client.getCurrentTransferProfile().setTransport(transport);
+        try {
+            download(file);
+            fail("The download didn't fail");
+        } catch (ClientException ex) {
+
+            // The download fails only when no connection is in use anymore
+            assertEquals(0, transport.getConnectionsInUse());
+        }
+    }
+}
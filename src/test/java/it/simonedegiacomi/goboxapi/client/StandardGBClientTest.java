@@ -0,0 +1,100 @@
+package it.simonedegiacomi.goboxapi.client;
+
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.goboxapi.authentication.GBAuth;
+import it.simonedegiacomi.goboxapi.fake.FakeGoBoxServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class StandardGBClientTest {
+
+    private FakeGoBoxServer server;
+    private StandardGBClient client;
+
+    @Before
+    public void init () throws Exception {
+        server = new FakeGoBoxServer();
+        server.start();
+        server.install();
+        client = new StandardGBClient(new GBAuth("test", FakeGoBoxServer.TOKEN));
+        assertTrue(client.init());
+    }
+
+    @After
+    public void stop () throws ClientException {
+        client.shutdown();
+        server.close();
+    }
+
+    /**
+     * Return the cause of the failure of a future
+     */
+    private static Throwable failureOf (Future<?> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException ex) {
+            return ex.getCause();
+        }
+        fail("The future didn't fail");
+        return null;
+    }
+
+    @Test
+    public void returnTheResultsOfSuccessfulResponses () throws Exception {
+        server.getStorage().put("music/song.mp3", new byte[10]);
+        GBFile docs = new GBFile("docs", GBFile.ROOT_ID, true);
+        docs.setPathByString("docs");
+        client.createDirectory(docs);
+
+        GBFilter filter = new GBFilter();
+        filter.setKeyword("song");
+        List<GBFile> found = client.getFilesByFilterAsync(filter).get(5, TimeUnit.SECONDS);
+        assertEquals(1, found.size());
+        assertEquals("song.mp3", found.get(0).getName());
+
+        List<SyncEvent> recent = client.getRecentFilesAsync(0, 10).get(5, TimeUnit.SECONDS);
+        assertEquals(1, recent.size());
+        assertEquals(SyncEvent.EventKind.FILE_CREATED, recent.get(0).getKind());
+
+        assertTrue(client.getTrashedFilesAsync().get(5, TimeUnit.SECONDS).isEmpty());
+    }
+
+    @Test
+    public void failWithTheErrorOfTheStorage () throws Exception {
+        server.setErrorRate(1);
+        Throwable cause = failureOf(client.getInfoAsync(GBFile.ROOT_FILE));
+        assertTrue(cause instanceof ClientException);
+        assertEquals("Injected fault", cause.getMessage());
+
+        cause = failureOf(client.getFilesByFilterAsync(new GBFilter()));
+        assertTrue(cause instanceof ClientException);
+
+        // The blocking methods rethrow the same exception
+        try {
+            client.emptyTrash();
+            fail("The error of the storage was swallowed");
+        } catch (ClientException ex) {
+            assertEquals("Injected fault", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void failWithAClientExceptionWhenTheConnectionFails () throws Exception {
+        server.setDropRate(1);
+        client.setQueryTimeout(200);
+        Throwable cause = failureOf(client.getRecentFilesAsync(0, 10));
+        assertTrue(cause instanceof ClientException);
+    }
+}
@@ -0,0 +1,116 @@
+package it.simonedegiacomi.goboxapi.client;
+
+import it.simonedegiacomi.Benchmark;
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.goboxapi.authentication.GBAuth;
+import it.simonedegiacomi.goboxapi.fake.FakeGoBoxServer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Memory used by the uploads of files of growing size, with and without the size. The content is generated while
+ * it's read and discarded by the fake server, so the only big allocations can come from the client. The growth is
+ * measured on the heap pools that hold the long lived and the big objects (like the old generation), where a body
+ * kept in memory would end, and must stay the same for all the sizes.
+ *
+ * Run with: mvn test -Pbenchmark
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+@Category(Benchmark.class)
+public class StreamingUploadBenchmark {
+
+    private static final long[] SIZES = { 16L << 20, 128L << 20, 512L << 20 };
+
+    /**
+     * Maximum growth of the memory allowed for an upload
+     */
+    private static final long MAX_GROWTH = 32L << 20;
+
+    private static FakeGoBoxServer server;
+
+    private static StandardGBClient client;
+
+    @BeforeClass
+    public static void start () throws Exception {
+        server = new FakeGoBoxServer();
+        server.start();
+        server.install();
+        server.setStoreUploads(false);
+        client = new StandardGBClient(new GBAuth("benchmark", FakeGoBoxServer.TOKEN));
+        client.init();
+    }
+
+    @AfterClass
+    public static void stop () throws ClientException {
+        client.shutdown();
+        server.close();
+    }
+
+    @Test
+    public void fixedLength () throws Exception {
+        for (long size : SIZES)
+            upload(size, true);
+    }
+
+    @Test
+    public void unknownLength () throws Exception {
+        for (long size : SIZES)
+            upload(size, false);
+    }
+
+    private void upload (long size, boolean withSize) throws Exception {
+        GBFile file = new GBFile("upload-" + size + ".bin", GBFile.ROOT_ID, false);
+        file.setPathByString(file.getName());
+        if (withSize)
+            file.setSize(size);
+
+        System.gc();
+        for (MemoryPoolMXBean pool : tenuredPools())
+            pool.resetPeakUsage();
+        long before = tenuredUsage(false);
+        long uploaded = server.getUploadedBytes();
+        long start = System.nanoTime();
+        client.uploadFile(file, new GeneratedStream(size));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        long growth = Math.max(0, tenuredUsage(true) - before);
+
+        System.out.printf("%s, %d MiB: %d ms, peak memory growth %d KiB%n", withSize ? "fixed length" : "chunked",
+                size >> 20, elapsed, growth >> 10);
+        assertEquals(size, server.getUploadedBytes() - uploaded);
+        assertTrue("The upload of " + (size >> 20) + " MiB used " + (growth >> 20) + " MiB", growth < MAX_GROWTH);
+    }
+
+    /**
+     * Heap pools other than the young generation
+     */
+    private static Iterable<MemoryPoolMXBean> tenuredPools () {
+        List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            String name = pool.getName();
+            if (pool.getType() == MemoryType.HEAP && !name.contains("Eden") && !name.contains("Survivor"))
+                pools.add(pool);
+        }
+        return pools;
+    }
+
+    private static long tenuredUsage (boolean peak) {
+        long used = 0;
+        for (MemoryPoolMXBean pool : tenuredPools())
+            used += peak ? pool.getPeakUsage().getUsed() : pool.getUsage().getUsed();
+        return used;
+    }
+}
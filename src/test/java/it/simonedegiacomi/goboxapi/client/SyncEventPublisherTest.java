@@ -0,0 +1,140 @@
+package it.simonedegiacomi.goboxapi.client;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import it.simonedegiacomi.goboxapi.GBFile;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class SyncEventPublisherTest {
+
+    private SyncEventPublisher publisher;
+
+    /**
+     * Subscriber that records what it receives and requests nothing by itself
+     */
+    private static class Recorder implements SyncEventSubscriber {
+
+        final List<Long> ids = new ArrayList<>();
+        SyncEventSubscription subscription;
+        Throwable error;
+        boolean completed;
+
+        @Override
+        public void onSubscribe(SyncEventSubscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(SyncEvent event) {
+            ids.add(event.getID());
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.error = error;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+
+    @Before
+    public void init () {
+        publisher = new SyncEventPublisher(MoreExecutors.directExecutor());
+    }
+
+    private static SyncEvent event (long id, long fileId) {
+        SyncEvent event = new SyncEvent(SyncEvent.EventKind.FILE_MODIFIED, new GBFile(fileId, GBFile.ROOT_ID, "f" + fileId, false));
+        event.setID(id);
+        return event;
+    }
+
+    private void publish (int count) {
+        for (int i = 1; i <= count; i++)
+            publisher.publish(event(i, 100 + i));
+    }
+
+    @Test
+    public void deliverOnlyTheRequestedEvents () {
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+        publish(5);
+        assertTrue(recorder.ids.isEmpty());
+
+        recorder.subscription.request(2);
+        assertEquals(2, recorder.ids.size());
+        recorder.subscription.request(10);
+        assertEquals(5, recorder.ids.size());
+        assertEquals(Long.valueOf(5), recorder.ids.get(4));
+    }
+
+    @Test
+    public void failWhenTheBufferOverflows () {
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder, 2, SyncEventPublisher.OverflowPolicy.FAIL);
+        publish(3);
+        assertTrue(recorder.error instanceof ClientException);
+        assertEquals(0, publisher.getSubscriberCount());
+    }
+
+    @Test
+    public void dropOldest () {
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder, 2, SyncEventPublisher.OverflowPolicy.DROP_OLDEST);
+        publish(3);
+        recorder.subscription.request(Long.MAX_VALUE);
+        assertEquals(2, recorder.ids.size());
+        assertEquals(Long.valueOf(2), recorder.ids.get(0));
+        assertEquals(1, publisher.getDroppedEvents());
+    }
+
+    @Test
+    public void coalesceEventsOfTheSameFile () {
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder, 2, SyncEventPublisher.OverflowPolicy.COALESCE);
+        publisher.publish(event(1, 10));
+        publisher.publish(event(2, 20));
+        publisher.publish(event(3, 10));
+        recorder.subscription.request(Long.MAX_VALUE);
+        assertEquals(2, recorder.ids.size());
+        assertEquals(Long.valueOf(2), recorder.ids.get(0));
+        assertEquals(Long.valueOf(3), recorder.ids.get(1));
+    }
+
+    @Test
+    public void spillWithoutLosingEvents () {
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder, 2, SyncEventPublisher.OverflowPolicy.SPILL);
+        publish(10);
+        recorder.subscription.request(3);
+        publish(2);
+        recorder.subscription.request(Long.MAX_VALUE);
+        assertEquals(12, recorder.ids.size());
+        for (int i = 0; i < 12; i++)
+            assertEquals(Long.valueOf(i < 10 ? i + 1 : i - 9), recorder.ids.get(i));
+        assertNull(recorder.error);
+    }
+
+    @Test
+    public void completeAfterTheBufferedEvents () {
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+        publish(1);
+        publisher.complete();
+        assertFalse(recorder.completed);
+        recorder.subscription.request(1);
+        assertEquals(1, recorder.ids.size());
+        assertTrue(recorder.completed);
+    }
+}
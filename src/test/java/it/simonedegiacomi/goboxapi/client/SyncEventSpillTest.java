@@ -0,0 +1,67 @@
+package it.simonedegiacomi.goboxapi.client;
+
+import it.simonedegiacomi.goboxapi.GBFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class SyncEventSpillTest {
+
+    private SyncEventSpill spill;
+
+    @Before
+    public void init () throws IOException {
+        spill = new SyncEventSpill(1024);
+    }
+
+    @After
+    public void stop () {
+        spill.close();
+    }
+
+    private static SyncEvent event (long id) {
+        SyncEvent event = new SyncEvent(SyncEvent.EventKind.FILE_MODIFIED, new GBFile(id, GBFile.ROOT_ID, "f" + id, false));
+        event.setID(id);
+        return event;
+    }
+
+    @Test
+    public void readTheEventsInOrder () throws IOException {
+        for (int i = 1; i <= 5; i++)
+            spill.add(event(i));
+        assertEquals(5, spill.size());
+        for (int i = 1; i <= 5; i++)
+            assertEquals(i, spill.poll().getID());
+        assertNull(spill.poll());
+        assertEquals(0, spill.length());
+    }
+
+    @Test
+    public void compactTheFileWhenItNeverEmpties () throws IOException {
+        long next = 1;
+        long expected = 1;
+        for (int i = 0; i < 10; i++)
+            spill.add(event(next++));
+
+        // The reader is always some events behind the writer, so the file is never emptied
+        long maxLength = 0;
+        for (int i = 0; i < 5000; i++) {
+            spill.add(event(next++));
+            assertEquals(expected++, spill.poll().getID());
+            maxLength = Math.max(maxLength, spill.length());
+        }
+        assertEquals(10, spill.size());
+        assertTrue("The file grew to " + maxLength + " bytes", maxLength < 4 * 1024);
+        while (spill.size() > 0)
+            assertEquals(expected++, spill.poll().getID());
+        assertEquals(next, expected);
+    }
+}
@@ -0,0 +1,69 @@
+package it.simonedegiacomi.goboxapi.client;
+
+import com.google.common.io.ByteStreams;
+import it.simonedegiacomi.Benchmark;
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.goboxapi.authentication.GBAuth;
+import it.simonedegiacomi.goboxapi.fake.FakeGoBoxServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Time of a sequence of small downloads with a new connection for every request and with the pooled connections,
+ * where only the first request pays the TCP and TLS handshakes.
+ *
+ * Run with: mvn test -Pbenchmark
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+@Category(Benchmark.class)
+public class TransportBenchmark {
+
+    private static final int WARM_UP = 50;
+
+    private static final int DOWNLOADS = 500;
+
+    private FakeGoBoxServer server;
+    private StandardGBClient client;
+    private GBFile file;
+
+    @Before
+    public void init () throws Exception {
+        server = new FakeGoBoxServer();
+        server.start();
+        server.install();
+        file = server.getStorage().put("small.bin", new byte[4096]);
+        client = new StandardGBClient(new GBAuth("benchmark", FakeGoBoxServer.TOKEN));
+        client.init();
+    }
+
+    @After
+    public void stop () throws ClientException {
+        client.shutdown();
+        server.close();
+    }
+
+    @Test
+    public void smallDownloads () throws Exception {
+        measure("single use", new SingleUseTransport());
+        measure("pooled", new PooledTransport());
+    }
+
+    private void measure (String name, TransferTransport transport) throws Exception {
+        client.getCurrentTransferProfile().setTransport(transport);
+        for (int i = 0; i < WARM_UP; i++)
+            client.getFile(file, ByteStreams.nullOutputStream());
+        long requests = transport.getRequests();
+        long opened = transport.getConnectionsOpened();
+        long start = System.nanoTime();
+        for (int i = 0; i < DOWNLOADS; i++)
+            client.getFile(file, ByteStreams.nullOutputStream());
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%s: %.2f ms per download, %d connections for %d requests (reuse rate %.2f)%n", name,
+                elapsed / 1e6 / DOWNLOADS, transport.getConnectionsOpened() - opened,
+                transport.getRequests() - requests, transport.getReuseRate());
+    }
+}
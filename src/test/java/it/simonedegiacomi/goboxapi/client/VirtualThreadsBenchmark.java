@@ -0,0 +1,118 @@
+package it.simonedegiacomi.goboxapi.client;
+
+import it.simonedegiacomi.Benchmark;
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.goboxapi.authentication.GBAuth;
+import it.simonedegiacomi.goboxapi.fake.FakeGoBoxServer;
+import it.simonedegiacomi.goboxapi.utils.VirtualThreads;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Throughput and memory of many blocking operations in flight: the same operations made by a fixed pool of platform
+ * threads, as the sync workers do now, and by a virtual thread each. Every operation is a blocking
+ * {@link StandardGBClient#getInfo(GBFile)} of a different file, answered by the fake server after a fixed latency.
+ *
+ * Run with: mvn test -Pbenchmark (the virtual threads need Java 21 or later)
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+@Category(Benchmark.class)
+public class VirtualThreadsBenchmark {
+
+    private static final int OPERATIONS = 10000;
+
+    private static final int POOL_SIZE = 200;
+
+    private static final long LATENCY = 50;
+
+    private static FakeGoBoxServer server;
+
+    private static final List<GBFile> files = new ArrayList<>();
+
+    @BeforeClass
+    public static void startServer () throws Exception {
+        server = new FakeGoBoxServer();
+        server.start();
+        server.install();
+        for (int i = 0; i < OPERATIONS; i++)
+            files.add(server.getStorage().put("bench/file" + i, new byte[0]));
+        server.setLatency(LATENCY, 0);
+    }
+
+    @AfterClass
+    public static void stopServer () {
+        server.close();
+    }
+
+    @Test
+    public void platformPool () throws Exception {
+        run("platform pool of " + POOL_SIZE, Executors.newFixedThreadPool(POOL_SIZE), false);
+    }
+
+    @Test
+    public void virtualThreads () throws Exception {
+        assumeTrue(VirtualThreads.isAvailable());
+        run("virtual threads", VirtualThreads.newExecutor("benchmark-"), true);
+    }
+
+    private void run (String mode, ExecutorService callers, boolean virtualThreads) throws Exception {
+        final StandardGBClient client = new StandardGBClient(new GBAuth("benchmark", FakeGoBoxServer.TOKEN));
+        client.setVirtualThreads(virtualThreads);
+        client.setQueryTimeout(TimeUnit.MINUTES.toMillis(5));
+        client.init();
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+        threads.resetPeakThreadCount();
+
+        final AtomicLong maxHeap = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(OPERATIONS);
+        long start = System.nanoTime();
+        try {
+            for (final GBFile file : files) {
+                callers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            client.getInfo(new GBFile(file.getID()));
+                        } catch (ClientException ex) {
+                            failures.incrementAndGet();
+                        }
+                        long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+                        long max;
+                        while ((max = maxHeap.get()) < used && !maxHeap.compareAndSet(max, used));
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+        } finally {
+            callers.shutdownNow();
+            client.shutdown();
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        System.out.printf("%s: %d operations in %d ms (%.0f ops/s), peak threads %d, peak heap growth %d KiB%n",
+                mode, OPERATIONS, elapsed, OPERATIONS * 1000.0 / Math.max(1, elapsed),
+                threads.getPeakThreadCount(), Math.max(0, maxHeap.get() - heapBefore) / 1024);
+        assertEquals(0, failures.get());
+    }
+}
@@ -0,0 +1,940 @@
+package it.simonedegiacomi.goboxapi.fake;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.google.gson.*;
+import com.sun.net.httpserver.*;
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.goboxapi.client.SyncEvent;
+import it.simonedegiacomi.goboxapi.myws.MyWSClient;
+import it.simonedegiacomi.goboxapi.utils.MyGsonBuilder;
+import it.simonedegiacomi.goboxapi.utils.URLBuilder;
+import org.apache.log4j.Logger;
+
+import javax.net.ssl.*;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In process stand-in of the GoBox server and storage, to test and benchmark the client without the real service.
+ * It speaks the websocket protocol of {@link MyWSClient} (queries, batches, logical sessions, sync events and the
+ * storage info event) and serves the https transfer and authentication endpoints, on top of an in memory
+ * {@link FakeStorage}.
+ *
+ * The server can simulate a bad network: a latency (with a random jitter) before every response, a bandwidth limit on
+ * every transfer connection, queries that are never answered or answered with an error, failed transfers, pings without pong and
+ * connections that drop. The faults are random, but reproducible with {@link #setSeed(long)}.
+ *
+ * The websocket is plain (ws://), while the transfers use https with the self signed certificate in
+ * fake-server.jks, that {@link #install()} makes trusted.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class FakeGoBoxServer implements Closeable {
+
+    /**
+     * Token of the user accepted by the server
+     */
+    public static final String TOKEN = "fake-token";
+
+    private static final String KEY_STORE = "/fake-server.jks";
+
+    private static final char[] KEY_STORE_PASSWORD = "gobox-test".toCharArray();
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    private static final Logger log = Logger.getLogger(FakeGoBoxServer.class);
+
+    static {
+        // The server writes the headers and the body of a response apart: with Nagle the body of a response on a
+        // kept alive connection would wait for the delayed ack of the client
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final Gson gson = MyGsonBuilder.create();
+
+    private final JsonParser parser = new JsonParser();
+
+    private final FakeStorage storage = new FakeStorage(new FakeStorage.Listener() {
+        @Override
+        public void onSyncEvent(SyncEvent event) {
+            broadcast("syncEvent", gson.toJsonTree(event, SyncEvent.class));
+        }
+    });
+
+    private final Set<FakeWebSocket> connections = new CopyOnWriteArraySet<>();
+
+    private final ExecutorService workers = Executors.newCachedThreadPool();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    private final SSLContext sslContext;
+
+    private ServerSocket wsServer;
+
+    private HttpsServer httpsServer;
+
+    private Random random = new Random();
+
+    private volatile boolean storageConnected = true;
+    private volatile boolean acceptConnections = true;
+    private volatile boolean batchResponses = false;
+    private volatile boolean answerPings = true;
+    private volatile boolean batchFeature = true;
+    private volatile boolean checkToken = true;
+    private volatile boolean rangeRequests = true;
+    private volatile boolean hideLength = false;
+    private volatile boolean storeUploads = true;
+    private volatile long latency;
+    private volatile long jitter;
+    private volatile long bandwidth;
+    private volatile double dropRate;
+    private volatile double errorRate;
+
+    private final AtomicLong framesReceived = new AtomicLong();
+    private final AtomicLong refusedConnections = new AtomicLong();
+
+    /**
+     * Ids of the logical sessions seen in the messages received
+     */
+    private final Set<String> sessionIds = new CopyOnWriteArraySet<>();
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong droppedQueries = new AtomicLong();
+    private final AtomicLong downloads = new AtomicLong();
+    private final AtomicLong uploads = new AtomicLong();
+    private final AtomicLong chunks = new AtomicLong();
+    private final AtomicLong uploadedBytes = new AtomicLong();
+
+    /**
+     * Chunks of the uploads not yet completed, by upload id and index, and number of chunks to accept before
+     * failing the others (negative for no limit)
+     */
+    private final Map<String, Map<Integer, byte[]>> pendingChunks = new ConcurrentHashMap<>();
+    private final AtomicLong chunkLimit = new AtomicLong(-1);
+
+    /**
+     * Actions to run before answering the next query of an event
+     */
+    private final Map<String, Runnable> queryHooks = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new server, stopped
+     * @throws IOException The certificate can't be loaded
+     */
+    public FakeGoBoxServer() throws IOException {
+        try (InputStream in = FakeGoBoxServer.class.getResourceAsStream(KEY_STORE)) {
+            KeyStore keyStore = KeyStore.getInstance("JKS");
+            keyStore.load(in, KEY_STORE_PASSWORD);
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(keyStore, KEY_STORE_PASSWORD);
+            TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trust.init(keyStore);
+            sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("Cannot load the certificate: " + ex.toString());
+        }
+    }
+
+    /**
+     * Start listening on two random ports of the loopback interface
+     * @throws IOException The ports can't be opened
+     */
+    public void start() throws IOException {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        wsServer = new ServerSocket(0, 50, loopback);
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+
+        httpsServer = HttpsServer.create(new InetSocketAddress(loopback, 0), 50);
+        httpsServer.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+        httpsServer.setExecutor(workers);
+        httpsServer.createContext("/api/transfer/fromStorage", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                download(exchange);
+            }
+        });
+        httpsServer.createContext("/api/transfer/toStorage", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                upload(exchange);
+            }
+        });
+        httpsServer.createContext("/api/transfer/toStorage/chunk", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                uploadChunk(exchange);
+            }
+        });
+        httpsServer.createContext("/api/user/check", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                checkToken(exchange);
+            }
+        });
+        httpsServer.createContext("/api/user/login", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                login(exchange);
+            }
+        });
+        httpsServer.start();
+        log.info("Fake server listening on ws port " + wsServer.getLocalPort() + ", https port "
+                + httpsServer.getAddress().getPort());
+    }
+
+    /**
+     * Point the default urls of the library to this server, and trust its certificate in the https connections
+     * made after this call. This changes the defaults of the whole JVM, so it's meant only for the tests
+     * @throws IOException The urls can't be loaded
+     */
+    public void install() throws IOException {
+        Properties urls = new Properties();
+        String ws = "ws://127.0.0.1:" + wsServer.getLocalPort() + "/api/ws/";
+        String https = "https://127.0.0.1:" + httpsServer.getAddress().getPort() + "/api/";
+        urls.setProperty("socketClient", ws + "client");
+        urls.setProperty("socketStorage", ws + "storage");
+        urls.setProperty("uploadFile", https + "transfer/toStorage");
+        urls.setProperty("uploadChunk", https + "transfer/toStorage/chunk");
+        urls.setProperty("getFile", https + "transfer/fromStorage");
+        urls.setProperty("authCheck", https + "user/check");
+        urls.setProperty("login", https + "user/login");
+        StringWriter text = new StringWriter();
+        urls.store(text, null);
+        URLBuilder.DEFAULT.load(new ByteArrayInputStream(text.toString().getBytes(StandardCharsets.ISO_8859_1)));
+        HttpsURLConnection.setDefaultSSLSocketFactory(sslContext.getSocketFactory());
+    }
+
+    /**
+     * Return the context with the certificate of the server, to trust it without {@link #install()}
+     * @return SSL context
+     */
+    public SSLContext getSslContext() {
+        return sslContext;
+    }
+
+    public FakeStorage getStorage() {
+        return storage;
+    }
+
+    private void accept() {
+        while (!wsServer.isClosed()) {
+            final Socket socket;
+            try {
+                socket = wsServer.accept();
+                socket.setTcpNoDelay(true);
+            } catch (IOException ex) {
+                return;
+            }
+            if (!acceptConnections) {
+                refusedConnections.incrementAndGet();
+                try {
+                    socket.close();
+                } catch (IOException ignored) { }
+                continue;
+            }
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            });
+        }
+    }
+
+    /**
+     * Serve a websocket connection until it's closed
+     */
+    private void serve(Socket socket) {
+        FakeWebSocket ws = null;
+        try {
+            ws = new FakeWebSocket(socket);
+            if (!ws.handshake(batchFeature ? MyWSClient.BATCH_FEATURE : null, checkToken ? "Bearer " + TOKEN : null))
+                return;
+            ws.setAnswerPings(answerPings);
+            connections.add(ws);
+            send(ws, storageInfo(null));
+            ws.read(new FakeWebSocket.Listener() {
+                @Override
+                public void onMessage(FakeWebSocket ws, String message) {
+                    onFrame(ws, message);
+                }
+            });
+        } catch (IOException ex) {
+            log.debug("Websocket connection closed: " + ex.toString());
+        } finally {
+            if (ws != null) {
+                connections.remove(ws);
+                ws.close();
+            }
+        }
+    }
+
+    private void onFrame(FakeWebSocket ws, String text) {
+        framesReceived.incrementAndGet();
+        JsonObject frame;
+        try {
+            frame = parser.parse(text).getAsJsonObject();
+        } catch (JsonParseException | IllegalStateException ex) {
+            log.warn("Malformed message: " + text);
+            return;
+        }
+        if (!MyWSClient.BATCH_EVENT.equals(frame.get("event").getAsString())) {
+            later(ws, onMessage(ws, frame));
+            return;
+        }
+        List<JsonObject> responses = new ArrayList<>();
+        JsonElement session = frame.get("_sessionId");
+        for (JsonElement element : frame.getAsJsonArray("data")) {
+            JsonObject message = element.getAsJsonObject();
+            if (session != null && !message.has("_sessionId"))
+                message.add("_sessionId", session);
+            responses.addAll(onMessage(ws, message));
+        }
+        if (batchResponses && responses.size() > 1) {
+            later(ws, Collections.singletonList(batchOf(responses)));
+        } else {
+            later(ws, responses);
+        }
+    }
+
+    /**
+     * Wrap the responses in a batch frame. If they all belong to the same session, the session is written only on
+     * the batch, and the messages inherit it
+     */
+    private static JsonObject batchOf(List<JsonObject> responses) {
+        JsonElement session = responses.get(0).get("_sessionId");
+        boolean sameSession = true;
+        for (JsonObject response : responses)
+            sameSession &= session == null ? !response.has("_sessionId") : session.equals(response.get("_sessionId"));
+        JsonArray data = new JsonArray();
+        for (JsonObject response : responses) {
+            if (sameSession)
+                response.remove("_sessionId");
+            data.add(response);
+        }
+        JsonObject batch = new JsonObject();
+        batch.addProperty("event", MyWSClient.BATCH_EVENT);
+        if (sameSession && session != null)
+            batch.add("_sessionId", session);
+        batch.add("data", data);
+        return batch;
+    }
+
+    /**
+     * Handle a message
+     * @return Frames to send in response
+     */
+    private List<JsonObject> onMessage(FakeWebSocket ws, JsonObject message) {
+        String event = message.get("event").getAsString();
+        String sessionId = message.has("_sessionId") ? message.get("_sessionId").getAsString() : null;
+        if (sessionId != null)
+            sessionIds.add(sessionId);
+        if (!message.has("_queryId")) {
+            if (MyWSClient.CLOSE_SESSION_EVENT.equals(event))
+                ws.sessions.remove(sessionId);
+            return Collections.emptyList();
+        }
+        queries.incrementAndGet();
+        if (chance(dropRate)) {
+            droppedQueries.incrementAndGet();
+            return Collections.emptyList();
+        }
+        Runnable hook = queryHooks.remove(event);
+        if (hook != null)
+            hook.run();
+
+        List<JsonObject> frames = new ArrayList<>(2);
+        JsonObject response = new JsonObject();
+        response.addProperty("event", "queryResponse");
+        response.add("_queryId", message.get("_queryId"));
+        if (sessionId != null)
+            response.addProperty("_sessionId", sessionId);
+        frames.add(response);
+        if (chance(errorRate)) {
+            response.add("data", FakeStorage.error("Injected fault"));
+        } else if (MyWSClient.OPEN_SESSION_EVENT.equals(event)) {
+            ws.sessions.add(sessionId);
+            JsonObject success = new JsonObject();
+            success.addProperty("success", true);
+            response.add("data", success);
+            frames.add(storageInfo(sessionId));
+        } else {
+            response.add("data", storage.query(event, message.get("data")));
+        }
+        return frames;
+    }
+
+    /**
+     * Send some frames after the latency
+     */
+    private void later(final FakeWebSocket ws, final List<JsonObject> frames) {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                for (JsonObject frame : frames)
+                    send(ws, frame);
+            }
+        };
+        long delay = delay();
+        if (delay <= 0) {
+            task.run();
+            return;
+        }
+        try {
+            scheduler.schedule(task, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ignored) { }
+    }
+
+    private void send(FakeWebSocket ws, JsonObject frame) {
+        try {
+            ws.send(frame.toString());
+        } catch (IOException ex) {
+            log.debug("Cannot send a message: " + ex.toString());
+        }
+    }
+
+    /**
+     * Send an event to all the clients, once for every logical session
+     */
+    private void broadcast(String event, JsonElement data) {
+        for (FakeWebSocket ws : connections) {
+            if (ws.sessions.isEmpty()) {
+                later(ws, Collections.singletonList(event(event, data, null)));
+                continue;
+            }
+            for (String session : ws.sessions)
+                later(ws, Collections.singletonList(event(event, data, session)));
+        }
+    }
+
+    private static JsonObject event(String event, JsonElement data, String sessionId) {
+        JsonObject json = new JsonObject();
+        json.addProperty("event", event);
+        json.add("data", data);
+        if (sessionId != null)
+            json.addProperty("_sessionId", sessionId);
+        return json;
+    }
+
+    private JsonObject storageInfo(String sessionId) {
+        JsonObject data = new JsonObject();
+        data.addProperty("connected", storageConnected);
+        return event("storageInfo", data, sessionId);
+    }
+
+    private void download(HttpExchange exchange) throws IOException {
+        try {
+            if (!authorized(exchange))
+                return;
+            Map<String, JsonElement> params = params(exchange.getRequestURI());
+            byte[] content = params.containsKey("ID") ? storage.read(params.get("ID").getAsLong()) : null;
+            if (content == null) {
+                respond(exchange, 404, null);
+                return;
+            }
+            int from = 0;
+            int to = content.length - 1;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range != null && rangeRequests) {
+
+                // Only a single range in the form 'bytes=from-to' or 'bytes=from-'
+                Matcher matcher = RANGE.matcher(range);
+                if (!matcher.matches() || Long.parseLong(matcher.group(1)) >= content.length) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + content.length);
+                    respond(exchange, 416, null);
+                    return;
+                }
+                from = Integer.parseInt(matcher.group(1));
+                if (!matcher.group(2).isEmpty())
+                    to = (int) Math.min(to, Long.parseLong(matcher.group(2)));
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" +
+                        (hideLength ? "*" : String.valueOf(content.length)));
+            }
+            exchange.getResponseHeaders().set("Accept-Ranges", rangeRequests ? "bytes" : "none");
+            exchange.sendResponseHeaders(range != null && rangeRequests ? 206 : 200, to - from + 1);
+            try (OutputStream out = exchange.getResponseBody()) {
+                copy(new ByteArrayInputStream(content, from, to - from + 1), out);
+            }
+            downloads.incrementAndGet();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void upload(HttpExchange exchange) throws IOException {
+        try {
+            if (!authorized(exchange))
+                return;
+            JsonElement json = params(exchange.getRequestURI()).get("json");
+            if (json == null || !"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 400, null);
+                return;
+            }
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            CountingOutputStream counter = new CountingOutputStream(storeUploads ? content : ByteStreams.nullOutputStream());
+            try (InputStream in = exchange.getRequestBody()) {
+                copy(in, counter);
+            }
+            uploadedBytes.addAndGet(counter.getCount());
+            GBFile stored = storage.upload(gson.fromJson(json, GBFile.class), content.toByteArray());
+            if (stored == null) {
+                respond(exchange, 404, null);
+                return;
+            }
+            uploads.incrementAndGet();
+            respond(exchange, 200, null);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void uploadChunk(HttpExchange exchange) throws IOException {
+        try {
+            if (!authorized(exchange))
+                return;
+            JsonElement json = params(exchange.getRequestURI()).get("json");
+            if (json == null || !json.isJsonObject() || !"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 400, null);
+                return;
+            }
+            JsonObject request = json.getAsJsonObject();
+            String id = request.get("upload").getAsString();
+            if (!pendingChunks.containsKey(id))
+                pendingChunks.put(id, new ConcurrentHashMap<Integer, byte[]>());
+            Map<Integer, byte[]> received = pendingChunks.get(id);
+
+            if (request.has("complete")) {
+                ByteStreams.copy(exchange.getRequestBody(), ByteStreams.nullOutputStream());
+                int count = request.get("chunks").getAsInt();
+                JsonArray missing = new JsonArray();
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                for (int i = 0; i < count; i++) {
+                    if (received.containsKey(i)) {
+                        content.write(received.get(i));
+                    } else {
+                        missing.add(new JsonPrimitive(i));
+                    }
+                }
+                if (missing.size() > 0) {
+                    JsonObject response = new JsonObject();
+                    response.add("missing", missing);
+                    respond(exchange, 409, response);
+                    return;
+                }
+                GBFile stored = storage.upload(gson.fromJson(request.get("file"), GBFile.class), content.toByteArray());
+                pendingChunks.remove(id);
+                if (stored == null) {
+                    respond(exchange, 404, null);
+                    return;
+                }
+                uploads.incrementAndGet();
+                respond(exchange, 200, null);
+                return;
+            }
+
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            try (InputStream in = exchange.getRequestBody()) {
+                copy(in, content);
+            }
+            long limit;
+            do {
+                limit = chunkLimit.get();
+            } while (limit > 0 && !chunkLimit.compareAndSet(limit, limit - 1));
+            if (limit == 0) {
+                respond(exchange, 503, null);
+                return;
+            }
+            received.put(request.get("chunk").getAsInt(), content.toByteArray());
+            chunks.incrementAndGet();
+            respond(exchange, 200, null);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void checkToken(HttpExchange exchange) throws IOException {
+        try {
+            pause();
+            JsonObject response = new JsonObject();
+            boolean valid = !checkToken || ("Bearer " + TOKEN).equals(exchange.getRequestHeaders().getFirst("Authorization"));
+            response.addProperty("state", valid ? "valid" : "invalid");
+            if (valid)
+                response.addProperty("newOne", TOKEN);
+            respond(exchange, 200, response);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void login(HttpExchange exchange) throws IOException {
+        try {
+            pause();
+            ByteStreams.copy(exchange.getRequestBody(), ByteStreams.nullOutputStream());
+            JsonObject response = new JsonObject();
+            response.addProperty("result", "logged in");
+            response.addProperty("token", TOKEN);
+            respond(exchange, 200, response);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Apply the latency and the faults to a transfer, and check its token
+     * @return True if the request can be served
+     */
+    private boolean authorized(HttpExchange exchange) throws IOException {
+        pause();
+        if (chance(errorRate)) {
+            respond(exchange, 500, null);
+            return false;
+        }
+        if (checkToken && !("Bearer " + TOKEN).equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+            respond(exchange, 401, null);
+            return false;
+        }
+        return true;
+    }
+
+    private void pause() throws IOException {
+        long delay = delay();
+        if (delay <= 0)
+            return;
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int code, JsonObject body) throws IOException {
+        byte[] bytes = body == null ? new byte[0] : body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Parse the query parameters of a transfer url, whose values are json
+     */
+    private Map<String, JsonElement> params(URI uri) {
+        Map<String, JsonElement> params = new HashMap<>();
+        String query = uri.getRawQuery();
+        if (query == null)
+            return params;
+        for (String param : query.split("&")) {
+            int equal = param.indexOf('=');
+            if (equal < 0)
+                continue;
+            try {
+                params.put(URLDecoder.decode(param.substring(0, equal), "UTF-8"),
+                        parser.parse(URLDecoder.decode(param.substring(equal + 1), "UTF-8")));
+            } catch (UnsupportedEncodingException | JsonParseException ex) {
+                log.warn("Malformed parameter: " + param);
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Copy a stream, no faster than the bandwidth
+     */
+    private void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8 * 1024];
+        long start = System.nanoTime();
+        long copied = 0;
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+            copied += read;
+            long limit = bandwidth;
+            if (limit <= 0)
+                continue;
+            long ahead = copied * 1000 / limit - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (ahead > 0) {
+                try {
+                    Thread.sleep(ahead);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    private long delay() {
+        long delay = latency;
+        long spread = jitter;
+        return spread > 0 ? delay + (long) (nextDouble() * spread) : delay;
+    }
+
+    private boolean chance(double probability) {
+        return probability > 0 && nextDouble() < probability;
+    }
+
+    private synchronized double nextDouble() {
+        return random.nextDouble();
+    }
+
+    /**
+     * Set the time to wait before every response and event
+     * @param latency Latency in milliseconds
+     * @param jitter Maximum random time (in milliseconds) added to the latency
+     */
+    public void setLatency(long latency, long jitter) {
+        if (latency < 0 || jitter < 0)
+            throw new IllegalArgumentException("Latency cannot be negative");
+        this.latency = latency;
+        this.jitter = jitter;
+    }
+
+    /**
+     * Limit the speed of the uploads and of the downloads
+     * @param bytesPerSecond Speed of every transfer, 0 for no limit
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        this.bandwidth = Math.max(0, bytesPerSecond);
+    }
+
+    /**
+     * Set the probability that a query is never answered
+     * @param dropRate Probability from 0 to 1
+     */
+    public void setDropRate(double dropRate) {
+        this.dropRate = dropRate;
+    }
+
+    /**
+     * Set the probability that a query is answered with an error, and that a transfer fails with the 500 code
+     * @param errorRate Probability from 0 to 1
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Set the seed of the faults, to repeat the same sequence of faults
+     * @param seed Seed of the random generator
+     */
+    public synchronized void setSeed(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Choose if the pings of the clients are answered. This applies to the open connections too
+     * @param answerPings True to answer the pings
+     */
+    public void setAnswerPings(boolean answerPings) {
+        this.answerPings = answerPings;
+        for (FakeWebSocket ws : connections)
+            ws.setAnswerPings(answerPings);
+    }
+
+    /**
+     * Choose if the server advertises the batch frames in the handshake
+     * @param batchFeature True to advertise the batch frames
+     */
+    public void setBatchFeature(boolean batchFeature) {
+        this.batchFeature = batchFeature;
+    }
+
+    /**
+     * Choose if the requests must carry the token {@link #TOKEN}
+     * @param checkToken True to refuse the requests without the token
+     */
+    public void setCheckToken(boolean checkToken) {
+        this.checkToken = checkToken;
+    }
+
+    /**
+     * Choose if the downloads honor the Range header. Without, the whole file is sent with the 200 code
+     * @param rangeRequests True to serve the ranges
+     */
+    public void setRangeRequests(boolean rangeRequests) {
+        this.rangeRequests = rangeRequests;
+    }
+
+    /**
+     * Choose if the ranges hide the size of the file, with a Content-Range like 'bytes 0-99/*'
+     * @param hideLength True to hide the size of the file
+     */
+    public void setHideLength(boolean hideLength) {
+        this.hideLength = hideLength;
+    }
+
+    /**
+     * Connect or disconnect the simulated storage, notifying all the clients
+     * @param connected True if the storage is connected
+     */
+    public void setStorageConnected(boolean connected) {
+        storageConnected = connected;
+        for (FakeWebSocket ws : connections) {
+            if (ws.sessions.isEmpty())
+                send(ws, storageInfo(null));
+            for (String session : ws.sessions)
+                send(ws, storageInfo(session));
+        }
+    }
+
+    /**
+     * Choose if the new websocket connections are accepted. The refused ones are closed before the handshake, like
+     * a server that is restarting
+     * @param acceptConnections True to accept the new connections
+     */
+    public void setAcceptConnections(boolean acceptConnections) {
+        this.acceptConnections = acceptConnections;
+    }
+
+    /**
+     * Return the number of websocket connections closed because refused
+     * @return Number of refused connections
+     */
+    public long getRefusedConnections() {
+        return refusedConnections.get();
+    }
+
+    /**
+     * Run an action before answering the next query of an event
+     * @param event Name of the query
+     * @param hook Action to run once
+     */
+    public void beforeQuery(String event, Runnable hook) {
+        queryHooks.put(event, hook);
+    }
+
+    /**
+     * Choose if the responses to the messages of a batch frame are sent back in a single batch frame
+     * @param batchResponses True to answer the batches with batches
+     */
+    public void setBatchResponses(boolean batchResponses) {
+        this.batchResponses = batchResponses;
+    }
+
+    /**
+     * Return the ids of the logical sessions seen in the messages received
+     * @return Session ids
+     */
+    public Set<String> getSessionIds() {
+        return Collections.unmodifiableSet(sessionIds);
+    }
+
+    /**
+     * Return the number of logical sessions open on all the connections
+     * @return Number of sessions
+     */
+    public int getSessionCount() {
+        int count = 0;
+        for (FakeWebSocket ws : connections)
+            count += ws.sessions.size();
+        return count;
+    }
+
+    /**
+     * Drop all the websocket connections, without the close frame
+     */
+    public void disconnectAll() {
+        for (FakeWebSocket ws : connections)
+            ws.close();
+    }
+
+    public int getConnections() {
+        return connections.size();
+    }
+
+    public long getFramesReceived() {
+        return framesReceived.get();
+    }
+
+    public long getQueries() {
+        return queries.get();
+    }
+
+    public long getDroppedQueries() {
+        return droppedQueries.get();
+    }
+
+    public long getDownloads() {
+        return downloads.get();
+    }
+
+    public long getUploads() {
+        return uploads.get();
+    }
+
+    /**
+     * Return the number of bytes received by the uploads made with a single request
+     * @return Number of bytes
+     */
+    public long getUploadedBytes() {
+        return uploadedBytes.get();
+    }
+
+    /**
+     * Choose if the content of the uploads made with a single request is saved. Without, the content is read and
+     * discarded and the files are stored empty, so big uploads don't fill the memory of the tests
+     * @param storeUploads True to save the content
+     */
+    public void setStoreUploads(boolean storeUploads) {
+        this.storeUploads = storeUploads;
+    }
+
+    /**
+     * Return the number of chunks of the chunked uploads saved by the server
+     * @return Number of chunks
+     */
+    public long getChunks() {
+        return chunks.get();
+    }
+
+    /**
+     * Accept only some more chunks, and fail the following ones with the 503 code, like a connection that breaks
+     * in the middle of an upload
+     * @param chunks Number of chunks to accept, negative for no limit
+     */
+    public void setChunkLimit(long chunks) {
+        chunkLimit.set(chunks < 0 ? -1 : chunks);
+    }
+
+    /**
+     * Forget the chunks of the uploads not yet completed, like a storage that cleans the old uploads
+     */
+    public void discardChunks() {
+        pendingChunks.clear();
+    }
+
+    /**
+     * Stop the server and drop all the connections
+     */
+    @Override
+    public void close() {
+        if (httpsServer != null)
+            httpsServer.stop(0);
+        try {
+            if (wsServer != null)
+                wsServer.close();
+        } catch (IOException ignored) { }
+        disconnectAll();
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+    }
+}
@@ -0,0 +1,315 @@
+package it.simonedegiacomi.goboxapi.fake;
+
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.goboxapi.authentication.GBAuth;
+import it.simonedegiacomi.goboxapi.client.ClientException;
+import it.simonedegiacomi.goboxapi.client.GBClient;
+import it.simonedegiacomi.goboxapi.client.StandardGBClient;
+import it.simonedegiacomi.goboxapi.client.SyncEvent;
+import it.simonedegiacomi.goboxapi.client.SyncEventListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class FakeGoBoxServerTest {
+
+    private FakeGoBoxServer server;
+    private StandardGBClient client;
+
+    @Before
+    public void init () throws Exception {
+        server = new FakeGoBoxServer();
+        server.start();
+        server.install();
+        client = connect();
+    }
+
+    @After
+    public void stop () throws ClientException {
+        if (client.isReady())
+            client.shutdown();
+        server.close();
+    }
+
+    private static StandardGBClient connect () throws ClientException {
+        StandardGBClient client = new StandardGBClient(new GBAuth("test", FakeGoBoxServer.TOKEN));
+        assertTrue(client.init());
+        return client;
+    }
+
+    /**
+     * Create a file in the root. The client needs the path to filter the echo of its events
+     */
+    private static GBFile inRoot (String name, boolean isDirectory) {
+        GBFile file = new GBFile(name, GBFile.ROOT_ID, isDirectory);
+        file.setPathByString(name);
+        return file;
+    }
+
+    @Test
+    public void createFolderAndReadTree () throws ClientException {
+        server.getStorage().put("docs/readme.txt", new byte[10]);
+        GBFile music = inRoot("music", true);
+        client.createDirectory(music);
+        assertTrue(music.getID() > GBFile.ROOT_ID);
+
+        GBFile root = client.getInfo(GBFile.ROOT_FILE);
+        assertEquals(2, root.getChildren().size());
+        assertTrue(root.getChildren().contains(music));
+
+        GBFile readme = client.getInfo(new GBFile(server.getStorage().put("docs/readme.txt", null).getID()));
+        assertEquals("docs/readme.txt", readme.getPathAsString());
+        assertEquals(10, readme.getSize());
+    }
+
+    @Test
+    public void uploadAndDownload () throws Exception {
+        byte[] content = "Content of the file".getBytes(StandardCharsets.UTF_8);
+        GBFile file = inRoot("hello.txt", false);
+        file.setSize(content.length);
+        client.uploadFile(file, new ByteArrayInputStream(content));
+        assertEquals(1, server.getUploads());
+
+        GBFile stored = client.getInfo(GBFile.ROOT_FILE).getChildren().get(0);
+        ByteArrayOutputStream downloaded = new ByteArrayOutputStream();
+        client.getFile(stored, downloaded);
+        assertArrayEquals(content, downloaded.toByteArray());
+    }
+
+    @Test
+    public void uploadAndDownloadLocalFiles () throws Exception {
+        File folder = Files.createTempDirectory("gobox-local").toFile();
+        File source = new File(folder, "local.bin");
+        byte[] content = new byte[3 * 1024 * 1024 + 5];
+        new Random(8).nextBytes(content);
+        Files.write(source.toPath(), content);
+
+        GBFile file = new GBFile(source, folder.getPath() + File.separator);
+        file.setFatherID(GBFile.ROOT_ID);
+        client.uploadFile(file);
+        assertTrue(source.delete());
+
+        // Longer than the file, so it must be truncated
+        Files.write(source.toPath(), new byte[content.length * 2]);
+        GBFile stored = client.getInfo(GBFile.ROOT_FILE).getChildren().get(0);
+        stored.setPrefix(folder.getPath() + File.separator);
+        client.getFile(stored);
+        assertArrayEquals(content, Files.readAllBytes(source.toPath()));
+        source.delete();
+        folder.delete();
+    }
+
+    @Test
+    public void uploadWithoutSize () throws Exception {
+        byte[] content = new byte[200 * 1024 + 3];
+        new Random(5).nextBytes(content);
+        client.uploadFile(inRoot("unknown.bin", false), new ByteArrayInputStream(content));
+        assertEquals(content.length, server.getUploadedBytes());
+
+        GBFile stored = client.getInfo(GBFile.ROOT_FILE).getChildren().get(0);
+        assertEquals(content.length, stored.getSize());
+    }
+
+    @Test(expected = IOException.class)
+    public void failWhenTheStreamIsShorterThanTheSize () throws Exception {
+        GBFile file = inRoot("short.bin", false);
+        file.setSize(100);
+        client.uploadFile(file, new ByteArrayInputStream(new byte[50]));
+    }
+
+    @Test
+    public void notifyTheOtherClients () throws Exception {
+        final BlockingQueue<SyncEvent> events = new LinkedBlockingQueue<>();
+        client.addSyncEventListener(new SyncEventListener() {
+            @Override
+            public void on(SyncEvent event) {
+                events.add(event);
+            }
+        });
+
+        StandardGBClient other = connect();
+        try {
+            other.createDirectory(inRoot("shared", true));
+        } finally {
+            other.shutdown();
+        }
+        SyncEvent event = events.poll(5, TimeUnit.SECONDS);
+        assertNotNull(event);
+        assertEquals(SyncEvent.EventKind.FILE_CREATED, event.getKind());
+        assertEquals("shared", event.getRelativeFile().getName());
+    }
+
+    @Test
+    public void injectFaults () throws Exception {
+        server.setErrorRate(1);
+        try {
+            client.createDirectory(inRoot("broken", true));
+            fail("The injected error was not reported");
+        } catch (ClientException ex) {
+            assertTrue(ex.getMessage().contains("Injected fault"));
+        }
+
+        server.setErrorRate(0);
+        server.setDropRate(1);
+        client.setQueryTimeout(200);
+        try {
+            client.getInfo(GBFile.ROOT_FILE);
+            fail("The dropped query didn't time out");
+        } catch (ClientException ex) {
+            assertEquals(1, server.getDroppedQueries());
+        }
+    }
+
+    @Test
+    public void delayTheResponses () throws ClientException {
+        server.setLatency(100, 0);
+        long start = System.nanoTime();
+        client.getInfo(GBFile.ROOT_FILE);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 100);
+    }
+
+    /**
+     * Collect the sync events received by the client
+     */
+    private BlockingQueue<SyncEvent> collectEvents () {
+        final BlockingQueue<SyncEvent> events = new LinkedBlockingQueue<>();
+        client.addSyncEventListener(new SyncEventListener() {
+            @Override
+            public void on(SyncEvent event) {
+                events.add(event);
+            }
+        });
+        return events;
+    }
+
+    private CountDownLatch onReconnect () {
+        final CountDownLatch reconnected = new CountDownLatch(1);
+        client.onReconnect(new StandardGBClient.ReconnectedListener() {
+            @Override
+            public void onReconnect() {
+                reconnected.countDown();
+            }
+        });
+        return reconnected;
+    }
+
+    @Test
+    public void reconnectAfterADrop () throws Exception {
+        client.setReconnectBackoff(10, 50, -1);
+        CountDownLatch reconnected = onReconnect();
+        server.disconnectAll();
+        assertTrue(reconnected.await(5, TimeUnit.SECONDS));
+        assertTrue(client.isReady());
+        assertEquals(1, server.getConnections());
+        assertNotNull(client.getInfo(GBFile.ROOT_FILE));
+    }
+
+    @Test
+    public void replayTheMissedEventsOnceAndInOrder () throws Exception {
+        BlockingQueue<SyncEvent> events = collectEvents();
+        server.getStorage().upload(inRoot("before.txt", false), new byte[1]);
+        SyncEvent before = events.poll(5, TimeUnit.SECONDS);
+        assertNotNull(before);
+
+        client.setReconnectBackoff(10, 50, -1);
+        CountDownLatch reconnected = onReconnect();
+        server.setAcceptConnections(false);
+        server.disconnectAll();
+        for (int i = 0; i < 3; i++)
+            server.getStorage().upload(inRoot("missed-" + i + ".txt", false), new byte[1]);
+        server.setAcceptConnections(true);
+        assertTrue(reconnected.await(5, TimeUnit.SECONDS));
+
+        // A live event after the replay
+        server.getStorage().upload(inRoot("after.txt", false), new byte[1]);
+        List<String> names = new ArrayList<>();
+        long lastId = before.getID();
+        for (int i = 0; i < 4; i++) {
+            SyncEvent event = events.poll(5, TimeUnit.SECONDS);
+            assertNotNull(event);
+            assertTrue(event.getID() > lastId);
+            lastId = event.getID();
+            names.add(event.getRelativeFile().getName());
+        }
+        assertEquals(Arrays.asList("missed-0.txt", "missed-1.txt", "missed-2.txt", "after.txt"), names);
+        assertNull(events.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void holdTheLiveEventsBackDuringTheReplay () throws Exception {
+        BlockingQueue<SyncEvent> events = collectEvents();
+        server.getStorage().upload(inRoot("before.txt", false), new byte[1]);
+        SyncEvent before = events.poll(5, TimeUnit.SECONDS);
+        assertNotNull(before);
+
+        client.setReconnectBackoff(10, 50, -1);
+        CountDownLatch reconnected = onReconnect();
+        server.setAcceptConnections(false);
+        server.disconnectAll();
+        for (int i = 0; i < 3; i++)
+            server.getStorage().upload(inRoot("missed-" + i + ".txt", false), new byte[1]);
+
+        // A live event reaches the new connection while the missed ones are asked
+        server.beforeQuery("recent", new Runnable() {
+            @Override
+            public void run() {
+                server.getStorage().upload(inRoot("during.txt", false), new byte[1]);
+            }
+        });
+        server.setAcceptConnections(true);
+        assertTrue(reconnected.await(5, TimeUnit.SECONDS));
+
+        List<String> names = new ArrayList<>();
+        long lastId = before.getID();
+        for (int i = 0; i < 4; i++) {
+            SyncEvent event = events.poll(5, TimeUnit.SECONDS);
+            assertNotNull(event);
+            assertTrue(event.getID() > lastId);
+            lastId = event.getID();
+            names.add(event.getRelativeFile().getName());
+        }
+        assertEquals(Arrays.asList("missed-0.txt", "missed-1.txt", "missed-2.txt", "during.txt"), names);
+        assertNull(events.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void notifyTheDisconnectionOnlyAfterTheLastAttempt () throws Exception {
+        final AtomicLong refusedWhenNotified = new AtomicLong(-1);
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        client.onDisconnect(new StandardGBClient.DisconnectedListener() {
+            @Override
+            public void onDisconnect() {
+                refusedWhenNotified.set(server.getRefusedConnections());
+                disconnected.countDown();
+            }
+        });
+        client.setReconnectBackoff(10, 20, 3);
+        server.setAcceptConnections(false);
+        server.disconnectAll();
+        assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+        assertEquals(3, refusedWhenNotified.get());
+        assertEquals(GBClient.ClientState.NOT_READY, client.getState());
+    }
+}
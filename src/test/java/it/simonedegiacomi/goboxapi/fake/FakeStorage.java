@@ -0,0 +1,405 @@
+package it.simonedegiacomi.goboxapi.fake;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.goboxapi.client.SyncEvent;
+import it.simonedegiacomi.goboxapi.utils.MyGsonBuilder;
+
+import java.util.*;
+
+/**
+ * In memory storage of the fake server. It keeps the tree of the files with their content and the list of the
+ * events, and answers the queries of the clients like the real storage.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class FakeStorage {
+
+    /**
+     * Listener of the events generated by the storage
+     */
+    interface Listener {
+
+        /**
+         * Called when a file changes
+         * @param event Event of the change
+         */
+        void onSyncEvent(SyncEvent event);
+    }
+
+    private final Gson gson = MyGsonBuilder.create();
+
+    private final Listener listener;
+
+    /**
+     * Files of the storage, without path and children.
+     * ID => File
+     */
+    private final Map<Long, GBFile> files = new HashMap<>();
+
+    /**
+     * Content of the files that are not folders.
+     * ID => Content
+     */
+    private final Map<Long, byte[]> contents = new HashMap<>();
+
+    private final Set<Long> shared = new HashSet<>();
+
+    private final List<SyncEvent> events = new ArrayList<>();
+
+    private long nextFileId = GBFile.ROOT_ID + 1;
+
+    private long nextEventId = 1;
+
+    FakeStorage(Listener listener) {
+        this.listener = listener;
+        files.put(GBFile.ROOT_ID, new GBFile(GBFile.ROOT_ID, GBFile.ROOT_FATHER_ID, "", true));
+    }
+
+    /**
+     * Add a file to the storage, without generating an event. Useful to prepare the tree of a test
+     * @param path Path of the file, the missing folders are created
+     * @param content Content of the file, null to create a folder
+     * @return Information of the new file
+     */
+    public synchronized GBFile put(String path, byte[] content) {
+        GBFile father = files.get(GBFile.ROOT_ID);
+        String[] pieces = path.split("/");
+        for (int i = 0; i < pieces.length - 1; i++) {
+            GBFile folder = childOf(father.getID(), pieces[i]);
+            father = folder != null ? folder : add(new GBFile(pieces[i], father.getID(), true));
+        }
+        GBFile file = childOf(father.getID(), pieces[pieces.length - 1]);
+        if (file == null)
+            file = add(new GBFile(pieces[pieces.length - 1], father.getID(), content == null));
+        if (content != null)
+            write(file, content);
+        return view(file, false);
+    }
+
+    /**
+     * Return the content of a file
+     * @param id ID of the file
+     * @return Content of the file, null if it doesn't exist or it's a folder
+     */
+    public synchronized byte[] read(long id) {
+        return contents.get(id);
+    }
+
+    /**
+     * Create or replace a file uploaded by a client
+     * @param file File sent by the client, with the father ID or the path
+     * @param content Content of the file
+     * @return Information of the stored file, null if the folder of the file doesn't exist
+     */
+    synchronized GBFile upload(GBFile file, byte[] content) {
+        GBFile existing = resolve(file);
+        if (existing != null) {
+            write(existing, content);
+            event(SyncEvent.EventKind.FILE_MODIFIED, existing, null);
+            return view(existing, false);
+        }
+        GBFile father = fatherOf(file);
+        if (father == null || !father.isDirectory())
+            return null;
+        GBFile created = add(new GBFile(file.getName(), father.getID(), false));
+        created.setMime(file.getMime());
+        write(created, content);
+        event(SyncEvent.EventKind.FILE_CREATED, created, null);
+        return view(created, false);
+    }
+
+    /**
+     * Return the number of files in the storage, folders and root included
+     * @return Number of files
+     */
+    public synchronized int getFileCount() {
+        return files.size();
+    }
+
+    /**
+     * Answer a query
+     * @param name Name of the query
+     * @param data Data of the query
+     * @return Response of the query
+     */
+    synchronized JsonElement query(String name, JsonElement data) {
+        JsonObject request = data != null && data.isJsonObject() ? data.getAsJsonObject() : new JsonObject();
+        switch (name) {
+            case "info":
+                return info(request);
+            case "createFolder":
+                return createFolder(gson.fromJson(request, GBFile.class));
+            case "trashFile":
+                return trash(gson.fromJson(request.get("file"), GBFile.class), request.get("toTrash").getAsBoolean());
+            case "removeFile":
+                return remove(gson.fromJson(request, GBFile.class));
+            case "share":
+                return share(request.get("ID").getAsLong(), request.get("share").getAsBoolean());
+            case "getSharedFiles":
+                return filesResponse(filter(shared), 0, Long.MAX_VALUE);
+            case "trashed":
+                return filesResponse(trashed(), 0, Long.MAX_VALUE);
+            case "emptyTrash":
+                for (GBFile file : trashed())
+                    delete(file.getID());
+                return success();
+            case "search":
+                return search(request);
+            case "recent":
+                return recent(request.get("from").getAsLong(), request.get("size").getAsLong());
+            case "move":
+                return move(gson.fromJson(request.get("src"), GBFile.class),
+                        gson.fromJson(request.get("dst"), GBFile.class), request.get("copy").getAsBoolean());
+            default:
+                return error("Unknown query: " + name);
+        }
+    }
+
+    private JsonElement info(JsonObject request) {
+        GBFile file = resolve(gson.fromJson(request.get("file"), GBFile.class));
+        JsonObject response = success();
+        response.addProperty("found", file != null);
+        if (file != null) {
+            boolean children = request.has("findChildren") && request.get("findChildren").getAsBoolean();
+            response.add("file", gson.toJsonTree(view(file, children), GBFile.class));
+        }
+        return response;
+    }
+
+    private JsonElement createFolder(GBFile request) {
+        GBFile father = fatherOf(request);
+        if (father == null || !father.isDirectory())
+            return error("Father not found");
+        if (childOf(father.getID(), request.getName()) != null)
+            return error("File already exists");
+        GBFile folder = add(new GBFile(request.getName(), father.getID(), true));
+        event(SyncEvent.EventKind.FILE_CREATED, folder, null);
+        JsonObject response = success();
+        response.addProperty("newFolderId", folder.getID());
+        return response;
+    }
+
+    private JsonElement trash(GBFile request, boolean toTrash) {
+        GBFile file = resolve(request);
+        if (file == null || file.getID() == GBFile.ROOT_ID)
+            return error("File not found");
+        file.setTrashed(toTrash);
+        event(toTrash ? SyncEvent.EventKind.FILE_TRASHED : SyncEvent.EventKind.FILE_RECOVERED, file, null);
+        return success();
+    }
+
+    private JsonElement remove(GBFile request) {
+        GBFile file = resolve(request);
+        if (file == null || file.getID() == GBFile.ROOT_ID)
+            return error("File not found");
+        GBFile removed = view(file, false);
+        delete(file.getID());
+        event(SyncEvent.EventKind.FILE_DELETED, removed, null);
+        return success();
+    }
+
+    private JsonElement share(long id, boolean share) {
+        GBFile file = files.get(id);
+        if (file == null)
+            return error("File not found");
+        if (share ? shared.add(id) : shared.remove(id))
+            event(share ? SyncEvent.EventKind.FILE_SHARED : SyncEvent.EventKind.FILE_UNSHARED, file, null);
+        return success();
+    }
+
+    private JsonElement search(JsonObject request) {
+        String keyword = request.has("keyword") ? request.get("keyword").getAsString().toLowerCase() : "";
+        String kind = request.has("kind") ? request.get("kind").getAsString() : null;
+        List<GBFile> found = new ArrayList<>();
+        for (GBFile file : files.values()) {
+            if (file.getID() == GBFile.ROOT_ID || file.isTrashed())
+                continue;
+            if (!file.getName().toLowerCase().contains(keyword))
+                continue;
+            if (kind != null && (file.getMime() == null || !file.getMime().startsWith(kind)))
+                continue;
+            found.add(file);
+        }
+        long from = request.has("from") ? request.get("from").getAsLong() : 0;
+        return filesResponse(found, from, request.has("size") ? request.get("size").getAsLong() : Long.MAX_VALUE);
+    }
+
+    private JsonElement recent(long from, long size) {
+        List<SyncEvent> newest = new ArrayList<>(events);
+        Collections.reverse(newest);
+        JsonObject response = success();
+        response.add("events", gson.toJsonTree(slice(newest, from, size)));
+        return response;
+    }
+
+    private JsonElement move(GBFile srcRequest, GBFile dstRequest, boolean copy) {
+        GBFile src = resolve(srcRequest);
+        GBFile father = fatherOf(dstRequest);
+        if (src == null || src.getID() == GBFile.ROOT_ID)
+            return error("File not found");
+        if (father == null || !father.isDirectory())
+            return error("Destination not found");
+        String name = dstRequest.getName() != null ? dstRequest.getName() : src.getName();
+        if (childOf(father.getID(), name) != null)
+            return error("File already exists");
+        GBFile before = view(src, false);
+        GBFile target;
+        if (copy) {
+            target = copyOf(src, father.getID(), name);
+        } else {
+            src.setFatherID(father.getID());
+            src.setName(name);
+            target = src;
+        }
+        event(copy ? SyncEvent.EventKind.FILE_COPIED : SyncEvent.EventKind.FILE_MOVED, target, before);
+        return success();
+    }
+
+    private GBFile copyOf(GBFile src, long fatherID, String name) {
+        GBFile copy = add(new GBFile(name, fatherID, src.isDirectory()));
+        copy.setMime(src.getMime());
+        if (contents.containsKey(src.getID()))
+            write(copy, contents.get(src.getID()));
+        for (GBFile child : childrenOf(src.getID()))
+            copyOf(child, copy.getID(), child.getName());
+        return copy;
+    }
+
+    private GBFile add(GBFile file) {
+        long now = System.currentTimeMillis();
+        file.setID(nextFileId++);
+        file.setCreationDate(now);
+        file.setLastUpdateDate(now);
+        files.put(file.getID(), file);
+        return file;
+    }
+
+    private void write(GBFile file, byte[] content) {
+        contents.put(file.getID(), content);
+        file.setSize(content.length);
+        file.setLastUpdateDate(System.currentTimeMillis());
+    }
+
+    private void delete(long id) {
+        for (GBFile child : childrenOf(id))
+            delete(child.getID());
+        files.remove(id);
+        contents.remove(id);
+        shared.remove(id);
+    }
+
+    private void event(SyncEvent.EventKind kind, GBFile file, GBFile before) {
+        SyncEvent event = new SyncEvent(kind, view(file, false));
+        event.setID(nextEventId++);
+        event.setBefore(before);
+        events.add(event);
+        listener.onSyncEvent(event);
+    }
+
+    /**
+     * Find the file of the storage described by a file of a request: by ID if it's known, otherwise by father and
+     * name, otherwise by path
+     */
+    private GBFile resolve(GBFile request) {
+        if (request == null)
+            return null;
+        if (request.getID() != GBFile.UNKNOWN_ID)
+            return files.get(request.getID());
+        GBFile father = fatherOf(request);
+        return father == null ? null : childOf(father.getID(), request.getName());
+    }
+
+    private GBFile fatherOf(GBFile request) {
+        if (request.getFatherID() != GBFile.UNKNOWN_ID)
+            return files.get(request.getFatherID());
+        GBFile father = files.get(GBFile.ROOT_ID);
+        List<GBFile> path = request.getPathAsList();
+        if (path == null)
+            return father;
+        for (int i = 0; father != null && i < path.size() - 1; i++)
+            father = childOf(father.getID(), path.get(i).getName());
+        return father;
+    }
+
+    private GBFile childOf(long fatherID, String name) {
+        for (GBFile file : files.values())
+            if (file.getFatherID() == fatherID && file.getName().equals(name))
+                return file;
+        return null;
+    }
+
+    private List<GBFile> childrenOf(long fatherID) {
+        List<GBFile> children = new ArrayList<>();
+        for (GBFile file : files.values())
+            if (file.getFatherID() == fatherID && file.getID() != GBFile.ROOT_ID)
+                children.add(file);
+        return children;
+    }
+
+    private List<GBFile> trashed() {
+        List<GBFile> trashed = new ArrayList<>();
+        for (GBFile file : files.values())
+            if (file.isTrashed())
+                trashed.add(file);
+        return trashed;
+    }
+
+    private List<GBFile> filter(Collection<Long> ids) {
+        List<GBFile> found = new ArrayList<>();
+        for (Long id : ids)
+            found.add(files.get(id));
+        return found;
+    }
+
+    /**
+     * Return a copy of a file to send to a client, with the path and, if requested, the children
+     */
+    private GBFile view(GBFile file, boolean withChildren) {
+        GBFile view = gson.fromJson(gson.toJsonTree(file, GBFile.class), GBFile.class);
+        LinkedList<GBFile> path = new LinkedList<>();
+        for (GBFile father = files.get(file.getFatherID()); father != null && father.getID() != GBFile.ROOT_ID;
+             father = files.get(father.getFatherID()))
+            path.addFirst(new GBFile(father.getID(), father.getFatherID(), father.getName(), true));
+        path.add(view);
+        view.setPathByList(path);
+        if (withChildren && file.isDirectory()) {
+            List<GBFile> children = new ArrayList<>();
+            for (GBFile child : childrenOf(file.getID()))
+                children.add(view(child, false));
+            view.setChildren(children);
+        }
+        return view;
+    }
+
+    private JsonObject filesResponse(List<GBFile> found, long from, long size) {
+        List<GBFile> views = new ArrayList<>();
+        for (GBFile file : slice(found, from, size))
+            views.add(view(file, false));
+        JsonObject response = success();
+        response.add("files", gson.toJsonTree(views));
+        return response;
+    }
+
+    private static <T> List<T> slice(List<T> list, long from, long size) {
+        int start = (int) Math.min(list.size(), Math.max(0, from));
+        int end = (int) Math.min(list.size(), start + Math.max(0, Math.min(size, Integer.MAX_VALUE)));
+        return list.subList(start, end);
+    }
+
+    private static JsonObject success() {
+        JsonObject response = new JsonObject();
+        response.addProperty("success", true);
+        return response;
+    }
+
+    static JsonObject error(String error) {
+        JsonObject response = new JsonObject();
+        response.addProperty("success", false);
+        response.addProperty("error", error);
+        return response;
+    }
+}
@@ -0,0 +1,249 @@
+package it.simonedegiacomi.goboxapi.fake;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Server side of a websocket connection (RFC 6455), just enough to talk with {@link
+ * it.simonedegiacomi.goboxapi.myws.MyWSClient}: text messages, fragmentation, ping, pong and close. The extensions
+ * are not supported.
+ *
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+class FakeWebSocket implements Closeable {
+
+    /**
+     * Listener of the messages received
+     */
+    interface Listener {
+
+        /**
+         * Called for every text message received
+         * @param ws Connection that received the message
+         * @param message Text of the message
+         */
+        void onMessage(FakeWebSocket ws, String message);
+    }
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private static final int CONTINUATION = 0x0;
+    private static final int TEXT = 0x1;
+    private static final int CLOSE = 0x8;
+    private static final int PING = 0x9;
+    private static final int PONG = 0xA;
+
+    /**
+     * Maximum size of a message, to not run out of memory with a broken client
+     */
+    private static final int MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
+
+    private final Socket socket;
+
+    private final DataInputStream in;
+
+    private final OutputStream out;
+
+    /**
+     * Headers of the handshake request, with the names in lower case
+     */
+    private final Map<String, String> headers = new HashMap<>();
+
+    /**
+     * Logical sessions opened on this connection
+     */
+    final Set<String> sessions = new CopyOnWriteArraySet<>();
+
+    private volatile boolean answerPings = true;
+
+    FakeWebSocket(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    /**
+     * Read the handshake request and answer it
+     * @param features Value of the features header of the response
+     * @param authorization Authorization header that the client must send, null to accept any client
+     * @return True if the connection was upgraded to websocket
+     * @throws IOException Network error
+     */
+    boolean handshake(String features, String authorization) throws IOException {
+        String requestLine = readLine();
+        if (requestLine == null || !requestLine.startsWith("GET "))
+            return refuse("400 Bad Request");
+        String line;
+        while ((line = readLine()) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0)
+                headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+        }
+        String key = headers.get("sec-websocket-key");
+        if (key == null || !"websocket".equalsIgnoreCase(headers.get("upgrade")))
+            return refuse("400 Bad Request");
+        if (authorization != null && !authorization.equals(headers.get("authorization")))
+            return refuse("401 Unauthorized");
+
+        String accept = BaseEncoding.base64().encode(Hashing.sha1()
+                .hashString(key + ACCEPT_GUID, StandardCharsets.UTF_8).asBytes());
+        StringBuilder response = new StringBuilder("HTTP/1.1 101 Switching Protocols\r\n")
+                .append("Upgrade: websocket\r\n")
+                .append("Connection: Upgrade\r\n")
+                .append("Sec-WebSocket-Accept: ").append(accept).append("\r\n");
+        if (features != null)
+            response.append("X-GoBox-Features: ").append(features).append("\r\n");
+        response.append("\r\n");
+        synchronized (this) {
+            out.write(response.toString().getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+        return true;
+    }
+
+    private boolean refuse(String status) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        close();
+        return false;
+    }
+
+    /**
+     * Read a line of the handshake. The stream is read a byte at a time, so the frames that follow are not consumed
+     * @return Line without the terminator, null at the end of the stream
+     */
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int read;
+        while ((read = in.read()) >= 0 && read != '\n')
+            if (read != '\r')
+                line.write(read);
+        return read < 0 && line.size() == 0 ? null : new String(line.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Return a header of the handshake request
+     * @param name Name of the header
+     * @return Value of the header, null if it was not sent
+     */
+    String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    /**
+     * Read the frames until the connection is closed
+     * @param listener Listener of the messages
+     * @throws IOException Network or protocol error
+     */
+    void read(Listener listener) throws IOException {
+        ByteArrayOutputStream message = null;
+        while (true) {
+            int first = in.read();
+            if (first < 0)
+                return;
+            int second = in.readUnsignedByte();
+            boolean fin = (first & 0x80) != 0;
+            int opcode = first & 0x0F;
+            long length = second & 0x7F;
+            if (length == 126) {
+                length = in.readUnsignedShort();
+            } else if (length == 127) {
+                length = in.readLong();
+            }
+            if (length < 0 || length > MAX_MESSAGE_SIZE)
+                throw new IOException("Frame too big: " + length);
+            byte[] mask = null;
+            if ((second & 0x80) != 0) {
+                mask = new byte[4];
+                in.readFully(mask);
+            }
+            byte[] payload = new byte[(int) length];
+            in.readFully(payload);
+            if (mask != null)
+                for (int i = 0; i < payload.length; i++)
+                    payload[i] ^= mask[i & 3];
+
+            switch (opcode) {
+                case PING:
+                    if (answerPings)
+                        write(PONG, payload);
+                    continue;
+                case PONG:
+                    continue;
+                case CLOSE:
+                    write(CLOSE, payload);
+                    return;
+                case CONTINUATION:
+                    if (message == null)
+                        throw new IOException("Continuation without a message");
+                    break;
+                default:
+
+                    // Only the text messages are used, the binary ones are read and ignored
+                    message = opcode == TEXT ? new ByteArrayOutputStream() : null;
+            }
+            if (message != null) {
+                if (message.size() + payload.length > MAX_MESSAGE_SIZE)
+                    throw new IOException("Message too big");
+                message.write(payload);
+                if (fin) {
+                    listener.onMessage(this, new String(message.toByteArray(), StandardCharsets.UTF_8));
+                    message = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Send a text message
+     * @param text Text of the message
+     * @throws IOException Network error
+     */
+    void send(String text) throws IOException {
+        write(TEXT, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private synchronized void write(int opcode, byte[] payload) throws IOException {
+        out.write(0x80 | opcode);
+        if (payload.length < 126) {
+            out.write(payload.length);
+        } else if (payload.length <= 0xFFFF) {
+            out.write(126);
+            out.write(payload.length >>> 8);
+            out.write(payload.length);
+        } else {
+            out.write(127);
+            for (int shift = 56; shift >= 0; shift -= 8)
+                out.write((int) ((long) payload.length >>> shift));
+        }
+        out.write(payload);
+        out.flush();
+    }
+
+    /**
+     * Choose if the pings are answered, to simulate a peer that doesn't respond anymore
+     * @param answerPings True to answer the pings
+     */
+    void setAnswerPings(boolean answerPings) {
+        this.answerPings = answerPings;
+    }
+
+    /**
+     * Close the connection abruptly, without the close frame
+     */
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) { }
+    }
+}
@@ -0,0 +1,81 @@
+package it.simonedegiacomi.goboxapi.myws;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.goboxapi.client.GBFilter;
+import it.simonedegiacomi.goboxapi.client.SyncEvent;
+import it.simonedegiacomi.goboxapi.utils.MyGsonBuilder;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class BinaryJsonTest {
+
+    private final Gson gson = MyGsonBuilder.create();
+
+    private static JsonElement roundTrip (JsonElement json) throws IOException {
+        return new JsonParser().parse(new BinaryJsonReader(BinaryJsonWriter.encode(json)));
+    }
+
+    @Test
+    public void jsonTree () throws IOException {
+        String text = "{\"event\":\"queryResponse\",\"_queryId\":\"12\",\"data\":{\"a\":[1,-1,-200,70000,5000000000," +
+                "1.5,true,false,null,\"" + new String(new char[300]).replace('\0', 'x') + "\"],\"b\":{\"a\":\"\u00e8\"}}}";
+        JsonElement json = new JsonParser().parse(text);
+        assertEquals(json, roundTrip(json));
+    }
+
+    @Test
+    public void files () throws IOException {
+        List<GBFile> files = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            GBFile file = new GBFile(i + 1, 1, "file" + i + ".txt", false);
+            file.setSize(i * 1024);
+            file.setMime("text/plain");
+            files.add(file);
+        }
+        Type type = new TypeToken<List<GBFile>>() {}.getType();
+        JsonElement json = gson.toJsonTree(files, type);
+        byte[] binary = BinaryJsonWriter.encode(json);
+
+        // The names of the fields are written only once
+        assertTrue(binary.length * 2 < json.toString().length());
+
+        List<GBFile> decoded = gson.fromJson(new BinaryJsonReader(binary), type);
+        assertEquals(files.size(), decoded.size());
+        for (int i = 0; i < files.size(); i++) {
+            assertEquals(files.get(i).getID(), decoded.get(i).getID());
+            assertEquals(files.get(i).getName(), decoded.get(i).getName());
+            assertEquals(files.get(i).getSize(), decoded.get(i).getSize());
+        }
+    }
+
+    @Test
+    public void eventsAndFilters () throws IOException {
+        SyncEvent event = new SyncEvent(SyncEvent.EventKind.FILE_CREATED, new GBFile(4, 1, "new", true));
+        SyncEvent decodedEvent = gson.fromJson(new BinaryJsonReader(BinaryJsonWriter.encode(gson.toJsonTree(event))),
+                SyncEvent.class);
+        assertEquals(event.getKind(), decodedEvent.getKind());
+        assertEquals(4, decodedEvent.getRelativeFile().getID());
+
+        GBFilter filter = new GBFilter();
+        filter.setKeyword("report");
+        filter.setSize(10);
+        GBFilter decodedFilter = gson.fromJson(new BinaryJsonReader(BinaryJsonWriter.encode(gson.toJsonTree(filter))),
+                GBFilter.class);
+        assertEquals("report", decodedFilter.getKeyword());
+        assertEquals(10, decodedFilter.getSize());
+    }
+}
@@ -0,0 +1,112 @@
+package it.simonedegiacomi.goboxapi.myws;
+
+import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonReader;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class IncomingMessageTest {
+
+    /**
+     * Decoder that reads the 'size' field of the data
+     */
+    private static final WSDecoder<Long> SIZE = new WSDecoder<Long>() {
+        @Override
+        public Long decode(JsonReader reader) throws IOException {
+            long size = -1;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("size"))
+                    size = reader.nextLong();
+                else
+                    reader.skipValue();
+            }
+            reader.endObject();
+            return size;
+        }
+    };
+
+    /**
+     * Lookup that decodes only the responses of the query '1'
+     */
+    private static final IncomingMessage.DecoderLookup LOOKUP = new IncomingMessage.DecoderLookup() {
+        @Override
+        public WSDecoder<?> decoderOf(String sessionId, String event, String queryId) {
+            return event.equals("queryResponse") && "1".equals(queryId) ? SIZE : null;
+        }
+    };
+
+    private static List<IncomingMessage> read (String frame) throws IOException {
+        List<IncomingMessage> messages = new ArrayList<>();
+        IncomingMessage.read(new JsonReader(new StringReader(frame)), LOOKUP, messages);
+        return messages;
+    }
+
+    @Test
+    public void decodeWhileReading () throws IOException {
+        List<IncomingMessage> messages = read("{\"event\":\"queryResponse\",\"_queryId\":\"1\",\"data\":{\"files\":[1,2,3],\"size\":42}}");
+        assertEquals(1, messages.size());
+        assertEquals(42L, messages.get(0).data);
+        assertNull(messages.get(0).error);
+    }
+
+    @Test
+    public void decodeWhenIdComesAfterData () throws IOException {
+        List<IncomingMessage> messages = read("{\"data\":{\"size\":7},\"event\":\"queryResponse\",\"_queryId\":1}");
+        assertEquals("1", messages.get(0).queryId);
+        assertEquals(7L, messages.get(0).data);
+    }
+
+    @Test
+    public void eventsAsJsonTree () throws IOException {
+        List<IncomingMessage> messages = read("{\"event\":\"syncEvent\",\"_queryId\":\"\",\"data\":{\"size\":7}}");
+        assertNull(messages.get(0).queryId);
+        JsonElement data = messages.get(0).json();
+        assertEquals(7, data.getAsJsonObject().get("size").getAsInt());
+    }
+
+    @Test
+    public void batch () throws IOException {
+        List<IncomingMessage> messages = read("{\"event\":\"batch\",\"data\":[" +
+                "{\"event\":\"queryResponse\",\"_queryId\":\"1\",\"data\":{\"size\":1}}," +
+                "{\"event\":\"queryResponse\",\"_queryId\":\"2\",\"data\":{\"size\":2}}]}");
+        assertEquals(2, messages.size());
+        assertEquals(1L, messages.get(0).data);
+        assertEquals(2, messages.get(1).json().getAsJsonObject().get("size").getAsInt());
+
+        // Same batch, but the data comes before the event name
+        messages = read("{\"data\":[{\"event\":\"queryResponse\",\"_queryId\":\"1\",\"data\":{\"size\":1}}],\"event\":\"batch\"}");
+        assertEquals(1, messages.size());
+        assertEquals(1L, messages.get(0).data);
+    }
+
+    @Test
+    public void malformedData () throws IOException {
+        List<IncomingMessage> messages = read("{\"event\":\"queryResponse\",\"_queryId\":\"1\",\"data\":[]}");
+        assertEquals(1, messages.size());
+        assertNull(messages.get(0).data);
+        assertNotNull(messages.get(0).error);
+    }
+
+    @Test
+    public void sessions () throws IOException {
+        List<IncomingMessage> messages = read("{\"event\":\"batch\",\"data\":[" +
+                "{\"event\":\"syncEvent\",\"data\":{}}," +
+                "{\"event\":\"syncEvent\",\"_sessionId\":\"s2\",\"data\":{}}],\"_sessionId\":\"s1\"}");
+        assertEquals("s1", messages.get(0).sessionId);
+        assertEquals("s2", messages.get(1).sessionId);
+
+        messages = read("{\"event\":\"syncEvent\",\"data\":{}}");
+        assertNull(messages.get(0).sessionId);
+    }
+}
@@ -0,0 +1,67 @@
+package it.simonedegiacomi.goboxapi.myws;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverTheirValues () {
+        for (long value : new long[] {0, 1, 15, 16, 17, 31, 32, 33, 1000, 123456789, Long.MAX_VALUE}) {
+            int index = LatencyHistogram.indexOf(value);
+            assertTrue(value <= LatencyHistogram.upperBoundOf(index));
+            if (index > 0)
+                assertTrue(value > LatencyHistogram.upperBoundOf(index - 1));
+        }
+    }
+
+    @Test
+    public void percentiles () {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++)
+            histogram.record(i * 1000L);
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000, histogram.getMax());
+        assertEquals(500500, histogram.getMean());
+
+        // The error is at most 1/16 of the value
+        long median = histogram.getPercentile(50);
+        assertTrue(median >= 500000 && median <= 500000 + 500000 / 16);
+        assertEquals(1000000, histogram.getPercentile(100));
+        assertTrue(histogram.getPercentile(0) <= 1000 + 1000 / 16);
+
+        histogram.reset();
+        assertEquals(0, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void exportMetrics () throws Exception {
+        WSMetrics metrics = new WSMetrics();
+        metrics.queryStarted();
+        metrics.queryStarted();
+        metrics.queryCompleted("info", 2000000);
+        metrics.frameSent(100);
+        metrics.register("test");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(WSMetrics.JMX_DOMAIN + ":type=WebSocket,name=\"test\"");
+            assertEquals(1, server.getAttribute(name, "PendingQueries"));
+            assertEquals(100L, server.getAttribute(name, "BytesSent"));
+            Object p99 = server.invoke(name, "getLatencyPercentile", new Object[] {"info", 99.0},
+                    new String[] {String.class.getName(), double.class.getName()});
+            assertEquals(2000L, p99);
+        } finally {
+            metrics.unregister();
+        }
+        assertEquals(1, metrics.getQueryNames().length);
+    }
+}
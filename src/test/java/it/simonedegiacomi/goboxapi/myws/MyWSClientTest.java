@@ -0,0 +1,199 @@
+package it.simonedegiacomi.goboxapi.myws;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.goboxapi.fake.FakeGoBoxServer;
+import it.simonedegiacomi.goboxapi.utils.MyGsonBuilder;
+import it.simonedegiacomi.goboxapi.utils.URLBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class MyWSClientTest {
+
+    private static final int THREADS = 8;
+
+    private static final int QUERIES = 50;
+
+    private FakeGoBoxServer server;
+    private MyWSClient client;
+
+    @Before
+    public void init () throws Exception {
+        server = new FakeGoBoxServer();
+        server.start();
+        server.install();
+        client = new MyWSClient(URLBuilder.DEFAULT.getURI("socketClient"));
+        client.addHttpHeader("Authorization", "Bearer " + FakeGoBoxServer.TOKEN);
+        client.connect();
+    }
+
+    @After
+    public void stop () {
+        client.disconnect();
+        server.close();
+    }
+
+    private static JsonObject infoOf (long id) {
+        JsonObject file = new JsonObject();
+        file.addProperty("ID", id);
+        JsonObject request = new JsonObject();
+        request.add("file", file);
+        return request;
+    }
+
+    private static String nameIn (JsonElement response) {
+        return response.getAsJsonObject().getAsJsonObject("file").get("name").getAsString();
+    }
+
+    @Test
+    public void matchConcurrentQueriesWithTheirResponses () throws Exception {
+        final List<GBFile> files = new ArrayList<>();
+        for (int i = 0; i < THREADS * QUERIES; i++)
+            files.add(server.getStorage().put("file-" + i, new byte[0]));
+
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+        List<Future<List<ListenableFuture<JsonElement>>>> results = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int first = t * QUERIES;
+            results.add(threads.submit(new Callable<List<ListenableFuture<JsonElement>>>() {
+                @Override
+                public List<ListenableFuture<JsonElement>> call() {
+                    List<ListenableFuture<JsonElement>> futures = new ArrayList<>();
+                    for (int i = first; i < first + QUERIES; i++)
+                        futures.add(client.makeQueryAsync("info", infoOf(files.get(i).getID())));
+                    return futures;
+                }
+            }));
+        }
+        threads.shutdown();
+
+        for (int t = 0; t < THREADS; t++) {
+            List<ListenableFuture<JsonElement>> futures = results.get(t).get(5, TimeUnit.SECONDS);
+            for (int i = 0; i < QUERIES; i++)
+                assertEquals("file-" + (t * QUERIES + i), nameIn(futures.get(i).get(5, TimeUnit.SECONDS)));
+        }
+        assertEquals(0, client.getPendingQueries());
+        assertEquals(THREADS * QUERIES, server.getQueries());
+    }
+
+    @Test
+    public void removeTheQueryWhenTheResponseArrives () throws Exception {
+        server.setLatency(200, 0);
+        ListenableFuture<JsonElement> future = client.makeQueryAsync("info", infoOf(GBFile.ROOT_ID));
+        assertEquals(1, client.getPendingQueries());
+        future.get(5, TimeUnit.SECONDS);
+        assertEquals(0, client.getPendingQueries());
+    }
+
+    @Test
+    public void failTheExpiredQueries () throws Exception {
+        server.setDropRate(1);
+        ListenableFuture<JsonElement> expired = client.makeQueryAsync("info", infoOf(GBFile.ROOT_ID), 200,
+                TimeUnit.MILLISECONDS);
+        ListenableFuture<JsonElement> waiting = client.makeQueryAsync("info", infoOf(GBFile.ROOT_ID), 0,
+                TimeUnit.MILLISECONDS);
+        try {
+            expired.get(5, TimeUnit.SECONDS);
+            fail("The query didn't time out");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof WSTimeoutException);
+        }
+        assertEquals(1, client.getTimedOutQueries());
+
+        // A query without timeout waits until the connection is closed
+        Thread.sleep(2 * MyWSClient.REAPER_INTERVAL);
+        assertFalse(waiting.isDone());
+        assertEquals(1, client.getPendingQueries());
+    }
+
+    @Test
+    public void failThePendingQueriesWhenTheConnectionCloses () throws Exception {
+        server.setDropRate(1);
+        ListenableFuture<JsonElement> future = client.makeQueryAsync("info", infoOf(GBFile.ROOT_ID));
+
+        // The server adds the connection to its list only after the handshake
+        while (server.getConnections() == 0)
+            Thread.sleep(10);
+        server.disconnectAll();
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("The query didn't fail");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof WSException);
+            assertFalse(ex.getCause() instanceof WSTimeoutException);
+        }
+        assertEquals(0, client.getPendingQueries());
+        assertEquals(0, client.getTimedOutQueries());
+    }
+
+    @Test
+    public void runTheHandlersOfEveryClientOnItsOwnPool () throws Exception {
+        MyWSClient other = new MyWSClient(URLBuilder.DEFAULT.getURI("socketClient"));
+        other.addHttpHeader("Authorization", "Bearer " + FakeGoBoxServer.TOKEN);
+        final CountDownLatch closed = new CountDownLatch(1);
+        other.onEvent("close", new WSEventListener() {
+            @Override
+            public void onEvent(JsonElement data) {
+                closed.countDown();
+            }
+        });
+        other.connect();
+        assertNotSame(client.getExecutor(), other.getExecutor());
+
+        // The pool of a client stops with its connection
+        other.disconnect();
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+        assertTrue(other.getExecutor().isShutdown());
+        assertFalse(client.getExecutor().isShutdown());
+    }
+
+    @Test
+    public void answerTheQueriesOfTheHandlersDuringAFlood () throws Exception {
+        final int events = 40;
+        ThreadPoolExecutor handlers = new ThreadPoolExecutor(2, 2, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        final MyWSClient small = new MyWSClient(URLBuilder.DEFAULT.getURI("socketClient"), handlers, 4, 8);
+        small.addHttpHeader("Authorization", "Bearer " + FakeGoBoxServer.TOKEN);
+
+        // Every event handler waits for a query, like a listener that reads the information of the file
+        final CountDownLatch handled = new CountDownLatch(events);
+        small.onEvent("syncEvent", new WSEventListener() {
+            @Override
+            public void onEvent(JsonElement data) {
+                try {
+                    small.makeQueryAsync("info", infoOf(GBFile.ROOT_ID)).get(5, TimeUnit.SECONDS);
+                    handled.countDown();
+                } catch (Exception ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+        });
+        try {
+            small.connect();
+            for (int i = 0; i < events; i++) {
+                JsonElement folder = MyGsonBuilder.create().toJsonTree(new GBFile("dir" + i, GBFile.ROOT_ID, true));
+                client.makeQueryAsync("createFolder", folder);
+            }
+
+            // The flood can pause the reader, but never while a handler waits for a response
+            assertTrue(handled.await(20, TimeUnit.SECONDS));
+            assertEquals(0, small.getTimedOutQueries());
+        } finally {
+            small.disconnect();
+            handlers.shutdown();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package it.simonedegiacomi.goboxapi.myws;
+
+import com.google.gson.JsonObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class QueryBatcherTest {
+
+    private ScheduledExecutorService scheduler;
+    private BlockingQueue<List<JsonObject>> sent;
+    private QueryBatcher.Sender sender;
+
+    @Before
+    public void init () {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        sent = new LinkedBlockingQueue<>();
+        sender = new QueryBatcher.Sender() {
+            @Override
+            public void send(List<JsonObject> messages) {
+                sent.add(messages);
+            }
+        };
+    }
+
+    @After
+    public void stop () {
+        scheduler.shutdownNow();
+    }
+
+    private static JsonObject message (int id) {
+        JsonObject json = new JsonObject();
+        json.addProperty("_queryId", String.valueOf(id));
+        return json;
+    }
+
+    @Test
+    public void flushWhenFull () throws InterruptedException {
+        QueryBatcher batcher = new QueryBatcher(scheduler, sender, 1, TimeUnit.HOURS, 3);
+        for (int i = 0; i < 7; i++)
+            batcher.add(message(i));
+
+        assertEquals(3, sent.take().size());
+        assertEquals(3, sent.take().size());
+        assertTrue(sent.isEmpty());
+
+        batcher.flush();
+        List<JsonObject> last = sent.take();
+        assertEquals(1, last.size());
+        assertEquals("6", last.get(0).get("_queryId").getAsString());
+    }
+
+    @Test
+    public void flushWhenWindowExpires () throws InterruptedException {
+        QueryBatcher batcher = new QueryBatcher(scheduler, sender, 20, TimeUnit.MILLISECONDS, 100);
+        batcher.add(message(1));
+        batcher.add(message(2));
+
+        List<JsonObject> batch = sent.poll(5, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertEquals(2, batch.size());
+        assertEquals("1", batch.get(0).get("_queryId").getAsString());
+        assertEquals("2", batch.get(1).get("_queryId").getAsString());
+    }
+
+    @Test
+    public void emptyFlush () {
+        QueryBatcher batcher = new QueryBatcher(scheduler, sender, 20, TimeUnit.MILLISECONDS, 100);
+        batcher.flush();
+        assertTrue(sent.isEmpty());
+    }
+}
@@ -0,0 +1,87 @@
+package it.simonedegiacomi.goboxapi.myws;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class WSCompressionTest {
+
+    @Test
+    public void compressRepetitiveMessages () throws DataFormatException {
+        WSCompression compression = new WSCompression(64);
+        StringBuilder builder = new StringBuilder("{\"files\":[");
+        for (int i = 0; i < 100; i++)
+            builder.append("{\"ID\":").append(i).append(",\"fatherID\":1,\"isDirectory\":false},");
+        byte[] message = builder.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+
+        assertTrue(compression.shouldCompress(message.length));
+        byte[] frame = compression.compress(message);
+        assertNotNull(frame);
+        assertTrue(WSCompression.isCompressed(frame));
+        assertTrue(frame.length < message.length / 4);
+        assertArrayEquals(message, compression.decompress(frame));
+
+        assertEquals(1, compression.getCompressedFrames());
+        assertEquals(1, compression.getDecompressedFrames());
+        assertTrue(compression.getCompressionRatio() < 0.25);
+        assertEquals(message.length - frame.length, compression.getSavedBytes());
+    }
+
+    @Test
+    public void skipSmallAndIncompressibleMessages () {
+        WSCompression compression = new WSCompression(64);
+        assertFalse(compression.shouldCompress(63));
+
+        byte[] random = new byte[256];
+        new Random(42).nextBytes(random);
+        assertNull(compression.compress(random));
+        assertEquals(2, compression.getUncompressedFrames());
+        assertEquals(0, compression.getCompressedFrames());
+        assertEquals(1, compression.getCompressionRatio(), 0);
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void truncatedFrame () throws DataFormatException {
+        WSCompression compression = new WSCompression(0);
+        byte[] message = new byte[1024];
+        byte[] frame = compression.compress(message);
+        compression.decompress(Arrays.copyOf(frame, frame.length / 2));
+    }
+
+    @Test
+    public void refuseMessagesBiggerThanTheLimit () throws DataFormatException {
+        WSCompression compression = new WSCompression(0, Deflater.DEFAULT_COMPRESSION, 64 * 1024);
+        assertEquals(64 * 1024, compression.decompress(compression.compress(new byte[64 * 1024])).length);
+
+        // A frame of a few hundred bytes would inflate to a megabyte
+        byte[] bomb = compression.compress(new byte[1024 * 1024]);
+        assertTrue(bomb.length < 2048);
+        try {
+            compression.decompress(bomb);
+            fail("The message bigger than the limit was decompressed");
+        } catch (DataFormatException ex) {
+            assertEquals(1, compression.getDecompressedFrames());
+        }
+    }
+
+    @Test
+    public void keepWorkingAfterTheRelease () throws DataFormatException {
+        WSCompression compression = new WSCompression(0);
+        byte[] message = new byte[4096];
+        byte[] frame = compression.compress(message);
+        compression.release();
+        assertArrayEquals(message, compression.decompress(frame));
+        assertArrayEquals(frame, compression.compress(message));
+        assertEquals(2, compression.getCompressedFrames());
+    }
+}
@@ -0,0 +1,253 @@
+package it.simonedegiacomi.goboxapi.myws;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class WSDispatcherTest {
+
+    private ExecutorService executor;
+
+    @Before
+    public void init () {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void stop () {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void sameKeyInOrder () throws InterruptedException {
+        WSDispatcher dispatcher = new WSDispatcher(executor, 8, 16);
+        int keys = 10, messages = 500;
+        final List<List<Integer>> handled = new ArrayList<>();
+        for (int k = 0; k < keys; k++)
+            handled.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        final CountDownLatch done = new CountDownLatch(keys * messages);
+
+        for (int i = 0; i < messages; i++) {
+            for (int k = 0; k < keys; k++) {
+                final List<Integer> list = handled.get(k);
+                final int value = i;
+                dispatcher.dispatch("file" + k, new Runnable() {
+                    @Override
+                    public void run() {
+                        list.add(value);
+                        done.countDown();
+                    }
+                });
+            }
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (List<Integer> list : handled) {
+            assertEquals(messages, list.size());
+            for (int i = 0; i < messages; i++)
+                assertEquals(i, (int) list.get(i));
+        }
+        assertEquals(keys * messages, dispatcher.getDispatchedMessages());
+    }
+
+    @Test
+    public void boundedAndFailingHandlers () throws InterruptedException {
+        WSDispatcher dispatcher = new WSDispatcher(executor, 2, 4);
+        dispatcher.setWatermarks(4, 3);
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 3; i++) {
+            dispatcher.dispatch("file", new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw new IllegalStateException("handler failure");
+                }
+            });
+        }
+        assertEquals(3, dispatcher.getQueuedMessages());
+
+        release.countDown();
+        final CountDownLatch last = new CountDownLatch(1);
+        dispatcher.dispatch("file", new Runnable() {
+            @Override
+            public void run() {
+                last.countDown();
+            }
+        });
+        assertTrue(last.await(10, TimeUnit.SECONDS));
+        assertEquals(3, dispatcher.getFailedMessages());
+    }
+
+    @Test
+    public void pauseAtHighWatermark () throws InterruptedException {
+        final WSDispatcher dispatcher = new WSDispatcher(executor, 4, 10);
+        dispatcher.setWatermarks(6, 2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch dispatchedAll = new CountDownLatch(1);
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 6; i++) {
+                        dispatcher.dispatch("file", new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    release.await();
+                                } catch (InterruptedException ex) {
+                                    Thread.currentThread().interrupt();
+                                }
+                            }
+                        });
+                    }
+                    dispatchedAll.countDown();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        reader.start();
+
+        // The reader reached the high watermark with the last message, so it's paused
+        assertFalse(dispatchedAll.await(200, TimeUnit.MILLISECONDS));
+        assertTrue(dispatcher.isPaused());
+        assertEquals(1, dispatcher.getPauses());
+
+        release.countDown();
+        assertTrue(dispatchedAll.await(10, TimeUnit.SECONDS));
+        assertFalse(dispatcher.isPaused());
+        assertTrue(dispatcher.getPausedTime() >= 100);
+    }
+
+    @Test
+    public void controlOvertakesBulk () throws InterruptedException {
+        ExecutorService single = Executors.newSingleThreadExecutor();
+        try {
+            WSDispatcher dispatcher = new WSDispatcher(single, 8, 64);
+            final CountDownLatch release = new CountDownLatch(1);
+            final List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+            final CountDownLatch done = new CountDownLatch(22);
+
+            // Keep the only thread busy while the messages are dispatched
+            dispatcher.dispatch(WSPriority.BULK, "blocker", new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    done.countDown();
+                }
+            });
+            for (int i = 0; i < 20; i++) {
+                final String name = "bulk" + i;
+                dispatcher.dispatch(WSPriority.BULK, name, new Runnable() {
+                    @Override
+                    public void run() {
+                        handled.add(name);
+                        done.countDown();
+                    }
+                });
+            }
+            dispatcher.dispatch(WSPriority.CONTROL, "login", new Runnable() {
+                @Override
+                public void run() {
+                    handled.add("control");
+                    done.countDown();
+                }
+            });
+            assertEquals(21, dispatcher.getQueuedMessages(WSPriority.BULK));
+            assertEquals(1, dispatcher.getQueuedMessages(WSPriority.CONTROL));
+
+            release.countDown();
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+
+            // The blocker stripe handles a few bulk messages before giving the thread back
+            assertTrue(handled.indexOf("control") < 8);
+            assertEquals(21, handled.size());
+            assertEquals(1, dispatcher.getDispatchedMessages(WSPriority.CONTROL));
+        } finally {
+            single.shutdownNow();
+        }
+    }
+
+    @Test
+    public void keepReadingWhileAResponseIsAwaited () throws InterruptedException {
+        final WSDispatcher dispatcher = new WSDispatcher(executor, 4, 4);
+        dispatcher.setWatermarks(3, 1);
+        final AtomicBoolean awaited = new AtomicBoolean();
+        dispatcher.setDemand(new WSDispatcher.Demand() {
+            @Override
+            public boolean isWaiting() {
+                return awaited.get();
+            }
+        });
+        final CountDownLatch release = new CountDownLatch(1);
+        final Runnable blocked = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        final CountDownLatch dispatchedAll = new CountDownLatch(1);
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 10; i++)
+                        dispatcher.dispatch("file", blocked);
+                    dispatchedAll.countDown();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        reader.start();
+        assertFalse(dispatchedAll.await(200, TimeUnit.MILLISECONDS));
+        assertTrue(dispatcher.isPaused());
+
+        // A query waits for its response, so the reader goes on even over the capacity
+        awaited.set(true);
+        dispatcher.wake();
+        assertTrue(dispatchedAll.await(5, TimeUnit.SECONDS));
+        assertEquals(10, dispatcher.getQueuedMessages());
+
+        // The control messages don't count against the capacity
+        dispatcher.dispatch(WSPriority.CONTROL, "login", blocked);
+        assertEquals(10, dispatcher.getQueuedMessages());
+        assertFalse(dispatcher.offer(WSPriority.BULK, "file", blocked));
+        assertTrue(dispatcher.offer(WSPriority.CONTROL, "login", blocked));
+
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (dispatcher.getQueuedMessages() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(0, dispatcher.getQueuedMessages());
+        assertTrue(dispatcher.offer(WSPriority.BULK, "file", blocked));
+    }
+}
@@ -0,0 +1,169 @@
+package it.simonedegiacomi.goboxapi.myws;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.annotations.Expose;
+import it.simonedegiacomi.goboxapi.myws.annotations.WSEvent;
+import it.simonedegiacomi.goboxapi.myws.annotations.WSQuery;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class WSHandlerRegistryTest {
+
+    private static class Point {
+
+        @Expose
+        int x, y;
+
+        int ignored;
+    }
+
+    private static class Handlers {
+        final List<String> received = new ArrayList<>();
+
+        @WSEvent(name = "moved")
+        private void onMoved (Point point) {
+            received.add("moved " + point.x + "," + point.y);
+        }
+
+        @WSEvent
+        public void ping () {
+            received.add("ping");
+        }
+
+        @WSQuery(name = "sum")
+        public int sum (Point point) {
+            return point.x + point.y + point.ignored;
+        }
+
+        @WSQuery(name = "echo")
+        public JsonElement echo (JsonElement data) {
+            return data;
+        }
+    }
+
+    private static JsonElement json (String text) {
+        return new JsonParser().parse(text);
+    }
+
+    @Test
+    public void bindTypedMethods () {
+        WSHandlerRegistry registry = new WSHandlerRegistry();
+        Handlers handlers = new Handlers();
+        assertEquals(4, registry.register(handlers));
+
+        assertTrue(registry.fire("moved", json("{\"x\":1,\"y\":2}")));
+        assertTrue(registry.fire("ping", null));
+        assertFalse(registry.fire("unknown", null));
+        assertEquals("moved 1,2", handlers.received.get(0));
+        assertEquals("ping", handlers.received.get(1));
+
+        assertEquals(7, registry.queryHandler("sum").onQuery(json("{\"x\":3,\"y\":4}")).getAsInt());
+
+        // By default the data is decoded like the rest of the library, only the exposed fields
+        assertEquals(7, registry.queryHandler("sum").onQuery(json("{\"x\":3,\"y\":4,\"ignored\":5}")).getAsInt());
+        JsonObject data = json("{\"a\":true}").getAsJsonObject();
+        assertEquals(data, registry.queryHandler("echo").onQuery(data));
+    }
+
+    @Test
+    public void manySubscribers () {
+        WSHandlerRegistry registry = new WSHandlerRegistry();
+        final List<String> received = new ArrayList<>();
+        WSEventListener first = new WSEventListener() {
+            @Override
+            public void onEvent(JsonElement data) {
+                received.add("first");
+                throw new IllegalStateException("broken subscriber");
+            }
+        };
+        registry.subscribe("event", first);
+        registry.subscribe("event", new WSEventListener() {
+            @Override
+            public void onEvent(JsonElement data) {
+                received.add("second");
+            }
+        });
+        assertEquals(2, registry.getSubscriberCount("event"));
+
+        // A failing subscriber doesn't stop the others
+        registry.fire("event", null);
+        assertEquals(2, received.size());
+        assertEquals("second", received.get(1));
+
+        assertTrue(registry.unsubscribe("event", first));
+        registry.fire("event", null);
+        assertEquals(3, received.size());
+        assertEquals("second", received.get(2));
+    }
+
+    @Test
+    public void unregisterObject () {
+        WSHandlerRegistry registry = new WSHandlerRegistry();
+        Handlers handlers = new Handlers();
+        registry.register(handlers);
+        registry.register(new Handlers());
+        assertEquals(2, registry.getSubscriberCount("ping"));
+
+        registry.unregister(handlers);
+        assertEquals(1, registry.getSubscriberCount("ping"));
+        registry.fire("ping", null);
+        assertTrue(handlers.received.isEmpty());
+        assertNotNull(registry.queryHandler("sum"));
+    }
+
+    @Test
+    public void annotatedListener () {
+        WSHandlerRegistry registry = new WSHandlerRegistry();
+        final List<JsonElement> received = new ArrayList<>();
+        registry.register(new WSEventListener() {
+            @Override
+            @WSEvent(name = "disconnect")
+            public void onEvent(JsonElement data) {
+                received.add(data);
+            }
+        });
+        registry.fire("disconnect", json("1"));
+        assertEquals(1, received.size());
+    }
+
+    @Test
+    public void replaceTheListenerSetByName () {
+        WSHandlerRegistry registry = new WSHandlerRegistry();
+        final List<String> received = new ArrayList<>();
+        registry.subscribe("event", new WSEventListener() {
+            @Override
+            public void onEvent(JsonElement data) {
+                received.add("subscriber");
+            }
+        });
+        registry.setListener("event", new WSEventListener() {
+            @Override
+            public void onEvent(JsonElement data) {
+                received.add("old");
+            }
+        });
+        registry.setListener("event", new WSEventListener() {
+            @Override
+            public void onEvent(JsonElement data) {
+                received.add("new");
+            }
+        });
+        assertEquals(2, registry.getSubscriberCount("event"));
+
+        // The new listener replaces the old one, the subscribers are kept
+        registry.fire("event", null);
+        assertEquals(2, received.size());
+        assertTrue(received.contains("subscriber"));
+        assertTrue(received.contains("new"));
+    }
+}
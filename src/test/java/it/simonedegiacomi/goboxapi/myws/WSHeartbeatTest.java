@@ -0,0 +1,155 @@
+package it.simonedegiacomi.goboxapi.myws;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class WSHeartbeatTest {
+
+    private ScheduledExecutorService scheduler;
+    private BlockingQueue<byte[]> pings;
+    private CountDownLatch dead;
+    private WSHeartbeat heartbeat;
+    private volatile boolean blocked;
+
+    @Before
+    public void init () {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        pings = new LinkedBlockingQueue<>();
+        dead = new CountDownLatch(1);
+        heartbeat = new WSHeartbeat(scheduler, new WSHeartbeat.Pinger() {
+            @Override
+            public void ping(byte[] payload) {
+                pings.add(payload);
+            }
+
+            @Override
+            public void dead() {
+                dead.countDown();
+            }
+
+            @Override
+            public boolean isBlocked() {
+                return blocked;
+            }
+        });
+    }
+
+    @After
+    public void stop () {
+        heartbeat.stop();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void smoothRoundTripTime () {
+        assertEquals(-1, heartbeat.getSmoothedRtt());
+        assertEquals(WSHeartbeat.INITIAL_PONG_TIMEOUT, heartbeat.getPongTimeout());
+
+        heartbeat.sample(TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(100000, heartbeat.getSmoothedRtt());
+        assertEquals(50000, heartbeat.getRttVariance());
+        assertEquals(301, heartbeat.getRetransmissionTimeout());
+
+        heartbeat.sample(TimeUnit.MILLISECONDS.toNanos(200));
+        assertEquals(112500, heartbeat.getSmoothedRtt());
+        assertEquals(62500, heartbeat.getRttVariance());
+        assertEquals(200000, heartbeat.getLastRtt());
+
+        // The pong timeout is never less than the minimum
+        assertEquals(WSHeartbeat.MIN_PONG_TIMEOUT, heartbeat.getPongTimeout());
+    }
+
+    @Test
+    public void pongsDoubleTheInterval () throws InterruptedException {
+        heartbeat.setInterval(10, 40);
+        heartbeat.start();
+        for (int i = 0; i < 4; i++) {
+            byte[] ping = pings.poll(2, TimeUnit.SECONDS);
+            assertNotNull(ping);
+            heartbeat.onPong(ping);
+        }
+        assertEquals(4, heartbeat.getSamples());
+        assertEquals(40, heartbeat.getInterval());
+        assertTrue(heartbeat.getSmoothedRtt() >= 0);
+
+        // A pong with an unknown payload is ignored
+        heartbeat.onPong(new byte[8]);
+        assertEquals(4, heartbeat.getSamples());
+    }
+
+    @Test
+    public void detectDeadPeer () throws InterruptedException {
+        heartbeat.sample(TimeUnit.MILLISECONDS.toNanos(1));
+        heartbeat.setInterval(10, 10);
+        heartbeat.setMaxMissedPongs(2);
+        heartbeat.setMinDeadTimeout(0);
+        heartbeat.start();
+        assertTrue(dead.await(5, TimeUnit.SECONDS));
+        assertEquals(2, heartbeat.getMissedPongs());
+        assertEquals(2, pings.size());
+    }
+
+    @Test
+    public void anyFrameKeepsThePeerAlive () throws InterruptedException {
+        heartbeat.sample(TimeUnit.MILLISECONDS.toNanos(1));
+        heartbeat.setInterval(10, 10);
+        heartbeat.setMaxMissedPongs(1);
+        heartbeat.setMinDeadTimeout(0);
+        heartbeat.start();
+
+        // The pong is stuck behind other frames, that arrive after the ping
+        byte[] first = pings.poll(2, TimeUnit.SECONDS);
+        assertNotNull(first);
+        heartbeat.onReceived();
+        byte[] second = pings.poll(5, TimeUnit.SECONDS);
+        assertNotNull(second);
+        assertEquals(0, heartbeat.getMissedPongs());
+
+        // The late pong of the first ping still counts
+        heartbeat.onPong(first);
+        assertNotNull(pings.poll(5, TimeUnit.SECONDS));
+        assertEquals(0, heartbeat.getMissedPongs());
+        assertEquals(1, dead.getCount());
+    }
+
+    @Test
+    public void waitNoPongWhileTheReaderIsBlocked () throws InterruptedException {
+        heartbeat.sample(TimeUnit.MILLISECONDS.toNanos(1));
+        heartbeat.setInterval(10, 10);
+        heartbeat.setMaxMissedPongs(1);
+        heartbeat.setMinDeadTimeout(0);
+        blocked = true;
+        heartbeat.start();
+        assertFalse(dead.await(300, TimeUnit.MILLISECONDS));
+        assertTrue(pings.isEmpty());
+        assertEquals(0, heartbeat.getMissedPongs());
+
+        // The pings restart as soon as the reader is back
+        blocked = false;
+        assertNotNull(pings.poll(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void respectTheFloorOfTheDeadTimeout () throws InterruptedException {
+        heartbeat.sample(TimeUnit.MILLISECONDS.toNanos(1));
+        heartbeat.setInterval(10, 10);
+        heartbeat.setMaxMissedPongs(1);
+        heartbeat.setMinDeadTimeout(3000);
+        assertEquals(3000, heartbeat.getDeadTimeout());
+        heartbeat.start();
+
+        // The round trip time is tiny, but a silence shorter than the floor is not enough
+        assertFalse(dead.await(2, TimeUnit.SECONDS));
+        assertTrue(dead.await(5, TimeUnit.SECONDS));
+        assertTrue(heartbeat.getMissedPongs() >= 2);
+    }
+}
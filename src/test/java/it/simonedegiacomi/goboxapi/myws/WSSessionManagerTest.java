@@ -0,0 +1,281 @@
+package it.simonedegiacomi.goboxapi.myws;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.goboxapi.fake.FakeGoBoxServer;
+import it.simonedegiacomi.goboxapi.utils.MyGsonBuilder;
+import it.simonedegiacomi.goboxapi.utils.URLBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class WSSessionManagerTest {
+
+    private FakeGoBoxServer server;
+    private WSSessionManager manager;
+
+    @Before
+    public void init () throws Exception {
+        server = new FakeGoBoxServer();
+        server.start();
+        server.install();
+
+        // The shared connections don't carry a token, every session is authorized with its own headers
+        server.setCheckToken(false);
+        manager = new WSSessionManager(URLBuilder.DEFAULT.getURI("socketClient"), 2);
+    }
+
+    @After
+    public void stop () {
+        manager.close();
+        server.close();
+    }
+
+    /**
+     * Create and open a new session
+     */
+    private MyWSClient open () throws Exception {
+        MyWSClient session = manager.openSession();
+        session.addHttpHeader("Authorization", "Bearer " + FakeGoBoxServer.TOKEN);
+        session.connect();
+        return session;
+    }
+
+    private static JsonObject infoOf (long id) {
+        JsonObject file = new JsonObject();
+        file.addProperty("ID", id);
+        JsonObject request = new JsonObject();
+        request.add("file", file);
+        return request;
+    }
+
+    private static String nameIn (JsonElement response) {
+        return response.getAsJsonObject().getAsJsonObject("file").get("name").getAsString();
+    }
+
+    @Test
+    public void tagTheMessagesWithTheSession () throws Exception {
+        MyWSClient first = open();
+        MyWSClient second = open();
+        assertEquals(1, manager.getConnectionCount());
+        assertNotEquals(first.getSessionId(), second.getSessionId());
+
+        first.makeQueryAsync("info", infoOf(GBFile.ROOT_ID)).get(5, TimeUnit.SECONDS);
+        second.makeQueryAsync("info", infoOf(GBFile.ROOT_ID)).get(5, TimeUnit.SECONDS);
+        assertEquals(new HashSet<>(Arrays.asList(first.getSessionId(), second.getSessionId())),
+                server.getSessionIds());
+        assertEquals(2, server.getSessionCount());
+    }
+
+    @Test
+    public void routeTheResponsesToTheOwningSession () throws Exception {
+        GBFile a = server.getStorage().put("a", new byte[0]);
+        GBFile b = server.getStorage().put("b", new byte[0]);
+        MyWSClient first = open();
+        MyWSClient second = open();
+
+        // Both sessions use the same query ids, only the session tells the responses apart
+        for (int i = 0; i < 20; i++) {
+            ListenableFuture<JsonElement> fromFirst = first.makeQueryAsync("info", infoOf(a.getID()));
+            ListenableFuture<JsonElement> fromSecond = second.makeQueryAsync("info", infoOf(b.getID()));
+            assertEquals("a", nameIn(fromFirst.get(5, TimeUnit.SECONDS)));
+            assertEquals("b", nameIn(fromSecond.get(5, TimeUnit.SECONDS)));
+        }
+        assertEquals(0, first.getPendingQueries());
+        assertEquals(0, second.getPendingQueries());
+    }
+
+    @Test
+    public void deliverTheSyncEventsToEverySessionOnce () throws Exception {
+        MyWSClient first = open();
+        MyWSClient second = open();
+        final Map<String, List<JsonElement>> received = new ConcurrentHashMap<>();
+        final CountDownLatch latch = new CountDownLatch(2);
+        for (final MyWSClient session : Arrays.asList(first, second)) {
+            final List<JsonElement> events = Collections.synchronizedList(new ArrayList<JsonElement>());
+            received.put(session.getSessionId(), events);
+            session.onEvent("syncEvent", new WSEventListener() {
+                @Override
+                public void onEvent(JsonElement data) {
+                    events.add(data);
+                    latch.countDown();
+                }
+            });
+        }
+
+        JsonElement folder = MyGsonBuilder.create().toJsonTree(new GBFile("docs", GBFile.ROOT_ID, true));
+        first.makeQueryAsync("createFolder", folder).get(5, TimeUnit.SECONDS);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        // Wait for a duplicate, if any
+        Thread.sleep(200);
+        assertEquals(1, received.get(first.getSessionId()).size());
+        assertEquals(1, received.get(second.getSessionId()).size());
+    }
+
+    @Test
+    public void closeASessionThatCantKeepUp () throws Exception {
+
+        // The blocked handler of a session must not take the only thread of the other one
+        ThreadPoolExecutor threads = new ThreadPoolExecutor(4, 4, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        manager.close();
+        manager = new WSSessionManager(URLBuilder.DEFAULT.getURI("socketClient"), 2, threads);
+        manager.setSessionCapacity(4);
+        MyWSClient slow = open();
+        MyWSClient fast = open();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        slow.onEvent("syncEvent", new WSEventListener() {
+            @Override
+            public void onEvent(JsonElement data) {
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) { }
+            }
+        });
+        slow.onEvent("close", new WSEventListener() {
+            @Override
+            public void onEvent(JsonElement data) {
+                closed.countDown();
+            }
+        });
+        final int folders = 10;
+        final CountDownLatch received = new CountDownLatch(folders);
+        fast.onEvent("syncEvent", new WSEventListener() {
+            @Override
+            public void onEvent(JsonElement data) {
+                received.countDown();
+            }
+        });
+
+        // The slow session doesn't stop the reading of the messages of the other one
+        try {
+            for (int i = 0; i < folders; i++) {
+                JsonElement folder = MyGsonBuilder.create().toJsonTree(new GBFile("f" + i, GBFile.ROOT_ID, true));
+                fast.makeQueryAsync("createFolder", folder).get(5, TimeUnit.SECONDS);
+            }
+            assertTrue(received.await(5, TimeUnit.SECONDS));
+            assertTrue(closed.await(5, TimeUnit.SECONDS));
+            assertFalse(slow.isConnected());
+            assertTrue(fast.isConnected());
+            assertEquals(1, manager.getSessionCount());
+        } finally {
+            release.countDown();
+            threads.shutdown();
+        }
+    }
+
+    @Test
+    public void routeTheMessagesOfABatchToTheSessionOfTheBatch () throws Exception {
+        server.setBatchResponses(true);
+        GBFile a = server.getStorage().put("a", new byte[0]);
+        GBFile b = server.getStorage().put("b", new byte[0]);
+        MyWSClient first = open();
+        MyWSClient second = open();
+
+        // The server answers with a batch that carries the session only at the batch level
+        List<ListenableFuture<JsonElement>> fromFirst = first.makeBatchQueryAsync("info",
+                Arrays.asList(infoOf(a.getID()), infoOf(b.getID())));
+        List<ListenableFuture<JsonElement>> fromSecond = second.makeBatchQueryAsync("info",
+                Arrays.asList(infoOf(b.getID()), infoOf(a.getID())));
+        assertEquals("a", nameIn(fromFirst.get(0).get(5, TimeUnit.SECONDS)));
+        assertEquals("b", nameIn(fromFirst.get(1).get(5, TimeUnit.SECONDS)));
+        assertEquals("b", nameIn(fromSecond.get(0).get(5, TimeUnit.SECONDS)));
+        assertEquals("a", nameIn(fromSecond.get(1).get(5, TimeUnit.SECONDS)));
+    }
+
+    @Test
+    public void respectTheLimitOfSessionsPerConnection () throws Exception {
+        final int sessions = 9;
+
+        // The sessions are created together, before any of them is open
+        ExecutorService threads = Executors.newFixedThreadPool(sessions);
+        List<Future<MyWSClient>> created = new ArrayList<>();
+        for (int i = 0; i < sessions; i++) {
+            created.add(threads.submit(new Callable<MyWSClient>() {
+                @Override
+                public MyWSClient call() throws Exception {
+                    return manager.openSession();
+                }
+            }));
+        }
+        threads.shutdown();
+        List<MyWSClient> opened = new ArrayList<>();
+        for (Future<MyWSClient> future : created)
+            opened.add(future.get(5, TimeUnit.SECONDS));
+        assertEquals(5, manager.getConnectionCount());
+        assertEquals(sessions, manager.getSessionCount());
+
+        for (MyWSClient session : opened) {
+            session.addHttpHeader("Authorization", "Bearer " + FakeGoBoxServer.TOKEN);
+            session.connect();
+        }
+        assertEquals(5, manager.getConnectionCount());
+        assertEquals(sessions, manager.getSessionCount());
+        assertEquals(sessions, server.getSessionCount());
+
+        // A closed session frees its slot
+        opened.get(0).disconnect();
+        assertEquals(sessions - 1, manager.getSessionCount());
+        open();
+        assertEquals(5, manager.getConnectionCount());
+    }
+
+    @Test
+    public void freeTheSlotOfASessionNotOpened () throws Exception {
+        server.setAcceptConnections(false);
+        MyWSClient session = manager.openSession();
+        assertEquals(1, manager.getSessionCount());
+        try {
+            session.connect();
+            fail("The session was opened");
+        } catch (WSException ex) {
+            assertEquals(0, manager.getSessionCount());
+        }
+    }
+
+    @Test
+    public void closeAllTheSessionsWhenTheConnectionDrops () throws Exception {
+        MyWSClient first = open();
+        MyWSClient second = open();
+        final CountDownLatch closed = new CountDownLatch(2);
+        for (MyWSClient session : Arrays.asList(first, second)) {
+            session.onEvent("close", new WSEventListener() {
+                @Override
+                public void onEvent(JsonElement data) {
+                    closed.countDown();
+                }
+            });
+        }
+        server.setDropRate(1);
+        ListenableFuture<JsonElement> fromFirst = first.makeQueryAsync("info", infoOf(GBFile.ROOT_ID));
+        ListenableFuture<JsonElement> fromSecond = second.makeQueryAsync("info", infoOf(GBFile.ROOT_ID));
+
+        server.disconnectAll();
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+        for (ListenableFuture<JsonElement> future : Arrays.asList(fromFirst, fromSecond)) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail("The query didn't fail");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof WSException);
+            }
+        }
+        assertEquals(0, first.getPendingQueries());
+        assertEquals(0, second.getPendingQueries());
+        assertFalse(first.isConnected());
+        assertFalse(second.isConnected());
+    }
+}
@@ -0,0 +1,240 @@
+package it.simonedegiacomi.goboxapi.myws;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import it.simonedegiacomi.goboxapi.fake.FakeGoBoxServer;
+import it.simonedegiacomi.goboxapi.utils.URLBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class WSWriteQueueTest {
+
+    private ScheduledExecutorService scheduler;
+    private List<Runnable> pending;
+    private Executor manual;
+    private BlockingQueue<JsonObject> written;
+    private BlockingQueue<JsonObject> failed;
+    private volatile boolean failing;
+    private WSWriteQueue.Writer writer;
+
+    @Before
+    public void init () {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        pending = Collections.synchronizedList(new ArrayList<Runnable>());
+
+        // Executor that runs the drains only when the test wants
+        manual = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                pending.add(command);
+            }
+        };
+        written = new LinkedBlockingQueue<>();
+        failed = new LinkedBlockingQueue<>();
+        writer = new WSWriteQueue.Writer() {
+            @Override
+            public void write(JsonObject frame) {
+                if (failing)
+                    throw new IllegalStateException("Socket closed");
+                written.add(frame);
+            }
+
+            @Override
+            public void failed(JsonObject frame, RuntimeException cause) {
+                failed.add(frame);
+            }
+        };
+    }
+
+    @After
+    public void stop () {
+        scheduler.shutdownNow();
+    }
+
+    private static JsonObject message (int id) {
+        JsonObject json = new JsonObject();
+        json.addProperty("event", "query");
+        json.addProperty("_queryId", String.valueOf(id));
+        return json;
+    }
+
+    private void runPending () {
+        for (Runnable task : new ArrayList<>(pending))
+            task.run();
+        pending.clear();
+    }
+
+    @Test
+    public void coalesceQueuedMessages () {
+        WSWriteQueue queue = new WSWriteQueue(writer, manual, scheduler);
+        queue.setCoalescing(true);
+        for (int i = 0; i < 5; i++)
+            queue.add(message(i));
+        assertEquals(5, queue.getDepth());
+        assertEquals(1, pending.size());
+
+        runPending();
+        assertEquals(1, written.size());
+        JsonObject frame = written.poll();
+        assertEquals(MyWSClient.BATCH_EVENT, frame.get("event").getAsString());
+        JsonArray data = frame.getAsJsonArray("data");
+        assertEquals(5, data.size());
+        for (int i = 0; i < 5; i++)
+            assertEquals(String.valueOf(i), data.get(i).getAsJsonObject().get("_queryId").getAsString());
+
+        assertEquals(0, queue.getDepth());
+        assertEquals(5, queue.getWrittenMessages());
+        assertEquals(1, queue.getWrittenFrames());
+        assertTrue(queue.getMaxLatency() >= queue.getAverageLatency());
+    }
+
+    @Test
+    public void oneFrameForMessageWithoutCoalescing () {
+        WSWriteQueue queue = new WSWriteQueue(writer, manual, scheduler);
+        for (int i = 0; i < 3; i++)
+            queue.add(message(i));
+        runPending();
+        assertEquals(3, written.size());
+        assertEquals(3, queue.getWrittenFrames());
+        assertEquals("0", written.poll().get("_queryId").getAsString());
+    }
+
+    @Test
+    public void limitMessagesPerFrame () {
+        WSWriteQueue queue = new WSWriteQueue(writer, manual, scheduler);
+        queue.setCoalescing(true);
+        queue.setMaxFrameMessages(2);
+        for (int i = 0; i < 5; i++)
+            queue.add(message(i));
+        queue.flush();
+        assertEquals(3, written.size());
+        assertEquals(2, written.poll().getAsJsonArray("data").size());
+        assertEquals(2, written.poll().getAsJsonArray("data").size());
+        assertEquals("4", written.poll().get("_queryId").getAsString());
+    }
+
+    @Test
+    public void flattenSessionBatches () {
+        WSWriteQueue queue = new WSWriteQueue(writer, manual, scheduler);
+        queue.setCoalescing(true);
+        List<JsonObject> messages = new ArrayList<>();
+        messages.add(message(1));
+        messages.add(message(2));
+        JsonObject batch = MyWSClient.batchOf(messages);
+        batch.addProperty("_sessionId", "s1");
+        queue.add(batch);
+        queue.add(message(3));
+        queue.flush();
+
+        JsonArray data = written.poll().getAsJsonArray("data");
+        assertEquals(3, data.size());
+        assertEquals("s1", data.get(0).getAsJsonObject().get("_sessionId").getAsString());
+        assertEquals("s1", data.get(1).getAsJsonObject().get("_sessionId").getAsString());
+        assertFalse(data.get(2).getAsJsonObject().has("_sessionId"));
+    }
+
+    @Test
+    public void flushDelayCollectsMessages () throws InterruptedException {
+        WSWriteQueue queue = new WSWriteQueue(writer, manual, scheduler);
+        queue.setCoalescing(true);
+        queue.setFlushDelay(50);
+        queue.add(message(1));
+        queue.add(message(2));
+        assertTrue(pending.isEmpty());
+
+        // When the delay expires the scheduler only hands the drain to the writer
+        long deadline = System.currentTimeMillis() + 2000;
+        while (pending.isEmpty() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(1, pending.size());
+        assertTrue(written.isEmpty());
+
+        runPending();
+        JsonObject frame = written.poll();
+        assertNotNull(frame);
+        assertEquals(2, frame.getAsJsonArray("data").size());
+    }
+
+    @Test
+    public void writeWhileTheHandlersAreBusy () throws Exception {
+        FakeGoBoxServer server = new FakeGoBoxServer();
+        server.start();
+        server.install();
+
+        // A single handler thread, blocked until the end of the test
+        ThreadPoolExecutor handlers = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        final CountDownLatch release = new CountDownLatch(1);
+        MyWSClient client = new MyWSClient(URLBuilder.DEFAULT.getURI("socketClient"), handlers);
+        client.addHttpHeader("Authorization", "Bearer " + FakeGoBoxServer.TOKEN);
+        try {
+            client.connect();
+            handlers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException ignored) { }
+                }
+            });
+            for (int i = 0; i < 10; i++)
+                client.sendEvent("ping", null);
+            client.makeQueryAsync("info", null);
+
+            // The messages reach the server even if no handler can run
+            long deadline = System.currentTimeMillis() + 5000;
+            while (server.getQueries() == 0 && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertEquals(1, server.getQueries());
+            assertEquals(11, client.getWriteQueue().getWrittenMessages());
+        } finally {
+            release.countDown();
+            client.disconnect();
+            handlers.shutdown();
+            server.close();
+        }
+    }
+
+    @Test
+    public void reportTheFramesNotWritten () {
+        WSWriteQueue queue = new WSWriteQueue(writer, manual, scheduler);
+        queue.setCoalescing(true);
+        failing = true;
+        for (int i = 0; i < 3; i++)
+            queue.add(message(i));
+        runPending();
+
+        // The whole batch is reported, so the queries in it can be failed
+        assertTrue(written.isEmpty());
+        assertEquals(1, failed.size());
+        JsonObject frame = failed.poll();
+        assertEquals(MyWSClient.BATCH_EVENT, frame.get("event").getAsString());
+        assertEquals(3, frame.getAsJsonArray("data").size());
+        assertEquals(1, queue.getFailedWrites());
+    }
+
+    @Test
+    public void controlFirst () {
+        WSWriteQueue queue = new WSWriteQueue(writer, manual, scheduler);
+        for (int i = 0; i < 3; i++)
+            queue.add(message(i), WSPriority.BULK);
+        queue.add(message(10), WSPriority.CONTROL);
+        queue.add(message(20));
+        queue.flush();
+        assertEquals("10", written.poll().get("_queryId").getAsString());
+        assertEquals("20", written.poll().get("_queryId").getAsString());
+        assertEquals("0", written.poll().get("_queryId").getAsString());
+    }
+}
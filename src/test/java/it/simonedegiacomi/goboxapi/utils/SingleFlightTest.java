@@ -0,0 +1,100 @@
+package it.simonedegiacomi.goboxapi.utils;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class SingleFlightTest {
+
+    @Test
+    public void shareCallsInFlight () throws ExecutionException, InterruptedException {
+        SingleFlight flight = new SingleFlight();
+        final AtomicInteger calls = new AtomicInteger();
+        final SettableFuture<String> response = SettableFuture.create();
+        SingleFlight.Call<String> call = new SingleFlight.Call<String>() {
+            @Override
+            public ListenableFuture<String> start() {
+                calls.incrementAndGet();
+                return response;
+            }
+        };
+
+        ListenableFuture<String> first = flight.execute("info:1", call);
+        ListenableFuture<String> second = flight.execute("info:1", call);
+        assertEquals(1, calls.get());
+        assertEquals(1, flight.getAbsorbedCalls());
+
+        // A caller can't cancel the shared call
+        second.cancel(true);
+        assertFalse(first.isDone());
+
+        response.set("file");
+        assertEquals("file", first.get());
+
+        // The call is completed, so the next one starts again
+        flight.execute("info:1", call);
+        assertEquals(2, calls.get());
+        assertEquals(2, flight.getStartedCalls());
+    }
+
+    @Test
+    public void forgetOnlyTheTaggedCalls () {
+        SingleFlight flight = new SingleFlight();
+        final AtomicInteger calls = new AtomicInteger();
+        SingleFlight.Call<String> call = new SingleFlight.Call<String>() {
+            @Override
+            public ListenableFuture<String> start() {
+                calls.incrementAndGet();
+                return SettableFuture.create();
+            }
+        };
+        flight.execute("info:1", Arrays.asList("ID:1", "path:docs"), call);
+        flight.execute("info:2", Collections.singletonList("ID:2"), call);
+        assertEquals(2, calls.get());
+
+        // Only the call that read the changed file starts again
+        flight.forget("path:docs");
+        flight.execute("info:1", Arrays.asList("ID:1", "path:docs"), call);
+        flight.execute("info:2", Collections.singletonList("ID:2"), call);
+        assertEquals(3, calls.get());
+        assertEquals(1, flight.getAbsorbedCalls());
+    }
+
+    @Test
+    public void failedStart () {
+        SingleFlight flight = new SingleFlight();
+        ListenableFuture<String> future = flight.execute("broken", new SingleFlight.Call<String>() {
+            @Override
+            public ListenableFuture<String> start() {
+                throw new IllegalStateException("not connected");
+            }
+        });
+        assertTrue(future.isDone());
+        try {
+            future.get();
+            fail();
+        } catch (Exception ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void canonicalKeys () {
+        JsonParser parser = new JsonParser();
+        assertEquals(SingleFlight.keyOf("info", parser.parse("{\"a\":1,\"b\":{\"d\":[1,{\"y\":2,\"x\":1}],\"c\":2}}")),
+                SingleFlight.keyOf("info", parser.parse("{\"b\":{\"c\":2,\"d\":[1,{\"x\":1,\"y\":2}]},\"a\":1}")));
+        assertNotEquals(SingleFlight.keyOf("info", null), SingleFlight.keyOf("trashed", null));
+    }
+}
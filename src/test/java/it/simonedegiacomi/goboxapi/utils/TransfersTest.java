@@ -0,0 +1,76 @@
+package it.simonedegiacomi.goboxapi.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class TransfersTest {
+
+    private byte[] content;
+    private File file;
+
+    @Before
+    public void init () throws IOException {
+        content = new byte[Transfers.BUFFER_SIZE * 2 + 1234];
+        new Random(9).nextBytes(content);
+        file = File.createTempFile("gobox-transfers", ".bin");
+    }
+
+    @After
+    public void delete () {
+        file.delete();
+    }
+
+    @Test
+    public void streamToFile () throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            assertEquals(content.length, Transfers.copy(new ByteArrayInputStream(content), channel, 0, -1));
+            assertEquals(100, Transfers.copy(new ByteArrayInputStream(content), channel, 10, 100));
+        }
+        byte[] expected = content.clone();
+        System.arraycopy(content, 0, expected, 10, 100);
+        assertArrayEquals(expected, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test(expected = EOFException.class)
+    public void failWhenTheStreamIsShort () throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            Transfers.copy(new ByteArrayInputStream(new byte[10]), channel, 0, 11);
+        }
+    }
+
+    @Test
+    public void fileToStream () throws IOException {
+        Files.write(file.toPath(), content);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            assertEquals(content.length - 5, Transfers.copy(channel, 5, content.length - 5, out));
+        }
+        assertArrayEquals(Arrays.copyOfRange(content, 5, content.length), out.toByteArray());
+    }
+
+    @Test
+    public void fileToFile () throws IOException {
+        Files.write(file.toPath(), content);
+        File copy = File.createTempFile("gobox-transfers", ".copy");
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             FileOutputStream out = new FileOutputStream(copy)) {
+            assertEquals(content.length, Transfers.copy(channel, 0, content.length, out));
+        }
+        assertArrayEquals(content, Files.readAllBytes(copy.toPath()));
+        copy.delete();
+    }
+}
@@ -0,0 +1,45 @@
+package it.simonedegiacomi.goboxapi.utils;
+
+import org.junit.Test;
+
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created on 17/10/26.
+ * @author Degiacomi Simone
+ */
+public class VirtualThreadsTest {
+
+    @Test
+    public void runTasksOnVirtualThreads () throws Exception {
+        if (!VirtualThreads.isAvailable()) {
+            try {
+                VirtualThreads.newExecutor("test-");
+                fail("Virtual threads created on a JVM without them");
+            } catch (UnsupportedOperationException ex) {
+                return;
+            }
+        }
+        ExecutorService executor = VirtualThreads.newExecutor("test-");
+        try {
+            Future<Boolean> virtual = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return VirtualThreads.isVirtual(Thread.currentThread());
+                }
+            });
+            assertTrue(virtual.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void disabledWithoutProperty () {
+        System.clearProperty(VirtualThreads.PROPERTY);
+        assertFalse(VirtualThreads.isEnabled());
+        assertFalse(VirtualThreads.isVirtual(Thread.currentThread()));
+    }
+}